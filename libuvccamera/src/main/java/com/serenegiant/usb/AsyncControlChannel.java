@@ -0,0 +1,176 @@
+/*
+ *  UVCCamera
+ *  library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * Copyright (c) 2014-2017 saki t_saki@serenegiant.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ *  All files in the folder are under this Apache License, Version 2.0.
+ *  Files in the libjpeg-turbo, libusb, libuvc, rapidjson folder
+ *  may have a different license, see the respective files.
+ */
+
+package com.serenegiant.usb;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.util.Log;
+
+/**
+ * Asynchronous control writes for slider-like UI.
+ * #set returns immediately and the value is written on dedicated control thread.
+ * While a write of the same control is pending, only the latest value is kept(coalescing),
+ * so dragging slider does not queue dozens of USB control transfers.
+ * Pending writes are sent together with UVCCamera#executeControlBatch.
+ */
+public final class AsyncControlChannel {
+	private static final boolean DEBUG = false;	// TODO set false when releasing
+	private static final String TAG = AsyncControlChannel.class.getSimpleName();
+
+	public interface Callback {
+		/**
+		 * called on control thread when the value was written
+		 * @param control one of ControlBatch#CTRL_XXX
+		 * @param value raw value that was written
+		 * @param status 0 if succeeded, negative value if failed
+		 */
+		public void onControlComplete(final int control, final int value, final int status);
+	}
+
+	private final Object mSync = new Object();
+	private final UVCCamera mCamera;
+	private final Callback mCallback;
+	/** pending writes, key is control id, value is latest requested value */
+	private final Map<Integer, Integer> mPending = new LinkedHashMap<Integer, Integer>();
+	/** only accessed from control thread */
+	private final ControlBatch mBatch = new ControlBatch();
+	private Thread mControlThread;
+	private volatile boolean mReleased;
+	private volatile int mRequestCount;
+	private volatile int mCoalescedCount;
+
+	/**
+	 * Constructor, this starts control thread
+	 * @param camera opened UVCCamera
+	 * @param callback null if completion is not necessary
+	 */
+	public AsyncControlChannel(final UVCCamera camera, final Callback callback) {
+		if (camera == null) {
+			throw new IllegalArgumentException("camera should not be null");
+		}
+		mCamera = camera;
+		mCallback = callback;
+		mControlThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				controlLoop();
+			}
+		}, TAG);
+		mControlThread.start();
+	}
+
+	/**
+	 * request to write raw value of the control, this never blocks on USB transfer
+	 * @param control one of ControlBatch#CTRL_XXX
+	 * @param value raw value
+	 * @return false if this channel was already released
+	 */
+	public boolean set(final int control, final int value) {
+		synchronized (mSync) {
+			if (mReleased) return false;
+			mRequestCount++;
+			if (mPending.put(control, value) != null) {
+				// previous value was not sent yet, replaced with latest one
+				mCoalescedCount++;
+			}
+			mSync.notifyAll();
+		}
+		return true;
+	}
+
+	/**
+	 * @return number of values that were passed to #set
+	 */
+	public int getRequestCount() {
+		return mRequestCount;
+	}
+
+	/**
+	 * @return number of values that were replaced with later value and were not sent to camera
+	 */
+	public int getCoalescedCount() {
+		return mCoalescedCount;
+	}
+
+	/**
+	 * stop control thread, pending writes are discarded.
+	 * call this before closing UVCCamera
+	 */
+	public void release() {
+		final Thread thread;
+		synchronized (mSync) {
+			mReleased = true;
+			mPending.clear();
+			thread = mControlThread;
+			mControlThread = null;
+			mSync.notifyAll();
+		}
+		if ((thread != null) && (thread != Thread.currentThread())) {
+			try {
+				thread.join();
+			} catch (final InterruptedException e) {
+				// ignore
+			}
+		}
+	}
+
+	private void controlLoop() {
+		if (DEBUG) Log.v(TAG, "controlLoop:start");
+		final ControlBatch batch = mBatch;
+		for ( ; ; ) {
+			synchronized (mSync) {
+				while (!mReleased && mPending.isEmpty()) {
+					try {
+						mSync.wait();
+					} catch (final InterruptedException e) {
+						break;
+					}
+				}
+				if (mReleased || mPending.isEmpty()) break;
+				batch.clear();
+				final Iterator<Map.Entry<Integer, Integer>> iter = mPending.entrySet().iterator();
+				while (iter.hasNext()) {
+					final Map.Entry<Integer, Integer> entry = iter.next();
+					batch.set(entry.getKey(), entry.getValue());
+					iter.remove();
+				}
+			}
+			final int n = mCamera.executeControlBatch(batch);
+			if (mCallback != null) {
+				final int num = batch.size();
+				for (int i = 0; i < num; i++) {
+					try {
+						mCallback.onControlComplete(batch.getControl(i), batch.getRequestedValue(i),
+							n >= 0 ? batch.getStatus(i) : n);
+					} catch (final Exception e) {
+						Log.w(TAG, e);
+					}
+				}
+			}
+		}
+		if (DEBUG) Log.v(TAG, "controlLoop:finished");
+	}
+}
@@ -0,0 +1,219 @@
+/*
+ *  UVCCamera
+ *  library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * Copyright (c) 2014-2017 saki t_saki@serenegiant.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ *  All files in the folder are under this Apache License, Version 2.0.
+ *  Files in the libjpeg-turbo, libusb, libuvc, rapidjson folder
+ *  may have a different license, see the respective files.
+ */
+
+package com.serenegiant.usb;
+
+/**
+ * Set of control reads/writes that UVCCamera#executeControlBatch executes with one JNI call.
+ * Operations are executed back-to-back on native side in the order they were added.
+ * Values are raw(absolute) values of UVC controls, not percentages like UVCCamera#setBrightness.
+ * This object can be reused by #clear to avoid allocation in periodic control loop,
+ * and is not thread safe.
+ */
+public final class ControlBatch {
+	// same values as batch_ctrl_id on native side
+	public static final int CTRL_SCANNING_MODE = 0;
+	public static final int CTRL_EXPOSURE_MODE = 1;
+	public static final int CTRL_EXPOSURE_PRIORITY = 2;
+	public static final int CTRL_EXPOSURE = 3;
+	public static final int CTRL_EXPOSURE_REL = 4;
+	public static final int CTRL_AUTO_FOCUS = 5;
+	public static final int CTRL_FOCUS = 6;
+	public static final int CTRL_FOCUS_REL = 7;
+	public static final int CTRL_IRIS = 8;
+	public static final int CTRL_IRIS_REL = 9;
+	public static final int CTRL_PAN = 10;
+	public static final int CTRL_TILT = 11;
+	public static final int CTRL_ROLL = 12;
+	public static final int CTRL_PAN_REL = 13;
+	public static final int CTRL_TILT_REL = 14;
+	public static final int CTRL_ROLL_REL = 15;
+	public static final int CTRL_PRIVACY = 16;
+	public static final int CTRL_AUTO_WHITE_BLANCE = 17;
+	public static final int CTRL_AUTO_WHITE_BLANCE_COMPO = 18;
+	public static final int CTRL_WHITE_BLANCE = 19;
+	public static final int CTRL_WHITE_BLANCE_COMPO = 20;
+	public static final int CTRL_BACKLIGHT_COMP = 21;
+	public static final int CTRL_BRIGHTNESS = 22;
+	public static final int CTRL_CONTRAST = 23;
+	public static final int CTRL_AUTO_CONTRAST = 24;
+	public static final int CTRL_SHARPNESS = 25;
+	public static final int CTRL_GAIN = 26;
+	public static final int CTRL_GAMMA = 27;
+	public static final int CTRL_SATURATION = 28;
+	public static final int CTRL_HUE = 29;
+	public static final int CTRL_AUTO_HUE = 30;
+	public static final int CTRL_POWERLINE_FREQUENCY = 31;
+	public static final int CTRL_ZOOM = 32;
+	public static final int CTRL_ZOOM_REL = 33;
+	public static final int CTRL_DIGITAL_MULTIPLIER = 34;
+	public static final int CTRL_DIGITAL_MULTIPLIER_LIMIT = 35;
+	public static final int CTRL_ANALOG_VIDEO_STANDARD = 36;
+	public static final int CTRL_ANALOG_VIDEO_LOCK_STATE = 37;
+
+	// same values as BATCH_OP_XXX on native side
+	private static final int OP_SIZE = 3;
+	private static final int OP_GET = 0;
+	private static final int OP_SET = 1;
+
+	/** (control id, OP_GET/OP_SET, value) for each operation */
+	int[] mOps;
+	/** (status, value) for each operation, written by native code */
+	int[] mResults;
+	int mNum;
+	private boolean mExecuted;
+
+	public ControlBatch() {
+		this(8);
+	}
+
+	/**
+	 * @param capacity initial number of operations
+	 */
+	public ControlBatch(final int capacity) {
+		final int n = capacity > 0 ? capacity : 1;
+		mOps = new int[n * OP_SIZE];
+		mResults = new int[n * 2];
+	}
+
+	/**
+	 * add write operation
+	 * @param control one of CTRL_XXX
+	 * @param value raw value, 0/1 for auto controls
+	 * @return index of this operation to get its result
+	 */
+	public int set(final int control, final int value) {
+		return add(control, OP_SET, value);
+	}
+
+	/**
+	 * add write operation for auto controls like CTRL_AUTO_FOCUS
+	 * @param control
+	 * @param enable
+	 * @return index of this operation to get its result
+	 */
+	public int set(final int control, final boolean enable) {
+		return add(control, OP_SET, enable ? 1 : 0);
+	}
+
+	/**
+	 * add read operation of current value
+	 * @param control one of CTRL_XXX
+	 * @return index of this operation to get its result
+	 */
+	public int get(final int control) {
+		return add(control, OP_GET, 0);
+	}
+
+	/**
+	 * remove all operations, allocated arrays are reused
+	 */
+	public void clear() {
+		mNum = 0;
+		mExecuted = false;
+	}
+
+	/**
+	 * @return number of operations
+	 */
+	public int size() {
+		return mNum;
+	}
+
+	/**
+	 * @return whether this batch was executed after last #clear
+	 */
+	public boolean isExecuted() {
+		return mExecuted;
+	}
+
+	/**
+	 * @param index return value of #set/#get
+	 * @return 0 if the operation succeeded, negative value(uvc_error_t) if failed.
+	 * reading current value always returns 0 because native getters do not return error
+	 */
+	public int getStatus(final int index) {
+		checkResult(index);
+		return mResults[index * 2];
+	}
+
+	/**
+	 * @param index return value of #set/#get
+	 * @return current value for read operation, requested value for write operation
+	 */
+	public int getValue(final int index) {
+		checkResult(index);
+		return mResults[index * 2 + 1];
+	}
+
+	/**
+	 * @param index return value of #set/#get
+	 * @return control id of the operation
+	 */
+	public int getControl(final int index) {
+		checkIndex(index);
+		return mOps[index * OP_SIZE];
+	}
+
+	/**
+	 * @param index return value of #set
+	 * @return value that was passed to #set, 0 for read operation
+	 */
+	int getRequestedValue(final int index) {
+		checkIndex(index);
+		return mOps[index * OP_SIZE + 2];
+	}
+
+	/** called from UVCCamera after native code wrote results */
+	void setExecuted() {
+		mExecuted = true;
+	}
+
+	private int add(final int control, final int op, final int value) {
+		if (mNum * OP_SIZE >= mOps.length) {
+			final int[] ops = new int[mOps.length * 2];
+			System.arraycopy(mOps, 0, ops, 0, mOps.length);
+			mOps = ops;
+			mResults = new int[mResults.length * 2];
+		}
+		final int ix = mNum * OP_SIZE;
+		mOps[ix] = control;
+		mOps[ix + 1] = op;
+		mOps[ix + 2] = value;
+		mExecuted = false;
+		return mNum++;
+	}
+
+	private void checkResult(final int index) {
+		if (!mExecuted) {
+			throw new IllegalStateException("not executed yet");
+		}
+		checkIndex(index);
+	}
+
+	private void checkIndex(final int index) {
+		if ((index < 0) || (index >= mNum)) {
+			throw new IndexOutOfBoundsException("index=" + index + ",size=" + mNum);
+		}
+	}
+}
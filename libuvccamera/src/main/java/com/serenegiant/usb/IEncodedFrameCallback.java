@@ -0,0 +1,54 @@
+/*
+ *  UVCCamera
+ *  library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * Copyright (c) 2014-2017 saki t_saki@serenegiant.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ *  All files in the folder are under this Apache License, Version 2.0.
+ *  Files in the libjpeg-turbo, libusb, libuvc, rapidjson folder
+ *  may have a different license, see the respective files.
+ */
+
+
+package com.serenegiant.usb;
+
+import java.nio.ByteBuffer;
+/**
+ * Callback interface for UVCCamera class to receive H.264/H.265/MJPEG frames
+ * that camera encoded without decoding/re-encoding.
+ * You can use this callback interface with UVCCamera#setEncodedFrameCallback
+ * when preview is started with FRAME_FORMAT_H264, FRAME_FORMAT_H265 or FRAME_FORMAT_MJPEG.
+ */
+public interface IEncodedFrameCallback {
+	/**
+	 * the frame contains IDR(H.264) / IRAP(H.265) NAL unit, always set on MJPEG frames
+	 */
+	public static final int FLAG_KEY_FRAME = 0x01;
+	/**
+	 * the frame contains SPS/PPS(H.264) or VPS/SPS/PPS(H.265) NAL unit
+	 */
+	public static final int FLAG_CODEC_CONFIG = 0x02;
+
+	/**
+	 * This method is called from native library via JNI on the preview thread.
+	 * Frames are delivered in order and frames until next key frame are skipped
+	 * when some frames were dropped, so this method should return as soon as possible.
+	 * @param frame direct ByteBuffer that contains Annex-B byte stream(start code + NAL unit(s)) of one frame
+	 * or one JPEG image from SOI to EOI marker, this is only valid while this method is executing.
+	 * @param flags combination of FLAG_KEY_FRAME and FLAG_CODEC_CONFIG
+	 * @param presentationTimeUs time when the frame arrived, same time base as System#nanoTime / 1000
+	 */
+	public void onEncodedFrame(ByteBuffer frame, int flags, long presentationTimeUs);
+}
@@ -0,0 +1,50 @@
+/*
+ *  UVCCamera
+ *  library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * Copyright (c) 2014-2017 saki t_saki@serenegiant.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ *  All files in the folder are under this Apache License, Version 2.0.
+ *  Files in the libjpeg-turbo, libusb, libuvc, rapidjson folder
+ *  may have a different license, see the respective files.
+ */
+
+package com.serenegiant.usb;
+
+import java.nio.ByteBuffer;
+/**
+ * IFrameCallback that supplies the buffer to write frames into.
+ * If the callback passed to UVCCamera#setFrameCallback implements this interface,
+ * native library converts each frame into the buffer that #onObtainBuffer returned
+ * (e.g. input buffer of MediaCodec) instead of it's own callback buffer and calls #onFrameWritten.
+ * IFrameCallback#onFrame is not called.
+ */
+public interface IFrameBufferCallback extends IFrameCallback {
+	/**
+	 * This method is called from native library via JNI on the same thread as IFrameCallback#onFrame.
+	 * @param bytes size of the frame with the pixel format passed to UVCCamera#setFrameCallback
+	 * @return direct ByteBuffer whose capacity is equal to or larger than bytes,
+	 * the frame is written from the start of the buffer regardless of it's position.
+	 * return null to drop the frame.
+	 */
+	public ByteBuffer onObtainBuffer(int bytes);
+	/**
+	 * This method is called after writing the frame into the buffer that #onObtainBuffer returned.
+	 * @param buffer the buffer that #onObtainBuffer returned
+	 * @param bytes size of the frame, negative value if failed to write
+	 * @param presentationTimeUs time when the frame arrived, same time base as System#nanoTime / 1000
+	 */
+	public void onFrameWritten(ByteBuffer buffer, int bytes, long presentationTimeUs);
+}
@@ -188,6 +188,40 @@ public class Size implements Parcelable {
 		return this;
 	}
 
+	/** continuous frame intervals are listed only if number of them are less than this */
+	private static final int MAX_CONTINUOUS_INTERVALS = 256;
+
+	/**
+	 * get exact frame intervals that the camera supports with this size
+	 * @return frame intervals in 100ns units, that can be passed to UVCCamera#setPreviewFrameInterval,
+	 * 			empty array if unknown
+	 */
+	public int[] getFrameIntervals() {
+		if (intervals == null) {
+			return new int[0];
+		}
+		if (frameIntervalType > 0) {
+			final int[] result = new int[intervals.length];
+			System.arraycopy(intervals, 0, result, 0, intervals.length);
+			return result;
+		} else if ((frameIntervalType == 0) && (intervals.length >= 3)) {
+			// continuous frame intervals
+			final int min = Math.min(intervals[0], intervals[1]);
+			final int max = Math.max(intervals[0], intervals[1]);
+			final int step = intervals[2];
+			if ((step > 0) && (min > 0) && ((max - min) / step < MAX_CONTINUOUS_INTERVALS)) {
+				final int[] result = new int[(max - min) / step + 1];
+				for (int i = 0; i < result.length; i++) {
+					result[i] = min + step * i;
+				}
+				return result;
+			}
+			// too fine step, only minimum and maximum interval
+			return min > 0 ? (min == max ? new int[] {min} : new int[] {min, max}) : new int[0];
+		}
+		return new int[0];
+	}
+
 	public float getCurrentFrameRate() throws IllegalStateException {
 		final int n = fps != null ? fps.length : 0;
 		if ((frameIntervalIndex >= 0) && (frameIntervalIndex < n)) {
@@ -23,7 +23,9 @@
 
 package com.serenegiant.usb;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 import org.json.JSONArray;
@@ -50,9 +52,15 @@ public class UVCCamera {
 	public static final int DEFAULT_PREVIEW_MIN_FPS = 1;
 	public static final int DEFAULT_PREVIEW_MAX_FPS = 30;
 	public static final float DEFAULT_BANDWIDTH = 1.0f;
+	/** streaming is really stopped when preview is kept paused longer than this[ms] */
+	public static final int DEFAULT_IDLE_TIMEOUT_MS = 10000;
 
 	public static final int FRAME_FORMAT_YUYV = 0;
 	public static final int FRAME_FORMAT_MJPEG = 1;
+	/** H.264 frame based format, frames are passed to IEncodedFrameCallback without decoding */
+	public static final int FRAME_FORMAT_H264 = 2;
+	/** H.265 frame based format, frames are passed to IEncodedFrameCallback without decoding */
+	public static final int FRAME_FORMAT_H265 = 3;
 
 	public static final int PIXEL_FORMAT_RAW = 0;
 	public static final int PIXEL_FORMAT_YUV = 1;
@@ -61,6 +69,105 @@ public class UVCCamera {
 	public static final int PIXEL_FORMAT_YUV420SP = 4;
 	public static final int PIXEL_FORMAT_NV21 = 5;		// = YVU420SemiPlanar
 
+	/** preview thread receives frames via callback thread of libuvc(default) */
+	public static final int STREAM_MODE_CALLBACK = 0;
+	/** preview thread polls frames from stream directly, this eliminates one thread hop per frame */
+	public static final int STREAM_MODE_POLLING = 1;
+
+	/** index of #getStreamInfo, committed dwFrameInterval[100ns] */
+	public static final int STREAM_INFO_FRAME_INTERVAL = 0;
+	/** index of #getStreamInfo, committed dwMaxVideoFrameSize[bytes] */
+	public static final int STREAM_INFO_MAX_VIDEO_FRAME_SIZE = 1;
+	/** index of #getStreamInfo, committed dwMaxPayloadTransferSize[bytes] */
+	public static final int STREAM_INFO_MAX_PAYLOAD_SIZE = 2;
+	public static final int STREAM_INFO_WIDTH = 3;
+	public static final int STREAM_INFO_HEIGHT = 4;
+	/** index of #getStreamInfo, measured frame rate x 1000 since preview started/resumed */
+	public static final int STREAM_INFO_MEASURED_FPS = 5;
+	/** index of #getStreamInfo, time from #startPreview to first frame[us], 0 if not measured yet */
+	public static final int STREAM_INFO_FIRST_FRAME_LATENCY = 6;
+	private static final int STREAM_INFO_NUM = 7;
+
+	/** index of #getFramePoolStats, number of native frames that were allocated */
+	public static final int FRAME_POOL_STATS_ALLOCATIONS = 0;
+	/** index of #getFramePoolStats, number of native frames that were reallocated to larger size */
+	public static final int FRAME_POOL_STATS_REALLOCATIONS = 1;
+	/** index of #getFramePoolStats, number of requests that reused pooled frame without reallocation */
+	public static final int FRAME_POOL_STATS_HITS = 2;
+	/** index of #getFramePoolStats, number of requests that failed because of quota/out of memory */
+	public static final int FRAME_POOL_STATS_FAILURES = 3;
+	/** index of #getFramePoolStats, bytes of native frames that are allocated now */
+	public static final int FRAME_POOL_STATS_BYTES = 4;
+	/** index of #getFramePoolStats, maximum of FRAME_POOL_STATS_BYTES */
+	public static final int FRAME_POOL_STATS_HIGH_WATERMARK = 5;
+	/** index of #getFramePoolStats, quota that was set by #setMemoryQuota, 0 means unlimited */
+	public static final int FRAME_POOL_STATS_QUOTA = 6;
+	/**
+	 * @deprecated use #FRAME_POOL_STATS_QUOTA
+	 */
+	@Deprecated
+	public static final int FRAME_POOL_STATS_BUDGET = FRAME_POOL_STATS_QUOTA;
+	private static final int FRAME_POOL_STATS_NUM = 7;
+
+	/** index of #getMemoryUsage, bytes of frames that this camera allocated from the shared arena */
+	public static final int MEMORY_USAGE_FRAME_BYTES = 0;
+	/** index of #getMemoryUsage, bytes of USB transfer buffers that this camera allocated from the shared arena */
+	public static final int MEMORY_USAGE_TRANSFER_BYTES = 1;
+	/** index of #getMemoryUsage, maximum of frame bytes + transfer bytes */
+	public static final int MEMORY_USAGE_HIGH_WATERMARK = 2;
+	/** index of #getMemoryUsage, quota that was set by #setMemoryQuota, 0 means unlimited */
+	public static final int MEMORY_USAGE_QUOTA = 3;
+	/** index of #getMemoryUsage, number of allocations that failed because of quota/limit */
+	public static final int MEMORY_USAGE_FAILURES = 4;
+	private static final int MEMORY_USAGE_NUM = 5;
+
+	/** index of #getMemoryReport, bytes that all cameras in this process are using */
+	public static final int MEMORY_REPORT_IN_USE_BYTES = 0;
+	/** index of #getMemoryReport, bytes of freed buffers that are kept for reuse */
+	public static final int MEMORY_REPORT_CACHED_BYTES = 1;
+	/** index of #getMemoryReport, maximum of in use bytes + cached bytes */
+	public static final int MEMORY_REPORT_HIGH_WATERMARK = 2;
+	/** index of #getMemoryReport, limit that was set by #setMemoryLimit, 0 means unlimited */
+	public static final int MEMORY_REPORT_LIMIT = 3;
+	/** index of #getMemoryReport, number of cameras that use the shared arena */
+	public static final int MEMORY_REPORT_CAMERAS = 4;
+	/** index of #getMemoryReport, number of buffers that were allocated from system */
+	public static final int MEMORY_REPORT_ALLOCATIONS = 5;
+	/** index of #getMemoryReport, number of buffers that were reused from cache */
+	public static final int MEMORY_REPORT_CACHE_HITS = 6;
+	/** index of #getMemoryReport, number of allocations that failed because of quota/limit/out of memory */
+	public static final int MEMORY_REPORT_FAILURES = 7;
+	/** index of #getMemoryReport, one of MEMORY_BACKING_XXX */
+	public static final int MEMORY_REPORT_BACKING = 8;
+	/** index of #getMemoryReport, bytes of buffers that were allocated with mmap */
+	public static final int MEMORY_REPORT_MAPPED_BYTES = 9;
+	private static final int MEMORY_REPORT_NUM = 10;
+
+	/** buffers of the shared memory arena are allocated with malloc(default) */
+	public static final int MEMORY_BACKING_MALLOC = 0;
+	/** large buffers of the shared memory arena are pre-faulted mmap regions */
+	public static final int MEMORY_BACKING_MMAP = 1;
+	/** large buffers of the shared memory arena are pre-faulted mmap regions with transparent huge pages if available */
+	public static final int MEMORY_BACKING_MMAP_HUGE_PAGES = 2;
+
+	/** USB event handler thread, this thread starts when camera is opened */
+	public static final int THREAD_USB_EVENT = 0;
+	/** stream callback thread that assembles frames from USB transfers */
+	public static final int THREAD_STREAM_CALLBACK = 1;
+	/** preview thread that decodes frames and draws them onto preview surface */
+	public static final int THREAD_PREVIEW = 2;
+	/** capture thread that draws frames onto capture surface and calls IFrameCallback */
+	public static final int THREAD_CAPTURE = 3;
+
+	/** keep default scheduling policy and priority */
+	public static final int SCHED_DEFAULT = -1;
+	/** same value as SCHED_OTHER in sched.h, priority is nice value(-20..19) */
+	public static final int SCHED_OTHER = 0;
+	/** same value as SCHED_FIFO in sched.h, priority is real time priority(1..99) */
+	public static final int SCHED_FIFO = 1;
+	/** same value as SCHED_RR in sched.h, priority is real time priority(1..99) */
+	public static final int SCHED_RR = 2;
+
 	//--------------------------------------------------------------------------------
     public static final int	CTRL_SCANNING		= 0x00000001;	// D0:  Scanning Mode
     public static final int CTRL_AE				= 0x00000002;	// D1:  Auto-Exposure Mode
@@ -130,8 +237,36 @@ public class UVCCamera {
     protected int mCurrentFrameFormat = FRAME_FORMAT_MJPEG;
 	protected int mCurrentWidth = DEFAULT_PREVIEW_WIDTH, mCurrentHeight = DEFAULT_PREVIEW_HEIGHT;
 	protected float mCurrentBandwidthFactor = DEFAULT_BANDWIDTH;
+	protected int mStreamMode = STREAM_MODE_CALLBACK;
+	protected int mIdleTimeoutMs = DEFAULT_IDLE_TIMEOUT_MS;
+	protected long mMemoryQuota;
+	private boolean mPreviewPaused;
     protected String mSupportedSize;
+    protected UVCCapabilities mCapabilities;
+    private UVCDeviceCache.Key mCacheKey;
+    /** control ranges that are same as UVCDeviceCache has */
+    private int[] mCachedCtrlLimits;
+    // 設定範囲を取得済みのコントロール, 接続毎に1回だけ取得する
+    private static final int LIMIT_BRIGHTNESS = 0x0001;
+    private static final int LIMIT_CONTRAST = 0x0002;
+    private static final int LIMIT_SHARPNESS = 0x0004;
+    private static final int LIMIT_GAIN = 0x0008;
+    private static final int LIMIT_GAMMA = 0x0010;
+    private static final int LIMIT_SATURATION = 0x0020;
+    private static final int LIMIT_HUE = 0x0040;
+    private static final int LIMIT_ZOOM = 0x0080;
+    private static final int LIMIT_WHITEBLANCE = 0x0100;
+    private static final int LIMIT_FOCUS = 0x0200;
+    private static final int NUM_LIMITS = 10;
+    private int mLimitUpdated;
+    /** time that #open took[ns] */
+    private long mOpenDurationNs;
     protected List<Size> mCurrentSizeList;
+    /**
+     * guards native object while #executeControlBatch is running without holding the monitor of this instance,
+     * so that control transfers do not block #startPreview/#stopPreview
+     */
+    private final Object mControlSync = new Object();
 	// these fields from here are accessed from native code and do not change name and remove
     protected long mNativePtr;
     protected int mScanningModeMin, mScanningModeMax, mScanningModeDef;
@@ -187,7 +322,9 @@ public class UVCCamera {
      * @param ctrlBlock
      */
     public synchronized void open(final UsbControlBlock ctrlBlock) {
+    	final long startNs = System.nanoTime();
     	int result;
+    	mLimitUpdated = 0;
     	try {
 			mCtrlBlock = ctrlBlock.clone();
 			result = nativeConnect(mNativePtr,
@@ -203,11 +340,16 @@ public class UVCCamera {
 		if (result != 0) {
 			throw new UnsupportedOperationException("open failed:result=" + result);
 		}
-    	if (mNativePtr != 0 && TextUtils.isEmpty(mSupportedSize)) {
-    		mSupportedSize = nativeGetSupportedSize(mNativePtr);
+    	if (mNativePtr != 0) {
+    		loadDeviceCache();
     	}
 		nativeSetPreviewSize(mNativePtr, DEFAULT_PREVIEW_WIDTH, DEFAULT_PREVIEW_HEIGHT,
 			DEFAULT_PREVIEW_MIN_FPS, DEFAULT_PREVIEW_MAX_FPS, DEFAULT_PREVIEW_MODE, DEFAULT_BANDWIDTH);
+		nativeSetStreamMode(mNativePtr, mStreamMode);
+		nativeSetIdleTimeout(mNativePtr, mIdleTimeoutMs);
+		nativeSetMemoryQuota(mNativePtr, mMemoryQuota);
+		mOpenDurationNs = System.nanoTime() - startNs;
+		if (DEBUG) Log.v(TAG, "open:finished, " + (mOpenDurationNs / 1000) + "us");
     }
 
 	/**
@@ -236,7 +378,13 @@ public class UVCCamera {
     public synchronized void close() {
     	stopPreview();
     	if (mNativePtr != 0) {
-    		nativeRelease(mNativePtr);
+    		if (mCtrlBlock != null) {
+    			saveDeviceCache();
+    		}
+    		synchronized (mControlSync) {
+    			// wait for #executeControlBatch in progress
+    			nativeRelease(mNativePtr);
+    		}
 //    		mNativePtr = 0;	// nativeDestroyを呼ぶのでここでクリアしちゃダメ
     	}
     	if (mCtrlBlock != null) {
@@ -247,10 +395,22 @@ public class UVCCamera {
 		mCurrentFrameFormat = -1;
 		mCurrentBandwidthFactor = 0;
 		mSupportedSize = null;
+		mCapabilities = null;
+		mCacheKey = null;
+		mCachedCtrlLimits = null;
+		mLimitUpdated = 0;
 		mCurrentSizeList = null;
     	if (DEBUG) Log.v(TAG, "close:finished");
     }
 
+	/**
+	 * @return time that last #open took[ns], this does not include control range probing
+	 * because ranges are queried when each control is used first time
+	 */
+	public long getOpenDurationNs() {
+		return mOpenDurationNs;
+	}
+
 	public UsbDevice getDevice() {
 		return mCtrlBlock != null ? mCtrlBlock.getDevice() : null;
 	}
@@ -263,10 +423,83 @@ public class UVCCamera {
 		return mCtrlBlock;
 	}
 
+	/**
+	 * get supported formats/sizes as JSON string,
+	 * #getCapabilities/#getSupportedSizeList are faster because they do not need to parse JSON
+	 */
 	public synchronized String getSupportedSize() {
     	return !TextUtils.isEmpty(mSupportedSize) ? mSupportedSize : (mSupportedSize = nativeGetSupportedSize(mNativePtr));
     }
 
+	/**
+	 * get capabilities of the camera, this is built once per device and cached with USBMonitor#getDeviceKeyName
+	 * @return null if the camera is not opened
+	 */
+	public UVCCapabilities getCapabilities() {
+		return mCapabilities;
+	}
+
+	/**
+	 * get capabilities from memory/disk cache or create it from descriptors,
+	 * and set control ranges to native side if UVCDeviceCache has them
+	 * so that following nativeUpdateXXXLimit do not need to query the camera.
+	 */
+	private void loadDeviceCache() {
+		String key = null;
+		try {
+			key = mCtrlBlock.getDeviceKeyNameWithSerial();
+		} catch (final Exception e) {
+			Log.w(TAG, e);
+		}
+		mCacheKey = UVCDeviceCache.Key.create(mCtrlBlock);
+		final UVCDeviceCache.Entry entry = UVCDeviceCache.load(mCacheKey);
+		UVCCapabilities capabilities = key != null ? UVCCapabilities.get(key) : null;
+		if ((capabilities == null) && (entry != null)) {
+			try {
+				capabilities = new UVCCapabilities(entry.capabilities, entry.ctrlSupports, entry.procSupports);
+			} catch (final IllegalArgumentException e) {
+				Log.w(TAG, e);
+			}
+		}
+		if (capabilities == null) {
+			final long[] controls = new long[2];
+			final int[] caps = nativeGetCapabilities(mNativePtr, controls);
+			try {
+				capabilities = new UVCCapabilities(caps, controls[0], controls[1]);
+			} catch (final IllegalArgumentException e) {
+				Log.w(TAG, e);
+			}
+		}
+		if ((capabilities != null) && (key != null)) {
+			UVCCapabilities.put(key, capabilities);
+		}
+		mCapabilities = capabilities;
+		mCachedCtrlLimits = null;
+		if ((entry != null) && (entry.ctrlLimits != null)
+			&& (nativeSetCtrlLimits(mNativePtr, entry.ctrlLimits) == 0)) {
+
+			mCachedCtrlLimits = entry.ctrlLimits;
+		}
+		if ((entry == null) && (capabilities != null)) {
+			UVCDeviceCache.save(mCacheKey, new UVCDeviceCache.Entry(capabilities.mRaw,
+				capabilities.getCtrlSupports(), capabilities.getProcSupports(), null));
+		}
+	}
+
+	/**
+	 * write control ranges that were queried since open into UVCDeviceCache if they were changed
+	 */
+	private void saveDeviceCache() {
+		final UVCCapabilities capabilities = mCapabilities;
+		if ((mCacheKey == null) || (capabilities == null)) return;
+		final int[] limits = nativeGetCtrlLimits(mNativePtr);
+		if ((limits != null) && !Arrays.equals(limits, mCachedCtrlLimits)) {
+			UVCDeviceCache.save(mCacheKey, new UVCDeviceCache.Entry(capabilities.mRaw,
+				capabilities.getCtrlSupports(), capabilities.getProcSupports(), limits));
+			mCachedCtrlLimits = limits;
+		}
+	}
+
 	public Size getPreviewSize() {
 		Size result = null;
 		final List<Size> list = getSupportedSizeList();
@@ -293,7 +526,7 @@ public class UVCCamera {
 	 * Set preview size and preview mode
 	 * @param width
 	 * @param height
-	 * @param frameFormat either FRAME_FORMAT_YUYV(0) or FRAME_FORMAT_MJPEG(1)
+	 * @param frameFormat one of FRAME_FORMAT_YUYV(0), FRAME_FORMAT_MJPEG(1), FRAME_FORMAT_H264(2) or FRAME_FORMAT_H265(3)
 	 */
 	public void setPreviewSize(final int width, final int height, final int frameFormat) {
 		setPreviewSize(width, height, DEFAULT_PREVIEW_MIN_FPS, DEFAULT_PREVIEW_MAX_FPS, frameFormat, mCurrentBandwidthFactor);
@@ -303,7 +536,7 @@ public class UVCCamera {
 	 * Set preview size and preview mode
 	 * @param width
 	   @param height
-	   @param frameFormat either FRAME_FORMAT_YUYV(0) or FRAME_FORMAT_MJPEG(1)
+	   @param frameFormat one of FRAME_FORMAT_YUYV(0), FRAME_FORMAT_MJPEG(1), FRAME_FORMAT_H264(2) or FRAME_FORMAT_H265(3)
 	   @param bandwidth [0.0f,1.0f]
 	 */
 	public void setPreviewSize(final int width, final int height, final int frameFormat, final float bandwidth) {
@@ -316,7 +549,7 @@ public class UVCCamera {
 	 * @param height
 	 * @param min_fps
 	 * @param max_fps
-	 * @param frameFormat either FRAME_FORMAT_YUYV(0) or FRAME_FORMAT_MJPEG(1)
+	 * @param frameFormat one of FRAME_FORMAT_YUYV(0), FRAME_FORMAT_MJPEG(1), FRAME_FORMAT_H264(2) or FRAME_FORMAT_H265(3)
 	 * @param bandwidthFactor
 	 */
 	public void setPreviewSize(final int width, final int height, final int min_fps, final int max_fps, final int frameFormat, final float bandwidthFactor) {
@@ -333,9 +566,196 @@ public class UVCCamera {
 		}
 	}
 
+	/**
+	 * Set preview size with exact frame interval instead of fps range.
+	 * setPreviewSize with fps range lets the camera select any interval in the range,
+	 * use this to request fractional frame rate like 29.97fps(333667).
+	 * @param width
+	 * @param height
+	 * @param frameFormat one of FRAME_FORMAT_YUYV(0), FRAME_FORMAT_MJPEG(1), FRAME_FORMAT_H264(2) or FRAME_FORMAT_H265(3)
+	 * @param frameInterval frame interval in 100ns units, one of Size#getFrameIntervals
+	 */
+	public void setPreviewFrameInterval(final int width, final int height, final int frameFormat, final int frameInterval) {
+		if ((width == 0) || (height == 0) || (frameInterval <= 0))
+			throw new IllegalArgumentException("invalid preview size or frame interval");
+		if (mNativePtr != 0) {
+			final int result = nativeSetPreviewFrameInterval(mNativePtr, width, height, frameInterval, frameFormat, mCurrentBandwidthFactor);
+			if (result != 0)
+				throw new IllegalArgumentException("Failed to set preview size/frame interval");
+			mCurrentFrameFormat = frameFormat;
+			mCurrentWidth = width;
+			mCurrentHeight = height;
+		}
+	}
+
+	/**
+	 * get values of the stream control that was actually committed to the camera
+	 * and measured frame rate, native buffers are sized from these committed values.
+	 * @return int[] that has values at STREAM_INFO_XXX, null if not streaming
+	 */
+	public int[] getStreamInfo() {
+		if (mCtrlBlock != null) {
+			final int[] result = new int[STREAM_INFO_NUM];
+			if (nativeGetStreamInfo(mNativePtr, result) == 0) {
+				return result;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * limit bytes of native frames and USB transfer buffers that this camera allocates
+	 * from the memory arena shared by all cameras in this process.
+	 * when the quota is reached, frames are dropped instead of allocating more memory
+	 * and preview fails to start if transfer buffers can not be allocated.
+	 * @param quotaBytes 0 means unlimited
+	 */
+	public synchronized void setMemoryQuota(final long quotaBytes) {
+		mMemoryQuota = quotaBytes > 0 ? quotaBytes : 0;
+		if (mCtrlBlock != null) {
+			nativeSetMemoryQuota(mNativePtr, mMemoryQuota);
+		}
+	}
+
+	public long getMemoryQuota() {
+		return mMemoryQuota;
+	}
+
+	/**
+	 * @deprecated use #setMemoryQuota, the quota also covers USB transfer buffers now
+	 * @param budgetBytes 0 means unlimited
+	 */
+	@Deprecated
+	public void setFramePoolBudget(final long budgetBytes) {
+		setMemoryQuota(budgetBytes);
+	}
+
+	/**
+	 * @deprecated use #getMemoryQuota
+	 */
+	@Deprecated
+	public long getFramePoolBudget() {
+		return getMemoryQuota();
+	}
+
+	/**
+	 * get allocation statistics of native frame pool
+	 * @return long[] that has values at FRAME_POOL_STATS_XXX, null if camera is not opened
+	 */
+	public long[] getFramePoolStats() {
+		if (mCtrlBlock != null) {
+			final long[] result = new long[FRAME_POOL_STATS_NUM];
+			if (nativeGetFramePoolStats(mNativePtr, result) == 0) {
+				return result;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * get bytes that this camera allocated from the shared memory arena
+	 * @return long[] that has values at MEMORY_USAGE_XXX, null if camera is not opened
+	 */
+	public long[] getMemoryUsage() {
+		if (mCtrlBlock != null) {
+			final long[] result = new long[MEMORY_USAGE_NUM];
+			if (nativeGetMemoryUsage(mNativePtr, result) == 0) {
+				return result;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * limit bytes that all cameras in this process allocate from the shared memory arena
+	 * @param limitBytes 0 means unlimited
+	 */
+	public static void setMemoryLimit(final long limitBytes) {
+		nativeSetMemoryLimit(limitBytes > 0 ? limitBytes : 0);
+	}
+
+	/**
+	 * set how large frames and USB transfer buffers are allocated.
+	 * with mmap, all pages are faulted when buffers are allocated before streaming
+	 * instead of while receiving first frames. check STREAM_INFO_FIRST_FRAME_LATENCY of #getStreamInfo
+	 * to compare on your device. this should be called before opening cameras.
+	 * @param backing one of MEMORY_BACKING_XXX
+	 * @return false if buffers are in use or backing is invalid
+	 */
+	public static boolean setMemoryBacking(final int backing) {
+		return nativeSetMemoryBacking(backing) == 0;
+	}
+
+	/**
+	 * get memory report of the shared memory arena that all cameras in this process use
+	 * @return long[] that has values at MEMORY_REPORT_XXX
+	 */
+	public static long[] getMemoryReport() {
+		final long[] result = new long[MEMORY_REPORT_NUM];
+		if (nativeGetMemoryReport(result) == 0) {
+			return result;
+		}
+		return null;
+	}
+
+	/**
+	 * switch preview size/frame format while previewing with minimum interruption.
+	 * new stream parameters are negotiated while current stream is still running
+	 * and frame buffers for new size are allocated beforehand, then the stream is
+	 * stopped and restarted only once. if preview is not running, this works like #setPreviewSize
+	 * and the new format is applied on next #startPreview.
+	 * preview surface/frame callbacks are kept, you can get the time that no frame arrived
+	 * with #getLastSwitchGapUs after the first frame of new format arrived.
+	 * paused preview is resumed because the stream is restarted with new format.
+	 * if this fails, previous size/frame format is kept for next #startPreview.
+	 * @param width
+	 * @param height
+	 * @param frameFormat one of FRAME_FORMAT_YUYV(0), FRAME_FORMAT_MJPEG(1), FRAME_FORMAT_H264(2) or FRAME_FORMAT_H265(3)
+	 * @param fps frame rate to request, 0 to keep current range
+	 */
+	public synchronized void switchFormat(final int width, final int height, final int frameFormat, final int fps) {
+		if ((width == 0) || (height == 0))
+			throw new IllegalArgumentException("invalid preview size");
+		if (mNativePtr != 0) {
+			final int result = nativeSwitchFormat(mNativePtr, width, height, frameFormat, fps);
+			if (result != 0)
+				throw new IllegalArgumentException("Failed to switch format:result=" + result);
+			mCurrentFrameFormat = frameFormat;
+			mCurrentWidth = width;
+			mCurrentHeight = height;
+			// native side restarted the stream without pausing
+			mPreviewPaused = false;
+		}
+	}
+
+	/**
+	 * @return time from stopping previous stream to the first frame of new format
+	 * on last #switchFormat[us], -1 if not measured yet
+	 */
+	public long getLastSwitchGapUs() {
+		return mNativePtr != 0 ? nativeGetLastSwitchGap(mNativePtr) : -1;
+	}
+
+	/**
+	 * get supported sizes of current frame format
+	 * @return unmodifiable list, do not modify Size in it
+	 */
 	public List<Size> getSupportedSizeList() {
-		final int type = (mCurrentFrameFormat > 0) ? 6 : 4;
-		return getSupportedSize(type, mSupportedSize);
+		final int type;
+		switch (mCurrentFrameFormat) {
+		case FRAME_FORMAT_MJPEG:
+			type = 6;	// UVC_VS_FORMAT_MJPEG
+			break;
+		case FRAME_FORMAT_H264:
+		case FRAME_FORMAT_H265:
+			type = 16;	// UVC_VS_FORMAT_FRAME_BASED
+			break;
+		default:
+			type = 4;	// UVC_VS_FORMAT_UNCOMPRESSED
+			break;
+		}
+		final UVCCapabilities capabilities = mCapabilities;
+		return capabilities != null ? capabilities.getSizeList(type) : new ArrayList<Size>();
 	}
 
 	public static List<Size> getSupportedSize(final int type, final String supportedSize) {
@@ -402,6 +822,8 @@ public class UVCCamera {
 
     /**
      * set frame callback
+     * if the callback implements ITimestampedFrameCallback, capture time of each frame is also passed
+     * if the callback implements IFrameBufferCallback, frames are written into the buffer it supplies
      * @param callback
      * @param pixelFormat
      */
@@ -411,10 +833,24 @@ public class UVCCamera {
     	}
     }
 
+    /**
+     * set callback to receive H.264/H.265/MJPEG frames as they are
+     * this is only available when preview is started with FRAME_FORMAT_H264, FRAME_FORMAT_H265
+     * or FRAME_FORMAT_MJPEG. preview surface is not updated in H.264/H.265 modes
+     * and original MJPEG frames are passed before decoding in MJPEG mode.
+     * @param callback null to clear
+     */
+    public void setEncodedFrameCallback(final IEncodedFrameCallback callback) {
+    	if (mNativePtr != 0) {
+    		nativeSetEncodedFrameCallback(mNativePtr, callback);
+    	}
+    }
+
     /**
      * start preview
      */
     public synchronized void startPreview() {
+    	mPreviewPaused = false;
     	if (mCtrlBlock != null) {
     		nativeStartPreview(mNativePtr);
     	}
@@ -425,19 +861,72 @@ public class UVCCamera {
      */
     public synchronized void stopPreview() {
     	setFrameCallback(null, 0);
+    	setEncodedFrameCallback(null);
+    	mPreviewPaused = false;
     	if (mCtrlBlock != null) {
     		nativeStopPreview(mNativePtr);
     	}
     }
 
+    /**
+     * pause preview without stopping USB stream and native threads.
+     * frames are dropped as soon as they arrive and the preview surface keeps the last frame,
+     * so #resumePreview does not need to negotiate with the camera again.
+     * if preview is kept paused longer than idle timeout, streaming is really stopped
+     * and #resumePreview restarts it like #startPreview.
+     * frame callbacks are kept, encoded frames restart from next key frame after resuming.
+     * @return true if paused
+     */
+    public synchronized boolean pausePreview() {
+    	if ((mCtrlBlock != null) && (nativePausePreview(mNativePtr) == 0)) {
+    		mPreviewPaused = true;
+    	}
+    	return mPreviewPaused;
+    }
+
+    /**
+     * resume preview that was paused by #pausePreview
+     * @return true if preview is running
+     */
+    public synchronized boolean resumePreview() {
+    	boolean result = false;
+    	if (mCtrlBlock != null) {
+    		result = nativeResumePreview(mNativePtr) == 0;
+    	}
+    	mPreviewPaused = false;
+    	return result;
+    }
+
+    public synchronized boolean isPreviewPaused() {
+    	return mPreviewPaused;
+    }
+
+    /**
+     * set how long USB stream is kept while preview is paused
+     * @param idleTimeoutMs streaming is really stopped when preview is kept paused longer than this,
+     * 			0 to keep streaming until #resumePreview/#stopPreview
+     */
+    public synchronized void setPreviewIdleTimeout(final int idleTimeoutMs) {
+    	mIdleTimeoutMs = idleTimeoutMs > 0 ? idleTimeoutMs : 0;
+    	if (mCtrlBlock != null) {
+    		nativeSetIdleTimeout(mNativePtr, mIdleTimeoutMs);
+    	}
+    }
+
+    public int getPreviewIdleTimeout() {
+    	return mIdleTimeoutMs;
+    }
+
     /**
      * destroy UVCCamera object
      */
     public synchronized void destroy() {
     	close();
     	if (mNativePtr != 0) {
-    		nativeDestroy(mNativePtr);
-    		mNativePtr = 0;
+    		synchronized (mControlSync) {
+    			nativeDestroy(mNativePtr);
+    			mNativePtr = 0;
+    		}
     	}
     }
 
@@ -471,6 +960,7 @@ public class UVCCamera {
      */
 	public synchronized void setFocus(final int focus) {
     	if (mNativePtr != 0) {
+ 		   updateLimit(LIMIT_FOCUS);
  		   final float range = Math.abs(mFocusMax - mFocusMin);
  		   if (range > 0)
  			   nativeSetFocus(mNativePtr, (int)(focus / 100.f * range) + mFocusMin);
@@ -484,7 +974,7 @@ public class UVCCamera {
 	public synchronized int getFocus(final int focus_abs) {
 	   int result = 0;
 	   if (mNativePtr != 0) {
-		   nativeUpdateFocusLimit(mNativePtr);
+		   updateLimit(LIMIT_FOCUS);
 		   final float range = Math.abs(mFocusMax - mFocusMin);
 		   if (range > 0) {
 			   result = (int)((focus_abs - mFocusMin) * 100.f / range);
@@ -502,6 +992,7 @@ public class UVCCamera {
 
 	public synchronized void resetFocus() {
     	if (mNativePtr != 0) {
+    		updateLimit(LIMIT_FOCUS);
     		nativeSetFocus(mNativePtr, mFocusDef);
     	}
     }
@@ -527,6 +1018,7 @@ public class UVCCamera {
      */
 	public synchronized void setWhiteBlance(final int whiteBlance) {
     	if (mNativePtr != 0) {
+ 		   updateLimit(LIMIT_WHITEBLANCE);
  		   final float range = Math.abs(mWhiteBlanceMax - mWhiteBlanceMin);
  		   if (range > 0)
  			   nativeSetWhiteBlance(mNativePtr, (int)(whiteBlance / 100.f * range) + mWhiteBlanceMin);
@@ -540,7 +1032,7 @@ public class UVCCamera {
 	public synchronized int getWhiteBlance(final int whiteBlance_abs) {
 	   int result = 0;
 	   if (mNativePtr != 0) {
-		   nativeUpdateWhiteBlanceLimit(mNativePtr);
+		   updateLimit(LIMIT_WHITEBLANCE);
 		   final float range = Math.abs(mWhiteBlanceMax - mWhiteBlanceMin);
 		   if (range > 0) {
 			   result = (int)((whiteBlance_abs - mWhiteBlanceMin) * 100.f / range);
@@ -558,6 +1050,7 @@ public class UVCCamera {
 
 	public synchronized void resetWhiteBlance() {
     	if (mNativePtr != 0) {
+    		updateLimit(LIMIT_WHITEBLANCE);
     		nativeSetWhiteBlance(mNativePtr, mWhiteBlanceDef);
     	}
     }
@@ -567,6 +1060,7 @@ public class UVCCamera {
      */
 	public synchronized void setBrightness(final int brightness) {
     	if (mNativePtr != 0) {
+ 		   updateLimit(LIMIT_BRIGHTNESS);
  		   final float range = Math.abs(mBrightnessMax - mBrightnessMin);
  		   if (range > 0)
  			   nativeSetBrightness(mNativePtr, (int)(brightness / 100.f * range) + mBrightnessMin);
@@ -580,7 +1074,7 @@ public class UVCCamera {
 	public synchronized int getBrightness(final int brightness_abs) {
 	   int result = 0;
 	   if (mNativePtr != 0) {
-		   nativeUpdateBrightnessLimit(mNativePtr);
+		   updateLimit(LIMIT_BRIGHTNESS);
 		   final float range = Math.abs(mBrightnessMax - mBrightnessMin);
 		   if (range > 0) {
 			   result = (int)((brightness_abs - mBrightnessMin) * 100.f / range);
@@ -598,6 +1092,7 @@ public class UVCCamera {
 
 	public synchronized void resetBrightness() {
     	if (mNativePtr != 0) {
+    		updateLimit(LIMIT_BRIGHTNESS);
     		nativeSetBrightness(mNativePtr, mBrightnessDef);
     	}
     }
@@ -608,7 +1103,7 @@ public class UVCCamera {
      */
 	public synchronized void setContrast(final int contrast) {
     	if (mNativePtr != 0) {
-    		nativeUpdateContrastLimit(mNativePtr);
+    		updateLimit(LIMIT_CONTRAST);
 	    	final float range = Math.abs(mContrastMax - mContrastMin);
 	    	if (range > 0)
 	    		nativeSetContrast(mNativePtr, (int)(contrast / 100.f * range) + mContrastMin);
@@ -622,6 +1117,7 @@ public class UVCCamera {
 	public synchronized int getContrast(final int contrast_abs) {
 	   int result = 0;
 	   if (mNativePtr != 0) {
+		   updateLimit(LIMIT_CONTRAST);
 		   final float range = Math.abs(mContrastMax - mContrastMin);
 		   if (range > 0) {
 			   result = (int)((contrast_abs - mContrastMin) * 100.f / range);
@@ -639,6 +1135,7 @@ public class UVCCamera {
 
 	public synchronized void resetContrast() {
     	if (mNativePtr != 0) {
+    		updateLimit(LIMIT_CONTRAST);
     		nativeSetContrast(mNativePtr, mContrastDef);
     	}
     }
@@ -649,6 +1146,7 @@ public class UVCCamera {
      */
 	public synchronized void setSharpness(final int sharpness) {
     	if (mNativePtr != 0) {
+ 		   updateLimit(LIMIT_SHARPNESS);
  		   final float range = Math.abs(mSharpnessMax - mSharpnessMin);
  		   if (range > 0)
  			   nativeSetSharpness(mNativePtr, (int)(sharpness / 100.f * range) + mSharpnessMin);
@@ -662,7 +1160,7 @@ public class UVCCamera {
 	public synchronized int getSharpness(final int sharpness_abs) {
 	   int result = 0;
 	   if (mNativePtr != 0) {
-		   nativeUpdateSharpnessLimit(mNativePtr);
+		   updateLimit(LIMIT_SHARPNESS);
 		   final float range = Math.abs(mSharpnessMax - mSharpnessMin);
 		   if (range > 0) {
 			   result = (int)((sharpness_abs - mSharpnessMin) * 100.f / range);
@@ -680,6 +1178,7 @@ public class UVCCamera {
 
 	public synchronized void resetSharpness() {
     	if (mNativePtr != 0) {
+    		updateLimit(LIMIT_SHARPNESS);
     		nativeSetSharpness(mNativePtr, mSharpnessDef);
     	}
     }
@@ -689,6 +1188,7 @@ public class UVCCamera {
      */
 	public synchronized void setGain(final int gain) {
     	if (mNativePtr != 0) {
+ 		   updateLimit(LIMIT_GAIN);
  		   final float range = Math.abs(mGainMax - mGainMin);
  		   if (range > 0)
  			   nativeSetGain(mNativePtr, (int)(gain / 100.f * range) + mGainMin);
@@ -702,7 +1202,7 @@ public class UVCCamera {
 	public synchronized int getGain(final int gain_abs) {
 	   int result = 0;
 	   if (mNativePtr != 0) {
-		   nativeUpdateGainLimit(mNativePtr);
+		   updateLimit(LIMIT_GAIN);
 		   final float range = Math.abs(mGainMax - mGainMin);
 		   if (range > 0) {
 			   result = (int)((gain_abs - mGainMin) * 100.f / range);
@@ -720,6 +1220,7 @@ public class UVCCamera {
 
 	public synchronized void resetGain() {
     	if (mNativePtr != 0) {
+    		updateLimit(LIMIT_GAIN);
     		nativeSetGain(mNativePtr, mGainDef);
     	}
     }
@@ -730,6 +1231,7 @@ public class UVCCamera {
      */
 	public synchronized void setGamma(final int gamma) {
     	if (mNativePtr != 0) {
+ 		   updateLimit(LIMIT_GAMMA);
  		   final float range = Math.abs(mGammaMax - mGammaMin);
  		   if (range > 0)
  			   nativeSetGamma(mNativePtr, (int)(gamma / 100.f * range) + mGammaMin);
@@ -743,7 +1245,7 @@ public class UVCCamera {
 	public synchronized int getGamma(final int gamma_abs) {
 	   int result = 0;
 	   if (mNativePtr != 0) {
-		   nativeUpdateGammaLimit(mNativePtr);
+		   updateLimit(LIMIT_GAMMA);
 		   final float range = Math.abs(mGammaMax - mGammaMin);
 		   if (range > 0) {
 			   result = (int)((gamma_abs - mGammaMin) * 100.f / range);
@@ -761,6 +1263,7 @@ public class UVCCamera {
 
 	public synchronized void resetGamma() {
     	if (mNativePtr != 0) {
+    		updateLimit(LIMIT_GAMMA);
     		nativeSetGamma(mNativePtr, mGammaDef);
     	}
     }
@@ -771,6 +1274,7 @@ public class UVCCamera {
      */
 	public synchronized void setSaturation(final int saturation) {
     	if (mNativePtr != 0) {
+ 		   updateLimit(LIMIT_SATURATION);
  		   final float range = Math.abs(mSaturationMax - mSaturationMin);
  		   if (range > 0)
  			   nativeSetSaturation(mNativePtr, (int)(saturation / 100.f * range) + mSaturationMin);
@@ -784,7 +1288,7 @@ public class UVCCamera {
 	public synchronized int getSaturation(final int saturation_abs) {
 	   int result = 0;
 	   if (mNativePtr != 0) {
-		   nativeUpdateSaturationLimit(mNativePtr);
+		   updateLimit(LIMIT_SATURATION);
 		   final float range = Math.abs(mSaturationMax - mSaturationMin);
 		   if (range > 0) {
 			   result = (int)((saturation_abs - mSaturationMin) * 100.f / range);
@@ -802,6 +1306,7 @@ public class UVCCamera {
 
 	public synchronized void resetSaturation() {
     	if (mNativePtr != 0) {
+    		updateLimit(LIMIT_SATURATION);
     		nativeSetSaturation(mNativePtr, mSaturationDef);
     	}
     }
@@ -811,6 +1316,7 @@ public class UVCCamera {
      */
 	public synchronized void setHue(final int hue) {
     	if (mNativePtr != 0) {
+ 		   updateLimit(LIMIT_HUE);
  		   final float range = Math.abs(mHueMax - mHueMin);
  		   if (range > 0)
  			   nativeSetHue(mNativePtr, (int)(hue / 100.f * range) + mHueMin);
@@ -824,7 +1330,7 @@ public class UVCCamera {
 	public synchronized int getHue(final int hue_abs) {
 	   int result = 0;
 	   if (mNativePtr != 0) {
-		   nativeUpdateHueLimit(mNativePtr);
+		   updateLimit(LIMIT_HUE);
 		   final float range = Math.abs(mHueMax - mHueMin);
 		   if (range > 0) {
 			   result = (int)((hue_abs - mHueMin) * 100.f / range);
@@ -845,7 +1351,8 @@ public class UVCCamera {
 
 	public synchronized void resetHue() {
     	if (mNativePtr != 0) {
-    		nativeSetHue(mNativePtr, mSaturationDef);
+    		updateLimit(LIMIT_HUE);
+    		nativeSetHue(mNativePtr, mHueDef);
     	}
     }
 
@@ -859,6 +1366,61 @@ public class UVCCamera {
     	return nativeGetPowerlineFrequency(mNativePtr);
     }
 
+//================================================================================
+	/**
+	 * enable/disable cache of current control values(default enabled).
+	 * While enabled, values that were read or written are kept on native side and
+	 * getters like #getBrightness/#getZoom do not issue GET_CUR control transfer.
+	 * Cached value is invalidated when the camera reports change through its status interrupt endpoint,
+	 * disable this for the camera that does not report changes of auto-adjusted controls correctly.
+	 * The cache is never used if the camera has no status interrupt endpoint.
+	 * Controls that the camera reports as AutoUpdate/Asynchronous with GET_INFO are never cached,
+	 * and focus/white balance/contrast/hue are read from the camera unless their auto mode is known to be off.
+	 * @param enabled
+	 */
+	public synchronized void setControlValueCacheEnabled(final boolean enabled) {
+		if (mNativePtr != 0) {
+			nativeSetValueCacheEnabled(mNativePtr, enabled);
+		}
+	}
+
+	/**
+	 * @return true if cached control values are used now
+	 */
+	public synchronized boolean isControlValueCacheEnabled() {
+		return (mNativePtr != 0) && nativeIsValueCacheEnabled(mNativePtr);
+	}
+
+//================================================================================
+	/**
+	 * execute all operations in the batch with one JNI call,
+	 * results can be read with ControlBatch#getStatus/#getValue after this method returned.
+	 * This does not hold the monitor of this instance while executing control transfers,
+	 * so that #startPreview/#stopPreview etc. are not blocked by AsyncControlChannel.
+	 * @param batch
+	 * @return number of executed operations, negative value if failed
+	 */
+	public int executeControlBatch(final ControlBatch batch) {
+		if (batch == null) return -1;
+		final long nativePtr;
+		synchronized (this) {
+			nativePtr = mNativePtr;
+		}
+		int result = -1;
+		if (nativePtr != 0) {
+			synchronized (mControlSync) {
+				// the camera may be destroyed while waiting for the lock
+				if (mNativePtr == nativePtr) {
+					result = nativeExecuteControlBatch(nativePtr, batch.mOps, batch.mNum, batch.mResults);
+				}
+			}
+			if (result >= 0) {
+				batch.setExecuted();
+			}
+		}
+		return result;
+	}
+
 //================================================================================
     /**
      * this may not work well with some combination of camera and device
@@ -866,6 +1428,7 @@ public class UVCCamera {
      */
 	public synchronized void setZoom(final int zoom) {
     	if (mNativePtr != 0) {
+ 		   updateLimit(LIMIT_ZOOM);
  		   final float range = Math.abs(mZoomMax - mZoomMin);
  		   if (range > 0) {
  			   final int z = (int)(zoom / 100.f * range) + mZoomMin;
@@ -882,7 +1445,7 @@ public class UVCCamera {
 	public synchronized int getZoom(final int zoom_abs) {
 	   int result = 0;
 	   if (mNativePtr != 0) {
-		   nativeUpdateZoomLimit(mNativePtr);
+		   updateLimit(LIMIT_ZOOM);
 		   final float range = Math.abs(mZoomMax - mZoomMin);
 		   if (range > 0) {
 			   result = (int)((zoom_abs - mZoomMin) * 100.f / range);
@@ -900,6 +1463,7 @@ public class UVCCamera {
 
 	public synchronized void resetZoom() {
     	if (mNativePtr != 0) {
+    		updateLimit(LIMIT_ZOOM);
     		nativeSetZoom(mNativePtr, mZoomDef);
     	}
     }
@@ -913,20 +1477,11 @@ public class UVCCamera {
     				mControlSupports = nativeGetCtrlSupports(mNativePtr);
     			if (mProcSupports == 0)
     				mProcSupports = nativeGetProcSupports(mNativePtr);
-    	    	// 設定値を取得
-    	    	if ((mControlSupports != 0) && (mProcSupports != 0)) {
-	    	    	nativeUpdateBrightnessLimit(mNativePtr);
-	    	    	nativeUpdateContrastLimit(mNativePtr);
-	    	    	nativeUpdateSharpnessLimit(mNativePtr);
-	    	    	nativeUpdateGainLimit(mNativePtr);
-	    	    	nativeUpdateGammaLimit(mNativePtr);
-	    	    	nativeUpdateSaturationLimit(mNativePtr);
-	    	    	nativeUpdateHueLimit(mNativePtr);
-	    	    	nativeUpdateZoomLimit(mNativePtr);
-	    	    	nativeUpdateWhiteBlanceLimit(mNativePtr);
-	    	    	nativeUpdateFocusLimit(mNativePtr);
-    	    	}
+    	    	// 各コントロールの設定範囲は最初にget/setした時に取得する
     	    	if (DEBUG) {
+    	    		for (int i = 0; i < NUM_LIMITS; i++) {
+    	    			updateLimit(1 << i);
+    	    		}
 					dumpControls(mControlSupports);
 					dumpProc(mProcSupports);
 					Log.v(TAG, String.format("Brightness:min=%d,max=%d,def=%d", mBrightnessMin, mBrightnessMax, mBrightnessDef));
@@ -946,6 +1501,31 @@ public class UVCCamera {
     	}
     }
 
+	/**
+	 * get range of the control from camera only when it is used first time after open,
+	 * this is memoized even if the control is not supported so the control is probed only once.
+	 * The range is written into UVCDeviceCache immediately.
+	 * @param limit one of LIMIT_XXX
+	 */
+	private void updateLimit(final int limit) {
+		if ((mLimitUpdated & limit) != 0) return;
+		mLimitUpdated |= limit;
+		switch (limit) {
+		case LIMIT_BRIGHTNESS:	nativeUpdateBrightnessLimit(mNativePtr); break;
+		case LIMIT_CONTRAST:	nativeUpdateContrastLimit(mNativePtr); break;
+		case LIMIT_SHARPNESS:	nativeUpdateSharpnessLimit(mNativePtr); break;
+		case LIMIT_GAIN:		nativeUpdateGainLimit(mNativePtr); break;
+		case LIMIT_GAMMA:		nativeUpdateGammaLimit(mNativePtr); break;
+		case LIMIT_SATURATION:	nativeUpdateSaturationLimit(mNativePtr); break;
+		case LIMIT_HUE:			nativeUpdateHueLimit(mNativePtr); break;
+		case LIMIT_ZOOM:		nativeUpdateZoomLimit(mNativePtr); break;
+		case LIMIT_WHITEBLANCE:	nativeUpdateWhiteBlanceLimit(mNativePtr); break;
+		case LIMIT_FOCUS:		nativeUpdateFocusLimit(mNativePtr); break;
+		}
+		// save now so that the range is not lost when the process is killed or the camera is detached before #close
+		saveDeviceCache();
+	}
+
     private static final String[] SUPPORTS_CTRL = {
     	"D0:  Scanning Mode",
     	"D1:  Auto-Exposure Mode",
@@ -1043,10 +1623,23 @@ public class UVCCamera {
 
     private static final native int nativeSetPreviewSize(final long id_camera, final int width, final int height, final int min_fps, final int max_fps, final int mode, final float bandwidth);
     private static final native String nativeGetSupportedSize(final long id_camera);
+    private static final native int[] nativeGetCapabilities(final long id_camera, final long[] controls);
+    private static final native int[] nativeGetCtrlLimits(final long id_camera);
+    private static final native int nativeSetCtrlLimits(final long id_camera, final int[] limits);
+    private static final native int nativeExecuteControlBatch(final long id_camera, final int[] ops, final int num, final int[] results);
+    private static final native int nativeSetValueCacheEnabled(final long id_camera, final boolean enabled);
+    private static final native boolean nativeIsValueCacheEnabled(final long id_camera);
+    private static final native int nativeSetPreviewFrameInterval(final long id_camera, final int width, final int height, final int frameInterval, final int mode, final float bandwidth);
     private static final native int nativeStartPreview(final long id_camera);
     private static final native int nativeStopPreview(final long id_camera);
+    private static final native int nativePausePreview(final long id_camera);
+    private static final native int nativeResumePreview(final long id_camera);
+    private static final native int nativeSetIdleTimeout(final long id_camera, final int idleTimeoutMs);
+    private static final native int nativeSwitchFormat(final long id_camera, final int width, final int height, final int mode, final int fps);
+    private static final native long nativeGetLastSwitchGap(final long id_camera);
     private static final native int nativeSetPreviewDisplay(final long id_camera, final Surface surface);
     private static final native int nativeSetFrameCallback(final long mNativePtr, final IFrameCallback callback, final int pixelFormat);
+    private static final native int nativeSetEncodedFrameCallback(final long mNativePtr, final IEncodedFrameCallback callback);
 
 //**********************************************************************
     /**
@@ -1070,6 +1663,155 @@ public class UVCCamera {
     }
     private static final native int nativeSetCaptureDisplay(final long id_camera, final Surface surface);
 
+//**********************************************************************
+    /**
+     * set scheduling policy/priority and CPU affinity of native thread.
+     * you can call this before #open so that the parameters are applied when each thread starts,
+     * and they are applied immediately if the thread is already running.
+     * Changing to SCHED_FIFO/SCHED_RR or to negative nice value may fail
+     * depending on the privilege of the process.
+     * @param thread one of THREAD_USB_EVENT, THREAD_STREAM_CALLBACK, THREAD_PREVIEW, THREAD_CAPTURE
+     * @param policy SCHED_DEFAULT, SCHED_OTHER, SCHED_FIFO or SCHED_RR
+     * @param priority nice value for SCHED_OTHER, real time priority for SCHED_FIFO/SCHED_RR,
+     * 			ignored for SCHED_DEFAULT
+     * @param affinityMask bit mask of CPUs that the thread can run on(bit0 = cpu0), 0 keeps default
+     * @return 0 if success, otherwise negative value
+     */
+    public synchronized int setThreadScheduling(final int thread,
+    	final int policy, final int priority, final long affinityMask) {
+
+    	if (mNativePtr != 0) {
+    		return nativeSetThreadConfig(mNativePtr, thread, policy, priority, affinityMask);
+    	}
+    	return -1;
+    }
+    private static final native int nativeSetThreadConfig(final long id_camera,
+    	final int thread, final int policy, final int priority, final long affinityMask);
+
+    /**
+     * set how preview thread receives frames from the camera.
+     * this is applied when preview starts next time.
+     * @param mode STREAM_MODE_CALLBACK or STREAM_MODE_POLLING
+     */
+    public synchronized void setStreamMode(final int mode) {
+    	if ((mode != STREAM_MODE_CALLBACK) && (mode != STREAM_MODE_POLLING)) {
+    		throw new IllegalArgumentException("invalid stream mode:" + mode);
+    	}
+    	mStreamMode = mode;
+    	if (mCtrlBlock != null) {
+    		nativeSetStreamMode(mNativePtr, mode);
+    	}
+    }
+
+    public int getStreamMode() {
+    	return mStreamMode;
+    }
+
+    /**
+     * get latency from completion of each frame in USB layer to preview thread
+     * since preview started, this is useful to compare STREAM_MODE_CALLBACK and STREAM_MODE_POLLING
+     * @return long[3] {number of frames, average latency[us], max latency[us]}, null if failed
+     */
+    public long[] getDeliveryLatency() {
+    	if (mCtrlBlock != null) {
+    		final long[] result = new long[3];
+    		if (nativeGetDeliveryLatency(mNativePtr, result) == 0) {
+    			return result;
+    		}
+    	}
+    	return null;
+    }
+    private static final native int nativeSetStreamMode(final long id_camera, final int mode);
+    private static final native int nativeGetDeliveryLatency(final long id_camera, final long[] latency);
+    private static final native int nativeGetStreamInfo(final long id_camera, final int[] info);
+    private static final native int nativeSetMemoryQuota(final long id_camera, final long quotaBytes);
+    private static final native int nativeGetFramePoolStats(final long id_camera, final long[] stats);
+    private static final native int nativeGetMemoryUsage(final long id_camera, final long[] usage);
+    private static final native int nativeSetMemoryLimit(final long limitBytes);
+    private static final native int nativeGetMemoryReport(final long[] report);
+    private static final native int nativeSetMemoryBacking(final int backing);
+
+    /**
+     * get still image capture method of the camera
+     * @return 0: not supported, 1: method 1(video frame is used as still image),
+     * 2: method 2(still image is sent through video endpoint), 3: method 3(still image is sent through dedicated bulk endpoint)
+     */
+    public int getStillCaptureMethod() {
+    	if (mCtrlBlock != null) {
+    		return nativeGetStillCaptureMethod(mNativePtr);
+    	}
+    	return 0;
+    }
+
+    /**
+     * get available still image sizes for MJPEG
+     * @return empty list if the camera has no still image frame descriptor
+     */
+    public List<Size> getSupportedStillSizeList() {
+    	final UVCCapabilities capabilities = mCapabilities;
+    	return capabilities != null
+    		? capabilities.getStillSizeList(UVCCapabilities.TYPE_MJPEG) : new ArrayList<Size>();
+    }
+
+    /**
+     * capture still image with still image capture method 2/3 while previewing on MJPEG mode.
+     * the camera sends full resolution JPEG and the preview is not interrupted.
+     * this method blocks until the image is received or timeout.
+     * @param width width of still image, 0 to select the largest size
+     * @param height height of still image, 0 to select the largest size
+     * @param timeoutMs
+     * @return JPEG image, null if failed or the camera/current frame format does not support
+     */
+    public byte[] captureStill(final int width, final int height, final int timeoutMs) {
+    	if ((mCtrlBlock != null) && (mCurrentFrameFormat == FRAME_FORMAT_MJPEG)) {
+    		final int method = getStillCaptureMethod();
+    		if ((method == 2) || (method == 3)) {
+    			return nativeCaptureStill(mNativePtr, width, height, timeoutMs);
+    		}
+    	}
+    	return null;
+    }
+    private static final native int nativeGetStillCaptureMethod(final long id_camera);
+    private static final native byte[] nativeCaptureStill(final long id_camera, final int width, final int height, final int timeoutMs);
+
+    /**
+     * @return required capacity of the buffer for #captureSnapshot for current preview size, 0 if not previewing
+     */
+    public int getSnapshotBufferSize() {
+    	if (mCtrlBlock != null) {
+    		return nativeGetSnapshotBufferSize(mNativePtr);
+    	}
+    	return 0;
+    }
+
+    /**
+     * get JPEG image of the latest frame without stopping preview/recording on YUYV/MJPEG mode.
+     * the preview thread only copies next frame and it is encoded with libjpeg-turbo on the calling thread,
+     * so this method blocks and should be called from a background thread.
+     * @param output direct ByteBuffer that has #getSnapshotBufferSize bytes or more,
+     * 				JPEG image is written from position 0 and limit is set to its size
+     * @param quality JPEG quality(1-100), 0 to use original JPEG from the camera on MJPEG mode
+     * @param timeoutMs
+     * @param presentationTimeUs [out] if not null, capture time of the frame is set to presentationTimeUs[0]
+     * 				(same time base as System#nanoTime / 1000)
+     * @return size of JPEG image, negative value if failed or H.264/H.265 mode
+     */
+    public int captureSnapshot(final ByteBuffer output, final int quality, final int timeoutMs, final long[] presentationTimeUs) {
+    	if ((mCtrlBlock != null) && (output != null) && output.isDirect()
+    		&& (mCurrentFrameFormat != FRAME_FORMAT_H264) && (mCurrentFrameFormat != FRAME_FORMAT_H265)) {
+    		final int result = nativeCaptureSnapshot(mNativePtr, output, quality, timeoutMs, presentationTimeUs);
+    		if (result > 0) {
+    			output.clear();
+    			output.limit(result);
+    		}
+    		return result;
+    	}
+    	return -1;
+    }
+    private static final native int nativeGetSnapshotBufferSize(final long id_camera);
+    private static final native int nativeCaptureSnapshot(final long id_camera,
+    	final ByteBuffer output, final int quality, final int timeoutMs, final long[] presentationTimeUs);
+
     private static final native long nativeGetCtrlSupports(final long id_camera);
     private static final native long nativeGetProcSupports(final long id_camera);
 
@@ -0,0 +1,260 @@
+/*
+ *  UVCCamera
+ *  library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * Copyright (c) 2014-2017 saki t_saki@serenegiant.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ *  All files in the folder are under this Apache License, Version 2.0.
+ *  Files in the libjpeg-turbo, libusb, libuvc, rapidjson folder
+ *  may have a different license, see the respective files.
+ */
+
+package com.serenegiant.usb;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Immutable capabilities of UVC camera(formats, frame sizes, frame intervals, still image sizes
+ * and supported controls). This is built once from int array that native code creates from
+ * descriptors instead of JSON string and is cached per device with USBMonitor#getDeviceKeyName.
+ * Lists returned from this class are unmodifiable and shared, do not modify Size in them.
+ */
+public final class UVCCapabilities {
+	/** version of array layout, same value as CAPABILITIES_VERSION on native side */
+	static final int VERSION = 1;
+
+	/** value of Format#type, same as uvc_vs_desc_subtype on native side */
+	public static final int TYPE_UNCOMPRESSED = 4;	// UVC_VS_FORMAT_UNCOMPRESSED
+	public static final int TYPE_MJPEG = 6;			// UVC_VS_FORMAT_MJPEG
+	public static final int TYPE_FRAME_BASED = 16;	// UVC_VS_FORMAT_FRAME_BASED
+	/** pseudo type to get sizes of all formats */
+	public static final int TYPE_ANY = -1;
+	/** value of Size#frame_type for still image size */
+	private static final int FRAME_TYPE_STILL = 3;	// UVC_VS_STILL_IMAGE_FRAME
+
+	public static final class Format {
+		/** one of TYPE_UNCOMPRESSED, TYPE_MJPEG and TYPE_FRAME_BASED */
+		public final int type;
+		/** bFormatIndex */
+		public final int index;
+		/** fourcc(little endian), 0 for MJPEG */
+		public final int fourcc;
+		/** bDefaultFrameIndex */
+		public final int defaultFrameIndex;
+		/** frame sizes with their frame intervals */
+		public final List<Size> sizes;
+		/** still image sizes, empty if the format has no still image frame descriptor */
+		public final List<Size> stillSizes;
+
+		private Format(final int type, final int index, final int fourcc,
+			final int defaultFrameIndex, final List<Size> sizes, final List<Size> stillSizes) {
+
+			this.type = type;
+			this.index = index;
+			this.fourcc = fourcc;
+			this.defaultFrameIndex = defaultFrameIndex;
+			this.sizes = Collections.unmodifiableList(sizes);
+			this.stillSizes = Collections.unmodifiableList(stillSizes);
+		}
+
+		/**
+		 * @return fourcc as String like "H264", empty string if this format has no fourcc
+		 */
+		public String getFourccString() {
+			if (fourcc == 0) return "";
+			final char[] c = new char[4];
+			for (int i = 0; i < 4; i++) {
+				c[i] = (char)((fourcc >>> (i * 8)) & 0xff);
+			}
+			return new String(c);
+		}
+	}
+
+	/** original array from native code, this is kept to write into UVCDeviceCache */
+	final int[] mRaw;
+	private final List<Format> mFormats;
+	private final List<Size> mUncompressedSizes;
+	private final List<Size> mMJpegSizes;
+	private final List<Size> mFrameBasedSizes;
+	private final List<Size> mAllSizes;
+	private final long mCtrlSupports;
+	private final long mProcSupports;
+
+	/**
+	 * Constructor, parse int array from UVCCamera#nativeGetCapabilities
+	 * layout: version, number of formats, then for each format
+	 * [type, bFormatIndex, fourcc, bDefaultFrameIndex, number of frames,
+	 *  for each frame [subtype, bFrameIndex, width, height, default interval, interval type, n, n intervals],
+	 *  number of still sizes, for each still size [width, height]]
+	 * @param caps
+	 * @param ctrlSupports bmControls of camera terminal
+	 * @param procSupports bmControls of processing unit
+	 * @throws IllegalArgumentException if caps is malformed
+	 */
+	UVCCapabilities(final int[] caps, final long ctrlSupports, final long procSupports) {
+		if ((caps == null) || (caps.length < 2) || (caps[0] != VERSION)) {
+			throw new IllegalArgumentException("unexpected capabilities");
+		}
+		mRaw = caps;
+		mCtrlSupports = ctrlSupports;
+		mProcSupports = procSupports;
+		final List<Format> formats = new ArrayList<Format>();
+		final List<Size> uncompressed = new ArrayList<Size>();
+		final List<Size> mjpeg = new ArrayList<Size>();
+		final List<Size> frameBased = new ArrayList<Size>();
+		final List<Size> all = new ArrayList<Size>();
+		try {
+			int pos = 1;
+			final int numFormats = caps[pos++];
+			for (int i = 0; i < numFormats; i++) {
+				final int type = caps[pos++];
+				final int formatIndex = caps[pos++];
+				final int fourcc = caps[pos++];
+				final int defaultFrameIndex = caps[pos++];
+				final int numFrames = caps[pos++];
+				final List<Size> sizes = new ArrayList<Size>(numFrames);
+				for (int j = 0; j < numFrames; j++) {
+					final int frameType = caps[pos++];
+					final int frameIndex = caps[pos++];
+					final int width = caps[pos++];
+					final int height = caps[pos++];
+					pos++;	// default frame interval, not used now
+					final int intervalType = caps[pos++];
+					final int n = caps[pos++];
+					final Size size;
+					if ((intervalType == 0) && (n == 3)) {
+						size = new Size(type, frameType, frameIndex, width, height,
+							caps[pos], caps[pos + 1], caps[pos + 2]);
+					} else {
+						final int[] intervals = new int[n];
+						System.arraycopy(caps, pos, intervals, 0, n);
+						size = new Size(type, frameType, frameIndex, width, height, intervals);
+					}
+					pos += n;
+					sizes.add(size);
+				}
+				final int numStills = caps[pos++];
+				final List<Size> stillSizes = new ArrayList<Size>(numStills);
+				for (int j = 0; j < numStills; j++) {
+					stillSizes.add(new Size(type, FRAME_TYPE_STILL, j, caps[pos], caps[pos + 1]));
+					pos += 2;
+				}
+				formats.add(new Format(type, formatIndex, fourcc, defaultFrameIndex, sizes, stillSizes));
+				switch (type) {
+				case TYPE_UNCOMPRESSED:	uncompressed.addAll(sizes); break;
+				case TYPE_MJPEG:		mjpeg.addAll(sizes); break;
+				case TYPE_FRAME_BASED:	frameBased.addAll(sizes); break;
+				}
+				all.addAll(sizes);
+			}
+		} catch (final ArrayIndexOutOfBoundsException e) {
+			throw new IllegalArgumentException("malformed capabilities", e);
+		}
+		mFormats = Collections.unmodifiableList(formats);
+		mUncompressedSizes = Collections.unmodifiableList(uncompressed);
+		mMJpegSizes = Collections.unmodifiableList(mjpeg);
+		mFrameBasedSizes = Collections.unmodifiableList(frameBased);
+		mAllSizes = Collections.unmodifiableList(all);
+	}
+
+	public List<Format> getFormats() {
+		return mFormats;
+	}
+
+	/**
+	 * get frame sizes of the formats that have specific type,
+	 * this does not allocate any object.
+	 * @param type TYPE_UNCOMPRESSED, TYPE_MJPEG, TYPE_FRAME_BASED or TYPE_ANY
+	 * @return unmodifiable list
+	 */
+	public List<Size> getSizeList(final int type) {
+		switch (type) {
+		case TYPE_UNCOMPRESSED:	return mUncompressedSizes;
+		case TYPE_MJPEG:		return mMJpegSizes;
+		case TYPE_FRAME_BASED:	return mFrameBasedSizes;
+		case TYPE_ANY:			return mAllSizes;
+		default:				return Collections.emptyList();
+		}
+	}
+
+	/**
+	 * get still image sizes of the first format that has specific type
+	 * @param type TYPE_UNCOMPRESSED, TYPE_MJPEG or TYPE_FRAME_BASED
+	 * @return unmodifiable list
+	 */
+	public List<Size> getStillSizeList(final int type) {
+		for (final Format format: mFormats) {
+			if (format.type == type) {
+				return format.stillSizes;
+			}
+		}
+		return Collections.emptyList();
+	}
+
+	/**
+	 * @return bmControls of camera terminal
+	 */
+	public long getCtrlSupports() {
+		return mCtrlSupports;
+	}
+
+	/**
+	 * @return bmControls of processing unit
+	 */
+	public long getProcSupports() {
+		return mProcSupports;
+	}
+
+//**********************************************************************
+	/** capabilities of devices that were opened, key is USBMonitor#getDeviceKeyName */
+	private static final Map<String, UVCCapabilities> sCache = new HashMap<String, UVCCapabilities>();
+
+	/**
+	 * get cached capabilities
+	 * @param deviceKey
+	 * @return null if not cached
+	 */
+	public static UVCCapabilities get(final String deviceKey) {
+		synchronized (sCache) {
+			return sCache.get(deviceKey);
+		}
+	}
+
+	static void put(final String deviceKey, final UVCCapabilities capabilities) {
+		synchronized (sCache) {
+			sCache.put(deviceKey, capabilities);
+		}
+	}
+
+	/**
+	 * remove cached capabilities, e.g. when firmware of the device is updated
+	 * @param deviceKey
+	 */
+	public static void remove(final String deviceKey) {
+		synchronized (sCache) {
+			sCache.remove(deviceKey);
+		}
+	}
+
+	public static void clearCache() {
+		synchronized (sCache) {
+			sCache.clear();
+		}
+	}
+}
@@ -0,0 +1,235 @@
+/*
+ *  UVCCamera
+ *  library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * Copyright (c) 2014-2017 saki t_saki@serenegiant.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ *  All files in the folder are under this Apache License, Version 2.0.
+ *  Files in the libjpeg-turbo, libusb, libuvc, rapidjson folder
+ *  may have a different license, see the respective files.
+ */
+
+package com.serenegiant.usb;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Locale;
+import java.util.zip.CRC32;
+
+import android.util.Log;
+
+/**
+ * Persistent cache of device capabilities(parsed descriptors) and control ranges(GET_MIN/MAX/DEF results)
+ * so that reconnecting same camera does not need to issue control transfers for control ranges.
+ * Each device has one small file named with VID/PID/serial/bcdDevice, and the entry is validated
+ * with CRC32 of raw descriptors that Android already has(this needs no USB transfer).
+ * The cache is disabled until #setCacheDir is called.
+ */
+public final class UVCDeviceCache {
+	private static final boolean DEBUG = false;	// TODO set false when releasing
+	private static final String TAG = UVCDeviceCache.class.getSimpleName();
+
+	private static final int MAGIC = 0x55564343;	// 'UVCC'
+	private static final int VERSION = 1;
+	private static final String EXT = ".uvccache";
+
+	private static final Object sSync = new Object();
+	private static File sCacheDir;
+
+	/**
+	 * set directory for cache files, e.g. Context#getCacheDir
+	 * @param dir null disables cache
+	 */
+	public static void setCacheDir(final File dir) {
+		synchronized (sSync) {
+			if ((dir != null) && !dir.exists()) {
+				dir.mkdirs();
+			}
+			sCacheDir = dir;
+		}
+	}
+
+	/**
+	 * remove all cache files
+	 */
+	public static void clear() {
+		synchronized (sSync) {
+			if (sCacheDir == null) return;
+			final File[] files = sCacheDir.listFiles();
+			if (files != null) {
+				for (final File file: files) {
+					if (file.getName().endsWith(EXT)) {
+						file.delete();
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * cached values of one device
+	 */
+	static final class Entry {
+		final int[] capabilities;
+		final long ctrlSupports;
+		final long procSupports;
+		/** control ranges from UVCCamera#nativeGetCtrlLimits, null if not yet queried */
+		final int[] ctrlLimits;
+
+		Entry(final int[] capabilities, final long ctrlSupports, final long procSupports, final int[] ctrlLimits) {
+			this.capabilities = capabilities;
+			this.ctrlSupports = ctrlSupports;
+			this.procSupports = procSupports;
+			this.ctrlLimits = ctrlLimits;
+		}
+	}
+
+	/**
+	 * identify device and its firmware with VID/PID/serial/bcdDevice and raw descriptors
+	 */
+	static final class Key {
+		final String name;
+		final int validation;
+
+		/**
+		 * @param ctrlBlock
+		 * @return null if cache is disabled or failed to get raw descriptors
+		 */
+		static Key create(final USBMonitor.UsbControlBlock ctrlBlock) {
+			synchronized (sSync) {
+				if (sCacheDir == null) return null;
+			}
+			try {
+				final byte[] desc = ctrlBlock.getRawDescriptors();
+				if ((desc == null) || (desc.length < 18)) return null;
+				final int bcdDevice = (desc[12] & 0xff) | ((desc[13] & 0xff) << 8);
+				final String serial = ctrlBlock.getSerial();
+				final CRC32 crc = new CRC32();
+				crc.update(desc, 0, desc.length);
+				final String name = String.format(Locale.US, "%04x_%04x_%s_%04x",
+					ctrlBlock.getVenderId(), ctrlBlock.getProductId(),
+					serial != null ? serial.replaceAll("[^0-9A-Za-z]", "") : "", bcdDevice);
+				return new Key(name, (int)crc.getValue());
+			} catch (final Exception e) {
+				Log.w(TAG, e);
+			}
+			return null;
+		}
+
+		private Key(final String name, final int validation) {
+			this.name = name;
+			this.validation = validation;
+		}
+	}
+
+	/**
+	 * load cached values
+	 * @param key
+	 * @return null if not cached, cache is disabled or raw descriptors were changed
+	 */
+	static Entry load(final Key key) {
+		final File file = getFile(key);
+		if ((file == null) || !file.exists()) return null;
+		try {
+			final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			try {
+				if ((in.readInt() != MAGIC) || (in.readInt() != VERSION) || (in.readInt() != key.validation)) {
+					if (DEBUG) Log.v(TAG, "load:stale cache " + file);
+					file.delete();
+					return null;
+				}
+				final int[] capabilities = readIntArray(in);
+				final long ctrlSupports = in.readLong();
+				final long procSupports = in.readLong();
+				final int[] ctrlLimits = readIntArray(in);
+				return new Entry(capabilities, ctrlSupports, procSupports, ctrlLimits);
+			} finally {
+				in.close();
+			}
+		} catch (final IOException e) {
+			Log.w(TAG, "failed to load cache " + file, e);
+			file.delete();
+		}
+		return null;
+	}
+
+	/**
+	 * save values, this writes into temporary file and renames it to keep the cache consistent
+	 * @param key
+	 * @param entry
+	 */
+	static void save(final Key key, final Entry entry) {
+		final File file = getFile(key);
+		if (file == null) return;
+		final File temp = new File(file.getPath() + ".tmp");
+		try {
+			final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+			try {
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+				out.writeInt(key.validation);
+				writeIntArray(out, entry.capabilities);
+				out.writeLong(entry.ctrlSupports);
+				out.writeLong(entry.procSupports);
+				writeIntArray(out, entry.ctrlLimits);
+			} finally {
+				out.close();
+			}
+			if (!temp.renameTo(file)) {
+				temp.delete();
+			}
+		} catch (final IOException e) {
+			Log.w(TAG, "failed to save cache " + file, e);
+			temp.delete();
+		}
+	}
+
+	private static File getFile(final Key key) {
+		synchronized (sSync) {
+			return (key != null) && (sCacheDir != null) ? new File(sCacheDir, key.name + EXT) : null;
+		}
+	}
+
+	private static int[] readIntArray(final DataInputStream in) throws IOException {
+		final int n = in.readInt();
+		if (n < 0) return null;
+		if (n > 0x10000) throw new IOException("unexpected length:" + n);
+		final int[] result = new int[n];
+		for (int i = 0; i < n; i++) {
+			result[i] = in.readInt();
+		}
+		return result;
+	}
+
+	private static void writeIntArray(final DataOutputStream out, final int[] values) throws IOException {
+		if (values == null) {
+			out.writeInt(-1);
+			return;
+		}
+		out.writeInt(values.length);
+		for (final int v: values) {
+			out.writeInt(v);
+		}
+	}
+
+	private UVCDeviceCache() {
+	}
+}
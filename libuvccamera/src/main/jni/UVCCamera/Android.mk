@@ -48,7 +48,7 @@ LOCAL_LDLIBS := -L$(SYSROOT)/usr/lib -ldl
 LOCAL_LDLIBS += -llog
 LOCAL_LDLIBS += -landroid
 
-LOCAL_SHARED_LIBRARIES += usb100 uvc
+LOCAL_SHARED_LIBRARIES += usb100 uvc jpeg-turbo1500
 
 LOCAL_ARM_MODE := arm
 
@@ -59,6 +59,9 @@ LOCAL_SRC_FILES := \
 		UVCPreview.cpp \
 		UVCButtonCallback.cpp \
 		UVCStatusCallback.cpp \
+		UVCEventQueue.cpp \
+		FrameArena.cpp \
+		FramePool.cpp \
 		Parameters.cpp \
 		serenegiant_usb_UVCCamera.cpp
 
@@ -0,0 +1,464 @@
+/*
+ * UVCCamera
+ * library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * Copyright (c) 2014-2017 saki t_saki@serenegiant.com
+ *
+ * File name: FrameArena.cpp
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+ * Files in the jni/libjpeg, jni/libusb, jin/libuvc, jni/rapidjson folder may have a different license, see the respective files.
+*/
+
+
+#include <stdlib.h>
+#include <sys/mman.h>
+#include "utilbase.h"
+#include "FrameArena.h"
+
+#define	LOCAL_DEBUG 0
+
+// blocks are allocated in page unit so that blocks of slightly different sizes can be reused
+#define ARENA_PAGE_SIZE 4096
+
+static inline size_t round_up(const size_t bytes) {
+	return (bytes + ARENA_PAGE_SIZE - 1) & ~((size_t)ARENA_PAGE_SIZE - 1);
+}
+
+static inline size_t client_bytes(const arena_client_t *client) {
+	size_t bytes = 0;
+	for (int i = 0; i < ARENA_KIND_NUM; i++) {
+		bytes += client->bytes[i];
+	}
+	return bytes;
+}
+
+/*static*/
+FrameArena &FrameArena::getInstance() {
+	static FrameArena arena;
+	return arena;
+}
+
+FrameArena::FrameArena()
+:	mCachedNum(0),
+	mCachedBytes(0),
+	mTotalBytes(0),
+	mHighWatermarkBytes(0),
+	mLimitBytes(0),
+	mMappedBytes(0),
+	mBacking(ARENA_BACKING_MALLOC),
+	mClientNum(0),
+	mAllocations(0),
+	mCacheHits(0),
+	mFailures(0) {
+
+	pthread_mutex_init(&arena_mutex, NULL);
+}
+
+FrameArena::~FrameArena() {
+	pthread_mutex_lock(&arena_mutex);
+	{
+		trimCache(0);
+	}
+	pthread_mutex_unlock(&arena_mutex);
+	pthread_mutex_destroy(&arena_mutex);
+}
+
+/**
+ * free cached blocks from older ones until cached bytes become max_bytes or less
+ * (call while arena_mutex is locked)
+ */
+void FrameArena::trimCache(const size_t max_bytes) {
+	while (mCachedNum && (mCachedBytes > max_bytes)) {
+		arena_block_t &block = mCached[0];
+		freeBlock(block.ptr, block.bytes);
+		mCachedBytes -= block.bytes;
+		mTotalBytes -= block.bytes;
+		if (isMapped(block.bytes)) {
+			mMappedBytes -= block.bytes;
+		}
+		mCachedNum--;
+		for (int i = 0; i < mCachedNum; i++) {
+			mCached[i] = mCached[i + 1];
+		}
+	}
+}
+
+/**
+ * size of the block that is allocated for the request
+ * blocks are not resized, so this should be same for same bytes while backing is not changed
+ */
+size_t FrameArena::blockSize(const size_t bytes) {
+	if ((mBacking == ARENA_BACKING_MMAP_HUGE) && (bytes >= ARENA_HUGE_PAGE_SIZE)) {
+		return (bytes + ARENA_HUGE_PAGE_SIZE - 1) & ~((size_t)ARENA_HUGE_PAGE_SIZE - 1);
+	}
+	return round_up(bytes);
+}
+
+/**
+ * whether the block was/will be allocated with mmap,
+ * backing is not changed while blocks are allocated, see #setBacking
+ */
+bool FrameArena::isMapped(const size_t block_bytes) {
+	return (mBacking != ARENA_BACKING_MALLOC) && (block_bytes >= ARENA_MMAP_THRESHOLD);
+}
+
+/**
+ * allocate block from system
+ * with mmap backing, all pages are faulted here so that page faults do not occur
+ * on USB event thread/preview thread while streaming
+ */
+void *FrameArena::allocBlock(const size_t block_bytes) {
+	if (!isMapped(block_bytes)) {
+		return malloc(block_bytes);
+	}
+	void *ptr = MAP_FAILED;
+	if ((mBacking == ARENA_BACKING_MMAP_HUGE) && (block_bytes >= ARENA_HUGE_PAGE_SIZE)) {
+		// map extra huge page to align the block to huge page and unmap the rest
+		const size_t map_bytes = block_bytes + ARENA_HUGE_PAGE_SIZE;
+		uint8_t *p = (uint8_t *)mmap(NULL, map_bytes, PROT_READ | PROT_WRITE, MAP_PRIVATE | MAP_ANONYMOUS, -1, 0);
+		if (LIKELY(p != MAP_FAILED)) {
+			uint8_t *aligned = (uint8_t *)(((uintptr_t)p + ARENA_HUGE_PAGE_SIZE - 1) & ~((uintptr_t)ARENA_HUGE_PAGE_SIZE - 1));
+			if (aligned > p) {
+				munmap(p, aligned - p);
+			}
+			const size_t tail = (p + map_bytes) - (aligned + block_bytes);
+			if (tail) {
+				munmap(aligned + block_bytes, tail);
+			}
+#ifdef MADV_HUGEPAGE
+			// kernel may not support transparent huge pages, then normal pages are used
+			madvise(aligned, block_bytes, MADV_HUGEPAGE);
+#endif
+			// fault all pages now, MAP_POPULATE before madvise would populate normal pages
+			for (size_t offset = 0; offset < block_bytes; offset += ARENA_PAGE_SIZE) {
+				((volatile uint8_t *)aligned)[offset] = 0;
+			}
+			ptr = aligned;
+		}
+	} else {
+		ptr = mmap(NULL, block_bytes, PROT_READ | PROT_WRITE,
+			MAP_PRIVATE | MAP_ANONYMOUS | MAP_POPULATE, -1, 0);
+	}
+	return ptr != MAP_FAILED ? ptr : NULL;
+}
+
+/**
+ * return block to system
+ */
+void FrameArena::freeBlock(void *ptr, const size_t block_bytes) {
+	if (isMapped(block_bytes)) {
+		munmap(ptr, block_bytes);
+	} else {
+		::free(ptr);
+	}
+}
+
+/**
+ * register a camera that allocates memory from this arena
+ */
+arena_client_t *FrameArena::registerClient() {
+	ENTER();
+	arena_client_t *client = new arena_client_t();
+	pthread_mutex_lock(&arena_mutex);
+	{
+		mClientNum++;
+	}
+	pthread_mutex_unlock(&arena_mutex);
+	RET(client);
+}
+
+/**
+ * unregister the camera, client is deleted when all of its blocks are freed
+ */
+void FrameArena::unregisterClient(arena_client_t *client) {
+	ENTER();
+	if (UNLIKELY(!client)) EXIT();
+	size_t remain;
+	pthread_mutex_lock(&arena_mutex);
+	{
+		client->released = true;
+		remain = client_bytes(client);
+		const bool del = !remain;
+		if (del) {
+			mClientNum--;
+		}
+		if (!mClientNum) {
+			// nobody will reuse cached blocks
+			trimCache(0);
+		}
+	}
+	pthread_mutex_unlock(&arena_mutex);
+	if (!remain) {
+		delete client;
+	} else {
+		// client is deleted when remaining blocks are freed
+		LOGW("unregisterClient:client still has %d bytes", (int)remain);
+	}
+	EXIT();
+}
+
+/**
+ * allocate a block from cache or system
+ * @param client camera that uses the block
+ * @param kind ARENA_KIND_XXX
+ * @param allocated_bytes [out] actual size of the block, pass this to #free
+ * @return NULL if the quota/limit is exceeded or out of memory
+ */
+void *FrameArena::alloc(arena_client_t *client, const int kind, const size_t bytes, size_t *allocated_bytes) {
+	if (UNLIKELY(!client || !bytes || (kind < 0) || (kind >= ARENA_KIND_NUM))) {
+		return NULL;
+	}
+	const size_t need = blockSize(bytes);
+	void *ptr = NULL;
+	size_t block_bytes = need;
+	bool reserved = false;
+	pthread_mutex_lock(&arena_mutex);
+	{
+		// search the smallest cached block that fits, too large block is not used not to waste memory
+		int best = -1;
+		for (int i = 0; i < mCachedNum; i++) {
+			const size_t b = mCached[i].bytes;
+			if ((b >= need) && (b <= need + need / 4)
+				&& ((best < 0) || (b < mCached[best].bytes))) {
+				best = i;
+			}
+		}
+		if (best >= 0) {
+			block_bytes = mCached[best].bytes;
+		}
+		if (UNLIKELY(client->quota && (client_bytes(client) + block_bytes > client->quota))) {
+			// exceeds the quota of this camera
+		} else if (best >= 0) {
+			ptr = mCached[best].ptr;
+			mCachedBytes -= block_bytes;
+			mCachedNum--;
+			for (int i = best; i < mCachedNum; i++) {
+				mCached[i] = mCached[i + 1];
+			}
+			mCacheHits++;
+			reserved = true;
+		} else {
+			if (mLimitBytes && (mTotalBytes + need > mLimitBytes)) {
+				// free cached blocks to make room for new block
+				trimCache(mTotalBytes + need - mLimitBytes < mCachedBytes
+					? mCachedBytes - (mTotalBytes + need - mLimitBytes) : 0);
+			}
+			if (LIKELY(!mLimitBytes || (mTotalBytes + need <= mLimitBytes))) {
+				mTotalBytes += need;
+				reserved = true;
+			}
+		}
+		if (LIKELY(reserved)) {
+			client->bytes[kind] += block_bytes;
+			const size_t total = client_bytes(client);
+			if (total > client->high_watermark) {
+				client->high_watermark = total;
+			}
+			if (mTotalBytes > mHighWatermarkBytes) {
+				mHighWatermarkBytes = mTotalBytes;
+			}
+		} else {
+			client->failures++;
+			mFailures++;
+		}
+	}
+	pthread_mutex_unlock(&arena_mutex);
+	if (UNLIKELY(!reserved)) {
+#if LOCAL_DEBUG
+		LOGW("exceeds quota/limit:bytes=%d", (int)need);
+#endif
+		return NULL;
+	}
+	if (!ptr) {
+		// allocate without locking not to block other cameras
+		ptr = allocBlock(need);
+		pthread_mutex_lock(&arena_mutex);
+		{
+			if (LIKELY(ptr)) {
+				mAllocations++;
+				if (isMapped(need)) {
+					mMappedBytes += need;
+				}
+			} else {
+				LOGE("out of memory:bytes=%d", (int)need);
+				client->bytes[kind] -= need;
+				mTotalBytes -= need;
+				client->failures++;
+				mFailures++;
+			}
+		}
+		pthread_mutex_unlock(&arena_mutex);
+	}
+	if (LIKELY(ptr)) {
+		*allocated_bytes = block_bytes;
+	}
+	return ptr;
+}
+
+/**
+ * return the block that #alloc returned, the block is cached for reuse if possible
+ * @param allocated_bytes size that #alloc returned
+ */
+void FrameArena::free(arena_client_t *client, const int kind, void *ptr, const size_t allocated_bytes) {
+	if (UNLIKELY(!client || !ptr || (kind < 0) || (kind >= ARENA_KIND_NUM))) return;
+	bool del = false;
+	pthread_mutex_lock(&arena_mutex);
+	{
+		client->bytes[kind] = client->bytes[kind] > allocated_bytes ? client->bytes[kind] - allocated_bytes : 0;
+		if (mClientNum && (mCachedNum < ARENA_MAX_CACHED_BLOCKS)
+			&& (mCachedBytes + allocated_bytes <= ARENA_MAX_CACHED_BYTES)) {
+			mCached[mCachedNum].ptr = ptr;
+			mCached[mCachedNum].bytes = allocated_bytes;
+			mCachedNum++;
+			mCachedBytes += allocated_bytes;
+			ptr = NULL;
+		} else {
+			mTotalBytes -= allocated_bytes;
+			if (isMapped(allocated_bytes)) {
+				mMappedBytes -= allocated_bytes;
+			}
+		}
+		if (client->released && !client_bytes(client)) {
+			del = true;
+			mClientNum--;
+			if (!mClientNum) {
+				trimCache(0);
+			}
+		}
+	}
+	pthread_mutex_unlock(&arena_mutex);
+	if (ptr) {
+		freeBlock(ptr, allocated_bytes);
+	}
+	if (del) {
+		delete client;
+	}
+}
+
+/**
+ * set process wide limit of bytes that all cameras can allocate, blocks already allocated are not freed
+ * @param limit_bytes 0 means unlimited
+ */
+int FrameArena::setLimit(const size_t limit_bytes) {
+	ENTER();
+	pthread_mutex_lock(&arena_mutex);
+	{
+		mLimitBytes = limit_bytes;
+		if (mLimitBytes && (mTotalBytes > mLimitBytes)) {
+			trimCache(mTotalBytes - mLimitBytes < mCachedBytes
+				? mCachedBytes - (mTotalBytes - mLimitBytes) : 0);
+		}
+	}
+	pthread_mutex_unlock(&arena_mutex);
+	RETURN(0, int);
+}
+
+/**
+ * set how blocks are allocated from system, this should be called before opening cameras
+ * cached blocks are freed, and this fails if any block is in use
+ * @param backing ARENA_BACKING_XXX
+ * @return UVC_ERROR_BUSY if blocks are in use
+ */
+int FrameArena::setBacking(const int backing) {
+	ENTER();
+	if (UNLIKELY((backing < 0) || (backing >= ARENA_BACKING_NUM))) {
+		RETURN(UVC_ERROR_INVALID_PARAM, int);
+	}
+	int result = 0;
+	pthread_mutex_lock(&arena_mutex);
+	{
+		if (backing != mBacking) {
+			trimCache(0);
+			if (LIKELY(!mTotalBytes)) {
+				mBacking = backing;
+			} else {
+				result = UVC_ERROR_BUSY;
+			}
+		}
+	}
+	pthread_mutex_unlock(&arena_mutex);
+	RETURN(result, int);
+}
+
+/**
+ * set bytes that the camera can allocate(frames and transfer buffers), blocks already allocated are not freed
+ * @param quota_bytes 0 means unlimited
+ */
+int FrameArena::setQuota(arena_client_t *client, const size_t quota_bytes) {
+	ENTER();
+	if (UNLIKELY(!client)) RETURN(UVC_ERROR_INVALID_PARAM, int);
+	pthread_mutex_lock(&arena_mutex);
+	{
+		client->quota = quota_bytes;
+	}
+	pthread_mutex_unlock(&arena_mutex);
+	RETURN(0, int);
+}
+
+/**
+ * @param values [out] ARENA_REPORT_NUM values, see ARENA_REPORT_XXX
+ */
+int FrameArena::getReport(int64_t *values, const int num) {
+	if (UNLIKELY(num < ARENA_REPORT_NUM)) {
+		return UVC_ERROR_INVALID_PARAM;
+	}
+	pthread_mutex_lock(&arena_mutex);
+	{
+		values[ARENA_REPORT_IN_USE_BYTES] = mTotalBytes - mCachedBytes;
+		values[ARENA_REPORT_CACHED_BYTES] = mCachedBytes;
+		values[ARENA_REPORT_HIGH_WATERMARK] = mHighWatermarkBytes;
+		values[ARENA_REPORT_LIMIT] = mLimitBytes;
+		values[ARENA_REPORT_CLIENTS] = mClientNum;
+		values[ARENA_REPORT_ALLOCATIONS] = mAllocations;
+		values[ARENA_REPORT_CACHE_HITS] = mCacheHits;
+		values[ARENA_REPORT_FAILURES] = mFailures;
+		values[ARENA_REPORT_BACKING] = mBacking;
+		values[ARENA_REPORT_MAPPED_BYTES] = mMappedBytes;
+	}
+	pthread_mutex_unlock(&arena_mutex);
+	return 0;
+}
+
+/**
+ * @param values [out] ARENA_USAGE_NUM values, see ARENA_USAGE_XXX
+ */
+int FrameArena::getUsage(arena_client_t *client, int64_t *values, const int num) {
+	if (UNLIKELY(!client || (num < ARENA_USAGE_NUM))) {
+		return UVC_ERROR_INVALID_PARAM;
+	}
+	pthread_mutex_lock(&arena_mutex);
+	{
+		values[ARENA_USAGE_FRAME_BYTES] = client->bytes[ARENA_KIND_FRAME];
+		values[ARENA_USAGE_TRANSFER_BYTES] = client->bytes[ARENA_KIND_TRANSFER];
+		values[ARENA_USAGE_HIGH_WATERMARK] = client->high_watermark;
+		values[ARENA_USAGE_QUOTA] = client->quota;
+		values[ARENA_USAGE_FAILURES] = client->failures;
+	}
+	pthread_mutex_unlock(&arena_mutex);
+	return 0;
+}
+
+/*static*/
+void *FrameArena::alloc_transfer_buffer(size_t bytes, size_t *allocated_bytes, void *user_ptr) {
+	return getInstance().alloc(reinterpret_cast<arena_client_t *>(user_ptr),
+		ARENA_KIND_TRANSFER, bytes, allocated_bytes);
+}
+
+/*static*/
+void FrameArena::free_transfer_buffer(void *buf, size_t allocated_bytes, void *user_ptr) {
+	getInstance().free(reinterpret_cast<arena_client_t *>(user_ptr),
+		ARENA_KIND_TRANSFER, buf, allocated_bytes);
+}
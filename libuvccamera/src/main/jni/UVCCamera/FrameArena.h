@@ -0,0 +1,137 @@
+/*
+ * UVCCamera
+ * library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * Copyright (c) 2014-2017 saki t_saki@serenegiant.com
+ *
+ * File name: FrameArena.h
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+ * Files in the jni/libjpeg, jni/libusb, jin/libuvc, jni/rapidjson folder may have a different license, see the respective files.
+*/
+
+
+#ifndef FRAMEARENA_H_
+#define FRAMEARENA_H_
+
+#include "libUVCCamera.h"
+#include <pthread.h>
+
+#pragma interface
+
+// kind of memory that each camera allocates from the arena
+#define ARENA_KIND_FRAME 0		// frame data of FramePool
+#define ARENA_KIND_TRANSFER 1	// transfer buffers(outbuf/holdbuf) of libuvc stream
+#define ARENA_KIND_NUM 2
+
+// index of values that #getReport writes
+#define ARENA_REPORT_IN_USE_BYTES 0			// bytes that cameras are using
+#define ARENA_REPORT_CACHED_BYTES 1			// bytes of freed blocks that are kept for reuse
+#define ARENA_REPORT_HIGH_WATERMARK 2		// maximum of in use + cached bytes
+#define ARENA_REPORT_LIMIT 3				// process wide limit, 0 means unlimited
+#define ARENA_REPORT_CLIENTS 4				// number of cameras that use the arena
+#define ARENA_REPORT_ALLOCATIONS 5			// number of blocks that were allocated from system
+#define ARENA_REPORT_CACHE_HITS 6			// number of blocks that were reused from cache
+#define ARENA_REPORT_FAILURES 7				// number of requests that failed because of quota/limit/out of memory
+#define ARENA_REPORT_BACKING 8				// ARENA_BACKING_XXX
+#define ARENA_REPORT_MAPPED_BYTES 9			// bytes of blocks that were allocated with mmap(in use + cached)
+#define ARENA_REPORT_NUM 10
+
+// index of values that #getUsage writes
+#define ARENA_USAGE_FRAME_BYTES 0
+#define ARENA_USAGE_TRANSFER_BYTES 1
+#define ARENA_USAGE_HIGH_WATERMARK 2
+#define ARENA_USAGE_QUOTA 3					// 0 means unlimited
+#define ARENA_USAGE_FAILURES 4
+#define ARENA_USAGE_NUM 5
+
+// how blocks are allocated from system, see #setBacking
+#define ARENA_BACKING_MALLOC 0		// malloc, pages are faulted when they are written first time
+#define ARENA_BACKING_MMAP 1		// pre-faulted anonymous mmap(MAP_POPULATE)
+#define ARENA_BACKING_MMAP_HUGE 2	// pre-faulted anonymous mmap with transparent huge pages if available
+#define ARENA_BACKING_NUM 3
+
+// blocks smaller than this are always allocated with malloc
+#define ARENA_MMAP_THRESHOLD (64 * 1024)
+// blocks larger than this are aligned to huge page when ARENA_BACKING_MMAP_HUGE
+#define ARENA_HUGE_PAGE_SIZE (2 * 1024 * 1024)
+
+// maximum number of freed blocks that are kept for reuse
+#define ARENA_MAX_CACHED_BLOCKS 32
+// maximum bytes of freed blocks that are kept for reuse
+#define ARENA_MAX_CACHED_BYTES (32 * 1024 * 1024)
+
+/**
+ * accounting of each camera, this is created/released by FrameArena
+ */
+typedef struct arena_client {
+	size_t bytes[ARENA_KIND_NUM];
+	size_t quota;
+	size_t high_watermark;
+	uint64_t failures;
+	bool released;
+} arena_client_t;
+
+typedef struct arena_block {
+	void *ptr;
+	size_t bytes;
+} arena_block_t;
+
+/**
+ * process wide memory arena that all cameras allocate frames and transfer buffers from.
+ * freed blocks are kept for a while so that other cameras or next stream can reuse them
+ * without allocating from system, and bytes are counted against the quota of each camera
+ * and against the process wide limit.
+ */
+class FrameArena {
+private:
+	pthread_mutex_t arena_mutex;
+	arena_block_t mCached[ARENA_MAX_CACHED_BLOCKS];
+	int mCachedNum;
+	size_t mCachedBytes;
+	size_t mTotalBytes;		// in use + cached
+	size_t mHighWatermarkBytes;
+	size_t mLimitBytes;
+	size_t mMappedBytes;
+	int mBacking;
+	int mClientNum;
+	uint64_t mAllocations;
+	uint64_t mCacheHits;
+	uint64_t mFailures;
+	FrameArena();
+	~FrameArena();
+	void trimCache(const size_t max_bytes);
+	size_t blockSize(const size_t bytes);
+	bool isMapped(const size_t block_bytes);
+	void *allocBlock(const size_t block_bytes);
+	void freeBlock(void *ptr, const size_t block_bytes);
+public:
+	static FrameArena &getInstance();
+
+	arena_client_t *registerClient();
+	void unregisterClient(arena_client_t *client);
+	void *alloc(arena_client_t *client, const int kind, const size_t bytes, size_t *allocated_bytes);
+	void free(arena_client_t *client, const int kind, void *ptr, const size_t allocated_bytes);
+	int setLimit(const size_t limit_bytes);
+	int setBacking(const int backing);
+	int setQuota(arena_client_t *client, const size_t quota_bytes);
+	int getReport(int64_t *values, const int num);
+	int getUsage(arena_client_t *client, int64_t *values, const int num);
+	// uvc_buffer_alloc_callback_t/uvc_buffer_free_callback_t for uvc_set_buffer_allocator, user_ptr is arena_client_t
+	static void *alloc_transfer_buffer(size_t bytes, size_t *allocated_bytes, void *user_ptr);
+	static void free_transfer_buffer(void *buf, size_t allocated_bytes, void *user_ptr);
+};
+
+#endif /* FRAMEARENA_H_ */
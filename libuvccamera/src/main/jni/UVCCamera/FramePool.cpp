@@ -0,0 +1,366 @@
+/*
+ * UVCCamera
+ * library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * Copyright (c) 2014-2017 saki t_saki@serenegiant.com
+ *
+ * File name: FramePool.cpp
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+ * Files in the jni/libjpeg, jni/libusb, jin/libuvc, jni/rapidjson folder may have a different license, see the respective files.
+*/
+
+#include <stdlib.h>
+#include "utilbase.h"
+#include "FramePool.h"
+
+#define	LOCAL_DEBUG 0
+
+FramePool::FramePool(const int max_frames)
+:	mArena(FrameArena::getInstance()),
+	mClient(NULL),
+	mMaxFrames(max_frames),
+	mTotalBytes(0),
+	mHighWatermarkBytes(0),
+	mAllocations(0),
+	mReallocations(0),
+	mHits(0),
+	mFailures(0) {
+
+	ENTER();
+	for (int i = 0; i < FRAME_POOL_CLASS_NUM; i++) {
+		mClassBytes[i] = 0;
+	}
+	pthread_mutex_init(&pool_mutex, NULL);
+	mClient = mArena.registerClient();
+	EXIT();
+}
+
+FramePool::~FramePool() {
+	ENTER();
+	clear();
+	mArena.unregisterClient(mClient);
+	mClient = NULL;
+	pthread_mutex_destroy(&pool_mutex);
+	EXIT();
+}
+
+/**
+ * frame format that is set to the frame before passing it to the caller
+ * so that the frame returns to same size class even if the caller did not fill it
+ */
+static enum uvc_frame_format formatOf(const int size_class) {
+	switch (size_class) {
+	case FRAME_POOL_COMPRESSED:	return UVC_FRAME_FORMAT_MJPEG;
+	case FRAME_POOL_YUYV:		return UVC_FRAME_FORMAT_YUYV;
+	case FRAME_POOL_RGBX:		return UVC_FRAME_FORMAT_RGBX;
+	default:					return UVC_FRAME_FORMAT_UNKNOWN;
+	}
+}
+
+/**
+ * size class of the frame that is returned to the pool, this is decided from its content
+ */
+int FramePool::classOf(const uvc_frame_t *frame) {
+	switch (frame->frame_format) {
+	case UVC_FRAME_FORMAT_MJPEG:
+	case UVC_FRAME_FORMAT_H264:
+	case UVC_FRAME_FORMAT_H265:
+		return FRAME_POOL_COMPRESSED;
+	case UVC_FRAME_FORMAT_YUYV:
+		return FRAME_POOL_YUYV;
+	case UVC_FRAME_FORMAT_RGBX:
+		return FRAME_POOL_RGBX;
+	default:
+		return FRAME_POOL_CALLBACK;
+	}
+}
+
+/**
+ * allocate frame data from the arena and create new frame
+ * @return NULL if the quota is exceeded or out of memory
+ */
+uvc_frame_t *FramePool::allocFrame(const int size_class, const size_t bytes) {
+	size_t allocated_bytes;
+	void *data = mArena.alloc(mClient, ARENA_KIND_FRAME, bytes, &allocated_bytes);
+	if (UNLIKELY(!data)) return NULL;
+	// frame does not own its data, libuvc never reallocates/frees it
+	uvc_frame_t *frame = uvc_allocate_frame(0);
+	if (UNLIKELY(!frame)) {
+		mArena.free(mClient, ARENA_KIND_FRAME, data, allocated_bytes);
+		return NULL;
+	}
+	attachData(frame, data, allocated_bytes, bytes);
+	frame->frame_format = formatOf(size_class);
+	return frame;
+}
+
+/**
+ * set data that was allocated from the arena to the frame
+ */
+void FramePool::attachData(uvc_frame_t *frame, void *data, const size_t allocated_bytes, const size_t bytes) {
+	frame->library_owns_data = 0;
+	frame->data = data;
+	frame->alloc_bytes = allocated_bytes;
+	frame->actual_bytes = frame->data_bytes = bytes;
+	pthread_mutex_lock(&pool_mutex);
+	{
+		mTotalBytes += allocated_bytes;
+		if (mTotalBytes > mHighWatermarkBytes) {
+			mHighWatermarkBytes = mTotalBytes;
+		}
+	}
+	pthread_mutex_unlock(&pool_mutex);
+}
+
+/**
+ * return frame data to the arena(call while pool_mutex is locked)
+ */
+void FramePool::freeData(uvc_frame_t *frame) {
+	if (frame->data && !frame->library_owns_data) {
+		mArena.free(mClient, ARENA_KIND_FRAME, frame->data, frame->alloc_bytes);
+		mTotalBytes = mTotalBytes > frame->alloc_bytes ? mTotalBytes - frame->alloc_bytes : 0;
+		frame->data = NULL;
+		frame->alloc_bytes = frame->actual_bytes = frame->data_bytes = 0;
+	}
+}
+
+/**
+ * (call while pool_mutex is locked)
+ */
+void FramePool::freeFrame(uvc_frame_t *frame) {
+	freeData(frame);
+	uvc_free_frame(frame);
+}
+
+/**
+ * free pooled frames of other size classes to make room in the quota
+ * (call while pool_mutex is locked)
+ */
+void FramePool::trim(const int except_class) {
+	for (int i = 0; i < FRAME_POOL_CLASS_NUM; i++) {
+		if (i == except_class) continue;
+		ObjectArray<uvc_frame_t *> &frames = mFrames[i];
+		const int n = frames.size();
+		for (int j = 0; j < n; j++) {
+			freeFrame(frames[j]);
+		}
+		frames.clear();
+	}
+}
+
+/**
+ * set quota of the camera in the arena, this includes transfer buffers of libuvc.
+ * frames that are already allocated are not freed
+ * @param quota_bytes 0 means unlimited
+ */
+int FramePool::setQuota(const size_t quota_bytes) {
+	ENTER();
+	RETURN(mArena.setQuota(mClient, quota_bytes), int);
+}
+
+/**
+ * set expected frame size of the size class and preallocate frames
+ * pooled frames that are smaller than bytes are freed
+ * @param num number of frames to keep in the pool
+ * @return number of frames that are pooled in the size class
+ */
+int FramePool::prepare(const int size_class, const size_t bytes, const int num) {
+	ENTER();
+	if (UNLIKELY((size_class < 0) || (size_class >= FRAME_POOL_CLASS_NUM))) {
+		RETURN(UVC_ERROR_INVALID_PARAM, int);
+	}
+	int n;
+	pthread_mutex_lock(&pool_mutex);
+	{
+		mClassBytes[size_class] = bytes;
+		ObjectArray<uvc_frame_t *> &frames = mFrames[size_class];
+		for (int i = frames.size() - 1; i >= 0; i--) {
+			if (frames[i]->alloc_bytes < bytes) {
+				freeFrame(frames.remove(i));
+			}
+		}
+		n = frames.size();
+	}
+	pthread_mutex_unlock(&pool_mutex);
+	const int max_frames = num < mMaxFrames ? num : mMaxFrames;
+	for ( ; n < max_frames; n++) {
+		// allocate without locking not to block other threads that are using this pool
+		uvc_frame_t *frame = allocFrame(size_class, bytes);
+		pthread_mutex_lock(&pool_mutex);
+		{
+			if (LIKELY(frame)) {
+				mAllocations++;
+				mFrames[size_class].put(frame);
+			} else {
+				mFailures++;
+			}
+		}
+		pthread_mutex_unlock(&pool_mutex);
+		if (UNLIKELY(!frame)) {
+			LOGW("exceeds quota, preallocated %d frames of class %d", n, size_class);
+			break;
+		}
+	}
+	RETURN(n, int);
+}
+
+/**
+ * get frame of the size class from the pool
+ * if pool is empty or pooled frame is too small, allocate/reallocate it within the quota
+ * @param bytes required data size, the frame has at least larger one of this and size of the size class
+ * @return NULL if quota exceeded or out of memory
+ */
+uvc_frame_t *FramePool::get(const int size_class, const size_t bytes) {
+	uvc_frame_t *frame = NULL;
+	size_t need;
+	pthread_mutex_lock(&pool_mutex);
+	{
+		need = bytes > mClassBytes[size_class] ? bytes : mClassBytes[size_class];
+		ObjectArray<uvc_frame_t *> &frames = mFrames[size_class];
+		if (!frames.isEmpty()) {
+			frame = frames.last();
+		}
+		if (LIKELY(frame && (frame->alloc_bytes >= need))) {
+			mHits++;
+		} else if (frame) {
+			// content of pooled frame is not necessary, free it before allocating larger one
+			LOGW("reallocate frame:class=%d,%d=>%d", size_class, (int)frame->alloc_bytes, (int)need);
+			freeData(frame);
+		}
+	}
+	pthread_mutex_unlock(&pool_mutex);
+	const bool reallocate = frame != NULL;
+	if (LIKELY(frame && frame->data)) {
+		frame->actual_bytes = frame->data_bytes = bytes;
+		frame->frame_format = formatOf(size_class);
+		return frame;
+	}
+	size_t allocated_bytes;
+	void *data = mArena.alloc(mClient, ARENA_KIND_FRAME, need, &allocated_bytes);
+	if (UNLIKELY(!data)) {
+		// free pooled frames of other size classes and retry
+		pthread_mutex_lock(&pool_mutex);
+		{
+			trim(size_class);
+		}
+		pthread_mutex_unlock(&pool_mutex);
+		data = mArena.alloc(mClient, ARENA_KIND_FRAME, need, &allocated_bytes);
+	}
+	if (LIKELY(data && !frame)) {
+		frame = uvc_allocate_frame(0);
+		if (UNLIKELY(!frame)) {
+			mArena.free(mClient, ARENA_KIND_FRAME, data, allocated_bytes);
+			data = NULL;
+		}
+	}
+	pthread_mutex_lock(&pool_mutex);
+	{
+		if (UNLIKELY(!data)) {
+			mFailures++;
+			if (frame) {
+				uvc_free_frame(frame);
+				frame = NULL;
+			}
+		} else if (reallocate) {
+			mReallocations++;
+		} else {
+			mAllocations++;
+		}
+	}
+	pthread_mutex_unlock(&pool_mutex);
+	if (UNLIKELY(!frame)) {
+#if LOCAL_DEBUG
+		LOGW("exceeds quota:class=%d,bytes=%d", size_class, (int)need);
+#endif
+		return NULL;
+	}
+	attachData(frame, data, allocated_bytes, bytes);
+	frame->frame_format = formatOf(size_class);
+	return frame;
+}
+
+/**
+ * return the frame that #get returned
+ * if the pool already has enough frames in the size class, the frame is freed
+ */
+void FramePool::recycle(uvc_frame_t *frame) {
+	const int size_class = classOf(frame);
+	pthread_mutex_lock(&pool_mutex);
+	{
+		ObjectArray<uvc_frame_t *> &frames = mFrames[size_class];
+		if (LIKELY(frame->data && (frames.size() < mMaxFrames))) {
+			frames.put(frame);
+		} else {
+			freeFrame(frame);
+		}
+	}
+	pthread_mutex_unlock(&pool_mutex);
+}
+
+/**
+ * free the frame that #get returned instead of returning it to the pool
+ */
+void FramePool::discard(uvc_frame_t *frame) {
+	pthread_mutex_lock(&pool_mutex);
+	{
+		freeFrame(frame);
+	}
+	pthread_mutex_unlock(&pool_mutex);
+}
+
+/**
+ * free all pooled frames, frames that are in use are not affected
+ */
+void FramePool::clear() {
+	ENTER();
+	pthread_mutex_lock(&pool_mutex);
+	{
+		trim(-1);
+	}
+	pthread_mutex_unlock(&pool_mutex);
+	EXIT();
+}
+
+/**
+ * @param values [out] FRAME_POOL_STATS_NUM values, see FRAME_POOL_STATS_XXX
+ */
+int FramePool::getStats(int64_t *values, const int num) {
+	if (UNLIKELY(num < FRAME_POOL_STATS_NUM)) {
+		return UVC_ERROR_INVALID_PARAM;
+	}
+	int64_t usage[ARENA_USAGE_NUM];
+	mArena.getUsage(mClient, usage, ARENA_USAGE_NUM);
+	pthread_mutex_lock(&pool_mutex);
+	{
+		values[FRAME_POOL_STATS_ALLOCATIONS] = mAllocations;
+		values[FRAME_POOL_STATS_REALLOCATIONS] = mReallocations;
+		values[FRAME_POOL_STATS_HITS] = mHits;
+		values[FRAME_POOL_STATS_FAILURES] = mFailures;
+		values[FRAME_POOL_STATS_BYTES] = mTotalBytes;
+		values[FRAME_POOL_STATS_HIGH_WATERMARK] = mHighWatermarkBytes;
+		values[FRAME_POOL_STATS_QUOTA] = usage[ARENA_USAGE_QUOTA];
+	}
+	pthread_mutex_unlock(&pool_mutex);
+	return 0;
+}
+
+/**
+ * memory usage of the camera in the arena
+ * @param values [out] ARENA_USAGE_NUM values, see ARENA_USAGE_XXX
+ */
+int FramePool::getUsage(int64_t *values, const int num) {
+	return mArena.getUsage(mClient, values, num);
+}
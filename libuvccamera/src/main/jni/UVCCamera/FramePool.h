@@ -0,0 +1,94 @@
+/*
+ * UVCCamera
+ * library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * Copyright (c) 2014-2017 saki t_saki@serenegiant.com
+ *
+ * File name: FramePool.h
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+ * Files in the jni/libjpeg, jni/libusb, jin/libuvc, jni/rapidjson folder may have a different license, see the respective files.
+*/
+
+#ifndef FRAMEPOOL_H_
+#define FRAMEPOOL_H_
+
+#include "libUVCCamera.h"
+#include <pthread.h>
+#include "objectarray.h"
+#include "FrameArena.h"
+
+#pragma interface
+
+// size classes of the frame pool
+#define FRAME_POOL_COMPRESSED 0		// MJPEG/H.264/H.265 frames from the camera
+#define FRAME_POOL_YUYV 1			// YUYV frames from the camera or decoded from MJPEG
+#define FRAME_POOL_RGBX 2			// frames converted for preview/capture surface
+#define FRAME_POOL_CALLBACK 3		// frames converted for IFrameCallback
+#define FRAME_POOL_CLASS_NUM 4
+
+// index of values that #getStats writes
+#define FRAME_POOL_STATS_ALLOCATIONS 0		// number of frames that were allocated
+#define FRAME_POOL_STATS_REALLOCATIONS 1	// number of frames that were reallocated to larger size
+#define FRAME_POOL_STATS_HITS 2				// number of requests that reused pooled frame without reallocation
+#define FRAME_POOL_STATS_FAILURES 3			// number of requests that failed because of quota/out of memory
+#define FRAME_POOL_STATS_BYTES 4			// bytes of frames that this pool allocated and not freed yet
+#define FRAME_POOL_STATS_HIGH_WATERMARK 5	// maximum of FRAME_POOL_STATS_BYTES
+#define FRAME_POOL_STATS_QUOTA 6			// quota of the camera(frames and transfer buffers), 0 means unlimited
+#define FRAME_POOL_STATS_NUM 7
+
+/**
+ * frame pool that keeps frames for each size class separately
+ * so that frames for small compressed data are not used for RGBX frames etc.
+ * and conversions do not need to reallocate their buffers.
+ * frame data is allocated from process wide FrameArena and counted against the quota of the camera,
+ * the pool owns the arena client of the camera that is also used for transfer buffers of libuvc.
+ */
+class FramePool {
+private:
+	pthread_mutex_t pool_mutex;
+	FrameArena &mArena;
+	arena_client_t *mClient;
+	ObjectArray<uvc_frame_t *> mFrames[FRAME_POOL_CLASS_NUM];
+	size_t mClassBytes[FRAME_POOL_CLASS_NUM];	// expected frame size of each size class
+	const int mMaxFrames;						// maximum number of pooled frames of each size class
+	size_t mTotalBytes;
+	size_t mHighWatermarkBytes;
+	uint64_t mAllocations;
+	uint64_t mReallocations;
+	uint64_t mHits;
+	uint64_t mFailures;
+	int classOf(const uvc_frame_t *frame);
+	uvc_frame_t *allocFrame(const int size_class, const size_t bytes);
+	void attachData(uvc_frame_t *frame, void *data, const size_t allocated_bytes, const size_t bytes);
+	void freeData(uvc_frame_t *frame);
+	void freeFrame(uvc_frame_t *frame);
+	void trim(const int except_class);
+public:
+	FramePool(const int max_frames);
+	~FramePool();
+
+	inline arena_client_t *getArenaClient() { return mClient; };
+	int setQuota(const size_t quota_bytes);
+	int prepare(const int size_class, const size_t bytes, const int num);
+	uvc_frame_t *get(const int size_class, const size_t bytes);
+	void recycle(uvc_frame_t *frame);
+	void discard(uvc_frame_t *frame);
+	void clear();
+	int getStats(int64_t *values, const int num);
+	int getUsage(int64_t *values, const int num);
+};
+
+#endif /* FRAMEPOOL_H_ */
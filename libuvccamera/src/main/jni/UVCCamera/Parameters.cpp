@@ -365,8 +365,17 @@ char *UVCDiags::getSupportedSize(const uvc_device_handle_t *deviceHandle) {
 						switch (fmt_desc->bDescriptorSubtype) {
 						case UVC_VS_FORMAT_UNCOMPRESSED:
 						case UVC_VS_FORMAT_MJPEG:
+						case UVC_VS_FORMAT_FRAME_BASED:
 							write(writer, "index", fmt_desc->bFormatIndex);
 							write(writer, "type", fmt_desc->bDescriptorSubtype);
+							if (fmt_desc->bDescriptorSubtype == UVC_VS_FORMAT_FRAME_BASED) {
+								// to distinguish H.264/H.265 etc.
+								snprintf(buf, sizeof(buf), "%c%c%c%c",
+									fmt_desc->fourccFormat[0], fmt_desc->fourccFormat[1],
+									fmt_desc->fourccFormat[2], fmt_desc->fourccFormat[3]);
+								buf[sizeof(buf)-1] = '\0';
+								write(writer, "fourcc", buf);
+							}
 							write(writer, "default", fmt_desc->bDefaultFrameIndex);
 							writer.String("size");
 							writer.StartArray();
@@ -392,3 +401,106 @@ char *UVCDiags::getSupportedSize(const uvc_device_handle_t *deviceHandle) {
 	writer.EndObject();
 	RETURN(strdup(buffer.GetString()), char *);
 }
+
+/**
+ * write format/frame/still image descriptors into int array,
+ * if caps is NULL, this just counts the number of elements
+ * @return number of elements
+ */
+static int write_capabilities(const uvc_device_handle_t *deviceHandle, int *caps) {
+	int n = 0, num_formats = 0, num_formats_pos;
+#define PUT(v) { if (caps) caps[n] = (int)(v); n++; }
+	PUT(CAPABILITIES_VERSION);
+	num_formats_pos = n;
+	PUT(0);
+	uvc_streaming_interface_t *stream_if;
+	DL_FOREACH(deviceHandle->info->stream_ifs, stream_if)
+	{
+		uvc_format_desc_t *fmt_desc;
+		uvc_frame_desc_t *frame_desc;
+		DL_FOREACH(stream_if->format_descs, fmt_desc)
+		{
+			switch (fmt_desc->bDescriptorSubtype) {
+			case UVC_VS_FORMAT_UNCOMPRESSED:
+			case UVC_VS_FORMAT_MJPEG:
+			case UVC_VS_FORMAT_FRAME_BASED:
+				break;
+			default:
+				continue;
+			}
+			num_formats++;
+			PUT(fmt_desc->bDescriptorSubtype);
+			PUT(fmt_desc->bFormatIndex);
+			// MJPEG format descriptor has no guid/fourcc
+			PUT(fmt_desc->bDescriptorSubtype == UVC_VS_FORMAT_MJPEG ? 0
+				: (fmt_desc->fourccFormat[0] | (fmt_desc->fourccFormat[1] << 8)
+					| (fmt_desc->fourccFormat[2] << 16) | (fmt_desc->fourccFormat[3] << 24)));
+			PUT(fmt_desc->bDefaultFrameIndex);
+			int num_frames = 0;
+			DL_FOREACH(fmt_desc->frame_descs, frame_desc)
+			{
+				num_frames++;
+			}
+			PUT(num_frames);
+			DL_FOREACH(fmt_desc->frame_descs, frame_desc)
+			{
+				PUT(frame_desc->bDescriptorSubtype);
+				PUT(frame_desc->bFrameIndex);
+				PUT(frame_desc->wWidth);
+				PUT(frame_desc->wHeight);
+				PUT(frame_desc->dwDefaultFrameInterval);
+				PUT(frame_desc->bFrameIntervalType);
+				if (frame_desc->bFrameIntervalType) {
+					// discrete frame intervals
+					int num_intervals = 0;
+					if (frame_desc->intervals) {
+						for (uint32_t *interval = frame_desc->intervals; *interval; ++interval) {
+							num_intervals++;
+						}
+					}
+					PUT(num_intervals);
+					for (int i = 0; i < num_intervals; i++) {
+						PUT(frame_desc->intervals[i]);
+					}
+				} else {
+					// continuous frame intervals
+					PUT(3);
+					PUT(frame_desc->dwMinFrameInterval);
+					PUT(frame_desc->dwMaxFrameInterval);
+					PUT(frame_desc->dwFrameIntervalStep);
+				}
+			}
+			const uvc_still_frame_desc_t *still = fmt_desc->still_frame_desc;
+			const int num_stills = still ? still->bNumImageSizePatterns : 0;
+			PUT(num_stills);
+			for (int i = 0; i < num_stills; i++) {
+				PUT(still->sizes[i].wWidth);
+				PUT(still->sizes[i].wHeight);
+			}
+		}
+	}
+	if (caps) caps[num_formats_pos] = num_formats;
+#undef PUT
+	return n;
+}
+
+/**
+ * build capabilities of the device as int array instead of JSON string,
+ * see UVCCapabilities on Java side for the layout.
+ * @param length [out] number of elements
+ * @return int array, caller should free this with free()
+ */
+int *UVCDiags::getCapabilities(const uvc_device_handle_t *deviceHandle, int *length) {
+	ENTER();
+	*length = 0;
+	if (UNLIKELY(!deviceHandle || !deviceHandle->info)) {
+		RETURN(NULL, int *);
+	}
+	const int n = write_capabilities(deviceHandle, NULL);
+	int *caps = (int *)malloc(sizeof(int) * n);
+	if (LIKELY(caps)) {
+		write_capabilities(deviceHandle, caps);
+		*length = n;
+	}
+	RETURN(caps, int *);
+}
@@ -36,6 +36,10 @@ public:
 	char *getDescriptions(const uvc_device_handle_t *deviceHandle);
 	char *getCurrentStream(const uvc_stream_ctrl_t *ctrl);
 	char *getSupportedSize(const uvc_device_handle_t *deviceHandle);
+	int *getCapabilities(const uvc_device_handle_t *deviceHandle, int *length);
 };
 
+// version of array layout that UVCDiags::getCapabilities returns, same value as UVCCapabilities#VERSION on Java side
+#define CAPABILITIES_VERSION 1
+
 #endif /* PARAMETERS_H_ */
@@ -7,8 +7,9 @@
 
 #define	LOCAL_DEBUG 0
 
-UVCButtonCallback::UVCButtonCallback(uvc_device_handle_t *devh)
+UVCButtonCallback::UVCButtonCallback(uvc_device_handle_t *devh, UVCEventQueue *queue)
 :	mDeviceHandle(devh),
+	mEventQueue(queue),
 	mButtonCallbackObj(NULL) {
 
 	ENTER();
@@ -21,6 +22,9 @@ UVCButtonCallback::UVCButtonCallback(uvc_device_handle_t *devh)
 UVCButtonCallback::~UVCButtonCallback() {
 
 	ENTER();
+	uvc_set_button_callback(mDeviceHandle, NULL, NULL);
+	// 未配信のイベントを破棄して配信中なら終わるまで待つ
+	mEventQueue->cancel(this);
 	pthread_mutex_destroy(&button_mutex);
 	EXIT();
 }
@@ -70,16 +74,18 @@ void UVCButtonCallback::notifyButtonCallback(JNIEnv* env, int button, int state)
 	pthread_mutex_unlock(&button_mutex);
 }
 
+/*static*/
+void UVCButtonCallback::dispatch_button(void *target, JNIEnv *env, const uvc_event_t *event, jobject buf) {
+	UVCButtonCallback *buttonCallback = reinterpret_cast<UVCButtonCallback *>(target);
+	buttonCallback->notifyButtonCallback(env, event->button, event->state);
+}
+
 void UVCButtonCallback::uvc_button_callback(int button, int state, void *user_ptr) {
 
 	UVCButtonCallback *buttonCallback = reinterpret_cast<UVCButtonCallback *>(user_ptr);
 
-	JavaVM *vm = getVM();
-	JNIEnv *env;
-	// attach to JavaVM
-	vm->AttachCurrentThread(&env, NULL);
-
-	buttonCallback->notifyButtonCallback(env, button, state);
-	
-	vm->DetachCurrentThread();
+	// Java側への通知はJavaVMへアタッチ済みの配信スレッドで行う
+	if (buttonCallback->mButtonCallbackObj) {
+		buttonCallback->mEventQueue->pushButton(dispatch_button, buttonCallback, button, state);
+	}
 }
@@ -5,6 +5,7 @@
 #include <pthread.h>
 #include <android/native_window.h>
 #include "objectarray.h"
+#include "UVCEventQueue.h"
 
 #pragma interface
 
@@ -16,13 +17,15 @@ typedef struct {
 class UVCButtonCallback {
 private:
 	uvc_device_handle_t *mDeviceHandle;
+	UVCEventQueue *mEventQueue;
  	pthread_mutex_t button_mutex;
  	jobject mButtonCallbackObj;
  	Fields_ibuttoncallback ibuttoncallback_fields;
  	void notifyButtonCallback(JNIEnv *env, int button, int state);
+ 	static void dispatch_button(void *target, JNIEnv *env, const uvc_event_t *event, jobject buf);
  	static void uvc_button_callback(int button, int state, void *user_ptr);
 public:
-	UVCButtonCallback(uvc_device_handle_t *devh);
+	UVCButtonCallback(uvc_device_handle_t *devh, UVCEventQueue *queue);
 	~UVCButtonCallback();
 
 	int setCallback(JNIEnv *env, jobject button_callback_obj);
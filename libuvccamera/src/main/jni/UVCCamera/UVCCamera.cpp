@@ -62,11 +62,20 @@ UVCCamera::UVCCamera()
 	mDeviceHandle(NULL),
 	mStatusCallback(NULL),
 	mButtonCallback(NULL),
+	mEventQueue(NULL),
 	mPreview(NULL),
 	mCtrlSupports(0),
-	mPUSupports(0) {
+	mPUSupports(0),
+	mValueCacheEnabled(true),
+	mHasStatusEndpoint(false),
+	mValueCacheGeneration(0) {
 
 	ENTER();
+	for (int i = 0; i < THREAD_TYPE_COUNT; i++) {
+		mThreadConfig[i].policy = -1;	// keep default
+		mThreadConfig[i].priority = 0;
+		mThreadConfig[i].affinity_mask = 0;
+	}
 	clearCameraParams();
 	EXIT();
 }
@@ -128,8 +137,59 @@ void UVCCamera::clearCameraParams() {
 	mMultiplierLimit.min = mMultiplierLimit.max = mMultiplierLimit.def = 0;
 	mAnalogVideoStandard.min = mAnalogVideoStandard.max = mAnalogVideoStandard.def = 0;
 	mAnalogVideoLockState.min = mAnalogVideoLockState.max = mAnalogVideoLockState.def = 0;
+	mHasStatusEndpoint = false;
+	invalidateValueCache(-1, -1);
+	for (int i = 0; i < NUM_CACHED_CTRLS; i++) {
+		(this->*CACHED_CTRLS[i].value).cacheable = 0;
+	}
 }
 
+/**
+ * getCtrlLimits/setCtrlLimitsで読み書きするコントロール
+ * キャッシュのレイアウトになるので順番を変えないこと(追加するときは最後に)
+ */
+control_value_t UVCCamera::* const UVCCamera::CTRL_VALUES[] = {
+	&UVCCamera::mScanningMode,
+	&UVCCamera::mExposureMode,
+	&UVCCamera::mExposurePriority,
+	&UVCCamera::mExposureAbs,
+	&UVCCamera::mAutoFocus,
+	&UVCCamera::mAutoWhiteBlance,
+	&UVCCamera::mAutoWhiteBlanceCompo,
+	&UVCCamera::mWhiteBlance,
+	&UVCCamera::mWhiteBlanceCompo,
+	&UVCCamera::mBacklightComp,
+	&UVCCamera::mBrightness,
+	&UVCCamera::mContrast,
+	&UVCCamera::mAutoContrast,
+	&UVCCamera::mSharpness,
+	&UVCCamera::mGain,
+	&UVCCamera::mGamma,
+	&UVCCamera::mSaturation,
+	&UVCCamera::mHue,
+	&UVCCamera::mAutoHue,
+	&UVCCamera::mZoom,
+	&UVCCamera::mZoomRel,
+	&UVCCamera::mFocus,
+	&UVCCamera::mFocusRel,
+	&UVCCamera::mFocusSimple,
+	&UVCCamera::mIris,
+	&UVCCamera::mIrisRel,
+	&UVCCamera::mPan,
+	&UVCCamera::mTilt,
+	&UVCCamera::mRoll,
+	&UVCCamera::mPanRel,
+	&UVCCamera::mTiltRel,
+	&UVCCamera::mRollRel,
+	&UVCCamera::mPrivacy,
+	&UVCCamera::mPowerlineFrequency,
+	&UVCCamera::mMultiplier,
+	&UVCCamera::mMultiplierLimit,
+	&UVCCamera::mAnalogVideoStandard,
+	&UVCCamera::mAnalogVideoLockState,
+};
+const int UVCCamera::NUM_CTRL_VALUES = NUM_ARRAY_ELEMENTS(UVCCamera::CTRL_VALUES);
+
 //======================================================================
 /**
  * カメラへ接続する
@@ -148,6 +208,9 @@ int UVCCamera::connect(int vid, int pid, int fd, int busnum, int devaddr, const
 				LOGD("failed to init libuvc");
 				RETURN(result, int);
 			}
+			// USBイベントスレッドはuvc_openで生成されるのでここで設定しておく
+			uvc_set_thread_config(mContext, UVC_THREAD_EVENT, &mThreadConfig[THREAD_USB_EVENT]);
+			uvc_set_thread_config(mContext, UVC_THREAD_CALLBACK, &mThreadConfig[THREAD_STREAM_CALLBACK]);
 		}
 		// カメラ機能フラグをクリア
 		clearCameraParams();
@@ -164,9 +227,16 @@ int UVCCamera::connect(int vid, int pid, int fd, int busnum, int devaddr, const
 				uvc_print_diag(mDeviceHandle, stderr);
 #endif
 				mFd = fd;
-				mStatusCallback = new UVCStatusCallback(mDeviceHandle);
-				mButtonCallback = new UVCButtonCallback(mDeviceHandle);
+				mEventQueue = new UVCEventQueue();
+				mEventQueue->start();
+				mStatusCallback = new UVCStatusCallback(mDeviceHandle, mEventQueue);
+				// ステータス通知用のインターラプトエンドポイントがあればコントロール値をキャッシュできる
+				mHasStatusEndpoint = mDeviceHandle->status_xfer != NULL;
+				mStatusCallback->setListener(onStatusChanged, this);
+				mButtonCallback = new UVCButtonCallback(mDeviceHandle, mEventQueue);
 				mPreview = new UVCPreview(mDeviceHandle);
+				mPreview->setThreadConfig(THREAD_PREVIEW, mThreadConfig[THREAD_PREVIEW]);
+				mPreview->setThreadConfig(THREAD_CAPTURE, mThreadConfig[THREAD_CAPTURE]);
 			} else {
 				// open出来なかった時
 				LOGE("could not open camera:err=%d", result);
@@ -196,7 +266,15 @@ int UVCCamera::release() {
 		MARK("カメラがopenしていたら開放する");
 		// ステータスコールバックオブジェクトを破棄
 		SAFE_DELETE(mStatusCallback);
+		mHasStatusEndpoint = false;
 		SAFE_DELETE(mButtonCallback);
+		if (mEventQueue) {
+			uint64_t events, coalesced, dropped;
+			mEventQueue->getStats(&events, &coalesced, &dropped);
+			LOGD("events:total=%llu,coalesced=%llu,dropped=%llu",
+				(unsigned long long)events, (unsigned long long)coalesced, (unsigned long long)dropped);
+		}
+		SAFE_DELETE(mEventQueue);
 		// プレビューオブジェクトを破棄
 		SAFE_DELETE(mPreview);
 		// カメラをclose
@@ -246,6 +324,22 @@ char *UVCCamera::getSupportedSize() {
 	RETURN(NULL, char *);
 }
 
+/**
+ * フォーマット/フレームサイズ/フレームインターバル/静止画サイズをint配列として取得する
+ * JSON文字列を生成してJava側でパースするgetSupportedSizeの代わり
+ * @param length 配列の要素数
+ * @return 呼び出し元でfreeすること
+ */
+int *UVCCamera::getCapabilities(int *length) {
+	ENTER();
+	*length = 0;
+	if (mDeviceHandle) {
+		UVCDiags params;
+		RETURN(params.getCapabilities(mDeviceHandle, length), int *)
+	}
+	RETURN(NULL, int *);
+}
+
 int UVCCamera::setPreviewSize(int width, int height, int min_fps, int max_fps, int mode, float bandwidth) {
 	ENTER();
 	int result = EXIT_FAILURE;
@@ -255,6 +349,71 @@ int UVCCamera::setPreviewSize(int width, int height, int min_fps, int max_fps, i
 	RETURN(result, int);
 }
 
+/**
+ * fpsの範囲ではなくフレーム間隔を指定してプレビューサイズをセットする
+ * @param frame_interval [100ナノ秒単位], フレームディスクリプタに含まれる値
+ */
+int UVCCamera::setPreviewFrameInterval(int width, int height, uint32_t frame_interval, int mode, float bandwidth) {
+	ENTER();
+	int result = EXIT_FAILURE;
+	if (mPreview) {
+		result = mPreview->setPreviewFrameInterval(width, height, frame_interval, mode, bandwidth);
+	}
+	RETURN(result, int);
+}
+
+/**
+ * カメラへcommitしたストリームコントロールの値と実測フレームレートを取得する
+ * @param values STREAM_INFO_XXX
+ */
+int UVCCamera::getStreamInfo(int *values, const int num) {
+	ENTER();
+	int result = EXIT_FAILURE;
+	if (mPreview) {
+		result = mPreview->getStreamInfo(values, num);
+	}
+	RETURN(result, int);
+}
+
+/**
+ * このカメラが共有メモリアリーナから確保できるバイト数(フレーム+転送バッファ)の上限を設定する
+ * @param quota_bytes 0なら無制限
+ */
+int UVCCamera::setMemoryQuota(size_t quota_bytes) {
+	ENTER();
+	int result = EXIT_FAILURE;
+	if (mPreview) {
+		result = mPreview->setMemoryQuota(quota_bytes);
+	}
+	RETURN(result, int);
+}
+
+/**
+ * フレームプールの統計情報を取得する
+ * @param values FRAME_POOL_STATS_XXX
+ */
+int UVCCamera::getFramePoolStats(int64_t *values, const int num) {
+	ENTER();
+	int result = EXIT_FAILURE;
+	if (mPreview) {
+		result = mPreview->getFramePoolStats(values, num);
+	}
+	RETURN(result, int);
+}
+
+/**
+ * このカメラが共有メモリアリーナから確保しているバイト数等を取得する
+ * @param values ARENA_USAGE_XXX
+ */
+int UVCCamera::getMemoryUsage(int64_t *values, const int num) {
+	ENTER();
+	int result = EXIT_FAILURE;
+	if (mPreview) {
+		result = mPreview->getMemoryUsage(values, num);
+	}
+	RETURN(result, int);
+}
+
 int UVCCamera::setPreviewDisplay(ANativeWindow *preview_window) {
 	ENTER();
 	int result = EXIT_FAILURE;
@@ -273,6 +432,116 @@ int UVCCamera::setFrameCallback(JNIEnv *env, jobject frame_callback_obj, int pix
 	RETURN(result, int);
 }
 
+int UVCCamera::setEncodedFrameCallback(JNIEnv *env, jobject encoded_frame_callback_obj) {
+	ENTER();
+	int result = EXIT_FAILURE;
+	if (mPreview) {
+		result = mPreview->setEncodedFrameCallback(env, encoded_frame_callback_obj);
+	}
+	RETURN(result, int);
+}
+
+/**
+ * スレッドのスケジューリングパラメータを設定する
+ * スレッドが実行中なら直ちに適用し、次回スレッド生成時にも適用する
+ * @param thread_type THREAD_USB_EVENT, THREAD_STREAM_CALLBACK, THREAD_PREVIEW, THREAD_CAPTURE
+ * @param policy SCHED_OTHER, SCHED_FIFO, SCHED_RR, 負ならデフォルトのまま
+ * @param priority SCHED_OTHERならnice値, SCHED_FIFO/SCHED_RRならリアルタイム優先度
+ * @param affinity_mask 実行可能なCPUのビットマスク, 0ならデフォルトのまま
+ */
+int UVCCamera::setThreadConfig(int thread_type, int policy, int priority, uint64_t affinity_mask) {
+	ENTER();
+	int result = UVC_ERROR_INVALID_PARAM;
+	if (LIKELY((thread_type >= 0) && (thread_type < THREAD_TYPE_COUNT))) {
+		uvc_thread_config_t &config = mThreadConfig[thread_type];
+		config.policy = policy;
+		config.priority = priority;
+		config.affinity_mask = affinity_mask;
+		result = UVC_SUCCESS;
+		switch (thread_type) {
+		case THREAD_USB_EVENT:
+			if (mContext) {
+				result = uvc_set_thread_config(mContext, UVC_THREAD_EVENT, &config);
+			}
+			break;
+		case THREAD_STREAM_CALLBACK:
+			if (mContext) {
+				result = uvc_set_thread_config(mContext, UVC_THREAD_CALLBACK, &config);
+			}
+			break;
+		default:
+			if (mPreview) {
+				result = mPreview->setThreadConfig(thread_type, config);
+			}
+			break;
+		}
+	}
+	RETURN(result, int);
+}
+
+int UVCCamera::setStreamMode(int stream_mode) {
+	ENTER();
+	int result = EXIT_FAILURE;
+	if (mPreview) {
+		result = mPreview->setStreamMode(stream_mode);
+	}
+	RETURN(result, int);
+}
+
+int UVCCamera::getDeliveryLatency(int64_t *frames, int64_t *average_us, int64_t *max_us) {
+	ENTER();
+	int result = EXIT_FAILURE;
+	if (mPreview) {
+		result = mPreview->getDeliveryLatency(frames, average_us, max_us);
+	}
+	RETURN(result, int);
+}
+
+/**
+ * 静止画キャプチャ方式を取得する
+ * @return 0: 未対応, 1: 方式1(映像フレームを使う), 2: 方式2, 3: 方式3
+ */
+int UVCCamera::getStillCaptureMethod() {
+	ENTER();
+	int result = 0;
+	if (mDeviceHandle) {
+		result = uvc_get_still_capture_method(mDeviceHandle);
+	}
+	RETURN(result, int);
+}
+
+/**
+ * プレビュー中に静止画キャプチャ方式2/3でフル解像度のJPEGを取得する
+ * プレビューは中断しない
+ * @param data JPEGデータ, 呼び出し元でfreeすること
+ */
+int UVCCamera::captureStill(int width, int height, int timeout_ms, uint8_t **data, size_t *bytes) {
+	ENTER();
+	int result = EXIT_FAILURE;
+	if (mPreview) {
+		result = mPreview->captureStill(width, height, timeout_ms, data, bytes);
+	}
+	RETURN(result, int);
+}
+
+size_t UVCCamera::getSnapshotBufferSize() {
+	ENTER();
+	size_t result = 0;
+	if (mPreview) {
+		result = mPreview->getSnapshotBufferSize();
+	}
+	RETURN(result, size_t);
+}
+
+int UVCCamera::captureSnapshot(int quality, int timeout_ms, uint8_t *dst, size_t dst_bytes, size_t *bytes, int64_t *pts_us) {
+	ENTER();
+	int result = EXIT_FAILURE;
+	if (mPreview) {
+		result = mPreview->captureSnapshot(quality, timeout_ms, dst, dst_bytes, bytes, pts_us);
+	}
+	RETURN(result, int);
+}
+
 int UVCCamera::startPreview() {
 	ENTER();
 
@@ -291,6 +560,73 @@ int UVCCamera::stopPreview() {
 	RETURN(0, int);
 }
 
+/**
+ * USBのストリームとプレビュー/キャプチャスレッドを維持したままプレビューを一時停止する
+ * 一時停止中のフレームはlibuvcのコールバックで破棄する
+ */
+int UVCCamera::pausePreview() {
+	ENTER();
+	int result = EXIT_FAILURE;
+	if (LIKELY(mPreview)) {
+		result = mPreview->pausePreview();
+	}
+	RETURN(result, int);
+}
+
+/**
+ * 一時停止したプレビューを再開する
+ * アイドルタイムアウトでストリームが停止していれば再ネゴシエーションして開始し直す
+ */
+int UVCCamera::resumePreview() {
+	ENTER();
+	int result = EXIT_FAILURE;
+	if (LIKELY(mPreview)) {
+		result = mPreview->resumePreview();
+	}
+	RETURN(result, int);
+}
+
+/**
+ * 一時停止したままこの時間が経過するとストリームを停止する
+ * @param idle_timeout_ms 0ならresumePreview/stopPreviewまでストリームを維持する
+ */
+int UVCCamera::setIdleTimeout(int idle_timeout_ms) {
+	ENTER();
+	int result = EXIT_FAILURE;
+	if (LIKELY(mPreview)) {
+		result = mPreview->setIdleTimeout(idle_timeout_ms);
+	}
+	RETURN(result, int);
+}
+
+/**
+ * プレビュー中に解像度/フレームフォーマットを切り替える
+ * 現在のストリームを止める前に新しいストリームコントロールのネゴシエーション(probe)と
+ * フレームプールの確保を済ませて、停止/commit/開始を1回だけ行う
+ * @param fps 0以下なら現在のフレームレートの範囲のまま
+ */
+int UVCCamera::switchFormat(int width, int height, int mode, int fps) {
+	ENTER();
+	int result = EXIT_FAILURE;
+	if (LIKELY(mPreview)) {
+		result = mPreview->switchFormat(width, height, mode, fps);
+	}
+	RETURN(result, int);
+}
+
+/**
+ * 最後にswitchFormatした時に映像が途切れていた時間を取得する
+ * @return [マイクロ秒], 未計測なら-1
+ */
+int64_t UVCCamera::getLastSwitchGap() {
+	ENTER();
+	int64_t result = -1;
+	if (LIKELY(mPreview)) {
+		result = mPreview->getLastSwitchGap();
+	}
+	RETURN(result, int64_t);
+}
+
 int UVCCamera::setCaptureDisplay(ANativeWindow *capture_window) {
 	ENTER();
 	int result = EXIT_FAILURE;
@@ -302,6 +638,272 @@ int UVCCamera::setCaptureDisplay(ANativeWindow *capture_window) {
 
 //======================================================================
 // カメラのサポートしているコントロール機能を取得する
+/**
+ * 取得済みのコントロールの最小値・最大値・デフォルト値を取得する
+ * 未取得のコントロールは0になる
+ * @param values min, max, defの順でCTRL_VALUESの数x3個書き込む
+ * @param max_num valuesの要素数
+ * @return 書き込んだ要素数, valuesが小さすぎる時は負
+ */
+int UVCCamera::getCtrlLimits(int *values, const int max_num) {
+	ENTER();
+	if (UNLIKELY(max_num < NUM_CTRL_VALUES * 3)) {
+		RETURN(UVC_ERROR_INVALID_PARAM, int);
+	}
+	for (int i = 0; i < NUM_CTRL_VALUES; i++) {
+		const control_value_t &v = this->*CTRL_VALUES[i];
+		values[i * 3] = v.min;
+		values[i * 3 + 1] = v.max;
+		values[i * 3 + 2] = v.def;
+	}
+	RETURN(NUM_CTRL_VALUES * 3, int);
+}
+
+/**
+ * getCtrlLimitsで取得した値をセットする
+ * 最小値・最大値が0でなければ以降のupdateXXXLimitではカメラへ問い合わせない
+ * @param num valuesの要素数, CTRL_VALUESの数x3でないとエラー
+ */
+int UVCCamera::setCtrlLimits(const int *values, const int num) {
+	ENTER();
+	if (UNLIKELY(!mDeviceHandle || (num != NUM_CTRL_VALUES * 3))) {
+		RETURN(UVC_ERROR_INVALID_PARAM, int);
+	}
+	for (int i = 0; i < NUM_CTRL_VALUES; i++) {
+		control_value_t &v = this->*CTRL_VALUES[i];
+		v.min = values[i * 3];
+		v.max = values[i * 3 + 1];
+		v.def = values[i * 3 + 2];
+	}
+	RETURN(0, int);
+}
+
+/**
+ * ステータス通知でキャッシュを無効にするコントロール
+ * CTRL_VALUESに含まれていても(pan/tiltのように)currentを別用途で使うものは入れない
+ * オートモードのon/off状態もここでキャッシュして, onまたは不明の間は対応するコントロールの値をキャッシュしない
+ */
+const UVCCamera::cached_ctrl_t UVCCamera::CACHED_CTRLS[] = {
+	{ UVC_STATUS_CLASS_CONTROL_CAMERA, UVC_CT_FOCUS_AUTO_CONTROL, &UVCCamera::mAutoFocus, NULL },
+	{ UVC_STATUS_CLASS_CONTROL_PROCESSING, UVC_PU_CONTRAST_AUTO_CONTROL, &UVCCamera::mAutoContrast, NULL },
+	{ UVC_STATUS_CLASS_CONTROL_PROCESSING, UVC_PU_HUE_AUTO_CONTROL, &UVCCamera::mAutoHue, NULL },
+	{ UVC_STATUS_CLASS_CONTROL_PROCESSING, UVC_PU_WHITE_BALANCE_TEMPERATURE_AUTO_CONTROL, &UVCCamera::mAutoWhiteBlance, NULL },
+	{ UVC_STATUS_CLASS_CONTROL_CAMERA, UVC_CT_FOCUS_ABSOLUTE_CONTROL, &UVCCamera::mFocus, &UVCCamera::mAutoFocus },
+	{ UVC_STATUS_CLASS_CONTROL_CAMERA, UVC_CT_IRIS_ABSOLUTE_CONTROL, &UVCCamera::mIris, NULL },
+	{ UVC_STATUS_CLASS_CONTROL_CAMERA, UVC_CT_ZOOM_ABSOLUTE_CONTROL, &UVCCamera::mZoom, NULL },
+	{ UVC_STATUS_CLASS_CONTROL_PROCESSING, UVC_PU_BACKLIGHT_COMPENSATION_CONTROL, &UVCCamera::mBacklightComp, NULL },
+	{ UVC_STATUS_CLASS_CONTROL_PROCESSING, UVC_PU_BRIGHTNESS_CONTROL, &UVCCamera::mBrightness, NULL },
+	{ UVC_STATUS_CLASS_CONTROL_PROCESSING, UVC_PU_CONTRAST_CONTROL, &UVCCamera::mContrast, &UVCCamera::mAutoContrast },
+	{ UVC_STATUS_CLASS_CONTROL_PROCESSING, UVC_PU_GAIN_CONTROL, &UVCCamera::mGain, NULL },
+	{ UVC_STATUS_CLASS_CONTROL_PROCESSING, UVC_PU_HUE_CONTROL, &UVCCamera::mHue, &UVCCamera::mAutoHue },
+	{ UVC_STATUS_CLASS_CONTROL_PROCESSING, UVC_PU_SATURATION_CONTROL, &UVCCamera::mSaturation, NULL },
+	{ UVC_STATUS_CLASS_CONTROL_PROCESSING, UVC_PU_SHARPNESS_CONTROL, &UVCCamera::mSharpness, NULL },
+	{ UVC_STATUS_CLASS_CONTROL_PROCESSING, UVC_PU_GAMMA_CONTROL, &UVCCamera::mGamma, NULL },
+	{ UVC_STATUS_CLASS_CONTROL_PROCESSING, UVC_PU_WHITE_BALANCE_TEMPERATURE_CONTROL, &UVCCamera::mWhiteBlance, &UVCCamera::mAutoWhiteBlance },
+};
+const int UVCCamera::NUM_CACHED_CTRLS = NUM_ARRAY_ELEMENTS(UVCCamera::CACHED_CTRLS);
+
+/**
+ * コントロール値のキャッシュを無効にする
+ * @param status_class UVC_STATUS_CLASS_CONTROL_CAMERA/UVC_STATUS_CLASS_CONTROL_PROCESSING, それ以外なら全て無効にする
+ * @param selector コントロールセレクタ, 該当するものが無ければ全て無効にする
+ */
+void UVCCamera::invalidateValueCache(int status_class, int selector) {
+	// 無効化の前に読み込んだ値をキャッシュしないように世代を進める
+	mValueCacheGeneration++;
+	for (int i = 0; i < NUM_CACHED_CTRLS; i++) {
+		if ((CACHED_CTRLS[i].status_class == status_class) && (CACHED_CTRLS[i].selector == selector)) {
+			(this->*CACHED_CTRLS[i].value).cached = 0;
+			return;
+		}
+	}
+	for (int i = 0; i < NUM_CACHED_CTRLS; i++) {
+		(this->*CACHED_CTRLS[i].value).cached = 0;
+	}
+}
+
+/**
+ * ステータス通知のリスナー(libusbのイベントスレッドから呼ばれる)
+ * 値の変化だけでなく情報/エラーの変化でも該当するコントロールのキャッシュを無効にする
+ */
+/*static*/
+void UVCCamera::onStatusChanged(void *user_ptr, uvc_status_class status_class, int selector, uvc_status_attribute status_attribute) {
+	UVCCamera *camera = reinterpret_cast<UVCCamera *>(user_ptr);
+	LOGV("onStatusChanged:class=%d,selector=%d,attribute=%d", status_class, selector, status_attribute);
+	camera->invalidateValueCache(status_class, selector);
+}
+
+/**
+ * コントロール値のキャッシュを使うかどうか
+ * ステータス通知が信頼できない機器では無効にする
+ * ステータス通知用のエンドポイントが無い機器では有効にしてもキャッシュしない
+ */
+int UVCCamera::setValueCacheEnabled(bool enabled) {
+	ENTER();
+	mValueCacheEnabled = enabled;
+	invalidateValueCache(-1, -1);
+	RETURN(0, int);
+}
+
+bool UVCCamera::isValueCacheEnabled() {
+	ENTER();
+	RETURN(isValueCacheActive(), bool);
+}
+
+// GET_INFOの結果(UVC 4.1.2 Table 4-3)
+#define CTRL_INFO_AUTO_UPDATE 0x08
+#define CTRL_INFO_ASYNCHRONOUS 0x10
+
+/**
+ * GET_INFOでコントロールの能力を取得する
+ * @param status_class UVC_STATUS_CLASS_CONTROL_CAMERA/UVC_STATUS_CLASS_CONTROL_PROCESSING
+ * @param selector コントロールセレクタ
+ */
+static int get_ctrl_info(uvc_device_handle_t *devh, int status_class, int selector, uint8_t *info) {
+	uint16_t request;
+	if (status_class == UVC_STATUS_CLASS_CONTROL_CAMERA) {
+		if (UNLIKELY(!devh->info->ctrl_if.input_term_descs)) return UVC_ERROR_NOT_SUPPORTED;
+		request = devh->info->ctrl_if.input_term_descs->request;
+	} else {
+		if (UNLIKELY(!devh->info->ctrl_if.processing_unit_descs)) return UVC_ERROR_NOT_SUPPORTED;
+		request = devh->info->ctrl_if.processing_unit_descs->request;
+	}
+	const int ret = libusb_control_transfer(devh->usb_devh, 0xa1, UVC_GET_INFO,
+		selector << 8, request, info, 1, 0);
+	return ret == 1 ? UVC_SUCCESS : (ret < 0 ? ret : UVC_ERROR_IO);
+}
+
+/**
+ * コントロールの現在値をキャッシュから返して良いかどうか
+ * GET_INFOでAutoUpdate/Asynchronousのコントロールはカメラ自身が値を変えるのでキャッシュしない
+ * 対応するオートモードがonまたは状態が不明な間もキャッシュしない
+ */
+bool UVCCamera::isCacheableValue(control_value_t &values) {
+	for (int i = 0; i < NUM_CACHED_CTRLS; i++) {
+		const cached_ctrl_t &ctrl = CACHED_CTRLS[i];
+		if (&(this->*ctrl.value) == &values) {
+			if (UNLIKELY(!values.cacheable)) {
+				uint8_t info;
+				values.cacheable = !get_ctrl_info(mDeviceHandle, ctrl.status_class, ctrl.selector, &info)
+					&& !(info & (CTRL_INFO_AUTO_UPDATE | CTRL_INFO_ASYNCHRONOUS)) ? 1 : -1;
+			}
+			if (values.cacheable < 0) {
+				return false;
+			}
+			if (ctrl.auto_mode) {
+				const control_value_t &auto_mode = this->*ctrl.auto_mode;
+				return auto_mode.cached && !auto_mode.current;
+			}
+			return true;
+		}
+	}
+	return false;
+}
+
+/**
+ * オートモードのon/off状態を記録する
+ * 状態が変わった(または不明だった)時は対応するコントロールのキャッシュを無効にする
+ * @param value 0:off, 1:on, 負:状態不明(設定に失敗した時など)
+ */
+void UVCCamera::updateAutoMode(control_value_t &auto_mode, const int gen, const int value) {
+	if (!auto_mode.cached || (auto_mode.current != value)) {
+		for (int i = 0; i < NUM_CACHED_CTRLS; i++) {
+			if (CACHED_CTRLS[i].auto_mode && (&(this->*CACHED_CTRLS[i].auto_mode) == &auto_mode)) {
+				(this->*CACHED_CTRLS[i].value).cached = 0;
+			}
+		}
+	}
+	if ((value >= 0) && isValueCacheActive() && (gen == mValueCacheGeneration)) {
+		auto_mode.current = value;
+		auto_mode.cached = 1;
+	} else {
+		auto_mode.cached = 0;
+	}
+}
+
+/**
+ * 複数のコントロールの設定/取得をまとめて実行する
+ * JNIの呼び出しが1回で済み, コントロール転送を間を空けずに連続して実行できる
+ * @param ops (コントロールID, BATCH_OP_GET/BATCH_OP_SET, 設定値)の組をnum個
+ * @param num 操作の数
+ * @param results (結果, 値)の組をnum個書き込む, 取得時の値は現在値, 設定時は設定値
+ * @return 実行した操作の数, 負ならエラー
+ */
+int UVCCamera::executeControlBatch(const int *ops, const int num, int *results) {
+	ENTER();
+	if (UNLIKELY(!mDeviceHandle)) {
+		RETURN(UVC_ERROR_INVALID_DEVICE, int);
+	}
+	if (UNLIKELY(!ops || !results || (num < 0))) {
+		RETURN(UVC_ERROR_INVALID_PARAM, int);
+	}
+#define BATCH_CTRL(ID, SETTER, GETTER) \
+	case ID: \
+		if (is_set) status = SETTER(value); \
+		else value = GETTER(); \
+		break;
+#define BATCH_CTRL_BOOL(ID, SETTER, GETTER) \
+	case ID: \
+		if (is_set) status = SETTER(value != 0); \
+		else value = GETTER() ? 1 : 0; \
+		break;
+
+	for (int i = 0; i < num; i++) {
+		const int *op = &ops[i * BATCH_OP_SIZE];
+		const bool is_set = op[1] == BATCH_OP_SET;
+		int value = op[2];
+		int status = UVC_SUCCESS;
+		switch (op[0]) {
+		BATCH_CTRL(BATCH_CTRL_SCANNING_MODE, setScanningMode, getScanningMode)
+		BATCH_CTRL(BATCH_CTRL_EXPOSURE_MODE, setExposureMode, getExposureMode)
+		BATCH_CTRL(BATCH_CTRL_EXPOSURE_PRIORITY, setExposurePriority, getExposurePriority)
+		BATCH_CTRL(BATCH_CTRL_EXPOSURE, setExposure, getExposure)
+		BATCH_CTRL(BATCH_CTRL_EXPOSURE_REL, setExposureRel, getExposureRel)
+		BATCH_CTRL_BOOL(BATCH_CTRL_AUTO_FOCUS, setAutoFocus, getAutoFocus)
+		BATCH_CTRL(BATCH_CTRL_FOCUS, setFocus, getFocus)
+		BATCH_CTRL(BATCH_CTRL_FOCUS_REL, setFocusRel, getFocusRel)
+		BATCH_CTRL(BATCH_CTRL_IRIS, setIris, getIris)
+		BATCH_CTRL(BATCH_CTRL_IRIS_REL, setIrisRel, getIrisRel)
+		BATCH_CTRL(BATCH_CTRL_PAN, setPan, getPan)
+		BATCH_CTRL(BATCH_CTRL_TILT, setTilt, getTilt)
+		BATCH_CTRL(BATCH_CTRL_ROLL, setRoll, getRoll)
+		BATCH_CTRL(BATCH_CTRL_PAN_REL, setPanRel, getPanRel)
+		BATCH_CTRL(BATCH_CTRL_TILT_REL, setTiltRel, getTiltRel)
+		BATCH_CTRL(BATCH_CTRL_ROLL_REL, setRollRel, getRollRel)
+		BATCH_CTRL(BATCH_CTRL_PRIVACY, setPrivacy, getPrivacy)
+		BATCH_CTRL_BOOL(BATCH_CTRL_AUTO_WHITE_BLANCE, setAutoWhiteBlance, getAutoWhiteBlance)
+		BATCH_CTRL_BOOL(BATCH_CTRL_AUTO_WHITE_BLANCE_COMPO, setAutoWhiteBlanceCompo, getAutoWhiteBlanceCompo)
+		BATCH_CTRL(BATCH_CTRL_WHITE_BLANCE, setWhiteBlance, getWhiteBlance)
+		BATCH_CTRL(BATCH_CTRL_WHITE_BLANCE_COMPO, setWhiteBlanceCompo, getWhiteBlanceCompo)
+		BATCH_CTRL(BATCH_CTRL_BACKLIGHT_COMP, setBacklightComp, getBacklightComp)
+		BATCH_CTRL(BATCH_CTRL_BRIGHTNESS, setBrightness, getBrightness)
+		BATCH_CTRL(BATCH_CTRL_CONTRAST, setContrast, getContrast)
+		BATCH_CTRL_BOOL(BATCH_CTRL_AUTO_CONTRAST, setAutoContrast, getAutoContrast)
+		BATCH_CTRL(BATCH_CTRL_SHARPNESS, setSharpness, getSharpness)
+		BATCH_CTRL(BATCH_CTRL_GAIN, setGain, getGain)
+		BATCH_CTRL(BATCH_CTRL_GAMMA, setGamma, getGamma)
+		BATCH_CTRL(BATCH_CTRL_SATURATION, setSaturation, getSaturation)
+		BATCH_CTRL(BATCH_CTRL_HUE, setHue, getHue)
+		BATCH_CTRL_BOOL(BATCH_CTRL_AUTO_HUE, setAutoHue, getAutoHue)
+		BATCH_CTRL(BATCH_CTRL_POWERLINE_FREQUENCY, setPowerlineFrequency, getPowerlineFrequency)
+		BATCH_CTRL(BATCH_CTRL_ZOOM, setZoom, getZoom)
+		BATCH_CTRL(BATCH_CTRL_ZOOM_REL, setZoomRel, getZoomRel)
+		BATCH_CTRL(BATCH_CTRL_DIGITAL_MULTIPLIER, setDigitalMultiplier, getDigitalMultiplier)
+		BATCH_CTRL(BATCH_CTRL_DIGITAL_MULTIPLIER_LIMIT, setDigitalMultiplierLimit, getDigitalMultiplierLimit)
+		BATCH_CTRL(BATCH_CTRL_ANALOG_VIDEO_STANDARD, setAnalogVideoStandard, getAnalogVideoStandard)
+		BATCH_CTRL(BATCH_CTRL_ANALOG_VIDEO_LOCK_STATE, setAnalogVideoLockState, getAnalogVideoLockState)
+		default:
+			status = UVC_ERROR_NOT_SUPPORTED;
+			break;
+		}
+		results[i * 2] = status;
+		results[i * 2 + 1] = value;
+	}
+#undef BATCH_CTRL
+#undef BATCH_CTRL_BOOL
+	RETURN(num, int);
+}
+
 int UVCCamera::getCtrlSupports(uint64_t *supports) {
 	ENTER();
 	uvc_error_t ret = UVC_ERROR_NOT_FOUND;
@@ -676,6 +1278,20 @@ static uvc_error_t update_ctrl_values(uvc_device_handle_t *devh, control_value_t
 		MARK("failed to UPDATE_CTRL_VALUES"); \
 	} \
 
+// キャッシュしている現在値があればカメラへ問い合わせずにそれを返す
+#define GET_CACHED_VALUE(VAL) \
+	const int gen = mValueCacheGeneration; \
+	if (isValueCacheActive() && VAL.cached && isCacheableValue(VAL)) { \
+		RETURN(VAL.current, int); \
+	}
+
+// 取得/設定した現在値をキャッシュする, 途中でステータス通知があった時はキャッシュしない
+#define PUT_CACHED_VALUE(VAL, GEN, V) \
+	if (isValueCacheActive() && (GEN == mValueCacheGeneration)) { \
+		VAL.current = V; \
+		VAL.cached = 1; \
+	}
+
 /**
  * カメラコントロール設定の下請け
  */
@@ -686,7 +1302,12 @@ int UVCCamera::internalSetCtrlValue(control_value_t &values, int8_t value,
 		value = value < values.min
 			? values.min
 			: (value > values.max ? values.max : value);
-		set_func(mDeviceHandle, value);
+		const int gen = mValueCacheGeneration;
+		values.cached = 0;
+		ret = set_func(mDeviceHandle, value);
+		if (LIKELY(!ret)) {
+			PUT_CACHED_VALUE(values, gen, value);
+		}
 	}
 	RETURN(ret, int);
 }
@@ -698,7 +1319,12 @@ int UVCCamera::internalSetCtrlValue(control_value_t &values, uint8_t value,
 		value = value < values.min
 			? values.min
 			: (value > values.max ? values.max : value);
-		set_func(mDeviceHandle, value);
+		const int gen = mValueCacheGeneration;
+		values.cached = 0;
+		ret = set_func(mDeviceHandle, value);
+		if (LIKELY(!ret)) {
+			PUT_CACHED_VALUE(values, gen, value);
+		}
 	}
 	RETURN(ret, int);
 }
@@ -775,7 +1401,12 @@ int UVCCamera::internalSetCtrlValue(control_value_t &values, int16_t value,
 		value = value < values.min
 			? values.min
 			: (value > values.max ? values.max : value);
-		set_func(mDeviceHandle, value);
+		const int gen = mValueCacheGeneration;
+		values.cached = 0;
+		ret = set_func(mDeviceHandle, value);
+		if (LIKELY(!ret)) {
+			PUT_CACHED_VALUE(values, gen, value);
+		}
 	}
 	RETURN(ret, int);
 }
@@ -790,7 +1421,12 @@ int UVCCamera::internalSetCtrlValue(control_value_t &values, uint16_t value,
 		value = value < values.min
 			? values.min
 			: (value > values.max ? values.max : value);
-		set_func(mDeviceHandle, value);
+		const int gen = mValueCacheGeneration;
+		values.cached = 0;
+		ret = set_func(mDeviceHandle, value);
+		if (LIKELY(!ret)) {
+			PUT_CACHED_VALUE(values, gen, value);
+		}
 	}
 	RETURN(ret, int);
 }
@@ -805,7 +1441,12 @@ int UVCCamera::internalSetCtrlValue(control_value_t &values, int32_t value,
 		value = value < values.min
 			? values.min
 			: (value > values.max ? values.max : value);
-		set_func(mDeviceHandle, value);
+		const int gen = mValueCacheGeneration;
+		values.cached = 0;
+		ret = set_func(mDeviceHandle, value);
+		if (LIKELY(!ret)) {
+			PUT_CACHED_VALUE(values, gen, value);
+		}
 	}
 	RETURN(ret, int);
 }
@@ -820,7 +1461,12 @@ int UVCCamera::internalSetCtrlValue(control_value_t &values, uint32_t value,
 		value = value < values.min
 			? values.min
 			: (value > values.max ? values.max : value);
-		set_func(mDeviceHandle, value);
+		const int gen = mValueCacheGeneration;
+		values.cached = 0;
+		ret = set_func(mDeviceHandle, value);
+		if (LIKELY(!ret)) {
+			PUT_CACHED_VALUE(values, gen, value);
+		}
 	}
 	RETURN(ret, int);
 }
@@ -1032,7 +1678,14 @@ int UVCCamera::setAutoFocus(bool autoFocus) {
 
 	int r = UVC_ERROR_ACCESS;
 	if LIKELY((mDeviceHandle) && (mCtrlSupports & CTRL_FOCUS_AUTO)) {
+		const int gen = mValueCacheGeneration;
+		mAutoFocus.cached = 0;
 		r = uvc_set_focus_auto(mDeviceHandle, autoFocus);
+		if (LIKELY(!r)) {
+			updateAutoMode(mAutoFocus, gen, autoFocus ? 1 : 0);
+		} else {
+			updateAutoMode(mAutoFocus, gen, -1);
+		}
 	}
 	RETURN(r, int);
 }
@@ -1042,10 +1695,13 @@ bool UVCCamera::getAutoFocus() {
 	ENTER();
 	int r = UVC_ERROR_ACCESS;
 	if LIKELY((mDeviceHandle) && (mCtrlSupports & CTRL_FOCUS_AUTO)) {
+		const int gen = mValueCacheGeneration;
 		uint8_t autoFocus;
 		r = uvc_get_focus_auto(mDeviceHandle, &autoFocus, UVC_GET_CUR);
-		if (LIKELY(!r))
+		if (LIKELY(!r)) {
 			r = autoFocus;
+			updateAutoMode(mAutoFocus, gen, autoFocus ? 1 : 0);
+		}
 	}
 	RETURN(r, int);
 }
@@ -1075,12 +1731,15 @@ int UVCCamera::setFocus(int focus) {
 int UVCCamera::getFocus() {
 	ENTER();
 	if (mCtrlSupports & CTRL_FOCUS_ABS) {
+		GET_CACHED_VALUE(mFocus);
 		int ret = update_ctrl_values(mDeviceHandle, mFocus, uvc_get_focus_abs);
 		if (LIKELY(!ret)) {	// 正常に最小・最大値を取得出来た時
 			int16_t value;
 			ret = uvc_get_focus_abs(mDeviceHandle, &value, UVC_GET_CUR);
-			if (LIKELY(!ret))
+			if (LIKELY(!ret)) {
+				PUT_CACHED_VALUE(mFocus, gen, value);
 				return value;
+			}
 		}
 	}
 	RETURN(0, int);
@@ -1186,12 +1845,15 @@ int UVCCamera::setIris(int iris) {
 int UVCCamera::getIris() {
 	ENTER();
 	if (mCtrlSupports & CTRL_IRIS_ABS) {
+		GET_CACHED_VALUE(mIris);
 		int ret = update_ctrl_values(mDeviceHandle, mIris, uvc_get_iris_abs);
 		if (LIKELY(!ret)) {	// 正常に最小・最大値を取得出来た時
 			uint16_t value;
 			ret = uvc_get_iris_abs(mDeviceHandle, &value, UVC_GET_CUR);
-			if (LIKELY(!ret))
+			if (LIKELY(!ret)) {
+				PUT_CACHED_VALUE(mIris, gen, value);
 				return value;
+			}
 		}
 	}
 	RETURN(0, int);
@@ -1537,12 +2199,15 @@ int UVCCamera::setBacklightComp(int backlight) {
 int UVCCamera::getBacklightComp() {
 	ENTER();
 	if (mPUSupports & PU_BACKLIGHT) {
+		GET_CACHED_VALUE(mBacklightComp);
 		int ret = update_ctrl_values(mDeviceHandle, mBacklightComp, uvc_get_backlight_compensation);
 		if (LIKELY(!ret)) {	// 正常に最小・最大値を取得出来た時
 			int16_t value;
 			ret = uvc_get_backlight_compensation(mDeviceHandle, &value, UVC_GET_CUR);
-			if (LIKELY(!ret))
+			if (LIKELY(!ret)) {
+				PUT_CACHED_VALUE(mBacklightComp, gen, value);
 				return value;
+			}
 		}
 	}
 	RETURN(0, int);
@@ -1573,12 +2238,15 @@ int UVCCamera::setBrightness(int brightness) {
 int UVCCamera::getBrightness() {
 	ENTER();
 	if (mPUSupports & PU_BRIGHTNESS) {
+		GET_CACHED_VALUE(mBrightness);
 		int ret = update_ctrl_values(mDeviceHandle, mBrightness, uvc_get_brightness);
 		if (LIKELY(!ret)) {	// 正常に最小・最大値を取得出来た時
 			int16_t value;
 			ret = uvc_get_brightness(mDeviceHandle, &value, UVC_GET_CUR);
-			if (LIKELY(!ret))
+			if (LIKELY(!ret)) {
+				PUT_CACHED_VALUE(mBrightness, gen, value);
 				return value;
+			}
 		}
 	}
 	RETURN(0, int);
@@ -1609,12 +2277,15 @@ int UVCCamera::setContrast(uint16_t contrast) {
 int UVCCamera::getContrast() {
 	ENTER();
 	if (mPUSupports & PU_CONTRAST) {
+		GET_CACHED_VALUE(mContrast);
 		int ret = update_ctrl_values(mDeviceHandle, mContrast, uvc_get_contrast);
 		if (LIKELY(!ret)) {	// 正常に最小・最大値を取得出来た時
 			uint16_t value;
 			ret = uvc_get_contrast(mDeviceHandle, &value, UVC_GET_CUR);
-			if (LIKELY(!ret))
+			if (LIKELY(!ret)) {
+				PUT_CACHED_VALUE(mContrast, gen, value);
 				return value;
+			}
 		}
 	}
 	RETURN(0, int);
@@ -1637,7 +2308,14 @@ int UVCCamera::setAutoContrast(bool autoContrast) {
 
 	int r = UVC_ERROR_ACCESS;
 	if LIKELY((mDeviceHandle) && (mPUSupports & PU_CONTRAST_AUTO)) {
+		const int gen = mValueCacheGeneration;
+		mAutoContrast.cached = 0;
 		r = uvc_set_contrast_auto(mDeviceHandle, autoContrast);
+		if (LIKELY(!r)) {
+			updateAutoMode(mAutoContrast, gen, autoContrast ? 1 : 0);
+		} else {
+			updateAutoMode(mAutoContrast, gen, -1);
+		}
 	}
 	RETURN(r, int);
 }
@@ -1647,10 +2325,13 @@ bool UVCCamera::getAutoContrast() {
 	ENTER();
 	int r = UVC_ERROR_ACCESS;
 	if LIKELY((mDeviceHandle) && (mPUSupports & PU_CONTRAST_AUTO)) {
+		const int gen = mValueCacheGeneration;
 		uint8_t autoContrast;
 		r = uvc_get_contrast_auto(mDeviceHandle, &autoContrast, UVC_GET_CUR);
-		if (LIKELY(!r))
+		if (LIKELY(!r)) {
 			r = autoContrast;
+			updateAutoMode(mAutoContrast, gen, autoContrast ? 1 : 0);
+		}
 	}
 	RETURN(r, int);
 }
@@ -1680,12 +2361,15 @@ int UVCCamera::setSharpness(int sharpness) {
 int UVCCamera::getSharpness() {
 	ENTER();
 	if (mPUSupports & PU_SHARPNESS) {
+		GET_CACHED_VALUE(mSharpness);
 		int ret = update_ctrl_values(mDeviceHandle, mSharpness, uvc_get_sharpness);
 		if (LIKELY(!ret)) {	// 正常に最小・最大値を取得出来た時
 			uint16_t value;
 			ret = uvc_get_sharpness(mDeviceHandle, &value, UVC_GET_CUR);
-			if (LIKELY(!ret))
+			if (LIKELY(!ret)) {
+				PUT_CACHED_VALUE(mSharpness, gen, value);
 				return value;
+			}
 		}
 	}
 	RETURN(0, int);
@@ -1717,13 +2401,16 @@ int UVCCamera::setGain(int gain) {
 int UVCCamera::getGain() {
 	ENTER();
 	if (mPUSupports & PU_GAIN) {
+		GET_CACHED_VALUE(mGain);
 		int ret = update_ctrl_values(mDeviceHandle, mGain, uvc_get_gain);
 		if (LIKELY(!ret)) {	// 正常に最小・最大値を取得出来た時
 			uint16_t value;
 			ret = uvc_get_gain(mDeviceHandle, &value, UVC_GET_CUR);
 //			LOGI("gain:%d", value);
-			if (LIKELY(!ret))
+			if (LIKELY(!ret)) {
+				PUT_CACHED_VALUE(mGain, gen, value);
 				return value;
+			}
 		}
 	}
 	RETURN(0, int);
@@ -1745,7 +2432,14 @@ int UVCCamera::setAutoWhiteBlance(bool autoWhiteBlance) {
 	ENTER();
 	int r = UVC_ERROR_ACCESS;
 	if LIKELY((mDeviceHandle) && (mPUSupports & PU_WB_TEMP_AUTO)) {
+		const int gen = mValueCacheGeneration;
+		mAutoWhiteBlance.cached = 0;
 		r = uvc_set_white_balance_temperature_auto(mDeviceHandle, autoWhiteBlance);
+		if (LIKELY(!r)) {
+			updateAutoMode(mAutoWhiteBlance, gen, autoWhiteBlance ? 1 : 0);
+		} else {
+			updateAutoMode(mAutoWhiteBlance, gen, -1);
+		}
 	}
 	RETURN(r, int);
 }
@@ -1755,10 +2449,13 @@ bool UVCCamera::getAutoWhiteBlance() {
 	ENTER();
 	int r = UVC_ERROR_ACCESS;
 	if LIKELY((mDeviceHandle) && (mPUSupports & PU_WB_TEMP_AUTO)) {
+		const int gen = mValueCacheGeneration;
 		uint8_t autoWhiteBlance;
 		r = uvc_get_white_balance_temperature_auto(mDeviceHandle, &autoWhiteBlance, UVC_GET_CUR);
-		if (LIKELY(!r))
+		if (LIKELY(!r)) {
 			r = autoWhiteBlance;
+			updateAutoMode(mAutoWhiteBlance, gen, autoWhiteBlance ? 1 : 0);
+		}
 	}
 	RETURN(r, int);
 }
@@ -1823,12 +2520,15 @@ int UVCCamera::setWhiteBlance(int white_blance) {
 int UVCCamera::getWhiteBlance() {
 	ENTER();
 	if (mPUSupports & PU_WB_TEMP) {
+		GET_CACHED_VALUE(mWhiteBlance);
 		int ret = update_ctrl_values(mDeviceHandle, mWhiteBlance, uvc_get_white_balance_temperature);
 		if (LIKELY(!ret)) {	// 正常に最小・最大値を取得出来た時
 			uint16_t value;
 			ret = uvc_get_white_balance_temperature(mDeviceHandle, &value, UVC_GET_CUR);
-			if (LIKELY(!ret))
+			if (LIKELY(!ret)) {
+				PUT_CACHED_VALUE(mWhiteBlance, gen, value);
 				return value;
+			}
 		}
 	}
 	RETURN(0, int);
@@ -1897,13 +2597,16 @@ int UVCCamera::setGamma(int gamma) {
 int UVCCamera::getGamma() {
 	ENTER();
 	if (mPUSupports & PU_GAMMA) {
+		GET_CACHED_VALUE(mGamma);
 		int ret = update_ctrl_values(mDeviceHandle, mGamma, uvc_get_gamma);
 		if (LIKELY(!ret)) {	// 正常に最小・最大値を取得出来た時
 			uint16_t value;
 			ret = uvc_get_gamma(mDeviceHandle, &value, UVC_GET_CUR);
 //			LOGI("gamma:%d", ret);
-			if (LIKELY(!ret))
+			if (LIKELY(!ret)) {
+				PUT_CACHED_VALUE(mGamma, gen, value);
 				return value;
+			}
 		}
 	}
 	RETURN(0, int);
@@ -1934,12 +2637,15 @@ int UVCCamera::setSaturation(int saturation) {
 int UVCCamera::getSaturation() {
 	ENTER();
 	if (mPUSupports & PU_SATURATION) {
+		GET_CACHED_VALUE(mSaturation);
 		int ret = update_ctrl_values(mDeviceHandle, mSaturation, uvc_get_saturation);
 		if (LIKELY(!ret)) {	// 正常に最小・最大値を取得出来た時
 			uint16_t value;
 			ret = uvc_get_saturation(mDeviceHandle, &value, UVC_GET_CUR);
-			if (LIKELY(!ret))
+			if (LIKELY(!ret)) {
+				PUT_CACHED_VALUE(mSaturation, gen, value);
 				return value;
+			}
 		}
 	}
 	RETURN(0, int);
@@ -1970,12 +2676,15 @@ int UVCCamera::setHue(int hue) {
 int UVCCamera::getHue() {
 	ENTER();
 	if (mPUSupports & PU_HUE) {
+		GET_CACHED_VALUE(mHue);
 		int ret = update_ctrl_values(mDeviceHandle, mHue, uvc_get_hue);
 		if (LIKELY(!ret)) {	// 正常に最小・最大値を取得出来た時
 			int16_t value;
 			ret = uvc_get_hue(mDeviceHandle, &value, UVC_GET_CUR);
-			if (LIKELY(!ret))
+			if (LIKELY(!ret)) {
+				PUT_CACHED_VALUE(mHue, gen, value);
 				return value;
+			}
 		}
 	}
 	RETURN(0, int);
@@ -1998,7 +2707,14 @@ int UVCCamera::setAutoHue(bool autoHue) {
 
 	int r = UVC_ERROR_ACCESS;
 	if LIKELY((mDeviceHandle) && (mPUSupports & PU_HUE_AUTO)) {
+		const int gen = mValueCacheGeneration;
+		mAutoHue.cached = 0;
 		r = uvc_set_hue_auto(mDeviceHandle, autoHue);
+		if (LIKELY(!r)) {
+			updateAutoMode(mAutoHue, gen, autoHue ? 1 : 0);
+		} else {
+			updateAutoMode(mAutoHue, gen, -1);
+		}
 	}
 	RETURN(r, int);
 }
@@ -2008,10 +2724,13 @@ bool UVCCamera::getAutoHue() {
 	ENTER();
 	int r = UVC_ERROR_ACCESS;
 	if LIKELY((mDeviceHandle) && (mPUSupports & PU_HUE_AUTO)) {
+		const int gen = mValueCacheGeneration;
 		uint8_t autoHue;
 		r = uvc_get_hue_auto(mDeviceHandle, &autoHue, UVC_GET_CUR);
-		if (LIKELY(!r))
+		if (LIKELY(!r)) {
 			r = autoHue;
+			updateAutoMode(mAutoHue, gen, autoHue ? 1 : 0);
+		}
 	}
 	RETURN(r, int);
 }
@@ -2085,12 +2804,15 @@ int UVCCamera::setZoom(int zoom) {
 int UVCCamera::getZoom() {
 	ENTER();
 	if (mCtrlSupports & CTRL_ZOOM_ABS) {
+		GET_CACHED_VALUE(mZoom);
 		int ret = update_ctrl_values(mDeviceHandle, mZoom, uvc_get_zoom_abs);
 		if (LIKELY(!ret)) {	// 正常に最小・最大値を取得出来た時
 			uint16_t value;
 			ret = uvc_get_zoom_abs(mDeviceHandle, &value, UVC_GET_CUR);
-			if (LIKELY(!ret))
+			if (LIKELY(!ret)) {
+				PUT_CACHED_VALUE(mZoom, gen, value);
 				return value;
+			}
 		}
 	}
 	RETURN(0, int);
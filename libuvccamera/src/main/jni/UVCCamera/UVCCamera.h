@@ -77,12 +77,61 @@
 #define PU_AVIDEO_LOCK		0x020000	// D17: Analog Video Lock Status
 #define PU_CONTRAST_AUTO	0x040000	// D18: Contrast, Auto
 
+// executeControlBatchで使うコントロールID, Java側のControlBatch#CTRL_XXXと同じ値にすること
+enum batch_ctrl_id {
+	BATCH_CTRL_SCANNING_MODE = 0,
+	BATCH_CTRL_EXPOSURE_MODE,
+	BATCH_CTRL_EXPOSURE_PRIORITY,
+	BATCH_CTRL_EXPOSURE,
+	BATCH_CTRL_EXPOSURE_REL,
+	BATCH_CTRL_AUTO_FOCUS,
+	BATCH_CTRL_FOCUS,
+	BATCH_CTRL_FOCUS_REL,
+	BATCH_CTRL_IRIS,
+	BATCH_CTRL_IRIS_REL,
+	BATCH_CTRL_PAN,
+	BATCH_CTRL_TILT,
+	BATCH_CTRL_ROLL,
+	BATCH_CTRL_PAN_REL,
+	BATCH_CTRL_TILT_REL,
+	BATCH_CTRL_ROLL_REL,
+	BATCH_CTRL_PRIVACY,
+	BATCH_CTRL_AUTO_WHITE_BLANCE,
+	BATCH_CTRL_AUTO_WHITE_BLANCE_COMPO,
+	BATCH_CTRL_WHITE_BLANCE,
+	BATCH_CTRL_WHITE_BLANCE_COMPO,
+	BATCH_CTRL_BACKLIGHT_COMP,
+	BATCH_CTRL_BRIGHTNESS,
+	BATCH_CTRL_CONTRAST,
+	BATCH_CTRL_AUTO_CONTRAST,
+	BATCH_CTRL_SHARPNESS,
+	BATCH_CTRL_GAIN,
+	BATCH_CTRL_GAMMA,
+	BATCH_CTRL_SATURATION,
+	BATCH_CTRL_HUE,
+	BATCH_CTRL_AUTO_HUE,
+	BATCH_CTRL_POWERLINE_FREQUENCY,
+	BATCH_CTRL_ZOOM,
+	BATCH_CTRL_ZOOM_REL,
+	BATCH_CTRL_DIGITAL_MULTIPLIER,
+	BATCH_CTRL_DIGITAL_MULTIPLIER_LIMIT,
+	BATCH_CTRL_ANALOG_VIDEO_STANDARD,
+	BATCH_CTRL_ANALOG_VIDEO_LOCK_STATE,
+};
+
+// executeControlBatchの1操作あたりの要素数(コントロールID, 操作, 値)
+#define BATCH_OP_SIZE 3
+#define BATCH_OP_GET 0
+#define BATCH_OP_SET 1
+
 typedef struct control_value {
 	int res;	// unused
 	int min;
 	int max;
 	int def;
 	int current;
+	int cached;	// currentがカメラの現在値として有効かどうか(値キャッシュ)
+	int cacheable;	// 値キャッシュを使えるかどうか, 0:未確認, 1:使える, -1:使えない(GET_INFOでAutoUpdate/Asynchronous)
 } control_value_t;
 
 typedef uvc_error_t (*paramget_func_i8)(uvc_device_handle_t *devh, int8_t *value, enum uvc_req_code req_code);
@@ -115,8 +164,12 @@ class UVCCamera {
 	uvc_device_handle_t *mDeviceHandle;
 	UVCStatusCallback *mStatusCallback;
 	UVCButtonCallback *mButtonCallback;
+	// ステータス/ボタンイベントをJava側へ配信するキュー
+	UVCEventQueue *mEventQueue;
 	// プレビュー用
 	UVCPreview *mPreview;
+	// スレッドのスケジューリングパラメータ
+	uvc_thread_config_t mThreadConfig[THREAD_TYPE_COUNT];
 	uint64_t mCtrlSupports;
 	uint64_t mPUSupports;
 	control_value_t mScanningMode;
@@ -159,6 +212,28 @@ class UVCCamera {
 	control_value_t mAnalogVideoLockState;
 
 	void clearCameraParams();
+	// control values that are exported/imported with getCtrlLimits/setCtrlLimits
+	static control_value_t UVCCamera::* const CTRL_VALUES[];
+	static const int NUM_CTRL_VALUES;
+	// コントロール値キャッシュ
+	bool mValueCacheEnabled;	// アプリから無効にできる
+	bool mHasStatusEndpoint;	// ステータス通知が無いとキャッシュを使えない
+	volatile int mValueCacheGeneration;
+	// controls whose current values are cached, status class and selector are used for invalidation
+	typedef struct cached_ctrl {
+		int status_class;
+		int selector;
+		control_value_t UVCCamera::* value;
+		// auto mode that lets the camera change the value by itself, NULL if there is no such mode
+		control_value_t UVCCamera::* auto_mode;
+	} cached_ctrl_t;
+	static const cached_ctrl_t CACHED_CTRLS[];
+	static const int NUM_CACHED_CTRLS;
+	inline bool isValueCacheActive() const { return mValueCacheEnabled && mHasStatusEndpoint; };
+	void invalidateValueCache(int status_class, int selector);
+	bool isCacheableValue(control_value_t &values);
+	void updateAutoMode(control_value_t &auto_mode, const int gen, const int value);
+	static void onStatusChanged(void *user_ptr, uvc_status_class status_class, int selector, uvc_status_attribute status_attribute);
 	int internalSetCtrlValue(control_value_t &values, int8_t value,
 		paramget_func_i8 get_func, paramset_func_i8 set_func);
 	int internalSetCtrlValue(control_value_t &values, uint8_t value,
@@ -188,12 +263,38 @@ public:
 	int setButtonCallback(JNIEnv *env, jobject button_callback_obj);
 
 	char *getSupportedSize();
+	int *getCapabilities(int *length);
 	int setPreviewSize(int width, int height, int min_fps, int max_fps, int mode, float bandwidth = DEFAULT_BANDWIDTH);
+	int setPreviewFrameInterval(int width, int height, uint32_t frame_interval, int mode, float bandwidth = DEFAULT_BANDWIDTH);
+	int getStreamInfo(int *values, const int num);
+	int setMemoryQuota(size_t quota_bytes);
+	int getFramePoolStats(int64_t *values, const int num);
+	int getMemoryUsage(int64_t *values, const int num);
 	int setPreviewDisplay(ANativeWindow *preview_window);
 	int setFrameCallback(JNIEnv *env, jobject frame_callback_obj, int pixel_format);
+	int setEncodedFrameCallback(JNIEnv *env, jobject encoded_frame_callback_obj);
 	int startPreview();
 	int stopPreview();
+	int pausePreview();
+	int resumePreview();
+	int setIdleTimeout(int idle_timeout_ms);
+	int switchFormat(int width, int height, int mode, int fps);
+	int64_t getLastSwitchGap();
 	int setCaptureDisplay(ANativeWindow *capture_window);
+	int setThreadConfig(int thread_type, int policy, int priority, uint64_t affinity_mask);
+	int setStreamMode(int stream_mode);
+	int getDeliveryLatency(int64_t *frames, int64_t *average_us, int64_t *max_us);
+	int getStillCaptureMethod();
+	int captureStill(int width, int height, int timeout_ms, uint8_t **data, size_t *bytes);
+	size_t getSnapshotBufferSize();
+	int captureSnapshot(int quality, int timeout_ms, uint8_t *dst, size_t dst_bytes, size_t *bytes, int64_t *pts_us);
+
+	int getCtrlLimits(int *values, const int max_num);
+	int setCtrlLimits(const int *values, const int num);
+
+	int executeControlBatch(const int *ops, const int num, int *results);
+	int setValueCacheEnabled(bool enabled);
+	bool isValueCacheEnabled();
 
 	int getCtrlSupports(uint64_t *supports);
 	int getProcSupports(uint64_t *supports);
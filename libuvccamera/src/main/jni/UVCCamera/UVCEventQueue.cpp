@@ -0,0 +1,286 @@
+/*
+ * UVCCamera
+ * library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * Copyright (c) 2014-2017 saki t_saki@serenegiant.com
+ *
+ * File name: UVCEventQueue.cpp
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+ * Files in the jni/libjpeg, jni/libusb, jin/libuvc, jni/rapidjson folder may have a different license, see the respective files.
+*/
+
+#include <stdlib.h>
+#include <string.h>
+#include <unistd.h>
+#include "utilbase.h"
+#include "UVCEventQueue.h"
+
+#define	LOCAL_DEBUG 0
+
+UVCEventQueue::UVCEventQueue()
+:	mIsRunning(false),
+	mHead(0),
+	mCount(0),
+	mEventCount(0),
+	mCoalescedCount(0),
+	mDroppedCount(0) {
+
+	ENTER();
+	pthread_mutex_init(&queue_mutex, NULL);
+	pthread_cond_init(&queue_sync, NULL);
+	pthread_mutex_init(&dispatch_mutex, NULL);
+	EXIT();
+}
+
+UVCEventQueue::~UVCEventQueue() {
+
+	ENTER();
+	stop();
+	pthread_mutex_destroy(&dispatch_mutex);
+	pthread_cond_destroy(&queue_sync);
+	pthread_mutex_destroy(&queue_mutex);
+	EXIT();
+}
+
+/**
+ * イベント配信スレッドを開始する
+ */
+int UVCEventQueue::start() {
+	ENTER();
+	int result = 0;
+	pthread_mutex_lock(&queue_mutex);
+	if (!mIsRunning) {
+		mIsRunning = true;
+		mHead = mCount = 0;
+		result = pthread_create(&event_thread, NULL, event_thread_func, (void *)this);
+		if (UNLIKELY(result)) {
+			LOGE("failed to create event thread:err=%d", result);
+			mIsRunning = false;
+		}
+	}
+	pthread_mutex_unlock(&queue_mutex);
+	RETURN(result, int);
+}
+
+/**
+ * イベント配信スレッドを終了する, 未配信のイベントは破棄する
+ */
+int UVCEventQueue::stop() {
+	ENTER();
+	bool b;
+	pthread_mutex_lock(&queue_mutex);
+	{
+		b = mIsRunning;
+		mIsRunning = false;
+		mCount = 0;
+		pthread_cond_signal(&queue_sync);
+	}
+	pthread_mutex_unlock(&queue_mutex);
+	if (b && !pthread_equal(pthread_self(), event_thread)) {
+		if (pthread_join(event_thread, NULL) != EXIT_SUCCESS) {
+			LOGW("UVCEventQueue::stop:pthread_join failed");
+		}
+	}
+	RETURN(0, int);
+}
+
+/**
+ * キューへイベントを追加する(queue_mutexをロックした状態で呼ぶこと)
+ * @param coalesce trueなら未配信の同じイベントを上書きする
+ * @return false if the event was dropped
+ */
+bool UVCEventQueue::internalPush(const uvc_event_t &event, const bool coalesce) {
+	if (UNLIKELY(!mIsRunning)) return false;
+	mEventCount++;
+	if (coalesce) {
+		for (int i = mCount - 1; i >= 0; i--) {
+			uvc_event_t &e = mEvents[(mHead + i) % EVENT_QUEUE_SIZE];
+			if ((e.type == event.type) && (e.target == event.target) && (e.event == event.event)
+				&& (e.status_class == event.status_class) && (e.selector == event.selector)
+				&& (e.status_attribute == event.status_attribute)
+				&& (e.button == event.button) && (e.state == event.state || event.type == EVENT_TYPE_STATUS)) {
+
+				// 未配信の同じイベントがあれば最新の値で上書きする
+				e = event;
+				mCoalescedCount++;
+				return true;
+			}
+			if (event.type == EVENT_TYPE_BUTTON) break;	// ボタンは直前のイベントと同じ時だけまとめる
+		}
+	}
+	if (UNLIKELY(mCount >= EVENT_QUEUE_SIZE)) {
+		mDroppedCount++;
+		return false;
+	}
+	mEvents[(mHead + mCount) % EVENT_QUEUE_SIZE] = event;
+	mCount++;
+	pthread_cond_signal(&queue_sync);
+	return true;
+}
+
+/**
+ * ステータスイベントを追加する, libusbのイベントスレッドから呼ばれる
+ */
+bool UVCEventQueue::pushStatus(event_dispatch_func_t dispatch, void *target,
+	int status_class, int event, int selector, int status_attribute,
+	const void *data, size_t data_len) {
+
+	uvc_event_t ev;
+	ev.type = EVENT_TYPE_STATUS;
+	ev.dispatch = dispatch;
+	ev.target = target;
+	ev.status_class = status_class;
+	ev.event = event;
+	ev.selector = selector;
+	ev.status_attribute = status_attribute;
+	ev.button = ev.state = 0;
+	ev.data_len = data_len < EVENT_DATA_SIZE ? data_len : EVENT_DATA_SIZE;
+	if (data && ev.data_len) {
+		memcpy(ev.data, data, ev.data_len);
+	}
+	pthread_mutex_lock(&queue_mutex);
+	const bool result = internalPush(ev, true);
+	pthread_mutex_unlock(&queue_mutex);
+	return result;
+}
+
+/**
+ * ボタンイベントを追加する, libusbのイベントスレッドから呼ばれる
+ */
+bool UVCEventQueue::pushButton(event_dispatch_func_t dispatch, void *target, int button, int state) {
+	uvc_event_t ev;
+	ev.type = EVENT_TYPE_BUTTON;
+	ev.dispatch = dispatch;
+	ev.target = target;
+	ev.status_class = ev.event = ev.selector = ev.status_attribute = 0;
+	ev.button = button;
+	ev.state = state;
+	ev.data_len = 0;
+	pthread_mutex_lock(&queue_mutex);
+	const bool result = internalPush(ev, true);
+	pthread_mutex_unlock(&queue_mutex);
+	return result;
+}
+
+/**
+ * 指定したtarget宛ての未配信イベントを破棄して, 配信中ならそれが終わるまで待つ
+ * targetを破棄する前に呼ぶこと
+ */
+void UVCEventQueue::cancel(void *target) {
+	ENTER();
+	pthread_mutex_lock(&queue_mutex);
+	{
+		int n = 0;
+		for (int i = 0; i < mCount; i++) {
+			const uvc_event_t &e = mEvents[(mHead + i) % EVENT_QUEUE_SIZE];
+			if (e.target != target) {
+				if (n != i) {
+					mEvents[(mHead + n) % EVENT_QUEUE_SIZE] = e;
+				}
+				n++;
+			}
+		}
+		mCount = n;
+	}
+	pthread_mutex_unlock(&queue_mutex);
+	// 配信中のイベントがあれば終わるまで待つ(コールバック内から呼ばれた時は待たない)
+	if (!mIsRunning || !pthread_equal(pthread_self(), event_thread)) {
+		pthread_mutex_lock(&dispatch_mutex);
+		pthread_mutex_unlock(&dispatch_mutex);
+	}
+	EXIT();
+}
+
+void UVCEventQueue::getStats(uint64_t *events, uint64_t *coalesced, uint64_t *dropped) {
+	pthread_mutex_lock(&queue_mutex);
+	{
+		if (events) *events = mEventCount;
+		if (coalesced) *coalesced = mCoalescedCount;
+		if (dropped) *dropped = mDroppedCount;
+	}
+	pthread_mutex_unlock(&queue_mutex);
+}
+
+/*static*/
+void *UVCEventQueue::event_thread_func(void *vptr_args) {
+	ENTER();
+	UVCEventQueue *queue = reinterpret_cast<UVCEventQueue *>(vptr_args);
+	if (LIKELY(queue)) {
+		JavaVM *vm = getVM();
+		JNIEnv *env;
+		// スレッドが終了するまでJavaVMへアタッチしたままにする
+		vm->AttachCurrentThread(&env, NULL);
+		queue->dispatchLoop(env);
+		vm->DetachCurrentThread();
+	}
+	MARK("event thread finished");
+	pthread_exit(NULL);
+}
+
+void UVCEventQueue::dispatchLoop(JNIEnv *env) {
+	ENTER();
+	// ペイロード用のByteBufferは使い回す
+	jobject buf = NULL;
+	jmethodID clear = NULL, limit = NULL;
+	{
+		jobject local = env->NewDirectByteBuffer(mDispatchData, EVENT_DATA_SIZE);
+		jclass clazz = env->FindClass("java/nio/Buffer");
+		if (LIKELY(local && clazz)) {
+			clear = env->GetMethodID(clazz, "clear", "()Ljava/nio/Buffer;");
+			limit = env->GetMethodID(clazz, "limit", "(I)Ljava/nio/Buffer;");
+			buf = env->NewGlobalRef(local);
+		}
+		env->ExceptionClear();
+		if (local) env->DeleteLocalRef(local);
+		if (clazz) env->DeleteLocalRef(clazz);
+	}
+	uvc_event_t event;
+	for ( ; ; ) {
+		pthread_mutex_lock(&queue_mutex);
+		while (mIsRunning && !mCount) {
+			pthread_cond_wait(&queue_sync, &queue_mutex);
+		}
+		if (UNLIKELY(!mIsRunning)) {
+			pthread_mutex_unlock(&queue_mutex);
+			break;
+		}
+		event = mEvents[mHead];
+		mHead = (mHead + 1) % EVENT_QUEUE_SIZE;
+		mCount--;
+		// cancelと同じ順番でロックする
+		pthread_mutex_lock(&dispatch_mutex);
+		pthread_mutex_unlock(&queue_mutex);
+		{
+			jobject arg = NULL;
+			if ((event.type == EVENT_TYPE_STATUS) && buf && clear && limit) {
+				memcpy(mDispatchData, event.data, event.data_len);
+				jobject r = env->CallObjectMethod(buf, clear);
+				if (r) env->DeleteLocalRef(r);
+				r = env->CallObjectMethod(buf, limit, (jint)event.data_len);
+				if (r) env->DeleteLocalRef(r);
+				env->ExceptionClear();
+				arg = buf;
+			}
+			event.dispatch(event.target, env, &event, arg);
+			env->ExceptionClear();
+		}
+		pthread_mutex_unlock(&dispatch_mutex);
+	}
+	if (buf) {
+		env->DeleteGlobalRef(buf);
+	}
+	EXIT();
+}
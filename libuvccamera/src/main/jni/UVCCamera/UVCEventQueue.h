@@ -0,0 +1,100 @@
+/*
+ * UVCCamera
+ * library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * Copyright (c) 2014-2017 saki t_saki@serenegiant.com
+ *
+ * File name: UVCEventQueue.h
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+ * Files in the jni/libjpeg, jni/libusb, jin/libuvc, jni/rapidjson folder may have a different license, see the respective files.
+*/
+
+#ifndef UVCEVENTQUEUE_H_
+#define UVCEVENTQUEUE_H_
+
+#include "libUVCCamera.h"
+#include <pthread.h>
+
+#pragma interface
+
+// キューに保持できるイベントの最大数, あふれた時は新しいイベントを破棄する
+#define EVENT_QUEUE_SIZE 64
+// ステータスイベントのペイロードの最大サイズ(ステータスパケットは32バイト以下)
+#define EVENT_DATA_SIZE 32
+
+#define EVENT_TYPE_STATUS 0
+#define EVENT_TYPE_BUTTON 1
+
+struct uvc_event;
+// イベントディスパッチ用スレッド(JavaVMへアタッチ済み)から呼ばれる
+// bufはイベントのペイロードを指す使い回しのDirectByteBuffer(dispatch中のみ有効)
+typedef void (*event_dispatch_func_t)(void *target, JNIEnv *env, const struct uvc_event *event, jobject buf);
+
+typedef struct uvc_event {
+	int type;	// EVENT_TYPE_STATUS/EVENT_TYPE_BUTTON
+	event_dispatch_func_t dispatch;
+	void *target;
+	int status_class;
+	int event;
+	int selector;
+	int status_attribute;
+	int button;
+	int state;
+	uint8_t data[EVENT_DATA_SIZE];
+	size_t data_len;
+} uvc_event_t;
+
+/**
+ * ステータス/ボタンイベントをJava側へ通知するためのキュー
+ * libusbのイベントスレッドでイベントを毎回JavaVMへアタッチ/デタッチしないように
+ * JavaVMへアタッチしたままのスレッドを1つだけ使ってイベントを配信する
+ * 未配信の同じステータスイベント(同じクラス/セレクタ/属性)は最新の値で上書きする
+ */
+class UVCEventQueue {
+private:
+	pthread_mutex_t queue_mutex;
+	pthread_cond_t queue_sync;
+	// dispatch中はロックする, cancelで配信が終わるのを待つため
+	pthread_mutex_t dispatch_mutex;
+	pthread_t event_thread;
+	volatile bool mIsRunning;
+	// 事前確保したイベントのリングバッファ
+	uvc_event_t mEvents[EVENT_QUEUE_SIZE];
+	int mHead;
+	int mCount;
+	// 配信用のバッファ, ByteBufferでラップしてJava側へ渡す
+	uint8_t mDispatchData[EVENT_DATA_SIZE];
+	uint64_t mEventCount;
+	uint64_t mCoalescedCount;
+	uint64_t mDroppedCount;
+	static void *event_thread_func(void *vptr_args);
+	void dispatchLoop(JNIEnv *env);
+	bool internalPush(const uvc_event_t &event, const bool coalesce);
+public:
+	UVCEventQueue();
+	~UVCEventQueue();
+
+	int start();
+	int stop();
+	bool pushStatus(event_dispatch_func_t dispatch, void *target,
+		int status_class, int event, int selector, int status_attribute,
+		const void *data, size_t data_len);
+	bool pushButton(event_dispatch_func_t dispatch, void *target, int button, int state);
+	void cancel(void *target);
+	void getStats(uint64_t *events, uint64_t *coalesced, uint64_t *dropped);
+};
+
+#endif /* UVCEVENTQUEUE_H_ */
@@ -22,8 +22,10 @@
  * Files in the jni/libjpeg, jni/libusb, jin/libuvc, jni/rapidjson folder may have a different license, see the respective files.
 */
 
+#include <errno.h>
 #include <stdlib.h>
 #include <linux/time.h>
+#include <time.h>
 #include <unistd.h>
 
 #if 1	// set 1 if you don't need debug log
@@ -44,16 +46,74 @@
 #define	LOCAL_DEBUG 0
 #define MAX_FRAME 4
 #define PREVIEW_PIXEL_BYTES 4	// RGBA/RGBX
-#define FRAME_POOL_SZ MAX_FRAME + 2
+#define MAX_ENCODED_FRAME 16	// H.264/H.265 frames should not be dropped as possible
+#define FRAME_POOL_MAX (MAX_ENCODED_FRAME + 2)	// maximum number of pooled frames of each size class
+#define POLLING_TIMEOUT_US 100000	// timeout of uvc_stream_get_frame to check whether preview is still running
+
+static inline bool isEncodedMode(const int mode) {
+	return (mode == FRAME_FORMAT_H264) || (mode == FRAME_FORMAT_H265);
+}
+
+/**
+ * convert frame format value from Java side to uvc_frame_format
+ */
+static enum uvc_frame_format toFrameFormat(const int mode) {
+	switch (mode) {
+	case FRAME_FORMAT_MJPEG:
+		return UVC_FRAME_FORMAT_MJPEG;
+	case FRAME_FORMAT_H264:
+		return UVC_FRAME_FORMAT_H264;
+	case FRAME_FORMAT_H265:
+		return UVC_FRAME_FORMAT_H265;
+	default:
+		return UVC_FRAME_FORMAT_YUYV;
+	}
+}
+
+static const char *toFrameFormatName(const int mode) {
+	switch (mode) {
+	case FRAME_FORMAT_MJPEG:
+		return "MJPEG";
+	case FRAME_FORMAT_H264:
+		return "H264";
+	case FRAME_FORMAT_H265:
+		return "H265";
+	default:
+		return "YUYV";
+	}
+}
+
+/**
+ * maximum size of frames that the camera sends with the negotiated stream control.
+ * dwMaxVideoFrameSize is used for compressed formats instead of guessing from frame size
+ */
+static size_t calc_frame_bytes(const uvc_stream_ctrl_t *ctrl, const int mode, const int width, const int height) {
+	if (!mode) {
+		return width * height * 2;	// YUYV
+	}
+	return ctrl->dwMaxVideoFrameSize ? ctrl->dwMaxVideoFrameSize : width * height * 2;
+}
+
+/**
+ * get current time of CLOCK_MONOTONIC in micro seconds
+ * this is same time base as System#nanoTime on Java side
+ */
+static inline int64_t getTimeUs() {
+	struct timespec ts;
+	clock_gettime(CLOCK_MONOTONIC, &ts);
+	return (int64_t)ts.tv_sec * 1000000LL + ts.tv_nsec / 1000;
+}
 
 UVCPreview::UVCPreview(uvc_device_handle_t *devh)
 :	mPreviewWindow(NULL),
 	mCaptureWindow(NULL),
 	mDeviceHandle(devh),
+	mFramePool(FRAME_POOL_MAX),
 	requestWidth(DEFAULT_PREVIEW_WIDTH),
 	requestHeight(DEFAULT_PREVIEW_HEIGHT),
 	requestMinFps(DEFAULT_PREVIEW_FPS_MIN),
 	requestMaxFps(DEFAULT_PREVIEW_FPS_MAX),
+	requestFrameInterval(0),
 	requestMode(DEFAULT_PREVIEW_MODE),
 	requestBandwidth(DEFAULT_BANDWIDTH),
 	frameWidth(DEFAULT_PREVIEW_WIDTH),
@@ -67,22 +127,61 @@ UVCPreview::UVCPreview(uvc_device_handle_t *devh)
 	captureQueu(NULL),
 	mFrameCallbackObj(NULL),
 	mFrameCallbackFunc(NULL),
-	callbackPixelBytes(2) {
+	callbackPixelBytes(2),
+	mEncodedFrameCallbackObj(NULL),
+	mEncodedFrameDropped(false),
+	preview_tid(0),
+	capture_tid(0),
+	requestStreamMode(STREAM_MODE_CALLBACK),
+	mStreamHandle(NULL),
+	mLastSequence(-1),
+	mLatencyFrames(0),
+	mLatencySumUs(0),
+	mLatencyMaxUs(0),
+	mFirstFrameUs(0),
+	mStartPreviewUs(0),
+	mFirstFrameLatencyUs(0),
+	mLastFrameUs(0),
+	mHasCommittedCtrl(false),
+	mIsPaused(false),
+	mIdleStopped(false),
+	mIdleTimeoutMs(DEFAULT_IDLE_TIMEOUT_MS),
+	mPausedTimeUs(0),
+	mHasPendingCtrl(false),
+	mSwitchStartUs(0),
+	mLastSwitchGapUs(-1),
+	mStillStream(NULL),
+	mSnapshotRequested(false),
+	mSnapshotFrame(NULL),
+	mSnapshotEncoder(NULL),
+	mSnapshotPlanes(NULL),
+	mSnapshotPlanesBytes(0) {
 
 	ENTER();
+	mPreviewThreadConfig.policy = mCaptureThreadConfig.policy = -1;	// keep default
+	mPreviewThreadConfig.priority = mCaptureThreadConfig.priority = 0;
+	mPreviewThreadConfig.affinity_mask = mCaptureThreadConfig.affinity_mask = 0;
 	pthread_cond_init(&preview_sync, NULL);
 	pthread_mutex_init(&preview_mutex, NULL);
 //
 	pthread_cond_init(&capture_sync, NULL);
 	pthread_mutex_init(&capture_mutex, NULL);
 //	
-	pthread_mutex_init(&pool_mutex, NULL);
+	pthread_mutex_init(&encoded_callback_mutex, NULL);
+	pthread_mutex_init(&still_mutex, NULL);
+	pthread_mutex_init(&snapshot_mutex, NULL);
+	pthread_mutex_init(&snapshot_frame_mutex, NULL);
+	pthread_cond_init(&snapshot_sync, NULL);
+	// transfer buffers of libuvc are also allocated from the shared arena and counted against the quota of this camera
+	uvc_set_buffer_allocator(mDeviceHandle,
+		FrameArena::alloc_transfer_buffer, FrameArena::free_transfer_buffer, mFramePool.getArenaClient());
 	EXIT();
 }
 
 UVCPreview::~UVCPreview() {
 
 	ENTER();
+	uvc_set_buffer_allocator(mDeviceHandle, NULL, NULL, NULL);
 	if (mPreviewWindow)
 		ANativeWindow_release(mPreviewWindow);
 	mPreviewWindow = NULL;
@@ -91,78 +190,86 @@ UVCPreview::~UVCPreview() {
 	mCaptureWindow = NULL;
 	clearPreviewFrame();
 	clearCaptureFrame();
-	clear_pool();
+	if (mSnapshotFrame) {
+		recycle_frame(mSnapshotFrame);
+		mSnapshotFrame = NULL;
+	}
+	if (mSnapshotEncoder) {
+		tjDestroy(mSnapshotEncoder);
+		mSnapshotEncoder = NULL;
+	}
+	if (mSnapshotPlanes) {
+		free(mSnapshotPlanes);
+		mSnapshotPlanes = NULL;
+	}
+	mFramePool.clear();
 	pthread_mutex_destroy(&preview_mutex);
 	pthread_cond_destroy(&preview_sync);
 	pthread_mutex_destroy(&capture_mutex);
 	pthread_cond_destroy(&capture_sync);
-	pthread_mutex_destroy(&pool_mutex);
+	pthread_mutex_destroy(&encoded_callback_mutex);
+	pthread_mutex_destroy(&still_mutex);
+	pthread_cond_destroy(&snapshot_sync);
+	pthread_mutex_destroy(&snapshot_frame_mutex);
+	pthread_mutex_destroy(&snapshot_mutex);
 	EXIT();
 }
 
 /**
- * get uvc_frame_t from frame pool
- * if pool is empty, create new frame
- * this function does not confirm the frame size
- * and you may need to confirm the size
+ * size class of the frames that are copied from libuvc
  */
-uvc_frame_t *UVCPreview::get_frame(size_t data_bytes) {
-	uvc_frame_t *frame = NULL;
-	pthread_mutex_lock(&pool_mutex);
-	{
-		if (!mFramePool.isEmpty()) {
-			frame = mFramePool.last();
-		}
-	}
-	pthread_mutex_unlock(&pool_mutex);
-	if UNLIKELY(!frame) {
-		LOGW("allocate new frame");
-		frame = uvc_allocate_frame(data_bytes);
-	}
-	return frame;
-}
-
-void UVCPreview::recycle_frame(uvc_frame_t *frame) {
-	pthread_mutex_lock(&pool_mutex);
-	if (LIKELY(mFramePool.size() < FRAME_POOL_SZ)) {
-		mFramePool.put(frame);
-		frame = NULL;
-	}
-	pthread_mutex_unlock(&pool_mutex);
-	if (UNLIKELY(frame)) {
-		uvc_free_frame(frame);
-	}
+static inline int rawClass(const int mode) {
+	return mode ? FRAME_POOL_COMPRESSED : FRAME_POOL_YUYV;
 }
 
-
-void UVCPreview::init_pool(size_t data_bytes) {
+/**
+ * set frame size of each size class from negotiated stream control and preallocate frames
+ * so that preview/capture thread do not allocate/reallocate frames while streaming
+ */
+void UVCPreview::prepare_pool(const uvc_stream_ctrl_t *ctrl, const int mode, const int width, const int height) {
 	ENTER();
 
-	clear_pool();
-	pthread_mutex_lock(&pool_mutex);
-	{
-		for (int i = 0; i < FRAME_POOL_SZ; i++) {
-			mFramePool.put(uvc_allocate_frame(data_bytes));
+	const size_t frame_bytes = calc_frame_bytes(ctrl, mode, width, height);
+	if (isEncodedMode(mode)) {
+		mFramePool.prepare(FRAME_POOL_COMPRESSED, frame_bytes, MAX_ENCODED_FRAME + 2);
+	} else {
+		if (mode) {
+			// MJPEG frames from libuvc and YUYV frames decoded from them
+			mFramePool.prepare(FRAME_POOL_COMPRESSED, frame_bytes, MAX_FRAME + 2);
+			mFramePool.prepare(FRAME_POOL_YUYV, width * height * 2, 3);
+		} else {
+			mFramePool.prepare(FRAME_POOL_YUYV, frame_bytes, MAX_FRAME + 3);
 		}
+		// for preview surface and capture surface
+		mFramePool.prepare(FRAME_POOL_RGBX, width * height * PREVIEW_PIXEL_BYTES, 2);
 	}
-	pthread_mutex_unlock(&pool_mutex);
 
 	EXIT();
 }
 
-void UVCPreview::clear_pool() {
+/**
+ * set bytes of frames and transfer buffers that this camera can allocate from the shared arena
+ * @param quota_bytes 0 means unlimited
+ */
+int UVCPreview::setMemoryQuota(size_t quota_bytes) {
 	ENTER();
+	RETURN(mFramePool.setQuota(quota_bytes), int);
+}
 
-	pthread_mutex_lock(&pool_mutex);
-	{
-		const int n = mFramePool.size();
-		for (int i = 0; i < n; i++) {
-			uvc_free_frame(mFramePool[i]);
-		}
-		mFramePool.clear();
-	}
-	pthread_mutex_unlock(&pool_mutex);
-	EXIT();
+/**
+ * @param values [out] FRAME_POOL_STATS_NUM values, see FRAME_POOL_STATS_XXX
+ */
+int UVCPreview::getFramePoolStats(int64_t *values, const int num) {
+	ENTER();
+	RETURN(mFramePool.getStats(values, num), int);
+}
+
+/**
+ * @param values [out] ARENA_USAGE_NUM values, see ARENA_USAGE_XXX
+ */
+int UVCPreview::getMemoryUsage(int64_t *values, const int num) {
+	ENTER();
+	RETURN(mFramePool.getUsage(values, num), int);
 }
 
 inline const bool UVCPreview::isRunning() const {return mIsRunning; }
@@ -171,7 +278,14 @@ int UVCPreview::setPreviewSize(int width, int height, int min_fps, int max_fps,
 	ENTER();
 	
 	int result = 0;
-	if ((requestWidth != width) || (requestHeight != height) || (requestMode != mode)) {
+	pthread_mutex_lock(&preview_mutex);
+	{
+		// discard stream control that #switchFormat probed for previous request
+		mHasPendingCtrl = false;
+	}
+	pthread_mutex_unlock(&preview_mutex);
+	if ((requestWidth != width) || (requestHeight != height) || (requestMode != mode) || requestFrameInterval) {
+		requestFrameInterval = 0;
 		requestWidth = width;
 		requestHeight = height;
 		requestMinFps = min_fps;
@@ -181,7 +295,7 @@ int UVCPreview::setPreviewSize(int width, int height, int min_fps, int max_fps,
 
 		uvc_stream_ctrl_t ctrl;
 		result = uvc_get_stream_ctrl_format_size_fps(mDeviceHandle, &ctrl,
-			!requestMode ? UVC_FRAME_FORMAT_YUYV : UVC_FRAME_FORMAT_MJPEG,
+			toFrameFormat(requestMode),
 			requestWidth, requestHeight, requestMinFps, requestMaxFps);
 	}
 	
@@ -219,7 +333,8 @@ int UVCPreview::setFrameCallback(JNIEnv *env, jobject frame_callback_obj, int pi
 			}
 		}
 		if (!env->IsSameObject(mFrameCallbackObj, frame_callback_obj))	{
-			iframecallback_fields.onFrame = NULL;
+			iframecallback_fields.onFrame = iframecallback_fields.onFrameWithTime = NULL;
+			iframecallback_fields.onObtainBuffer = iframecallback_fields.onFrameWritten = NULL;
 			if (mFrameCallbackObj) {
 				env->DeleteGlobalRef(mFrameCallbackObj);
 			}
@@ -230,6 +345,23 @@ int UVCPreview::setFrameCallback(JNIEnv *env, jobject frame_callback_obj, int pi
 				if (LIKELY(clazz)) {
 					iframecallback_fields.onFrame = env->GetMethodID(clazz,
 						"onFrame",	"(Ljava/nio/ByteBuffer;)V");
+					env->ExceptionClear();
+					// ITimestampedFrameCallback also receives capture time of the frame
+					iframecallback_fields.onFrameWithTime = env->GetMethodID(clazz,
+						"onFrame",	"(Ljava/nio/ByteBuffer;J)V");
+					env->ExceptionClear();
+					// IFrameBufferCallback supplies buffer to write converted frame into
+					iframecallback_fields.onObtainBuffer = env->GetMethodID(clazz,
+						"onObtainBuffer",	"(I)Ljava/nio/ByteBuffer;");
+					env->ExceptionClear();
+					if (iframecallback_fields.onObtainBuffer) {
+						iframecallback_fields.onFrameWritten = env->GetMethodID(clazz,
+							"onFrameWritten",	"(Ljava/nio/ByteBuffer;IJ)V");
+						env->ExceptionClear();
+						if (!iframecallback_fields.onFrameWritten) {
+							iframecallback_fields.onObtainBuffer = NULL;
+						}
+					}
 				} else {
 					LOGW("failed to get object class");
 				}
@@ -250,6 +382,43 @@ int UVCPreview::setFrameCallback(JNIEnv *env, jobject frame_callback_obj, int pi
 	RETURN(0, int);
 }
 
+int UVCPreview::setEncodedFrameCallback(JNIEnv *env, jobject encoded_frame_callback_obj) {
+
+	ENTER();
+	pthread_mutex_lock(&encoded_callback_mutex);
+	{
+		if (!env->IsSameObject(mEncodedFrameCallbackObj, encoded_frame_callback_obj))	{
+			iencodedframecallback_fields.onEncodedFrame = NULL;
+			if (mEncodedFrameCallbackObj) {
+				env->DeleteGlobalRef(mEncodedFrameCallbackObj);
+			}
+			mEncodedFrameCallbackObj = encoded_frame_callback_obj;
+			if (encoded_frame_callback_obj) {
+				// get method IDs of Java object for callback
+				jclass clazz = env->GetObjectClass(encoded_frame_callback_obj);
+				if (LIKELY(clazz)) {
+					iencodedframecallback_fields.onEncodedFrame = env->GetMethodID(clazz,
+						"onEncodedFrame",	"(Ljava/nio/ByteBuffer;IJ)V");
+				} else {
+					LOGW("failed to get object class");
+				}
+				env->ExceptionClear();
+				if (!iencodedframecallback_fields.onEncodedFrame) {
+					LOGE("Can't find IEncodedFrameCallback#onEncodedFrame");
+					env->DeleteGlobalRef(encoded_frame_callback_obj);
+					mEncodedFrameCallbackObj = encoded_frame_callback_obj = NULL;
+				}
+			}
+			// following frames are not decodable until next key frame comes
+			mEncodedFrameDropped = true;
+		} else if (encoded_frame_callback_obj) {
+			env->DeleteGlobalRef(encoded_frame_callback_obj);
+		}
+	}
+	pthread_mutex_unlock(&encoded_callback_mutex);
+	RETURN(0, int);
+}
+
 void UVCPreview::callbackPixelFormatChanged() {
 	mFrameCallbackFunc = NULL;
 	const size_t sz = requestWidth * requestHeight;
@@ -283,6 +452,9 @@ void UVCPreview::callbackPixelFormatChanged() {
 		callbackPixelBytes = (sz * 3) / 2;
 		break;
 	}
+	if (mFrameCallbackFunc && (mPixelFormat != PIXEL_FORMAT_RGBX)) {
+		mFramePool.prepare(FRAME_POOL_CALLBACK, callbackPixelBytes, 2);
+	}
 }
 
 void UVCPreview::clearDisplay() {
@@ -329,10 +501,18 @@ int UVCPreview::startPreview() {
 	ENTER();
 
 	int result = EXIT_FAILURE;
+	if (UNLIKELY(mIdleStopped)) {
+		// streaming was stopped by idle timeout, threads are finishing/finished but not joined yet
+		joinPreviewThreads();
+	}
 	if (!isRunning()) {
+		mIsPaused = false;
 		mIsRunning = true;
 		pthread_mutex_lock(&preview_mutex);
 		{
+			// includes negotiation, buffer allocation and page faults until first frame
+			mStartPreviewUs = getTimeUs();
+			mFirstFrameLatencyUs = 0;
 			if (LIKELY(mPreviewWindow)) {
 				result = pthread_create(&preview_thread, NULL, preview_thread_func, (void *)this);
 			}
@@ -351,21 +531,70 @@ int UVCPreview::startPreview() {
 	RETURN(result, int);
 }
 
-int UVCPreview::stopPreview() {
+/**
+ * set scheduling parameters of preview/capture thread
+ * these are applied when the thread starts and also applied immediately if the thread is running
+ * @param thread_type THREAD_PREVIEW or THREAD_CAPTURE
+ */
+int UVCPreview::setThreadConfig(int thread_type, const uvc_thread_config_t &config) {
 	ENTER();
-	bool b = isRunning();
-	if (LIKELY(b)) {
+	int result = 0;
+	pid_t tid = 0;
+	switch (thread_type) {
+	case THREAD_PREVIEW:
+		mPreviewThreadConfig = config;
+		tid = preview_tid;
+		break;
+	case THREAD_CAPTURE:
+		mCaptureThreadConfig = config;
+		tid = capture_tid;
+		break;
+	default:
+		RETURN(UVC_ERROR_INVALID_PARAM, int);
+	}
+	if (tid) {
+		result = uvc_apply_thread_config(tid, &config);
+	}
+	RETURN(result, int);
+}
+
+/**
+ * terminate preview/capture thread and wait for them
+ * this is also called after streaming was stopped by idle timeout
+ */
+void UVCPreview::joinPreviewThreads() {
+	ENTER();
+	pthread_mutex_lock(&preview_mutex);
+	{
 		mIsRunning = false;
+		mIdleStopped = false;
 		pthread_cond_signal(&preview_sync);
-		pthread_cond_signal(&capture_sync);
-		if (pthread_join(capture_thread, NULL) != EXIT_SUCCESS) {
-			LOGW("UVCPreview::terminate capture thread: pthread_join failed");
-		}
-		if (pthread_join(preview_thread, NULL) != EXIT_SUCCESS) {
-			LOGW("UVCPreview::terminate preview thread: pthread_join failed");
-		}
+	}
+	pthread_mutex_unlock(&preview_mutex);
+	pthread_cond_signal(&capture_sync);
+	if (pthread_join(capture_thread, NULL) != EXIT_SUCCESS) {
+		LOGW("UVCPreview::terminate capture thread: pthread_join failed");
+	}
+	if (pthread_join(preview_thread, NULL) != EXIT_SUCCESS) {
+		LOGW("UVCPreview::terminate preview thread: pthread_join failed");
+	}
+	EXIT();
+}
+
+int UVCPreview::stopPreview() {
+	ENTER();
+	bool b = isRunning() || mIdleStopped;
+	if (LIKELY(b)) {
+		joinPreviewThreads();
 		clearDisplay();
 	}
+	pthread_mutex_lock(&snapshot_frame_mutex);
+	{
+		// wake up #captureSnapshot that is waiting for next frame
+		pthread_cond_signal(&snapshot_sync);
+	}
+	pthread_mutex_unlock(&snapshot_frame_mutex);
+	mIsPaused = false;
 	clearPreviewFrame();
 	clearCaptureFrame();
 	pthread_mutex_lock(&preview_mutex);
@@ -383,31 +612,251 @@ int UVCPreview::stopPreview() {
 	RETURN(0, int);
 }
 
+/**
+ * pause preview without stopping USB stream and preview/capture thread.
+ * frames are dropped in the frame callback of libuvc before copying them
+ * and the preview surface keeps the last frame.
+ * if preview is kept paused longer than idle timeout, streaming is really stopped
+ */
+int UVCPreview::pausePreview() {
+	ENTER();
+	int result = EXIT_FAILURE;
+	pthread_mutex_lock(&preview_mutex);
+	{
+		if (isRunning()) {
+			if (!mIsPaused) {
+				mIsPaused = true;
+				mPausedTimeUs = getTimeUs();
+				// dropping H.264/H.265 frames breaks following frames until next key frame
+				mEncodedFrameDropped = true;
+			}
+			// wake up preview thread to wait in #waitWhilePaused
+			pthread_cond_signal(&preview_sync);
+			result = EXIT_SUCCESS;
+		}
+	}
+	pthread_mutex_unlock(&preview_mutex);
+	if (LIKELY(!result)) {
+		clearPreviewFrame();
+		clearCaptureFrame();
+	}
+	RETURN(result, int);
+}
+
+/**
+ * resume preview that was paused by #pausePreview
+ * if streaming was already stopped by idle timeout, this restarts preview
+ * with full negotiation like #startPreview
+ */
+int UVCPreview::resumePreview() {
+	ENTER();
+	int result = EXIT_FAILURE;
+	bool restart = false;
+	pthread_mutex_lock(&preview_mutex);
+	{
+		if (mIdleStopped) {
+			restart = true;
+		} else if (isRunning()) {
+			if (mIsPaused) {
+				mIsPaused = false;
+				// latency and measured frame rate are counted again from resuming
+				mLatencyFrames = mLatencySumUs = mLatencyMaxUs = 0;
+				pthread_cond_signal(&preview_sync);
+			}
+			result = EXIT_SUCCESS;
+		}
+	}
+	pthread_mutex_unlock(&preview_mutex);
+	if (restart) {
+		LOGI("restart streaming that was stopped by idle timeout");
+		result = startPreview();
+	}
+	RETURN(result, int);
+}
+
+/**
+ * @param idle_timeout_ms streaming is really stopped when preview is kept paused longer than this,
+ * 			0 to keep streaming until #resumePreview/#stopPreview
+ */
+int UVCPreview::setIdleTimeout(int idle_timeout_ms) {
+	ENTER();
+	pthread_mutex_lock(&preview_mutex);
+	{
+		mIdleTimeoutMs = idle_timeout_ms > 0 ? idle_timeout_ms : 0;
+		// re-evaluate timeout if preview thread is waiting in #waitWhilePaused
+		pthread_cond_signal(&preview_sync);
+	}
+	pthread_mutex_unlock(&preview_mutex);
+	RETURN(0, int);
+}
+
+/**
+ * switch resolution/frame format while previewing with minimum interruption.
+ * new stream control is probed while current stream is still running and
+ * frames for the new size are allocated beforehand, then the stream is
+ * stopped and restarted once, only the commit is sent to the camera on restart.
+ * if preview is not running, the new format is applied on next #startPreview.
+ * the time from stopping current stream to the first frame of new format
+ * can be read with #getLastSwitchGap
+ * @param fps frame rate to request, 0 or negative to keep current range
+ */
+int UVCPreview::switchFormat(int width, int height, int mode, int fps) {
+	ENTER();
+
+	const int min_fps = fps > 0 ? fps : requestMinFps;
+	const int max_fps = fps > 0 ? fps : requestMaxFps;
+	uvc_stream_ctrl_t ctrl;
+	// probe while current stream is running, this does not affect current stream
+	int result = uvc_get_stream_ctrl_format_size_fps(mDeviceHandle, &ctrl,
+		toFrameFormat(mode), width, height, min_fps, max_fps);
+	if (UNLIKELY(result)) {
+		LOGE("could not negotiate with camera:err=%d", result);
+		RETURN(result, int);
+	}
+	// allocate frames for new size before stopping current stream
+	prepare_pool(&ctrl, mode, width, height);
+
+	const bool running = isRunning() || mIdleStopped;
+	const int64_t start_us = getTimeUs();
+	if (running) {
+		// keep preview/capture window and the last frame on them
+		joinPreviewThreads();
+	}
+	clearPreviewFrame();
+	clearCaptureFrame();
+	// keep previous request to roll back when restarting failed
+	const int prev_width = requestWidth;
+	const int prev_height = requestHeight;
+	const int prev_min_fps = requestMinFps;
+	const int prev_max_fps = requestMaxFps;
+	const int prev_mode = requestMode;
+	const uint32_t prev_frame_interval = requestFrameInterval;
+	requestWidth = width;
+	requestHeight = height;
+	requestMinFps = min_fps;
+	requestMaxFps = max_fps;
+	requestMode = mode;
+	requestFrameInterval = 0;
+	pthread_mutex_lock(&preview_mutex);
+	{
+		mPendingCtrl = ctrl;
+		mHasPendingCtrl = true;
+	}
+	pthread_mutex_unlock(&preview_mutex);
+	if (running) {
+		pthread_mutex_lock(&preview_mutex);
+		{
+			mSwitchStartUs = start_us;
+			mLastSwitchGapUs = -1;
+		}
+		pthread_mutex_unlock(&preview_mutex);
+		// this also resumes paused preview
+		result = startPreview();
+		if (UNLIKELY(result)) {
+			LOGE("switchFormat:failed to restart preview:err=%d", result);
+			requestWidth = prev_width;
+			requestHeight = prev_height;
+			requestMinFps = prev_min_fps;
+			requestMaxFps = prev_max_fps;
+			requestMode = prev_mode;
+			requestFrameInterval = prev_frame_interval;
+			pthread_mutex_lock(&preview_mutex);
+			{
+				mHasPendingCtrl = false;
+			}
+			pthread_mutex_unlock(&preview_mutex);
+		} else {
+			LOGI("switchFormat:restarted in %lldus", (long long)(getTimeUs() - start_us));
+		}
+	}
+
+	RETURN(result, int);
+}
+
+/**
+ * @return time from stopping previous stream to the first frame of new format
+ * 			on last #switchFormat[us], -1 if not measured yet
+ */
+int64_t UVCPreview::getLastSwitchGap() {
+	int64_t result;
+	pthread_mutex_lock(&preview_mutex);
+	{
+		result = mLastSwitchGapUs;
+	}
+	pthread_mutex_unlock(&preview_mutex);
+	return result;
+}
+
+/**
+ * block preview thread while preview is paused.
+ * when idle timeout elapsed, this clears running flag to finish preview loop
+ * and preview thread stops streaming, threads are joined on next #startPreview/#stopPreview
+ */
+void UVCPreview::waitWhilePaused() {
+	pthread_mutex_lock(&preview_mutex);
+	{
+		for ( ; isRunning() && mIsPaused ; ) {
+			if (mIdleTimeoutMs > 0) {
+				const int64_t remain_us = mPausedTimeUs + mIdleTimeoutMs * 1000LL - getTimeUs();
+				if (remain_us <= 0) {
+					LOGI("idle timeout, stop streaming");
+					mIdleStopped = true;
+					mIsRunning = false;
+					pthread_cond_signal(&capture_sync);
+					break;
+				}
+				struct timespec ts;
+				clock_gettime(CLOCK_REALTIME, &ts);
+				const int64_t nsec = ts.tv_nsec + (remain_us % 1000000LL) * 1000LL;
+				ts.tv_sec += remain_us / 1000000LL + nsec / 1000000000LL;
+				ts.tv_nsec = nsec % 1000000000LL;
+				pthread_cond_timedwait(&preview_sync, &preview_mutex, &ts);
+			} else {
+				pthread_cond_wait(&preview_sync, &preview_mutex);
+			}
+		}
+	}
+	pthread_mutex_unlock(&preview_mutex);
+	// sequence number jumps while paused
+	mLastSequence = -1;
+}
+
 //**********************************************************************
 //
 //**********************************************************************
-void UVCPreview::uvc_preview_frame_callback(uvc_frame_t *frame, void *vptr_args) {
-	UVCPreview *preview = reinterpret_cast<UVCPreview *>(vptr_args);
-	if UNLIKELY(!preview->isRunning() || !frame || !frame->frame_format || !frame->data || !frame->data_bytes) return;
+/**
+ * check whether the frame from libuvc is available for current preview
+ */
+bool UVCPreview::checkFrame(const uvc_frame_t *frame) {
+	if UNLIKELY(!isRunning() || !frame || !frame->frame_format || !frame->data || !frame->data_bytes || !frame->actual_bytes) return false;
 	if (UNLIKELY(
-		((frame->frame_format != UVC_FRAME_FORMAT_MJPEG) && (frame->actual_bytes < preview->frameBytes))
-		|| (frame->width != preview->frameWidth) || (frame->height != preview->frameHeight) )) {
+		(!isEncodedMode(frameMode) && (frame->frame_format != UVC_FRAME_FORMAT_MJPEG)
+			&& (frame->actual_bytes < frameBytes))
+		|| (frame->width != frameWidth) || (frame->height != frameHeight) )) {
 
 #if LOCAL_DEBUG
 		LOGD("broken frame!:format=%d,actual_bytes=%d/%d(%d,%d/%d,%d)",
-			frame->frame_format, frame->actual_bytes, preview->frameBytes,
-			frame->width, frame->height, preview->frameWidth, preview->frameHeight);
+			frame->frame_format, frame->actual_bytes, frameBytes,
+			frame->width, frame->height, frameWidth, frameHeight);
 #endif
-		return;
+		return false;
 	}
+	return true;
+}
+
+void UVCPreview::uvc_preview_frame_callback(uvc_frame_t *frame, void *vptr_args) {
+	UVCPreview *preview = reinterpret_cast<UVCPreview *>(vptr_args);
+	// drop frames at the source while paused, USB stream is kept alive
+	if (UNLIKELY(preview->isPaused() || !preview->checkFrame(frame))) return;
 	if (LIKELY(preview->isRunning())) {
-		uvc_frame_t *copy = preview->get_frame(frame->data_bytes);
+		uvc_frame_t *copy = preview->get_frame(rawClass(preview->frameMode), frame->data_bytes);
 		if (UNLIKELY(!copy)) {
 #if LOCAL_DEBUG
 			LOGE("uvc_callback:unable to allocate duplicate frame!");
 #endif
 			return;
 		}
+		// capture_time is set by libuvc when the frame completed
 		uvc_error_t ret = uvc_duplicate_frame(frame, copy);
 		if (UNLIKELY(ret)) {
 			preview->recycle_frame(copy);
@@ -419,33 +868,407 @@ void UVCPreview::uvc_preview_frame_callback(uvc_frame_t *frame, void *vptr_args)
 
 void UVCPreview::addPreviewFrame(uvc_frame_t *frame) {
 
+	const int max_frames = isEncodedMode(frameMode) ? MAX_ENCODED_FRAME : MAX_FRAME;
 	pthread_mutex_lock(&preview_mutex);
-	if (isRunning() && (previewFrames.size() < MAX_FRAME)) {
+	if (isRunning() && (previewFrames.size() < max_frames)) {
 		previewFrames.put(frame);
 		frame = NULL;
 		pthread_cond_signal(&preview_sync);
 	}
 	pthread_mutex_unlock(&preview_mutex);
 	if (frame) {
+		// dropping H.264/H.265 frame breaks following frames until next key frame
+		mEncodedFrameDropped = true;
 		recycle_frame(frame);
 	}
 }
 
 uvc_frame_t *UVCPreview::waitPreviewFrame() {
+	if (UNLIKELY(mIsPaused)) {
+		waitWhilePaused();
+		return NULL;
+	}
+	if (mStreamHandle) {
+		// polling mode
+		return pollPreviewFrame(false);
+	}
 	uvc_frame_t *frame = NULL;
 	pthread_mutex_lock(&preview_mutex);
 	{
-		if (!previewFrames.size()) {
+		if (!previewFrames.size() && !mIsPaused) {
 			pthread_cond_wait(&preview_sync, &preview_mutex);
 		}
-		if (LIKELY(isRunning() && previewFrames.size() > 0)) {
+		if (LIKELY(isRunning() && !mIsPaused && previewFrames.size() > 0)) {
 			frame = previewFrames.remove(0);
 		}
 	}
 	pthread_mutex_unlock(&preview_mutex);
+	if (frame) {
+		update_latency(frame);
+	}
 	return frame;
 }
 
+/**
+ * get frame from stream handle directly without callback thread of libuvc(polling mode)
+ * @param borrow true: return the frame that libuvc owns without copying,
+ * 				this frame is only valid until next call and you must release it with #releasePreviewFrame
+ * 				false: return copy of the frame from frame pool
+ */
+uvc_frame_t *UVCPreview::pollPreviewFrame(const bool borrow) {
+	uvc_frame_t *frame = NULL;
+	if (UNLIKELY(mIsPaused)) {
+		// libuvc overwrites its frame while nobody polls it, nothing to drop here
+		waitWhilePaused();
+		return NULL;
+	}
+	uvc_error_t ret = uvc_stream_get_frame(mStreamHandle, &frame, POLLING_TIMEOUT_US);
+	if (UNLIKELY(ret || !checkFrame(frame))) {
+		return NULL;
+	}
+	if ((mLastSequence >= 0) && (frame->sequence != (uint32_t)(mLastSequence + 1))) {
+		// preview thread could not keep up with camera and some frames were overwritten in libuvc
+		mEncodedFrameDropped = true;
+	}
+	mLastSequence = frame->sequence;
+	update_latency(frame);
+	if (borrow) {
+		return frame;
+	}
+	uvc_frame_t *copy = get_frame(rawClass(frameMode), frame->data_bytes);
+	if (UNLIKELY(!copy)) {
+		return NULL;
+	}
+	ret = uvc_duplicate_frame(frame, copy);
+	if (UNLIKELY(ret)) {
+		recycle_frame(copy);
+		return NULL;
+	}
+	return copy;
+}
+
+/**
+ * release frame that #waitPreviewFrame or #pollPreviewFrame returned
+ */
+void UVCPreview::releasePreviewFrame(uvc_frame_t *frame) {
+	if (!mStreamHandle || (frame != &mStreamHandle->frame)) {
+		recycle_frame(frame);
+	}
+}
+
+/**
+ * update latency from completion of frame in libuvc to preview thread
+ */
+void UVCPreview::update_latency(const uvc_frame_t *frame) {
+	const int64_t now_us = getTimeUs();
+	const int64_t latency_us = now_us
+		- ((int64_t)frame->capture_time.tv_sec * 1000000LL + frame->capture_time.tv_usec);
+	pthread_mutex_lock(&preview_mutex);
+	{
+		if (UNLIKELY(mSwitchStartUs)) {
+			// first frame after #switchFormat
+			mLastSwitchGapUs = now_us - mSwitchStartUs;
+			mSwitchStartUs = 0;
+			LOGI("switch gap=%lldus", (long long)mLastSwitchGapUs);
+		}
+		if (UNLIKELY(mStartPreviewUs)) {
+			mFirstFrameLatencyUs = now_us - mStartPreviewUs;
+			mStartPreviewUs = 0;
+			LOGI("first frame latency=%lldus", (long long)mFirstFrameLatencyUs);
+		}
+		if (!mLatencyFrames) {
+			mFirstFrameUs = now_us;
+		}
+		mLastFrameUs = now_us;
+		mLatencyFrames++;
+		mLatencySumUs += latency_us;
+		if (latency_us > mLatencyMaxUs) {
+			mLatencyMaxUs = latency_us;
+		}
+	}
+	pthread_mutex_unlock(&preview_mutex);
+}
+
+/**
+ * get latency from completion of frame in libuvc to preview thread since preview started
+ */
+int UVCPreview::getDeliveryLatency(int64_t *frames, int64_t *average_us, int64_t *max_us) {
+	pthread_mutex_lock(&preview_mutex);
+	{
+		*frames = mLatencyFrames;
+		*average_us = mLatencyFrames ? mLatencySumUs / mLatencyFrames : 0;
+		*max_us = mLatencyMaxUs;
+	}
+	pthread_mutex_unlock(&preview_mutex);
+	return 0;
+}
+
+/**
+ * set how preview thread receives frames from libuvc, this is applied when preview starts next time
+ * @param stream_mode STREAM_MODE_CALLBACK or STREAM_MODE_POLLING
+ */
+int UVCPreview::setStreamMode(int stream_mode) {
+	ENTER();
+	if (UNLIKELY((stream_mode != STREAM_MODE_CALLBACK) && (stream_mode != STREAM_MODE_POLLING))) {
+		RETURN(UVC_ERROR_INVALID_PARAM, int);
+	}
+	requestStreamMode = stream_mode;
+	RETURN(0, int);
+}
+
+/**
+ * capture still image with still image capture method 2/3 while previewing
+ * the still image is sent by the camera with its full resolution and
+ * the preview stream is not interrupted. currently only available on MJPEG mode
+ * @param width still image width, zero to select largest size
+ * @param height still image height, zero to select largest size
+ * @param timeout_ms
+ * @param data [out] JPEG image, caller should free with free()
+ * @param bytes [out] size of JPEG image
+ */
+int UVCPreview::captureStill(int width, int height, int timeout_ms, uint8_t **data, size_t *bytes) {
+	ENTER();
+
+	int result = UVC_ERROR_INVALID_PARAM;
+	*data = NULL;
+	*bytes = 0;
+	pthread_mutex_lock(&still_mutex);
+	{
+		uvc_stream_handle_t *strmh = mStillStream;
+		if (UNLIKELY(!strmh || !isRunning())) {
+			LOGW("not streaming");
+		} else if (frameMode != FRAME_FORMAT_MJPEG) {
+			result = UVC_ERROR_NOT_SUPPORTED;
+		} else {
+			uvc_still_ctrl_t still_ctrl;
+			result = uvc_get_still_ctrl_format_size(mDeviceHandle,
+				&strmh->cur_ctrl, &still_ctrl, width, height);
+			if (LIKELY(!result)) {
+				result = uvc_stream_capture_still(strmh, &still_ctrl, data, bytes,
+					(timeout_ms > 0 ? timeout_ms : DEFAULT_STILL_TIMEOUT_MS) * 1000);
+			}
+		}
+	}
+	pthread_mutex_unlock(&still_mutex);
+	if (LIKELY(!result)) {
+		// remove padding after EOI marker like do_mjpeg_callback
+		const uint8_t *p = *data;
+		size_t n = *bytes;
+		if (UNLIKELY((n < 4) || (p[0] != 0xff) || (p[1] != 0xd8))) {
+			LOGW("still image is not a JPEG, bytes=%d", (int)n);
+			free(*data);
+			*data = NULL;
+			*bytes = 0;
+			result = UVC_ERROR_OTHER;
+		} else {
+			for (size_t i = n; i >= 4; i--) {
+				if ((p[i - 2] == 0xff) && (p[i - 1] == 0xd9)) {
+					*bytes = i;
+					break;
+				}
+			}
+		}
+	}
+	RETURN(result, int);
+}
+
+/**
+ * required size of the buffer for #captureSnapshot
+ * @return 0 if preview is not running or frame size is not known yet
+ */
+size_t UVCPreview::getSnapshotBufferSize() {
+	ENTER();
+	if (!isRunning() || !frameWidth || !frameHeight) {
+		// tjBufSize returns -1 for zero size
+		RETURN(0, size_t);
+	}
+	const unsigned long buf_size = tjBufSize(frameWidth, frameHeight, TJSAMP_422);
+	if (UNLIKELY(buf_size == (unsigned long)-1)) {
+		RETURN(0, size_t);
+	}
+	size_t result = buf_size;
+	if (frameMode && (frameBytes > result)) {
+		// original MJPEG frame may be larger than re-encoded one
+		result = frameBytes;
+	}
+	RETURN(result, size_t);
+}
+
+/**
+ * get JPEG image of the latest frame without interrupting preview/recording.
+ * the preview thread copies next frame only when this method requests it and
+ * encoding runs on the calling thread with TurboJPEG, so this should be called from a background thread.
+ * On MJPEG mode, the original JPEG from the camera is used as it is when quality is zero.
+ * H.264/H.265 mode is not supported because we have no decoder here.
+ * @param quality JPEG quality(1-100), zero to use original MJPEG frame if possible
+ * @param timeout_ms
+ * @param dst buffer for JPEG image, this should be #getSnapshotBufferSize bytes or more
+ * @param dst_bytes capacity of dst
+ * @param bytes [out] size of JPEG image
+ * @param pts_us [out] capture time of the frame, same time base as System#nanoTime / 1000
+ */
+int UVCPreview::captureSnapshot(int quality, int timeout_ms, uint8_t *dst, size_t dst_bytes, size_t *bytes, int64_t *pts_us) {
+	ENTER();
+
+	int result = UVC_ERROR_INVALID_PARAM;
+	*bytes = 0;
+	pthread_mutex_lock(&snapshot_mutex);
+	{
+		uvc_frame_t *frame = NULL;
+		if (UNLIKELY(!isRunning() || !dst)) {
+			LOGW("not streaming");
+		} else if (isEncodedMode(frameMode)) {
+			result = UVC_ERROR_NOT_SUPPORTED;
+		} else {
+			pthread_mutex_lock(&snapshot_frame_mutex);
+			{
+				if (mSnapshotFrame) {
+					// frame that came after previous request timed out
+					recycle_frame(mSnapshotFrame);
+					mSnapshotFrame = NULL;
+				}
+				mSnapshotRequested = true;
+				struct timespec ts;
+				clock_gettime(CLOCK_REALTIME, &ts);
+				const int64_t wait_us = (timeout_ms > 0 ? timeout_ms : DEFAULT_STILL_TIMEOUT_MS) * 1000LL;
+				const int64_t nsec = ts.tv_nsec + (wait_us % 1000000LL) * 1000LL;
+				ts.tv_sec += wait_us / 1000000LL + nsec / 1000000000LL;
+				ts.tv_nsec = nsec % 1000000000LL;
+				while (!mSnapshotFrame && isRunning()) {
+					if (pthread_cond_timedwait(&snapshot_sync, &snapshot_frame_mutex, &ts) == ETIMEDOUT) {
+						break;
+					}
+				}
+				mSnapshotRequested = false;
+				frame = mSnapshotFrame;
+				mSnapshotFrame = NULL;
+			}
+			pthread_mutex_unlock(&snapshot_frame_mutex);
+			result = frame ? UVC_SUCCESS : UVC_ERROR_TIMEOUT;
+		}
+		if (frame) {
+			*pts_us = (int64_t)frame->capture_time.tv_sec * 1000000LL + frame->capture_time.tv_usec;
+			result = encode_snapshot(frame, quality, dst, dst_bytes, bytes);
+			recycle_frame(frame);
+		}
+	}
+	pthread_mutex_unlock(&snapshot_mutex);
+
+	RETURN(result, int);
+}
+
+/**
+ * copy the frame for #captureSnapshot, this is called on the preview thread only when requested
+ */
+void UVCPreview::keep_snapshot(uvc_frame_t *frame) {
+	pthread_mutex_lock(&snapshot_frame_mutex);
+	{
+		if (mSnapshotRequested && !mSnapshotFrame) {
+			uvc_frame_t *copy = get_frame(rawClass(frameMode), frame->data_bytes);
+			if (LIKELY(copy && !uvc_duplicate_frame(frame, copy))) {
+				mSnapshotFrame = copy;
+				mSnapshotRequested = false;
+				pthread_cond_signal(&snapshot_sync);
+			} else if (copy) {
+				recycle_frame(copy);
+			}
+		}
+	}
+	pthread_mutex_unlock(&snapshot_frame_mutex);
+}
+
+/**
+ * encode the frame into JPEG, this is called with snapshot_mutex locked
+ * @param frame MJPEG or YUYV frame
+ */
+int UVCPreview::encode_snapshot(uvc_frame_t *frame, const int quality, uint8_t *dst, const size_t dst_bytes, size_t *bytes) {
+	uvc_frame_t *yuyv = frame;
+	if (frame->frame_format == UVC_FRAME_FORMAT_MJPEG) {
+		const uint8_t *data = (const uint8_t *)frame->data;
+		size_t n = frame->actual_bytes;
+		if (UNLIKELY((n < 4) || (data[0] != 0xff) || (data[1] != 0xd8))) {
+			return UVC_ERROR_OTHER;
+		}
+		if (quality <= 0) {
+			// remove padding after EOI marker like do_mjpeg_callback and use original JPEG as it is
+			for (size_t i = n; i >= 4; i--) {
+				if ((data[i - 2] == 0xff) && (data[i - 1] == 0xd9)) {
+					n = i;
+					break;
+				}
+			}
+			if (UNLIKELY(n > dst_bytes)) {
+				return UVC_ERROR_NO_MEM;
+			}
+			memcpy(dst, data, n);
+			*bytes = n;
+			return UVC_SUCCESS;
+		}
+		yuyv = get_frame(FRAME_POOL_YUYV, frame->width * frame->height * 2);
+		if (UNLIKELY(!yuyv)) {
+			return UVC_ERROR_NO_MEM;
+		}
+		const uvc_error_t r = uvc_mjpeg2yuyv(frame, yuyv);
+		if (UNLIKELY(r)) {
+			recycle_frame(yuyv);
+			return r;
+		}
+	}
+	int result = UVC_ERROR_NO_MEM;
+	const int width = yuyv->width;
+	const int height = yuyv->height;
+	const int chroma_width = width / 2;
+	const size_t planes_bytes = width * height + chroma_width * height * 2;
+	if (!mSnapshotPlanes || (mSnapshotPlanesBytes < planes_bytes)) {
+		uint8_t *planes = (uint8_t *)realloc(mSnapshotPlanes, planes_bytes);
+		if (LIKELY(planes)) {
+			mSnapshotPlanes = planes;
+			mSnapshotPlanesBytes = planes_bytes;
+		}
+	}
+	if (!mSnapshotEncoder) {
+		mSnapshotEncoder = tjInitCompress();
+	}
+	if (LIKELY(mSnapshotPlanes && (mSnapshotPlanesBytes >= planes_bytes) && mSnapshotEncoder)) {
+		// TurboJPEG can not read packed YUYV, split it into Y/U/V planes(YUV422 planar)
+		uint8_t *y = mSnapshotPlanes;
+		uint8_t *u = y + width * height;
+		uint8_t *v = u + chroma_width * height;
+		const int step = yuyv->step ? yuyv->step : width * 2;
+		for (int i = 0; i < height; i++) {
+			const uint8_t *src = (const uint8_t *)yuyv->data + i * step;
+			for (int j = 0; j < chroma_width; j++, src += 4) {
+				*y++ = src[0];
+				*u++ = src[1];
+				*y++ = src[2];
+				*v++ = src[3];
+			}
+		}
+		const unsigned char *planes[3] = {
+			mSnapshotPlanes,
+			mSnapshotPlanes + width * height,
+			mSnapshotPlanes + width * height + chroma_width * height };
+		int strides[3] = { width, chroma_width, chroma_width };
+		unsigned char *jpeg = dst;
+		unsigned long jpeg_bytes = dst_bytes;
+		// TJFLAG_NOREALLOC: fail instead of allocating when dst is too small
+		if (LIKELY(!tjCompressFromYUVPlanes(mSnapshotEncoder, planes, width, strides, height, TJSAMP_422,
+			&jpeg, &jpeg_bytes, quality > 0 ? (quality < 100 ? quality : 100) : DEFAULT_SNAPSHOT_QUALITY,
+			TJFLAG_NOREALLOC | TJFLAG_FASTDCT))) {
+
+			*bytes = jpeg_bytes;
+			result = UVC_SUCCESS;
+		} else {
+			LOGW("tjCompressFromYUVPlanes failed:%s", tjGetErrorStr());
+			result = UVC_ERROR_OTHER;
+		}
+	}
+	if (yuyv != frame) {
+		recycle_frame(yuyv);
+	}
+	return result;
+}
+
 void UVCPreview::clearPreviewFrame() {
 	pthread_mutex_lock(&preview_mutex);
 	{
@@ -462,24 +1285,106 @@ void *UVCPreview::preview_thread_func(void *vptr_args) {
 	ENTER();
 	UVCPreview *preview = reinterpret_cast<UVCPreview *>(vptr_args);
 	if (LIKELY(preview)) {
+		preview->preview_tid = gettid();
+		uvc_apply_thread_config(preview->preview_tid, &preview->mPreviewThreadConfig);
 		uvc_stream_ctrl_t ctrl;
 		result = preview->prepare_preview(&ctrl);
 		if (LIKELY(!result)) {
 			preview->do_preview(&ctrl);
 		}
+		preview->preview_tid = 0;
 	}
 	PRE_EXIT();
 	pthread_exit(NULL);
 }
 
+/**
+ * set preview size with specific frame interval instead of fps range,
+ * this is applied when preview starts next time
+ * @param frame_interval frame interval in 100ns units, one of intervals in the frame descriptor
+ */
+int UVCPreview::setPreviewFrameInterval(int width, int height, uint32_t frame_interval, int mode, float bandwidth) {
+	ENTER();
+
+	uvc_stream_ctrl_t ctrl;
+	int result = uvc_get_stream_ctrl_format_size_interval(mDeviceHandle, &ctrl,
+		toFrameFormat(mode), width, height, frame_interval);
+	if (LIKELY(!result)) {
+		requestWidth = width;
+		requestHeight = height;
+		requestFrameInterval = frame_interval;
+		// keep fps range consistent with the interval for #switchFormat
+		requestMinFps = requestMaxFps = (10000000 + frame_interval / 2) / frame_interval;
+		requestMode = mode;
+		requestBandwidth = bandwidth;
+		pthread_mutex_lock(&preview_mutex);
+		{
+			// discard stream control that #switchFormat probed for previous request
+			mHasPendingCtrl = false;
+		}
+		pthread_mutex_unlock(&preview_mutex);
+	}
+
+	RETURN(result, int);
+}
+
+/**
+ * get values of the stream control that was committed to the camera and measured frame rate
+ * @param values [out] STREAM_INFO_NUM values, see STREAM_INFO_XXX
+ * @return UVC_ERROR_NOT_FOUND if not streaming
+ */
+int UVCPreview::getStreamInfo(int *values, const int num) {
+	ENTER();
+	int result = UVC_ERROR_NOT_FOUND;
+	if (UNLIKELY(num < STREAM_INFO_NUM)) {
+		RETURN(UVC_ERROR_INVALID_PARAM, int);
+	}
+	pthread_mutex_lock(&preview_mutex);
+	{
+		if (mHasCommittedCtrl) {
+			values[STREAM_INFO_FRAME_INTERVAL] = mCommittedCtrl.dwFrameInterval;
+			values[STREAM_INFO_MAX_VIDEO_FRAME_SIZE] = mCommittedCtrl.dwMaxVideoFrameSize;
+			values[STREAM_INFO_MAX_PAYLOAD_SIZE] = mCommittedCtrl.dwMaxPayloadTransferSize;
+			values[STREAM_INFO_WIDTH] = frameWidth;
+			values[STREAM_INFO_HEIGHT] = frameHeight;
+			const int64_t duration_us = mLastFrameUs - mFirstFrameUs;
+			values[STREAM_INFO_MEASURED_FPS] = (mLatencyFrames > 1) && (duration_us > 0)
+				? (int)((mLatencyFrames - 1) * 1000000000LL / duration_us) : 0;
+			values[STREAM_INFO_FIRST_FRAME_LATENCY] = (int)mFirstFrameLatencyUs;
+			result = UVC_SUCCESS;
+		}
+	}
+	pthread_mutex_unlock(&preview_mutex);
+	RETURN(result, int);
+}
+
 int UVCPreview::prepare_preview(uvc_stream_ctrl_t *ctrl) {
 	uvc_error_t result;
 
 	ENTER();
-	result = uvc_get_stream_ctrl_format_size_fps(mDeviceHandle, ctrl,
-		!requestMode ? UVC_FRAME_FORMAT_YUYV : UVC_FRAME_FORMAT_MJPEG,
-		requestWidth, requestHeight, requestMinFps, requestMaxFps
-	);
+	bool has_pending;
+	pthread_mutex_lock(&preview_mutex);
+	{
+		has_pending = mHasPendingCtrl;
+		if (has_pending) {
+			*ctrl = mPendingCtrl;
+			mHasPendingCtrl = false;
+		}
+	}
+	pthread_mutex_unlock(&preview_mutex);
+	if (has_pending) {
+		// already probed by #switchFormat, libuvc just commits this when streaming starts
+		result = UVC_SUCCESS;
+	} else if (requestFrameInterval) {
+		result = uvc_get_stream_ctrl_format_size_interval(mDeviceHandle, ctrl,
+			toFrameFormat(requestMode),
+			requestWidth, requestHeight, requestFrameInterval);
+	} else {
+		result = uvc_get_stream_ctrl_format_size_fps(mDeviceHandle, ctrl,
+			toFrameFormat(requestMode),
+			requestWidth, requestHeight, requestMinFps, requestMaxFps
+		);
+	}
 	if (LIKELY(!result)) {
 #if LOCAL_DEBUG
 		uvc_print_stream_ctrl(ctrl, stderr);
@@ -489,7 +1394,7 @@ int UVCPreview::prepare_preview(uvc_stream_ctrl_t *ctrl) {
 		if (LIKELY(!result)) {
 			frameWidth = frame_desc->wWidth;
 			frameHeight = frame_desc->wHeight;
-			LOGI("frameSize=(%d,%d)@%s", frameWidth, frameHeight, (!requestMode ? "YUYV" : "MJPEG"));
+			LOGI("frameSize=(%d,%d)@%s", frameWidth, frameHeight, toFrameFormatName(requestMode));
 			pthread_mutex_lock(&preview_mutex);
 			if (LIKELY(mPreviewWindow)) {
 				ANativeWindow_setBuffersGeometry(mPreviewWindow,
@@ -501,8 +1406,11 @@ int UVCPreview::prepare_preview(uvc_stream_ctrl_t *ctrl) {
 			frameHeight = requestHeight;
 		}
 		frameMode = requestMode;
-		frameBytes = frameWidth * frameHeight * (!requestMode ? 2 : 4);
+		// size of MJPEG/H.264/H.265 frame varies, use negotiated maximum size if available
+		frameBytes = calc_frame_bytes(ctrl, frameMode, frameWidth, frameHeight);
+		LOGI("frameInterval=%d,maxVideoFrameSize=%d", ctrl->dwFrameInterval, ctrl->dwMaxVideoFrameSize);
 		previewBytes = frameWidth * frameHeight * PREVIEW_PIXEL_BYTES;
+		prepare_pool(ctrl, frameMode, frameWidth, frameHeight);
 	} else {
 		LOGE("could not negotiate with camera:err=%d", result);
 	}
@@ -514,24 +1422,73 @@ void UVCPreview::do_preview(uvc_stream_ctrl_t *ctrl) {
 
 	uvc_frame_t *frame = NULL;
 	uvc_frame_t *frame_mjpeg = NULL;
-	uvc_error_t result = uvc_start_streaming_bandwidth(
-		mDeviceHandle, ctrl, uvc_preview_frame_callback, (void *)this, requestBandwidth, 0);
+	uvc_error_t result;
+
+	pthread_mutex_lock(&preview_mutex);
+	{
+		mLatencyFrames = mLatencySumUs = mLatencyMaxUs = 0;
+	}
+	pthread_mutex_unlock(&preview_mutex);
+	mLastSequence = -1;
+	if (requestStreamMode == STREAM_MODE_POLLING) {
+		// preview thread gets frames directly from stream handle without callback thread of libuvc
+		uvc_stream_handle_t *strmh = NULL;
+		result = uvc_stream_open_ctrl(mDeviceHandle, &strmh, ctrl);
+		if (LIKELY(!result)) {
+			result = uvc_stream_start_bandwidth(strmh, NULL, NULL, requestBandwidth, 0);
+			if (LIKELY(!result)) {
+				mStreamHandle = strmh;
+			} else {
+				uvc_stream_close(strmh);
+			}
+		}
+	} else {
+		result = uvc_start_streaming_bandwidth(
+			mDeviceHandle, ctrl, uvc_preview_frame_callback, (void *)this, requestBandwidth, 0);
+	}
 
 	if (LIKELY(!result)) {
 		clearPreviewFrame();
+		pthread_mutex_lock(&still_mutex);
+		{
+			// uvc_start_streaming_bandwidth adds its stream handle to the device handle
+			mStillStream = mStreamHandle ? mStreamHandle : mDeviceHandle->streams;
+		}
+		pthread_mutex_unlock(&still_mutex);
+		pthread_mutex_lock(&preview_mutex);
+		{
+			// libuvc keeps the control block that it committed in the stream handle
+			mCommittedCtrl = mStillStream ? mStillStream->cur_ctrl : *ctrl;
+			mHasCommittedCtrl = true;
+		}
+		pthread_mutex_unlock(&preview_mutex);
 		pthread_create(&capture_thread, NULL, capture_thread_func, (void *)this);
 
 #if LOCAL_DEBUG
 		LOGI("Streaming...");
 #endif
-		if (frameMode) {
+		if (isEncodedMode(frameMode)) {
+			// H.264/H.265 mode, we have no decoder here and just pass through frames to Java
+			do_preview_encoded();
+		} else if (frameMode) {
 			// MJPEG mode
+			JavaVM *vm = getVM();
+			JNIEnv *env;
+			// attach to JavaVM to pass through original MJPEG frames via IEncodedFrameCallback
+			vm->AttachCurrentThread(&env, NULL);
 			for ( ; LIKELY(isRunning()) ; ) {
-				frame_mjpeg = waitPreviewFrame();
+				// in polling mode, decode the frame that libuvc owns directly without copying
+				frame_mjpeg = mStreamHandle ? pollPreviewFrame(true) : waitPreviewFrame();
 				if (LIKELY(frame_mjpeg)) {
-					frame = get_frame(frame_mjpeg->width * frame_mjpeg->height * 2);
-					result = uvc_mjpeg2yuyv(frame_mjpeg, frame);   // MJPEG => yuyv
-					recycle_frame(frame_mjpeg);
+					if (UNLIKELY(mSnapshotRequested)) {
+						keep_snapshot(frame_mjpeg);
+					}
+					if (mEncodedFrameCallbackObj) {
+						do_mjpeg_callback(env, frame_mjpeg);
+					}
+					frame = get_frame(FRAME_POOL_YUYV, frame_mjpeg->width * frame_mjpeg->height * 2);
+					result = LIKELY(frame) ? uvc_mjpeg2yuyv(frame_mjpeg, frame) : UVC_ERROR_NO_MEM;   // MJPEG => yuyv
+					releasePreviewFrame(frame_mjpeg);
 					if (LIKELY(!result)) {
 						frame = draw_preview_one(frame, &mPreviewWindow, uvc_any2rgbx, 4);
 						addCaptureFrame(frame);
@@ -540,11 +1497,17 @@ void UVCPreview::do_preview(uvc_stream_ctrl_t *ctrl) {
 					}
 				}
 			}
+			// detach from JavaVM
+			vm->DetachCurrentThread();
+			MARK("DetachCurrentThread");
 		} else {
 			// yuvyv mode
 			for ( ; LIKELY(isRunning()) ; ) {
 				frame = waitPreviewFrame();
 				if (LIKELY(frame)) {
+					if (UNLIKELY(mSnapshotRequested)) {
+						keep_snapshot(frame);
+					}
 					frame = draw_preview_one(frame, &mPreviewWindow, uvc_any2rgbx, 4);
 					addCaptureFrame(frame);
 				}
@@ -554,7 +1517,21 @@ void UVCPreview::do_preview(uvc_stream_ctrl_t *ctrl) {
 #if LOCAL_DEBUG
 		LOGI("preview_thread_func:wait for all callbacks complete");
 #endif
+		// let still image capture in progress return immediately instead of waiting for its timeout
+		uvc_stream_cancel_still(mStreamHandle ? mStreamHandle : mDeviceHandle->streams);
+		pthread_mutex_lock(&still_mutex);
+		{
+			// wait for completion of still image capture if it is in progress
+			mStillStream = NULL;
+		}
+		pthread_mutex_unlock(&still_mutex);
+		mStreamHandle = NULL;
 		uvc_stop_streaming(mDeviceHandle);
+		pthread_mutex_lock(&preview_mutex);
+		{
+			mHasCommittedCtrl = false;
+		}
+		pthread_mutex_unlock(&preview_mutex);
 #if LOCAL_DEBUG
 		LOGI("Streaming finished");
 #endif
@@ -565,6 +1542,150 @@ void UVCPreview::do_preview(uvc_stream_ctrl_t *ctrl) {
 	EXIT();
 }
 
+/**
+ * scan H.264/H.265 Annex-B byte stream in a frame and find NAL units
+ * @param data
+ * @param bytes
+ * @param hevc true: H.265, false: H.264
+ * @param offset [out] offset of first start code, data before this should be skipped
+ * @param length [out] length of byte stream from offset without trailing zero bytes
+ * @return combination of ENCODED_FLAG_XXX, -1 if no start code found
+ */
+static int parse_nal_units(const uint8_t *data, const size_t bytes, const bool hevc,
+	size_t *offset, size_t *length) {
+
+	int flags = -1;
+	size_t first = bytes;
+	for (size_t i = 0; i + 3 < bytes; ) {
+		if (data[i + 2] > 1) {
+			// data[i], data[i+1] and data[i+2] can not be a head of start code
+			i += 3;
+		} else if (!data[i] && !data[i + 1] && (data[i + 2] == 1)) {
+			if (flags < 0) {
+				// include leading zero of 4 bytes start code
+				first = (i && !data[i - 1]) ? i - 1 : i;
+				flags = 0;
+			}
+			const uint8_t header = data[i + 3];
+			if (hevc) {
+				const int type = (header >> 1) & 0x3f;
+				if ((type >= 16) && (type <= 21)) {
+					flags |= ENCODED_FLAG_KEY_FRAME;	// BLA/IDR/CRA
+				} else if ((type >= 32) && (type <= 34)) {
+					flags |= ENCODED_FLAG_CODEC_CONFIG;	// VPS/SPS/PPS
+				}
+			} else {
+				const int type = header & 0x1f;
+				if (type == 5) {
+					flags |= ENCODED_FLAG_KEY_FRAME;	// IDR
+				} else if ((type == 7) || (type == 8)) {
+					flags |= ENCODED_FLAG_CODEC_CONFIG;	// SPS/PPS
+				}
+			}
+			i += 4;
+		} else {
+			i++;
+		}
+	}
+	if (flags >= 0) {
+		size_t last = bytes;
+		for ( ; (last > first) && !data[last - 1]; last--) {}
+		*offset = first;
+		*length = last - first;
+	}
+	return flags;
+}
+
+/**
+ * preview loop for H.264/H.265 mode
+ * this thread attaches to JavaVM and calls IEncodedFrameCallback#onEncodedFrame directly
+ * to keep frame order and to avoid extra copying/thread hopping.
+ */
+void UVCPreview::do_preview_encoded() {
+	ENTER();
+
+	JavaVM *vm = getVM();
+	JNIEnv *env;
+	// attach to JavaVM
+	vm->AttachCurrentThread(&env, NULL);
+	mEncodedFrameDropped = true;	// wait for first key frame
+	for ( ; LIKELY(isRunning()) ; ) {
+		uvc_frame_t *frame = waitPreviewFrame();
+		if (LIKELY(frame)) {
+			do_encoded_callback(env, frame);
+			recycle_frame(frame);
+		}
+	}
+	// detach from JavaVM
+	vm->DetachCurrentThread();
+	MARK("DetachCurrentThread");
+
+	EXIT();
+}
+
+/**
+ * call IEncodedFrameCallback#onEncodedFrame if needs
+ */
+void UVCPreview::do_encoded_callback(JNIEnv *env, uvc_frame_t *frame) {
+	size_t offset = 0, length = 0;
+	const int flags = parse_nal_units((const uint8_t *)frame->data, frame->actual_bytes,
+		frameMode == FRAME_FORMAT_H265, &offset, &length);
+	if (UNLIKELY(flags < 0)) {
+#if LOCAL_DEBUG
+		LOGW("no NAL unit found, actual_bytes=%d", frame->actual_bytes);
+#endif
+		return;
+	}
+	if (mEncodedFrameDropped) {
+		// skip until next key frame, codec config is always passed through
+		if (!(flags & (ENCODED_FLAG_KEY_FRAME | ENCODED_FLAG_CODEC_CONFIG))) return;
+		if (flags & ENCODED_FLAG_KEY_FRAME) {
+			mEncodedFrameDropped = false;
+		}
+	}
+	call_encoded_callback(env, (uint8_t *)frame->data + offset, length, flags, frame->capture_time);
+}
+
+/**
+ * pass through original MJPEG frame(before decoding) to IEncodedFrameCallback#onEncodedFrame
+ * every MJPEG frame is a key frame. trailing padding after EOI marker is removed
+ * and frames that do not start with SOI marker are ignored.
+ */
+void UVCPreview::do_mjpeg_callback(JNIEnv *env, uvc_frame_t *frame) {
+	const uint8_t *data = (const uint8_t *)frame->data;
+	size_t bytes = frame->actual_bytes;
+	if (UNLIKELY((bytes < 4) || (data[0] != 0xff) || (data[1] != 0xd8))) {
+#if LOCAL_DEBUG
+		LOGW("not a JPEG frame, actual_bytes=%d", bytes);
+#endif
+		return;
+	}
+	for (size_t i = bytes; i >= 4; i--) {
+		if ((data[i - 2] == 0xff) && (data[i - 1] == 0xd9)) {
+			bytes = i;
+			break;
+		}
+	}
+	call_encoded_callback(env, (uint8_t *)frame->data, bytes, ENCODED_FLAG_KEY_FRAME, frame->capture_time);
+}
+
+void UVCPreview::call_encoded_callback(JNIEnv *env, uint8_t *data, const size_t bytes,
+	const int flags, const struct timeval &capture_time) {
+
+	const jlong pts_us = (jlong)capture_time.tv_sec * 1000000LL + capture_time.tv_usec;
+	pthread_mutex_lock(&encoded_callback_mutex);
+	{
+		if (mEncodedFrameCallbackObj) {
+			jobject buf = env->NewDirectByteBuffer(data, bytes);
+			env->CallVoidMethod(mEncodedFrameCallbackObj,
+				iencodedframecallback_fields.onEncodedFrame, buf, (jint)flags, pts_us);
+			env->ExceptionClear();
+			env->DeleteLocalRef(buf);
+		}
+	}
+	pthread_mutex_unlock(&encoded_callback_mutex);
+}
+
 static void copyFrame(const uint8_t *src, uint8_t *dest, const int width, int height, const int stride_src, const int stride_dest) {
 	const int h8 = height % 8;
 	for (int i = 0; i < h8; i++) {
@@ -636,7 +1757,7 @@ uvc_frame_t *UVCPreview::draw_preview_one(uvc_frame_t *frame, ANativeWindow **wi
 	if (LIKELY(b)) {
 		uvc_frame_t *converted;
 		if (convert_func) {
-			converted = get_frame(frame->width * frame->height * pixcelBytes);
+			converted = get_frame(FRAME_POOL_RGBX, frame->width * frame->height * pixcelBytes);
 			if LIKELY(converted) {
 				b = convert_func(frame, converted);
 				if (!b) {
@@ -755,6 +1876,8 @@ void *UVCPreview::capture_thread_func(void *vptr_args) {
 	ENTER();
 	UVCPreview *preview = reinterpret_cast<UVCPreview *>(vptr_args);
 	if (LIKELY(preview)) {
+		preview->capture_tid = gettid();
+		uvc_apply_thread_config(preview->capture_tid, &preview->mCaptureThreadConfig);
 		JavaVM *vm = getVM();
 		JNIEnv *env;
 		// attach to JavaVM
@@ -763,6 +1886,7 @@ void *UVCPreview::capture_thread_func(void *vptr_args) {
 		// detach from JavaVM
 		vm->DetachCurrentThread();
 		MARK("DetachCurrentThread");
+		preview->capture_tid = 0;
 	}
 	PRE_EXIT();
 	pthread_exit(NULL);
@@ -815,7 +1939,7 @@ void UVCPreview::do_capture_surface(JNIEnv *env) {
 			// frame data is always YUYV format.
 			if LIKELY(isCapturing()) {
 				if (UNLIKELY(!converted)) {
-					converted = get_frame(previewBytes);
+					converted = get_frame(FRAME_POOL_RGBX, previewBytes);
 				}
 				if (LIKELY(converted)) {
 					int b = uvc_any2rgbx(frame, converted);
@@ -848,9 +1972,17 @@ void UVCPreview::do_capture_callback(JNIEnv *env, uvc_frame_t *frame) {
 
 	if (LIKELY(frame)) {
 		uvc_frame_t *callback_frame = frame;
+		// keep capture time here because conversion does not always copy it
+		const jlong pts_us = (jlong)frame->capture_time.tv_sec * 1000000LL + frame->capture_time.tv_usec;
 		if (mFrameCallbackObj) {
+			if (iframecallback_fields.onObtainBuffer) {
+				// convert directly into the buffer that Java side supplied
+				do_capture_callback_direct(env, frame, pts_us);
+				goto SKIP;
+			}
 			if (mFrameCallbackFunc) {
-				callback_frame = get_frame(callbackPixelBytes);
+				callback_frame = get_frame(
+					mPixelFormat == PIXEL_FORMAT_RGBX ? FRAME_POOL_RGBX : FRAME_POOL_CALLBACK, callbackPixelBytes);
 				if (LIKELY(callback_frame)) {
 					int b = mFrameCallbackFunc(frame, callback_frame);
 					recycle_frame(frame);
@@ -865,7 +1997,11 @@ void UVCPreview::do_capture_callback(JNIEnv *env, uvc_frame_t *frame) {
 				}
 			}
 			jobject buf = env->NewDirectByteBuffer(callback_frame->data, callbackPixelBytes);
-			env->CallVoidMethod(mFrameCallbackObj, iframecallback_fields.onFrame, buf);
+			if (iframecallback_fields.onFrameWithTime) {
+				env->CallVoidMethod(mFrameCallbackObj, iframecallback_fields.onFrameWithTime, buf, pts_us);
+			} else {
+				env->CallVoidMethod(mFrameCallbackObj, iframecallback_fields.onFrame, buf);
+			}
 			env->ExceptionClear();
 			env->DeleteLocalRef(buf);
 		}
@@ -874,3 +2010,45 @@ void UVCPreview::do_capture_callback(JNIEnv *env, uvc_frame_t *frame) {
 	}
 	EXIT();
 }
+
+/**
+* call IFrameBufferCallback#onObtainBuffer and convert the frame into the returned buffer
+* (e.g. input buffer of MediaCodec) without intermediate callback frame,
+* then call IFrameBufferCallback#onFrameWritten.
+*/
+void UVCPreview::do_capture_callback_direct(JNIEnv *env, uvc_frame_t *frame, const jlong pts_us) {
+	jobject buf = env->CallObjectMethod(mFrameCallbackObj, iframecallback_fields.onObtainBuffer, (jint)callbackPixelBytes);
+	env->ExceptionClear();
+	if (!buf) {
+		// no buffer is available now, drop this frame
+		return;
+	}
+	jint bytes = -1;
+	uint8_t *dest = (uint8_t *)env->GetDirectBufferAddress(buf);
+	const jlong capacity = env->GetDirectBufferCapacity(buf);
+	if (LIKELY(dest && (capacity >= (jlong)callbackPixelBytes))) {
+		if (mFrameCallbackFunc) {
+			uvc_frame_t dest_frame;
+			memset(&dest_frame, 0, sizeof(dest_frame));
+			// buffer of Java side, libuvc never reallocate it
+			dest_frame.data = dest;
+			dest_frame.data_bytes = dest_frame.alloc_bytes = (size_t)capacity;
+			dest_frame.library_owns_data = 0;
+			if (LIKELY(!mFrameCallbackFunc(frame, &dest_frame))) {
+				bytes = callbackPixelBytes;
+			} else {
+				LOGW("failed to convert into callback buffer");
+			}
+		} else {
+			const size_t sz = frame->data_bytes < callbackPixelBytes ? frame->data_bytes : callbackPixelBytes;
+			memcpy(dest, frame->data, sz);
+			bytes = (jint)sz;
+		}
+	} else {
+		LOGW("callback buffer is not direct or too small:capacity=%lld", (long long)capacity);
+	}
+	// always return the buffer to Java side even if failed(bytes < 0)
+	env->CallVoidMethod(mFrameCallbackObj, iframecallback_fields.onFrameWritten, buf, bytes, pts_us);
+	env->ExceptionClear();
+	env->DeleteLocalRef(buf);
+}
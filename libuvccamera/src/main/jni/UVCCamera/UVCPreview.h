@@ -29,6 +29,8 @@
 #include <pthread.h>
 #include <android/native_window.h>
 #include "objectarray.h"
+#include "FramePool.h"
+#include "turbojpeg.h"
 
 #pragma interface
 
@@ -48,11 +50,54 @@ typedef uvc_error_t (*convFunc_t)(uvc_frame_t *in, uvc_frame_t *out);
 #define PIXEL_FORMAT_YUV20SP 4
 #define PIXEL_FORMAT_NV21 5		// YVU420SemiPlanar
 
+// same value as UVCCamera#FRAME_FORMAT_XXX on Java side
+#define FRAME_FORMAT_YUYV 0
+#define FRAME_FORMAT_MJPEG 1
+#define FRAME_FORMAT_H264 2
+#define FRAME_FORMAT_H265 3
+
+// same value as IEncodedFrameCallback#FLAG_XXX on Java side
+#define ENCODED_FLAG_KEY_FRAME 0x01
+#define ENCODED_FLAG_CODEC_CONFIG 0x02
+
+// same value as UVCCamera#STREAM_MODE_XXX on Java side
+#define STREAM_MODE_CALLBACK 0
+#define STREAM_MODE_POLLING 1
+
+#define DEFAULT_STILL_TIMEOUT_MS 3000
+#define DEFAULT_SNAPSHOT_QUALITY 90
+// streaming is really stopped when preview is kept paused longer than this, 0 to keep streaming
+#define DEFAULT_IDLE_TIMEOUT_MS 10000
+
+// index of values that #getStreamInfo writes
+#define STREAM_INFO_FRAME_INTERVAL 0		// committed dwFrameInterval[100ns]
+#define STREAM_INFO_MAX_VIDEO_FRAME_SIZE 1	// committed dwMaxVideoFrameSize[bytes]
+#define STREAM_INFO_MAX_PAYLOAD_SIZE 2		// committed dwMaxPayloadTransferSize[bytes]
+#define STREAM_INFO_WIDTH 3
+#define STREAM_INFO_HEIGHT 4
+#define STREAM_INFO_MEASURED_FPS 5			// measured frame rate x 1000
+#define STREAM_INFO_FIRST_FRAME_LATENCY 6	// from #startPreview to first frame on preview thread[us], 0 if not measured yet
+#define STREAM_INFO_NUM 7
+
+// same value as UVCCamera#THREAD_XXX on Java side
+#define THREAD_USB_EVENT 0
+#define THREAD_STREAM_CALLBACK 1
+#define THREAD_PREVIEW 2
+#define THREAD_CAPTURE 3
+#define THREAD_TYPE_COUNT 4
+
 // for callback to Java object
 typedef struct {
 	jmethodID onFrame;
+	jmethodID onFrameWithTime;	// ITimestampedFrameCallback#onFrame, NULL if not implemented
+	jmethodID onObtainBuffer;	// IFrameBufferCallback#onObtainBuffer, NULL if not implemented
+	jmethodID onFrameWritten;	// IFrameBufferCallback#onFrameWritten
 } Fields_iframecallback;
 
+typedef struct {
+	jmethodID onEncodedFrame;
+} Fields_iencodedframecallback;
+
 class UVCPreview {
 private:
 	uvc_device_handle_t *mDeviceHandle;
@@ -60,6 +105,7 @@ private:
 	volatile bool mIsRunning;
 	int requestWidth, requestHeight, requestMode;
 	int requestMinFps, requestMaxFps;
+	uint32_t requestFrameInterval;	// 100ns units, 0 to select from requestMinFps/requestMaxFps
 	float requestBandwidth;
 	int frameWidth, frameHeight;
 	int frameMode;
@@ -82,23 +128,80 @@ private:
 	Fields_iframecallback iframecallback_fields;
 	int mPixelFormat;
 	size_t callbackPixelBytes;
+// for H.264/H.265 pass through
+	pthread_mutex_t encoded_callback_mutex;
+	jobject mEncodedFrameCallbackObj;
+	Fields_iencodedframecallback iencodedframecallback_fields;
+	volatile bool mEncodedFrameDropped;
+// scheduling parameters of preview/capture thread
+	uvc_thread_config_t mPreviewThreadConfig;
+	uvc_thread_config_t mCaptureThreadConfig;
+	volatile pid_t preview_tid;
+	volatile pid_t capture_tid;
+// for polling mode
+	int requestStreamMode;
+	uvc_stream_handle_t *mStreamHandle;		// only available while streaming in polling mode
+	int64_t mLastSequence;
+// latency from completion of frame in libuvc to preview thread
+	int64_t mLatencyFrames;
+	int64_t mLatencySumUs;
+	int64_t mLatencyMaxUs;
+	int64_t mFirstFrameUs;
+	int64_t mLastFrameUs;
+	int64_t mStartPreviewUs;		// non-zero until first frame arrives after #startPreview
+	int64_t mFirstFrameLatencyUs;
+// copy of stream control that was committed to the camera, guarded by preview_mutex
+	uvc_stream_ctrl_t mCommittedCtrl;
+	bool mHasCommittedCtrl;
+// for pause/resume, frames are dropped in the callback while paused and USB stream is kept
+	volatile bool mIsPaused;
+	volatile bool mIdleStopped;		// streaming was stopped by idle timeout while paused
+	int mIdleTimeoutMs;
+	int64_t mPausedTimeUs;
+// for live format switch, stream control that was probed beforehand is committed on next start
+	uvc_stream_ctrl_t mPendingCtrl;	// guarded by preview_mutex
+	bool mHasPendingCtrl;
+	int64_t mSwitchStartUs;			// non-zero until first frame arrives after switching
+	int64_t mLastSwitchGapUs;		// -1 if not measured yet
+// for still image capture(method 2/3)
+	pthread_mutex_t still_mutex;
+	uvc_stream_handle_t *mStillStream;		// stream handle while streaming, guarded by still_mutex
+// for snapshot from the latest frame, preview thread copies one frame only when requested
+	pthread_mutex_t snapshot_mutex;			// serialize #captureSnapshot, guards encoder and work buffer
+	pthread_mutex_t snapshot_frame_mutex;
+	pthread_cond_t snapshot_sync;
+	volatile bool mSnapshotRequested;
+	uvc_frame_t *mSnapshotFrame;			// guarded by snapshot_frame_mutex
+	tjhandle mSnapshotEncoder;
+	uint8_t *mSnapshotPlanes;				// work buffer for planar YUV422
+	size_t mSnapshotPlanesBytes;
+	void keep_snapshot(uvc_frame_t *frame);
+	int encode_snapshot(uvc_frame_t *frame, const int quality, uint8_t *dst, const size_t dst_bytes, size_t *bytes);
 // improve performance by reducing memory allocation
-	pthread_mutex_t pool_mutex;
-	ObjectArray<uvc_frame_t *> mFramePool;
-	uvc_frame_t *get_frame(size_t data_bytes);
-	void recycle_frame(uvc_frame_t *frame);
-	void init_pool(size_t data_bytes);
-	void clear_pool();
+	FramePool mFramePool;
+	inline uvc_frame_t *get_frame(const int size_class, size_t data_bytes) { return mFramePool.get(size_class, data_bytes); }
+	inline void recycle_frame(uvc_frame_t *frame) { mFramePool.recycle(frame); }
+	void prepare_pool(const uvc_stream_ctrl_t *ctrl, const int mode, const int width, const int height);
 //
 	void clearDisplay();
 	static void uvc_preview_frame_callback(uvc_frame_t *frame, void *vptr_args);
 	void addPreviewFrame(uvc_frame_t *frame);
+	bool checkFrame(const uvc_frame_t *frame);
 	uvc_frame_t *waitPreviewFrame();
+	uvc_frame_t *pollPreviewFrame(const bool borrow);
+	void releasePreviewFrame(uvc_frame_t *frame);
+	void update_latency(const uvc_frame_t *frame);
 	void clearPreviewFrame();
+	void waitWhilePaused();
+	void joinPreviewThreads();
 	static void *preview_thread_func(void *vptr_args);
 	int prepare_preview(uvc_stream_ctrl_t *ctrl);
 	void do_preview(uvc_stream_ctrl_t *ctrl);
 	uvc_frame_t *draw_preview_one(uvc_frame_t *frame, ANativeWindow **window, convFunc_t func, int pixelBytes);
+	void do_preview_encoded();
+	void do_encoded_callback(JNIEnv *env, uvc_frame_t *frame);
+	void do_mjpeg_callback(JNIEnv *env, uvc_frame_t *frame);
+	void call_encoded_callback(JNIEnv *env, uint8_t *data, const size_t bytes, const int flags, const struct timeval &capture_time);
 //
 	void addCaptureFrame(uvc_frame_t *frame);
 	uvc_frame_t *waitCaptureFrame();
@@ -108,6 +211,7 @@ private:
 	void do_capture_surface(JNIEnv *env);
 	void do_capture_idle_loop(JNIEnv *env);
 	void do_capture_callback(JNIEnv *env, uvc_frame_t *frame);
+	void do_capture_callback_direct(JNIEnv *env, uvc_frame_t *frame, const jlong pts_us);
 	void callbackPixelFormatChanged();
 public:
 	UVCPreview(uvc_device_handle_t *devh);
@@ -115,10 +219,28 @@ public:
 
 	inline const bool isRunning() const;
 	int setPreviewSize(int width, int height, int min_fps, int max_fps, int mode, float bandwidth = 1.0f);
+	int setPreviewFrameInterval(int width, int height, uint32_t frame_interval, int mode, float bandwidth = 1.0f);
+	int getStreamInfo(int *values, const int num);
+	int setMemoryQuota(size_t quota_bytes);
+	int getFramePoolStats(int64_t *values, const int num);
+	int getMemoryUsage(int64_t *values, const int num);
 	int setPreviewDisplay(ANativeWindow *preview_window);
 	int setFrameCallback(JNIEnv *env, jobject frame_callback_obj, int pixel_format);
+	int setEncodedFrameCallback(JNIEnv *env, jobject encoded_frame_callback_obj);
+	int setThreadConfig(int thread_type, const uvc_thread_config_t &config);
+	int setStreamMode(int stream_mode);
+	int getDeliveryLatency(int64_t *frames, int64_t *average_us, int64_t *max_us);
+	int captureStill(int width, int height, int timeout_ms, uint8_t **data, size_t *bytes);
+	size_t getSnapshotBufferSize();
+	int captureSnapshot(int quality, int timeout_ms, uint8_t *dst, size_t dst_bytes, size_t *bytes, int64_t *pts_us);
 	int startPreview();
 	int stopPreview();
+	int pausePreview();
+	int resumePreview();
+	int setIdleTimeout(int idle_timeout_ms);
+	int switchFormat(int width, int height, int mode, int fps);
+	int64_t getLastSwitchGap();
+	inline const bool isPaused() const { return mIsPaused; }
 	inline const bool isCapturing() const;
 	int setCaptureDisplay(ANativeWindow *capture_window);
 };
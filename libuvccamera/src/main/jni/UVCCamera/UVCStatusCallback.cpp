@@ -7,9 +7,12 @@
 
 #define	LOCAL_DEBUG 0
 
-UVCStatusCallback::UVCStatusCallback(uvc_device_handle_t *devh)
+UVCStatusCallback::UVCStatusCallback(uvc_device_handle_t *devh, UVCEventQueue *queue)
 :	mDeviceHandle(devh),
-	mStatusCallbackObj(NULL) {
+	mEventQueue(queue),
+	mStatusCallbackObj(NULL),
+	mListener(NULL),
+	mListenerPtr(NULL) {
 
 	ENTER();
 	pthread_mutex_init(&status_mutex, NULL);
@@ -21,6 +24,9 @@ UVCStatusCallback::UVCStatusCallback(uvc_device_handle_t *devh)
 UVCStatusCallback::~UVCStatusCallback() {
 
 	ENTER();
+	uvc_set_status_callback(mDeviceHandle, NULL, NULL);
+	// 未配信のイベントを破棄して配信中なら終わるまで待つ
+	mEventQueue->cancel(this);
 	pthread_mutex_destroy(&status_mutex);
 	EXIT();
 }
@@ -58,30 +64,61 @@ int UVCStatusCallback::setCallback(JNIEnv *env, jobject status_callback_obj) {
 	RETURN(0, int);
 }
 
-void UVCStatusCallback::notifyStatusCallback(JNIEnv* env, uvc_status_class status_class, int event, int selector, uvc_status_attribute status_attribute, void *data, size_t data_len) {
+/**
+ * Java側のコールバックとは別にネイティブ側でステータス通知を受け取る
+ * UVCCameraがコントロール値のキャッシュを無効化するのに使う
+ */
+void UVCStatusCallback::setListener(status_listener_t listener, void *user_ptr) {
+	ENTER();
+	pthread_mutex_lock(&status_mutex);
+	{
+		mListener = listener;
+		mListenerPtr = user_ptr;
+	}
+	pthread_mutex_unlock(&status_mutex);
+	EXIT();
+}
+
+/**
+ * Java側のコールバックを呼び出す, UVCEventQueueの配信スレッドから呼ばれる
+ * @param buf ペイロードをラップした使い回しのByteBuffer, NULLなら毎回生成する
+ */
+void UVCStatusCallback::notifyStatusCallback(JNIEnv* env, const uvc_event_t *event, jobject buf) {
 
 	pthread_mutex_lock(&status_mutex);
 	{
 		if (mStatusCallbackObj) {
-			jobject buf = env->NewDirectByteBuffer(data, data_len);
-			env->CallVoidMethod(mStatusCallbackObj, istatuscallback_fields.onStatus, (int)status_class, event, selector, (int)status_attribute, buf);
+			jobject local = buf ? NULL : env->NewDirectByteBuffer((void *)event->data, event->data_len);
+			env->CallVoidMethod(mStatusCallbackObj, istatuscallback_fields.onStatus,
+				event->status_class, event->event, event->selector, event->status_attribute, buf ? buf : local);
 			env->ExceptionClear();
-			env->DeleteLocalRef(buf);
+			if (local) env->DeleteLocalRef(local);
 		}
 	}
 	pthread_mutex_unlock(&status_mutex);
 }
 
+/*static*/
+void UVCStatusCallback::dispatch_status(void *target, JNIEnv *env, const uvc_event_t *event, jobject buf) {
+	UVCStatusCallback *statusCallback = reinterpret_cast<UVCStatusCallback *>(target);
+	statusCallback->notifyStatusCallback(env, event, buf);
+}
+
 void UVCStatusCallback::uvc_status_callback(uvc_status_class status_class, int event, int selector, uvc_status_attribute status_attribute, void *data, size_t data_len, void *user_ptr) {
 
 	UVCStatusCallback *statusCallback = reinterpret_cast<UVCStatusCallback *>(user_ptr);
 
-	JavaVM *vm = getVM();
-	JNIEnv *env;
-	// attach to JavaVM
-	vm->AttachCurrentThread(&env, NULL);
+	pthread_mutex_lock(&statusCallback->status_mutex);
+	{
+		if (statusCallback->mListener) {
+			statusCallback->mListener(statusCallback->mListenerPtr, status_class, selector, status_attribute);
+		}
+	}
+	pthread_mutex_unlock(&statusCallback->status_mutex);
 
-	statusCallback->notifyStatusCallback(env, status_class, event, selector, status_attribute, data, data_len);
-	
-	vm->DetachCurrentThread();
+	// Java側への通知はJavaVMへアタッチ済みの配信スレッドで行う
+	if (statusCallback->mStatusCallbackObj) {
+		statusCallback->mEventQueue->pushStatus(dispatch_status, statusCallback,
+			status_class, event, selector, status_attribute, data, data_len);
+	}
 }
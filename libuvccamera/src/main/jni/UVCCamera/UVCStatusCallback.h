@@ -5,9 +5,13 @@
 #include <pthread.h>
 #include <android/native_window.h>
 #include "objectarray.h"
+#include "UVCEventQueue.h"
 
 #pragma interface
 
+// ステータス通知をネイティブ側で受け取るためのリスナー(JNI呼び出しの前に呼ばれる)
+typedef void (*status_listener_t)(void *user_ptr, uvc_status_class status_class, int selector, uvc_status_attribute status_attribute);
+
 // for callback to Java object
 typedef struct {
 	jmethodID onStatus;
@@ -16,16 +20,21 @@ typedef struct {
 class UVCStatusCallback {
 private:
 	uvc_device_handle_t *mDeviceHandle;
+	UVCEventQueue *mEventQueue;
  	pthread_mutex_t status_mutex;
  	jobject mStatusCallbackObj;
  	Fields_istatuscallback istatuscallback_fields;
- 	void notifyStatusCallback(JNIEnv *env, uvc_status_class status_class, int event, int selector, uvc_status_attribute status_attribute, void *data, size_t data_len);
+ 	status_listener_t mListener;
+ 	void *mListenerPtr;
+ 	void notifyStatusCallback(JNIEnv *env, const uvc_event_t *event, jobject buf);
+ 	static void dispatch_status(void *target, JNIEnv *env, const uvc_event_t *event, jobject buf);
  	static void uvc_status_callback(uvc_status_class status_class, int event, int selector, uvc_status_attribute status_attribute, void *data, size_t data_len, void *user_ptr);
 public:
-	UVCStatusCallback(uvc_device_handle_t *devh);
+	UVCStatusCallback(uvc_device_handle_t *devh, UVCEventQueue *queue);
 	~UVCStatusCallback();
 
 	int setCallback(JNIEnv *env, jobject status_callback_obj);
+	void setListener(status_listener_t listener, void *user_ptr);
 };
 
 #endif /* UVCSTATUSCALLBACK_H_ */
@@ -213,6 +213,34 @@ static jobject nativeGetSupportedSize(JNIEnv *env, jobject thiz,
 	RETURN(result, jobject);
 }
 
+// フォーマット/フレームサイズ等をint配列で、カメラコントロール/プロセッシングユニットのサポートフラグをcontrolsで返す
+static jintArray nativeGetCapabilities(JNIEnv *env, jobject thiz,
+	ID_TYPE id_camera, jlongArray controls) {
+
+	ENTER();
+	jintArray result = NULL;
+	UVCCamera *camera = reinterpret_cast<UVCCamera *>(id_camera);
+	if (LIKELY(camera)) {
+		int length = 0;
+		int *caps = camera->getCapabilities(&length);
+		if (LIKELY(caps)) {
+			result = env->NewIntArray(length);
+			if (LIKELY(result)) {
+				env->SetIntArrayRegion(result, 0, length, (const jint *)caps);
+			}
+			free(caps);
+		}
+		if (controls && (env->GetArrayLength(controls) >= 2)) {
+			uint64_t ctrl_supports = 0, proc_supports = 0;
+			camera->getCtrlSupports(&ctrl_supports);
+			camera->getProcSupports(&proc_supports);
+			const jlong values[2] = { (jlong)ctrl_supports, (jlong)proc_supports };
+			env->SetLongArrayRegion(controls, 0, 2, values);
+		}
+	}
+	RETURN(result, jintArray);
+}
+
 //======================================================================
 // プレビュー画面の大きさをセット
 static jint nativeSetPreviewSize(JNIEnv *env, jobject thiz,
@@ -226,6 +254,19 @@ static jint nativeSetPreviewSize(JNIEnv *env, jobject thiz,
 	RETURN(JNI_ERR, jint);
 }
 
+// フレーム間隔を指定してプレビュー画面の大きさをセット
+static jint nativeSetPreviewFrameInterval(JNIEnv *env, jobject thiz,
+	ID_TYPE id_camera, jint width, jint height, jint frame_interval, jint mode, jfloat bandwidth) {
+
+	jint result = JNI_ERR;
+	ENTER();
+	UVCCamera *camera = reinterpret_cast<UVCCamera *>(id_camera);
+	if (LIKELY(camera && (frame_interval > 0))) {
+		result = camera->setPreviewFrameInterval(width, height, (uint32_t)frame_interval, mode, bandwidth);
+	}
+	RETURN(result, jint);
+}
+
 static jint nativeStartPreview(JNIEnv *env, jobject thiz,
 	ID_TYPE id_camera) {
 
@@ -250,6 +291,71 @@ static jint nativeStopPreview(JNIEnv *env, jobject thiz,
 	RETURN(result, jint);
 }
 
+// USBのストリームを維持したままプレビューを一時停止
+static jint nativePausePreview(JNIEnv *env, jobject thiz,
+	ID_TYPE id_camera) {
+
+	jint result = JNI_ERR;
+	ENTER();
+	UVCCamera *camera = reinterpret_cast<UVCCamera *>(id_camera);
+	if (LIKELY(camera)) {
+		result = camera->pausePreview();
+	}
+	RETURN(result, jint);
+}
+
+// 一時停止したプレビューを再開
+static jint nativeResumePreview(JNIEnv *env, jobject thiz,
+	ID_TYPE id_camera) {
+
+	jint result = JNI_ERR;
+	ENTER();
+	UVCCamera *camera = reinterpret_cast<UVCCamera *>(id_camera);
+	if (LIKELY(camera)) {
+		result = camera->resumePreview();
+	}
+	RETURN(result, jint);
+}
+
+// 一時停止中にストリームを停止するまでの時間を設定
+static jint nativeSetIdleTimeout(JNIEnv *env, jobject thiz,
+	ID_TYPE id_camera, jint idle_timeout_ms) {
+
+	jint result = JNI_ERR;
+	ENTER();
+	UVCCamera *camera = reinterpret_cast<UVCCamera *>(id_camera);
+	if (LIKELY(camera)) {
+		result = camera->setIdleTimeout(idle_timeout_ms);
+	}
+	RETURN(result, jint);
+}
+
+// プレビュー中に解像度/フレームフォーマットを切り替える
+static jint nativeSwitchFormat(JNIEnv *env, jobject thiz,
+	ID_TYPE id_camera, jint width, jint height, jint mode, jint fps) {
+
+	jint result = JNI_ERR;
+	ENTER();
+	UVCCamera *camera = reinterpret_cast<UVCCamera *>(id_camera);
+	if (LIKELY(camera)) {
+		result = camera->switchFormat(width, height, mode, fps);
+	}
+	RETURN(result, jint);
+}
+
+// 最後の切り替えで映像が途切れていた時間を取得
+static jlong nativeGetLastSwitchGap(JNIEnv *env, jobject thiz,
+	ID_TYPE id_camera) {
+
+	jlong result = -1;
+	ENTER();
+	UVCCamera *camera = reinterpret_cast<UVCCamera *>(id_camera);
+	if (LIKELY(camera)) {
+		result = camera->getLastSwitchGap();
+	}
+	RETURN(result, jlong);
+}
+
 static jint nativeSetPreviewDisplay(JNIEnv *env, jobject thiz,
 	ID_TYPE id_camera, jobject jSurface) {
 
@@ -276,6 +382,19 @@ static jint nativeSetFrameCallback(JNIEnv *env, jobject thiz,
 	RETURN(result, jint);
 }
 
+static jint nativeSetEncodedFrameCallback(JNIEnv *env, jobject thiz,
+	ID_TYPE id_camera, jobject jIEncodedFrameCallback) {
+
+	jint result = JNI_ERR;
+	ENTER();
+	UVCCamera *camera = reinterpret_cast<UVCCamera *>(id_camera);
+	if (LIKELY(camera)) {
+		jobject encoded_frame_callback_obj = env->NewGlobalRef(jIEncodedFrameCallback);
+		result = camera->setEncodedFrameCallback(env, encoded_frame_callback_obj);
+	}
+	RETURN(result, jint);
+}
+
 static jint nativeSetCaptureDisplay(JNIEnv *env, jobject thiz,
 	ID_TYPE id_camera, jobject jSurface) {
 
@@ -289,6 +408,334 @@ static jint nativeSetCaptureDisplay(JNIEnv *env, jobject thiz,
 	RETURN(result, jint);
 }
 
+// スレッドのスケジューリングパラメータを設定する
+static jint nativeSetThreadConfig(JNIEnv *env, jobject thiz,
+	ID_TYPE id_camera, jint thread_type, jint policy, jint priority, jlong affinity_mask) {
+
+	jint result = JNI_ERR;
+	ENTER();
+	UVCCamera *camera = reinterpret_cast<UVCCamera *>(id_camera);
+	if (LIKELY(camera)) {
+		result = camera->setThreadConfig(thread_type, policy, priority, (uint64_t)affinity_mask);
+	}
+	RETURN(result, jint);
+}
+
+static jint nativeSetStreamMode(JNIEnv *env, jobject thiz,
+	ID_TYPE id_camera, jint stream_mode) {
+
+	jint result = JNI_ERR;
+	ENTER();
+	UVCCamera *camera = reinterpret_cast<UVCCamera *>(id_camera);
+	if (LIKELY(camera)) {
+		result = camera->setStreamMode(stream_mode);
+	}
+	RETURN(result, jint);
+}
+
+static jint nativeGetDeliveryLatency(JNIEnv *env, jobject thiz,
+	ID_TYPE id_camera, jlongArray latency) {
+
+	jint result = JNI_ERR;
+	ENTER();
+	UVCCamera *camera = reinterpret_cast<UVCCamera *>(id_camera);
+	if (LIKELY(camera && latency && (env->GetArrayLength(latency) >= 3))) {
+		int64_t frames, average_us, max_us;
+		result = camera->getDeliveryLatency(&frames, &average_us, &max_us);
+		if (LIKELY(!result)) {
+			const jlong values[3] = { (jlong)frames, (jlong)average_us, (jlong)max_us };
+			env->SetLongArrayRegion(latency, 0, 3, values);
+		}
+	}
+	RETURN(result, jint);
+}
+
+// commitしたストリームコントロールの値と実測フレームレートを取得する
+static jint nativeGetStreamInfo(JNIEnv *env, jobject thiz,
+	ID_TYPE id_camera, jintArray info) {
+
+	jint result = JNI_ERR;
+	ENTER();
+	UVCCamera *camera = reinterpret_cast<UVCCamera *>(id_camera);
+	if (LIKELY(camera && info && (env->GetArrayLength(info) >= STREAM_INFO_NUM))) {
+		int values[STREAM_INFO_NUM];
+		result = camera->getStreamInfo(values, STREAM_INFO_NUM);
+		if (LIKELY(!result)) {
+			env->SetIntArrayRegion(info, 0, STREAM_INFO_NUM, (const jint *)values);
+		}
+	}
+	RETURN(result, jint);
+}
+
+// 共有メモリアリーナから確保できるバイト数(フレーム+転送バッファ)の上限を設定する, 0なら無制限
+static jint nativeSetMemoryQuota(JNIEnv *env, jobject thiz,
+	ID_TYPE id_camera, jlong quota_bytes) {
+
+	jint result = JNI_ERR;
+	ENTER();
+	UVCCamera *camera = reinterpret_cast<UVCCamera *>(id_camera);
+	if (LIKELY(camera && (quota_bytes >= 0))) {
+		result = camera->setMemoryQuota((size_t)quota_bytes);
+	}
+	RETURN(result, jint);
+}
+
+// フレームプールの確保回数/再確保回数/確保済みバイト数等を取得する
+static jint nativeGetFramePoolStats(JNIEnv *env, jobject thiz,
+	ID_TYPE id_camera, jlongArray stats) {
+
+	jint result = JNI_ERR;
+	ENTER();
+	UVCCamera *camera = reinterpret_cast<UVCCamera *>(id_camera);
+	if (LIKELY(camera && stats && (env->GetArrayLength(stats) >= FRAME_POOL_STATS_NUM))) {
+		int64_t values[FRAME_POOL_STATS_NUM];
+		result = camera->getFramePoolStats(values, FRAME_POOL_STATS_NUM);
+		if (LIKELY(!result)) {
+			jlong v[FRAME_POOL_STATS_NUM];
+			for (int i = 0; i < FRAME_POOL_STATS_NUM; i++) {
+				v[i] = (jlong)values[i];
+			}
+			env->SetLongArrayRegion(stats, 0, FRAME_POOL_STATS_NUM, v);
+		}
+	}
+	RETURN(result, jint);
+}
+
+// このカメラが共有メモリアリーナから確保しているバイト数等を取得する
+static jint nativeGetMemoryUsage(JNIEnv *env, jobject thiz,
+	ID_TYPE id_camera, jlongArray usage) {
+
+	jint result = JNI_ERR;
+	ENTER();
+	UVCCamera *camera = reinterpret_cast<UVCCamera *>(id_camera);
+	if (LIKELY(camera && usage && (env->GetArrayLength(usage) >= ARENA_USAGE_NUM))) {
+		int64_t values[ARENA_USAGE_NUM];
+		result = camera->getMemoryUsage(values, ARENA_USAGE_NUM);
+		if (LIKELY(!result)) {
+			jlong v[ARENA_USAGE_NUM];
+			for (int i = 0; i < ARENA_USAGE_NUM; i++) {
+				v[i] = (jlong)values[i];
+			}
+			env->SetLongArrayRegion(usage, 0, ARENA_USAGE_NUM, v);
+		}
+	}
+	RETURN(result, jint);
+}
+
+// 全てのカメラが共有メモリアリーナから確保できるバイト数の上限を設定する, 0なら無制限
+static jint nativeSetMemoryLimit(JNIEnv *env, jobject thiz,
+	jlong limit_bytes) {
+
+	jint result = JNI_ERR;
+	ENTER();
+	if (LIKELY(limit_bytes >= 0)) {
+		result = FrameArena::getInstance().setLimit((size_t)limit_bytes);
+	}
+	RETURN(result, jint);
+}
+
+// 共有メモリアリーナのバッファの確保方法(malloc/mmap)を設定する, カメラを開く前に呼ぶこと
+static jint nativeSetMemoryBacking(JNIEnv *env, jobject thiz,
+	jint backing) {
+
+	ENTER();
+	jint result = FrameArena::getInstance().setBacking(backing);
+	RETURN(result, jint);
+}
+
+// 共有メモリアリーナ全体の使用量を取得する
+static jint nativeGetMemoryReport(JNIEnv *env, jobject thiz,
+	jlongArray report) {
+
+	jint result = JNI_ERR;
+	ENTER();
+	if (LIKELY(report && (env->GetArrayLength(report) >= ARENA_REPORT_NUM))) {
+		int64_t values[ARENA_REPORT_NUM];
+		result = FrameArena::getInstance().getReport(values, ARENA_REPORT_NUM);
+		if (LIKELY(!result)) {
+			jlong v[ARENA_REPORT_NUM];
+			for (int i = 0; i < ARENA_REPORT_NUM; i++) {
+				v[i] = (jlong)values[i];
+			}
+			env->SetLongArrayRegion(report, 0, ARENA_REPORT_NUM, v);
+		}
+	}
+	RETURN(result, jint);
+}
+
+// 静止画キャプチャ方式を取得する
+static jint nativeGetStillCaptureMethod(JNIEnv *env, jobject thiz,
+	ID_TYPE id_camera) {
+
+	jint result = 0;
+	ENTER();
+	UVCCamera *camera = reinterpret_cast<UVCCamera *>(id_camera);
+	if (LIKELY(camera)) {
+		result = camera->getStillCaptureMethod();
+	}
+	RETURN(result, jint);
+}
+
+// 静止画キャプチャ方式2/3でJPEGを取得する, 失敗すればnullを返す
+static jbyteArray nativeCaptureStill(JNIEnv *env, jobject thiz,
+	ID_TYPE id_camera, jint width, jint height, jint timeout_ms) {
+
+	jbyteArray result = NULL;
+	ENTER();
+	UVCCamera *camera = reinterpret_cast<UVCCamera *>(id_camera);
+	if (LIKELY(camera)) {
+		uint8_t *data = NULL;
+		size_t bytes = 0;
+		const int r = camera->captureStill(width, height, timeout_ms, &data, &bytes);
+		if (LIKELY(!r && data)) {
+			result = env->NewByteArray(bytes);
+			if (LIKELY(result)) {
+				env->SetByteArrayRegion(result, 0, bytes, (const jbyte *)data);
+			}
+		} else {
+			LOGW("captureStill failed:err=%d", r);
+		}
+		if (data) {
+			free(data);
+		}
+	}
+	RETURN(result, jbyteArray);
+}
+
+// 最新フレームのスナップショット用に必要なバッファサイズを取得する
+static jint nativeGetSnapshotBufferSize(JNIEnv *env, jobject thiz,
+	ID_TYPE id_camera) {
+
+	jint result = 0;
+	ENTER();
+	UVCCamera *camera = reinterpret_cast<UVCCamera *>(id_camera);
+	if (LIKELY(camera)) {
+		result = (jint)camera->getSnapshotBufferSize();
+	}
+	RETURN(result, jint);
+}
+
+// 最新フレームをJPEGにしてDirectByteBufferへ書き込む, 戻り値はJPEGのバイト数(負ならエラー)
+// エンコードは呼び出したスレッド上で行う
+static jint nativeCaptureSnapshot(JNIEnv *env, jobject thiz,
+	ID_TYPE id_camera, jobject buffer, jint quality, jint timeout_ms, jlongArray pts) {
+
+	jint result = JNI_ERR;
+	ENTER();
+	UVCCamera *camera = reinterpret_cast<UVCCamera *>(id_camera);
+	if (LIKELY(camera && buffer)) {
+		uint8_t *dst = (uint8_t *)env->GetDirectBufferAddress(buffer);
+		const jlong capacity = env->GetDirectBufferCapacity(buffer);
+		if (LIKELY(dst && (capacity > 0))) {
+			size_t bytes = 0;
+			int64_t pts_us = 0;
+			result = camera->captureSnapshot(quality, timeout_ms, dst, (size_t)capacity, &bytes, &pts_us);
+			if (LIKELY(!result)) {
+				result = (jint)bytes;
+				if (pts && (env->GetArrayLength(pts) >= 1)) {
+					const jlong value = (jlong)pts_us;
+					env->SetLongArrayRegion(pts, 0, 1, &value);
+				}
+			} else {
+				LOGW("captureSnapshot failed:err=%d", result);
+				if (result > 0) result = -result;
+			}
+		}
+	}
+	RETURN(result, jint);
+}
+
+// 取得済みのコントロールの最小値・最大値・デフォルト値をキャッシュ用に取得する
+static jintArray nativeGetCtrlLimits(JNIEnv *env, jobject thiz,
+	ID_TYPE id_camera) {
+
+	jintArray result = NULL;
+	ENTER();
+	UVCCamera *camera = reinterpret_cast<UVCCamera *>(id_camera);
+	if (LIKELY(camera)) {
+		int values[256];
+		const int n = camera->getCtrlLimits(values, 256);
+		if (LIKELY(n > 0)) {
+			result = env->NewIntArray(n);
+			if (LIKELY(result)) {
+				env->SetIntArrayRegion(result, 0, n, (const jint *)values);
+			}
+		}
+	}
+	RETURN(result, jintArray);
+}
+
+// キャッシュしていたコントロールの最小値・最大値・デフォルト値をセットする
+static jint nativeSetCtrlLimits(JNIEnv *env, jobject thiz,
+	ID_TYPE id_camera, jintArray limits) {
+
+	jint result = JNI_ERR;
+	ENTER();
+	UVCCamera *camera = reinterpret_cast<UVCCamera *>(id_camera);
+	if (LIKELY(camera && limits)) {
+		const int n = env->GetArrayLength(limits);
+		jint *values = env->GetIntArrayElements(limits, NULL);
+		if (LIKELY(values)) {
+			result = camera->setCtrlLimits((const int *)values, n);
+			env->ReleaseIntArrayElements(limits, values, JNI_ABORT);
+		}
+	}
+	RETURN(result, jint);
+}
+
+//======================================================================
+// コントロール値のキャッシュを使うかどうかを設定
+static jint nativeSetValueCacheEnabled(JNIEnv *env, jobject thiz,
+	ID_TYPE id_camera, jboolean enabled) {
+
+	jint result = JNI_ERR;
+	ENTER();
+	UVCCamera *camera = reinterpret_cast<UVCCamera *>(id_camera);
+	if (LIKELY(camera)) {
+		result = camera->setValueCacheEnabled(enabled);
+	}
+	RETURN(result, jint);
+}
+
+// コントロール値のキャッシュが有効かどうかを取得
+static jboolean nativeIsValueCacheEnabled(JNIEnv *env, jobject thiz,
+	ID_TYPE id_camera) {
+
+	jboolean result = JNI_FALSE;
+	ENTER();
+	UVCCamera *camera = reinterpret_cast<UVCCamera *>(id_camera);
+	if (LIKELY(camera)) {
+		result = camera->isValueCacheEnabled();
+	}
+	RETURN(result, jboolean);
+}
+
+//======================================================================
+// 複数のコントロールの設定/取得を1回のJNI呼び出しで実行する
+static jint nativeExecuteControlBatch(JNIEnv *env, jobject thiz,
+	ID_TYPE id_camera, jintArray ops_array, jint num, jintArray results_array) {
+
+	jint result = JNI_ERR;
+	ENTER();
+	UVCCamera *camera = reinterpret_cast<UVCCamera *>(id_camera);
+	if (LIKELY(camera && ops_array && results_array)) {
+		if (UNLIKELY((num < 0)
+			|| (env->GetArrayLength(ops_array) < num * BATCH_OP_SIZE)
+			|| (env->GetArrayLength(results_array) < num * 2))) {
+
+			RETURN(UVC_ERROR_INVALID_PARAM, jint);
+		}
+		jint *ops = env->GetIntArrayElements(ops_array, NULL);
+		jint *results = env->GetIntArrayElements(results_array, NULL);
+		if (LIKELY(ops && results)) {
+			result = camera->executeControlBatch((const int *)ops, num, (int *)results);
+		}
+		if (results) env->ReleaseIntArrayElements(results_array, results, 0);
+		if (ops) env->ReleaseIntArrayElements(ops_array, ops, JNI_ABORT);
+	}
+	RETURN(result, jint);
+}
+
 //======================================================================
 // カメラコントロールでサポートしている機能を取得する
 static jlong nativeGetCtrlSupports(JNIEnv *env, jobject thiz,
@@ -2023,13 +2470,40 @@ static JNINativeMethod methods[] = {
 	{ "nativeSetButtonCallback",		"(JLcom/serenegiant/usb/IButtonCallback;)I", (void *) nativeSetButtonCallback },
 
 	{ "nativeGetSupportedSize",			"(J)Ljava/lang/String;", (void *) nativeGetSupportedSize },
+	{ "nativeGetCapabilities",			"(J[J)[I", (void *) nativeGetCapabilities },
+	{ "nativeGetCtrlLimits",			"(J)[I", (void *) nativeGetCtrlLimits },
+	{ "nativeSetCtrlLimits",			"(J[I)I", (void *) nativeSetCtrlLimits },
+	{ "nativeExecuteControlBatch",		"(J[II[I)I", (void *) nativeExecuteControlBatch },
+	{ "nativeSetValueCacheEnabled",		"(JZ)I", (void *) nativeSetValueCacheEnabled },
+	{ "nativeIsValueCacheEnabled",		"(J)Z", (void *) nativeIsValueCacheEnabled },
 	{ "nativeSetPreviewSize",			"(JIIIIIF)I", (void *) nativeSetPreviewSize },
+	{ "nativeSetPreviewFrameInterval",	"(JIIIIF)I", (void *) nativeSetPreviewFrameInterval },
 	{ "nativeStartPreview",				"(J)I", (void *) nativeStartPreview },
 	{ "nativeStopPreview",				"(J)I", (void *) nativeStopPreview },
+	{ "nativePausePreview",				"(J)I", (void *) nativePausePreview },
+	{ "nativeResumePreview",			"(J)I", (void *) nativeResumePreview },
+	{ "nativeSetIdleTimeout",			"(JI)I", (void *) nativeSetIdleTimeout },
+	{ "nativeSwitchFormat",				"(JIIII)I", (void *) nativeSwitchFormat },
+	{ "nativeGetLastSwitchGap",			"(J)J", (void *) nativeGetLastSwitchGap },
 	{ "nativeSetPreviewDisplay",		"(JLandroid/view/Surface;)I", (void *) nativeSetPreviewDisplay },
 	{ "nativeSetFrameCallback",			"(JLcom/serenegiant/usb/IFrameCallback;I)I", (void *) nativeSetFrameCallback },
+	{ "nativeSetEncodedFrameCallback",	"(JLcom/serenegiant/usb/IEncodedFrameCallback;)I", (void *) nativeSetEncodedFrameCallback },
 
 	{ "nativeSetCaptureDisplay",		"(JLandroid/view/Surface;)I", (void *) nativeSetCaptureDisplay },
+	{ "nativeSetThreadConfig",			"(JIIIJ)I", (void *) nativeSetThreadConfig },
+	{ "nativeSetStreamMode",			"(JI)I", (void *) nativeSetStreamMode },
+	{ "nativeGetDeliveryLatency",		"(J[J)I", (void *) nativeGetDeliveryLatency },
+	{ "nativeGetStreamInfo",			"(J[I)I", (void *) nativeGetStreamInfo },
+	{ "nativeSetMemoryQuota",		"(JJ)I", (void *) nativeSetMemoryQuota },
+	{ "nativeGetFramePoolStats",		"(J[J)I", (void *) nativeGetFramePoolStats },
+	{ "nativeGetMemoryUsage",			"(J[J)I", (void *) nativeGetMemoryUsage },
+	{ "nativeSetMemoryLimit",			"(J)I", (void *) nativeSetMemoryLimit },
+	{ "nativeGetMemoryReport",			"([J)I", (void *) nativeGetMemoryReport },
+	{ "nativeSetMemoryBacking",			"(I)I", (void *) nativeSetMemoryBacking },
+	{ "nativeGetStillCaptureMethod",	"(J)I", (void *) nativeGetStillCaptureMethod },
+	{ "nativeCaptureStill",				"(JIII)[B", (void *) nativeCaptureStill },
+	{ "nativeGetSnapshotBufferSize",	"(J)I", (void *) nativeGetSnapshotBufferSize },
+	{ "nativeCaptureSnapshot",			"(JLjava/nio/ByteBuffer;II[J)I", (void *) nativeCaptureSnapshot },
 
 	{ "nativeGetCtrlSupports",			"(J)J", (void *) nativeGetCtrlSupports },
 	{ "nativeGetProcSupports",			"(J)J", (void *) nativeGetProcSupports },
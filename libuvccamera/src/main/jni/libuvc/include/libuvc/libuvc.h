@@ -6,6 +6,7 @@ extern "C" {
 #endif
 
 #include <stdio.h> // FILE
+#include <sys/types.h> // pid_t
 #include <libusb/libusb.h>
 #include <libuvc/libuvc_config.h>
 
@@ -105,6 +106,10 @@ enum uvc_frame_format {
 	UVC_FRAME_FORMAT_MJPEG,
 	UVC_FRAME_FORMAT_GRAY8,
 	UVC_FRAME_FORMAT_BY8,
+	/** H.264 byte stream(frame based format, UVC 1.1/1.5) */
+	UVC_FRAME_FORMAT_H264,
+	/** H.265/HEVC byte stream(frame based format) */
+	UVC_FRAME_FORMAT_H265,
 	/** Number of formats understood */
 	UVC_FRAME_FORMAT_COUNT,
 };
@@ -218,8 +223,30 @@ typedef struct uvc_format_desc {
   uint8_t bVariableSize;
   /** Available frame specifications for this format */
   struct uvc_frame_desc *frame_descs;
+  /** Still image frame descriptor of this format, NULL if not available */
+  struct uvc_still_frame_desc *still_frame_desc;	// XXX added
 } uvc_format_desc_t;
 
+/** Still image size pattern */
+typedef struct uvc_still_size {
+  uint16_t wWidth;
+  uint16_t wHeight;
+} uvc_still_size_t;
+
+/** Still image frame descriptor (3.9.2.5), follows frame descriptors of a format
+ * XXX added
+ */
+typedef struct uvc_still_frame_desc {
+  struct uvc_format_desc *parent;
+  /** Bulk endpoint for still image transfer(method 3), zero for method 1/2 */
+  uint8_t bEndpointAddress;
+  uint8_t bNumImageSizePatterns;
+  /** Available still image sizes, index + 1 is used as bFrameIndex of still probe/commit */
+  uvc_still_size_t *sizes;
+  uint8_t bNumCompressionPattern;
+  uint8_t *bCompression;
+} uvc_still_frame_desc_t;
+
 /** UVC request code (A.8) */
 enum uvc_req_code {
 	UVC_RC_UNDEFINED = 0x00,
@@ -482,6 +509,9 @@ typedef struct uvc_frame {
 	 * Set this field to zero if you are supplying the buffer.
 	 */
 	uint8_t library_owns_data;
+	/** XXX Size of allocated data buffer when library_owns_data is 1,
+	 * data_bytes can be smaller than this and the buffer is not reallocated until larger size is needed */
+	size_t alloc_bytes;
 } uvc_frame_t;
 
 /** A callback function to handle incoming assembled UVC frames
@@ -521,9 +551,57 @@ typedef struct uvc_stream_ctrl {
 	uint8_t bInterfaceNumber;
 } uvc_stream_ctrl_t;
 
+/** XXX Still image probe/commit control (4.3.1.2)
+ * @ingroup streaming
+ */
+typedef struct uvc_still_ctrl {
+	uint8_t bFormatIndex;
+	uint8_t bFrameIndex;
+	uint8_t bCompressionIndex;
+	uint32_t dwMaxVideoFrameSize;
+	uint32_t dwMaxPayloadTransferSize;
+	//
+	uint8_t bInterfaceNumber;
+	/** bulk endpoint for method 3, zero when still image is sent through video endpoint(method 2) */
+	uint8_t bEndpointAddress;
+	uint16_t wWidth;
+	uint16_t wHeight;
+} uvc_still_ctrl_t;
+
+/** XXX threads that libuvc creates, for uvc_set_thread_config */
+enum uvc_thread_type {
+	/** USB event handler thread(_uvc_handle_events) */
+	UVC_THREAD_EVENT = 0,
+	/** stream callback thread(_uvc_user_caller) */
+	UVC_THREAD_CALLBACK = 1,
+	UVC_THREAD_TYPE_COUNT
+};
+
+/** XXX scheduling parameters of thread */
+typedef struct uvc_thread_config {
+	/** SCHED_OTHER, SCHED_FIFO or SCHED_RR, negative value keeps default */
+	int policy;
+	/** nice value(-20..19) for SCHED_OTHER, real time priority(1..99) for SCHED_FIFO/SCHED_RR */
+	int priority;
+	/** bit mask of CPUs that thread can run on, 0 keeps default */
+	uint64_t affinity_mask;
+} uvc_thread_config_t;
+
+/** XXX allocator of stream transfer buffers(outbuf/holdbuf), see uvc_set_buffer_allocator
+ * @param bytes required size of the buffer
+ * @param allocated_bytes [out] actual size of the returned buffer, this is passed to free callback
+ * @return NULL if failed
+ */
+typedef void *(uvc_buffer_alloc_callback_t)(size_t bytes, size_t *allocated_bytes, void *user_ptr);
+typedef void (uvc_buffer_free_callback_t)(void *buf, size_t allocated_bytes, void *user_ptr);
+
 uvc_error_t uvc_init(uvc_context_t **ctx, struct libusb_context *usb_ctx);
 uvc_error_t uvc_init2(uvc_context_t **ctx, struct libusb_context *usb_ctx, const char *usbfs);
 void uvc_exit(uvc_context_t *ctx);
+// XXX
+uvc_error_t uvc_set_thread_config(uvc_context_t *ctx, enum uvc_thread_type type,
+		const uvc_thread_config_t *config);
+uvc_error_t uvc_apply_thread_config(pid_t tid, const uvc_thread_config_t *config);
 
 uvc_error_t uvc_get_device_list(uvc_context_t *ctx, uvc_device_t ***list);
 void uvc_free_device_list(uvc_device_t **list, uint8_t unref_devices);
@@ -566,6 +644,7 @@ const uvc_input_terminal_t *uvc_get_input_terminals(uvc_device_handle_t *devh);
 const uvc_output_terminal_t *uvc_get_output_terminals(uvc_device_handle_t *devh);
 const uvc_processing_unit_t *uvc_get_processing_units(uvc_device_handle_t *devh);
 const uvc_extension_unit_t *uvc_get_extension_units(uvc_device_handle_t *devh);
+const uvc_format_desc_t *uvc_get_format_descs(uvc_device_handle_t *devh);	// XXX
 
 uvc_error_t uvc_get_stream_ctrl_format_size(uvc_device_handle_t *devh,
 		uvc_stream_ctrl_t *ctrl, enum uvc_frame_format format, int width,
@@ -573,6 +652,9 @@ uvc_error_t uvc_get_stream_ctrl_format_size(uvc_device_handle_t *devh,
 uvc_error_t uvc_get_stream_ctrl_format_size_fps(uvc_device_handle_t *devh,
 		uvc_stream_ctrl_t *ctrl, enum uvc_frame_format cf, int width,
 		int height, int min_fps, int max_fps);	// XXX added
+uvc_error_t uvc_get_stream_ctrl_format_size_interval(uvc_device_handle_t *devh,
+		uvc_stream_ctrl_t *ctrl, enum uvc_frame_format cf, int width,
+		int height, uint32_t interval);	// XXX added
 
 uvc_error_t uvc_probe_stream_ctrl(uvc_device_handle_t *devh,
 		uvc_stream_ctrl_t *ctrl);
@@ -593,6 +675,8 @@ uvc_error_t uvc_start_iso_streaming(uvc_device_handle_t *devh,
 
 void uvc_stop_streaming(uvc_device_handle_t *devh);
 
+void uvc_set_buffer_allocator(uvc_device_handle_t *devh,
+		uvc_buffer_alloc_callback_t *alloc_cb, uvc_buffer_free_callback_t *free_cb, void *user_ptr);	// XXX
 uvc_error_t uvc_stream_open_ctrl(uvc_device_handle_t *devh,
 		uvc_stream_handle_t **strmh, uvc_stream_ctrl_t *ctrl);
 uvc_error_t uvc_stream_ctrl(uvc_stream_handle_t *strmh,
@@ -605,6 +689,17 @@ uvc_error_t uvc_stream_start_iso(uvc_stream_handle_t *strmh,
 		uvc_frame_callback_t *cb, void *user_ptr);
 uvc_error_t uvc_stream_get_frame(uvc_stream_handle_t *strmh,
 		uvc_frame_t **frame, int32_t timeout_us);
+// XXX added still image capture(method 2/3)
+uvc_error_t uvc_get_still_ctrl_format_size(uvc_device_handle_t *devh,
+		uvc_stream_ctrl_t *stream_ctrl, uvc_still_ctrl_t *still_ctrl,
+		int width, int height);
+uvc_error_t uvc_probe_still_ctrl(uvc_device_handle_t *devh,
+		uvc_still_ctrl_t *still_ctrl);
+uvc_error_t uvc_stream_capture_still(uvc_stream_handle_t *strmh,
+		uvc_still_ctrl_t *still_ctrl, uint8_t **data, size_t *data_bytes,
+		int32_t timeout_us);
+void uvc_stream_cancel_still(uvc_stream_handle_t *strmh);
+int uvc_get_still_capture_method(uvc_device_handle_t *devh);
 uvc_error_t uvc_stream_stop(uvc_stream_handle_t *strmh);
 void uvc_stream_close(uvc_stream_handle_t *strmh);
 
@@ -249,6 +249,7 @@ typedef struct uvc_device_info {
  */
 #define LIBUVC_NUM_TRANSFER_BUFS 10
 
+// XXX used only when the camera does not report frame size, see _uvc_xfer_buf_size
 #define LIBUVC_XFER_BUF_SIZE	( 16 * 1024 * 1024 )
 
 struct uvc_stream_handle {
@@ -268,19 +269,34 @@ struct uvc_stream_handle {
   uint32_t seq, hold_seq;
   uint32_t pts, hold_pts;
   uint32_t last_scr, hold_last_scr;
+  struct timeval hold_capture_time;	// XXX time when the frame in holdbuf completed(CLOCK_MONOTONIC)
   size_t got_bytes, hold_bytes;
   size_t size_buf;	// XXX add for boundary check
   uint8_t *outbuf, *holdbuf;
+  /** XXX outbuf and holdbuf are allocated as one block and swapped, this is the block to free */
+  uint8_t *xfer_buf;
+  size_t xfer_buf_bytes;
+  /** XXX allocator that allocated outbuf/holdbuf/transfer_bufs, NULL if they were allocated with malloc */
+  uvc_buffer_free_callback_t *buf_free_cb;
+  void *buf_user_ptr;
   pthread_mutex_t cb_mutex;
   pthread_cond_t cb_cond;
   pthread_t cb_thread;
+  pid_t cb_tid;	// XXX thread id of cb_thread, 0 if not running
   uint32_t last_polled_seq;
   uvc_frame_callback_t *user_cb;
   void *user_ptr;
   struct libusb_transfer *transfers[LIBUVC_NUM_TRANSFER_BUFS];
   uint8_t *transfer_bufs[LIBUVC_NUM_TRANSFER_BUFS];
+  size_t transfer_buf_bytes[LIBUVC_NUM_TRANSFER_BUFS];	// XXX allocated size of transfer_bufs
   struct uvc_frame frame;
   enum uvc_frame_format frame_format;
+  // XXX still image capture(method 2), frames with UVC_STREAM_STI are not passed to holdbuf
+  uint8_t sti;
+  uint8_t *still_buf;	// non-NULL while still image is requested, guarded by cb_mutex
+  size_t still_size_buf, still_bytes;
+  volatile uint8_t still_canceled;	// set by uvc_stream_cancel_still until next uvc_stream_start, guarded by cb_mutex
+  uint32_t still_seq;
 };
 
 /** Handle on an open UVC device
@@ -307,6 +323,10 @@ struct uvc_device_handle {
   /** Whether the camera is an iSight that sends one header per frame */
   uint8_t is_isight;
   uint8_t reset_on_release_if;	// XXX whether interface alt setting needs to reset to 0.
+  /** XXX allocator of transfer buffers of streams that will be opened, see uvc_set_buffer_allocator */
+  uvc_buffer_alloc_callback_t *buf_alloc_cb;
+  uvc_buffer_free_callback_t *buf_free_cb;
+  void *buf_user_ptr;
 };
 
 /** Context within which we communicate with devices */
@@ -319,6 +339,10 @@ struct uvc_context {
   uvc_device_handle_t *open_devices;
   pthread_t handler_thread;
   uint8_t kill_handler_thread;
+  /** XXX thread id of handler_thread, 0 if not running */
+  pid_t handler_tid;
+  /** XXX scheduling parameters of threads that libuvc creates */
+  uvc_thread_config_t thread_config[UVC_THREAD_TYPE_COUNT];
 };
 
 uvc_error_t uvc_query_stream_ctrl(
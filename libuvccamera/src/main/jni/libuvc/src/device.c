@@ -100,6 +100,8 @@ uvc_error_t uvc_parse_vs_frame_format(uvc_streaming_interface_t *stream_if,
 uvc_error_t uvc_parse_vs_frame_frame(uvc_streaming_interface_t *stream_if,
 	    const unsigned char *block,
 	    size_t block_size);
+uvc_error_t uvc_parse_vs_still_image_frame(uvc_streaming_interface_t *stream_if,
+		const unsigned char *block, size_t block_size);	// XXX
 uvc_error_t uvc_parse_vs_input_header(uvc_streaming_interface_t *stream_if,
 		const unsigned char *block, size_t block_size);
 
@@ -456,6 +458,11 @@ void uvc_free_device_info(uvc_device_info_t *info) {
 				DL_DELETE(format->frame_descs, frame);
 				free(frame);
 			}
+			if (format->still_frame_desc) {	// XXX
+				free(format->still_frame_desc->sizes);
+				free(format->still_frame_desc->bCompression);
+				free(format->still_frame_desc);
+			}
 
 			DL_DELETE(stream_if->format_descs, format);
 			free(format);
@@ -1476,6 +1483,69 @@ uvc_error_t uvc_parse_vs_frame_uncompressed(
 	return UVC_SUCCESS;
 }
 
+/** @internal
+ * @brief Parse a VideoStreaming still image frame descriptor(3.9.2.5)
+ * XXX added to support still image capture method 2/3,
+ * this descriptor follows frame descriptors of its format.
+ * @ingroup device
+ */
+uvc_error_t uvc_parse_vs_still_image_frame(uvc_streaming_interface_t *stream_if,
+		const unsigned char *block, size_t block_size) {
+
+	uvc_format_desc_t *format;
+	uvc_still_frame_desc_t *still;
+	const unsigned char *p;
+	int i, num_sizes, num_compressions;
+
+	UVC_ENTER();
+
+	if (UNLIKELY(!stream_if->format_descs || (block_size < 6))) {
+		UVC_EXIT(UVC_ERROR_INVALID_DEVICE);
+		return UVC_ERROR_INVALID_DEVICE;
+	}
+	format = stream_if->format_descs->prev;
+	num_sizes = block[4];
+	if (UNLIKELY(block_size < 6 + num_sizes * 4)) {
+		UVC_EXIT(UVC_ERROR_INVALID_DEVICE);
+		return UVC_ERROR_INVALID_DEVICE;
+	}
+	num_compressions = block[5 + num_sizes * 4];
+	if (UNLIKELY(block_size < 6 + num_sizes * 4 + num_compressions)) {
+		num_compressions = block_size - (6 + num_sizes * 4);
+	}
+
+	still = calloc(1, sizeof(*still));
+	if (UNLIKELY(!still)) {
+		UVC_EXIT(UVC_ERROR_NO_MEM);
+		return UVC_ERROR_NO_MEM;
+	}
+	still->parent = format;
+	still->bEndpointAddress = block[3];
+	still->bNumImageSizePatterns = num_sizes;
+	still->sizes = calloc(num_sizes + 1, sizeof(still->sizes[0]));
+	p = &block[5];
+	for (i = 0; i < num_sizes; i++, p += 4) {
+		still->sizes[i].wWidth = SW_TO_SHORT(p);
+		still->sizes[i].wHeight = SW_TO_SHORT(p + 2);
+	}
+	still->bNumCompressionPattern = num_compressions;
+	if (num_compressions > 0) {
+		still->bCompression = calloc(num_compressions, sizeof(still->bCompression[0]));
+		memcpy(still->bCompression, p + 1, num_compressions);
+	}
+
+	if (format->still_frame_desc) {
+		// a format should have only one still image frame descriptor
+		free(format->still_frame_desc->sizes);
+		free(format->still_frame_desc->bCompression);
+		free(format->still_frame_desc);
+	}
+	format->still_frame_desc = still;
+
+	UVC_EXIT(UVC_SUCCESS);
+	return UVC_SUCCESS;
+}
+
 /** @internal
  * Process a single VideoStreaming descriptor block
  * @ingroup device
@@ -1495,8 +1565,9 @@ uvc_error_t uvc_parse_vs(uvc_device_t *dev, uvc_device_info_t *info,
 	case UVC_VS_INPUT_HEADER:
 		ret = uvc_parse_vs_input_header(stream_if, block, block_size);
 		break;
-//	case UVC_VS_STILL_IMAGE_FRAME:	// FIXME unsupported now
-//		break;
+	case UVC_VS_STILL_IMAGE_FRAME:	// XXX
+		ret = uvc_parse_vs_still_image_frame(stream_if, block, block_size);
+		break;
 	case UVC_VS_FORMAT_UNCOMPRESSED:
 		ret = uvc_parse_vs_format_uncompressed(stream_if, block, block_size);
 		break;
@@ -55,14 +55,22 @@
 /** @internal */
 uvc_error_t uvc_ensure_frame_size(uvc_frame_t *frame, size_t need_bytes) {
 	if LIKELY(frame->library_owns_data) {
-		if UNLIKELY(!frame->data || frame->data_bytes != need_bytes) {
-			frame->actual_bytes = frame->data_bytes = need_bytes;	// XXX
-			frame->data = realloc(frame->data, frame->data_bytes);
+		// XXX reallocate only when the buffer is smaller than need_bytes,
+		// size of MJPEG/H.264 frames changes every frame and shrinking buffer causes realloc on every frame
+		if UNLIKELY(!frame->data || frame->alloc_bytes < need_bytes) {
+			frame->data = realloc(frame->data, need_bytes);
+			frame->alloc_bytes = frame->data ? need_bytes : 0;
 		}
+		frame->actual_bytes = frame->data_bytes = need_bytes;	// XXX
 		if (UNLIKELY(!frame->data || !need_bytes))
 			return UVC_ERROR_NO_MEM;
 		return UVC_SUCCESS;
 	} else {
+		// XXX buffer supplied by the caller(e.g. frame pool) with its capacity in alloc_bytes
+		if (LIKELY(frame->data && (frame->alloc_bytes >= need_bytes))) {
+			frame->actual_bytes = frame->data_bytes = need_bytes;
+			return UVC_SUCCESS;
+		}
 		if (UNLIKELY(!frame->data || frame->data_bytes < need_bytes))
 			return UVC_ERROR_NO_MEM;
 		return UVC_SUCCESS;
@@ -87,10 +95,11 @@ uvc_frame_t *uvc_allocate_frame(size_t data_bytes) {
 	memset(frame, 0, sizeof(*frame));	// bzero(frame, sizeof(*frame)); // bzero is deprecated
 #endif
 //	frame->library_owns_data = 1;	// XXX moved to lower
+	frame->alloc_bytes = 0;	// XXX
 
 	if (LIKELY(data_bytes > 0)) {
 		frame->library_owns_data = 1;
-		frame->actual_bytes = frame->data_bytes = data_bytes;	// XXX
+		frame->actual_bytes = frame->data_bytes = frame->alloc_bytes = data_bytes;	// XXX
 		frame->data = malloc(data_bytes);
 
 		if (UNLIKELY(!frame->data)) {
@@ -108,7 +117,7 @@ uvc_frame_t *uvc_allocate_frame(size_t data_bytes) {
  * @param frame Frame to destroy
  */
 void uvc_free_frame(uvc_frame_t *frame) {
-	if ((frame->data_bytes > 0) && frame->library_owns_data)
+	if ((frame->data_bytes > 0 || frame->alloc_bytes > 0) && frame->library_owns_data)	// XXX
 		free(frame->data);
 
 	free(frame);
@@ -131,7 +140,7 @@ uvc_error_t uvc_duplicate_frame(uvc_frame_t *in, uvc_frame_t *out) {
 	out->width = in->width;
 	out->height = in->height;
 	out->frame_format = in->frame_format;
-	if (out->library_owns_data)
+	if (out->library_owns_data || out->alloc_bytes)	// XXX frames of external allocator(frame pool)
 		out->step = in->step;
 	out->sequence = in->sequence;
 	out->capture_time = in->capture_time;
@@ -237,7 +246,7 @@ uvc_error_t uvc_rgb2rgbx(uvc_frame_t *in, uvc_frame_t *out) {
 	out->width = in->width;
 	out->height = in->height;
 	out->frame_format = UVC_FRAME_FORMAT_RGBX;
-	if (out->library_owns_data)
+	if (out->library_owns_data || out->alloc_bytes)	// XXX frames of external allocator(frame pool)
 		out->step = in->width * PIXEL_RGBX;
 	out->sequence = in->sequence;
 	out->capture_time = in->capture_time;
@@ -319,7 +328,7 @@ uvc_error_t uvc_rgb2rgb565(uvc_frame_t *in, uvc_frame_t *out) {
 	out->width = in->width;
 	out->height = in->height;
 	out->frame_format = UVC_FRAME_FORMAT_RGB565;
-	if (out->library_owns_data)
+	if (out->library_owns_data || out->alloc_bytes)	// XXX frames of external allocator(frame pool)
 		out->step = in->width * PIXEL_RGB565;
 	out->sequence = in->sequence;
 	out->capture_time = in->capture_time;
@@ -422,7 +431,7 @@ uvc_error_t uvc_yuyv2rgb(uvc_frame_t *in, uvc_frame_t *out) {
 	out->width = in->width;
 	out->height = in->height;
 	out->frame_format = UVC_FRAME_FORMAT_RGB;
-	if (out->library_owns_data)
+	if (out->library_owns_data || out->alloc_bytes)	// XXX frames of external allocator(frame pool)
 		out->step = in->width * PIXEL_RGB;
 	out->sequence = in->sequence;
 	out->capture_time = in->capture_time;
@@ -486,7 +495,7 @@ uvc_error_t uvc_yuyv2rgb565(uvc_frame_t *in, uvc_frame_t *out) {
 	out->width = in->width;
 	out->height = in->height;
 	out->frame_format = UVC_FRAME_FORMAT_RGB565;
-	if (out->library_owns_data)
+	if (out->library_owns_data || out->alloc_bytes)	// XXX frames of external allocator(frame pool)
 		out->step = in->width * PIXEL_RGB565;
 	out->sequence = in->sequence;
 	out->capture_time = in->capture_time;
@@ -582,7 +591,7 @@ uvc_error_t uvc_yuyv2rgbx(uvc_frame_t *in, uvc_frame_t *out) {
 	out->width = in->width;
 	out->height = in->height;
 	out->frame_format = UVC_FRAME_FORMAT_RGBX;
-	if (out->library_owns_data)
+	if (out->library_owns_data || out->alloc_bytes)	// XXX frames of external allocator(frame pool)
 		out->step = in->width * PIXEL_RGBX;
 	out->sequence = in->sequence;
 	out->capture_time = in->capture_time;
@@ -672,7 +681,7 @@ uvc_error_t uvc_yuyv2bgr(uvc_frame_t *in, uvc_frame_t *out) {
 	out->width = in->width;
 	out->height = in->height;
 	out->frame_format = UVC_FRAME_FORMAT_BGR;
-	if (out->library_owns_data)
+	if (out->library_owns_data || out->alloc_bytes)	// XXX frames of external allocator(frame pool)
 		out->step = in->width * PIXEL_BGR;
 	out->sequence = in->sequence;
 	out->capture_time = in->capture_time;
@@ -761,7 +770,7 @@ uvc_error_t uvc_uyvy2rgb(uvc_frame_t *in, uvc_frame_t *out) {
 	out->width = in->width;
 	out->height = in->height;
 	out->frame_format = UVC_FRAME_FORMAT_RGB;
-	if (out->library_owns_data)
+	if (out->library_owns_data || out->alloc_bytes)	// XXX frames of external allocator(frame pool)
 		out->step = in->width * PIXEL_RGB;
 	out->sequence = in->sequence;
 	out->capture_time = in->capture_time;
@@ -825,7 +834,7 @@ uvc_error_t uvc_uyvy2rgb565(uvc_frame_t *in, uvc_frame_t *out) {
 	out->width = in->width;
 	out->height = in->height;
 	out->frame_format = UVC_FRAME_FORMAT_RGB565;
-	if (out->library_owns_data)
+	if (out->library_owns_data || out->alloc_bytes)	// XXX frames of external allocator(frame pool)
 		out->step = in->width * PIXEL_RGB565;
 	out->sequence = in->sequence;
 	out->capture_time = in->capture_time;
@@ -921,7 +930,7 @@ uvc_error_t uvc_uyvy2rgbx(uvc_frame_t *in, uvc_frame_t *out) {
 	out->width = in->width;
 	out->height = in->height;
 	out->frame_format = UVC_FRAME_FORMAT_RGBX;
-	if (out->library_owns_data)
+	if (out->library_owns_data || out->alloc_bytes)	// XXX frames of external allocator(frame pool)
 		out->step = in->width * PIXEL_RGBX;
 	out->sequence = in->sequence;
 	out->capture_time = in->capture_time;
@@ -1010,7 +1019,7 @@ uvc_error_t uvc_uyvy2bgr(uvc_frame_t *in, uvc_frame_t *out) {
 	out->width = in->width;
 	out->height = in->height;
 	out->frame_format = UVC_FRAME_FORMAT_BGR;
-	if (out->library_owns_data)
+	if (out->library_owns_data || out->alloc_bytes)	// XXX frames of external allocator(frame pool)
 		out->step = in->width * PIXEL_BGR;
 	out->sequence = in->sequence;
 	out->capture_time = in->capture_time;
@@ -79,13 +79,18 @@ YUV stream from a UVC device such as a standard webcam.
  * @defgroup init Library initialization/deinitialization
  * @brief Setup routines used to construct UVC access contexts
  */
+#ifndef _GNU_SOURCE
+#define _GNU_SOURCE	// for cpu_set_t and CPU_XXX macros
+#endif
 #include "libuvc/libuvc.h"
 #include "libuvc/libuvc_internal.h"
+#include <errno.h>
+#include <sched.h>
 #if defined(__ANDROID__)
 #include <unistd.h>
 #include <sys/time.h>
-#include <sys/resource.h>
 #endif	// defined(__ANDROID__)
+#include <sys/resource.h>
 
 /** @internal
  * @brief Event handler thread
@@ -96,18 +101,125 @@ void *_uvc_handle_events(void *arg) {
 	uvc_context_t *ctx = (uvc_context_t *) arg;
 
 #if defined(__ANDROID__)
-	// try to increase thread priority
-	int prio = getpriority(PRIO_PROCESS, 0);
-	nice(-18);
-	if (UNLIKELY(getpriority(PRIO_PROCESS, 0) >= prio)) {
-		LOGW("could not change thread priority");
+	ctx->handler_tid = gettid();
+	if (ctx->thread_config[UVC_THREAD_EVENT].policy < 0) {
+		// try to increase thread priority
+		int prio = getpriority(PRIO_PROCESS, 0);
+		nice(-18);
+		if (UNLIKELY(getpriority(PRIO_PROCESS, 0) >= prio)) {
+			LOGW("could not change thread priority");
+		}
 	}
+	uvc_apply_thread_config(ctx->handler_tid, &ctx->thread_config[UVC_THREAD_EVENT]);
 #endif
 	for (; !ctx->kill_handler_thread ;)
 		libusb_handle_events(ctx->usb_ctx);
+	ctx->handler_tid = 0;
 	return NULL;
 }
 
+/** @brief Set scheduling parameters of threads that libuvc creates
+ * @ingroup init
+ *
+ * The parameters are applied when the thread starts and also applied immediately
+ * if the thread is already running.
+ *
+ * @param ctx UVC context
+ * @param type UVC_THREAD_EVENT or UVC_THREAD_CALLBACK
+ * @param config scheduling parameters, NULL to reset to default(only for threads that will start later)
+ * @return error of applying to running thread or UVC_SUCCESS
+ */
+uvc_error_t uvc_set_thread_config(uvc_context_t *ctx, enum uvc_thread_type type,
+	const uvc_thread_config_t *config) {
+
+	uvc_error_t ret = UVC_SUCCESS;
+	if (UNLIKELY(!ctx || (type < 0) || (type >= UVC_THREAD_TYPE_COUNT)))
+		return UVC_ERROR_INVALID_PARAM;
+	if (config) {
+		ctx->thread_config[type] = *config;
+	} else {
+		ctx->thread_config[type].policy = -1;
+		ctx->thread_config[type].priority = 0;
+		ctx->thread_config[type].affinity_mask = 0;
+		return UVC_SUCCESS;
+	}
+	switch (type) {
+	case UVC_THREAD_EVENT:
+		if (ctx->handler_tid) {
+			ret = uvc_apply_thread_config(ctx->handler_tid, config);
+		}
+		break;
+	case UVC_THREAD_CALLBACK:
+	{
+		uvc_device_handle_t *devh;
+		uvc_stream_handle_t *strmh;
+		DL_FOREACH(ctx->open_devices, devh) {
+			DL_FOREACH(devh->streams, strmh) {
+				if (strmh->cb_tid) {
+					uvc_error_t r = uvc_apply_thread_config(strmh->cb_tid, config);
+					if (r) ret = r;
+				}
+			}
+		}
+		break;
+	}
+	default:
+		break;
+	}
+	return ret;
+}
+
+/** @brief Apply scheduling parameters to specific thread
+ * @ingroup init
+ *
+ * Changing to SCHED_FIFO/SCHED_RR or to negative nice value may fail
+ * depending on the privilege of the process.
+ *
+ * @param tid thread id(not pthread_t), 0 means calling thread
+ * @param config scheduling parameters
+ * @return UVC_ERROR_ACCESS if failed to change some of parameters, otherwise UVC_SUCCESS
+ */
+uvc_error_t uvc_apply_thread_config(pid_t tid, const uvc_thread_config_t *config) {
+	uvc_error_t ret = UVC_SUCCESS;
+	if (UNLIKELY(!config))
+		return UVC_ERROR_INVALID_PARAM;
+	if (!tid) tid = gettid();
+	if (config->affinity_mask) {
+		cpu_set_t cpu_set;
+		int i;
+		CPU_ZERO(&cpu_set);
+		for (i = 0; (i < 64) && (i < CPU_SETSIZE); i++) {
+			if (config->affinity_mask & (1ULL << i)) {
+				CPU_SET(i, &cpu_set);
+			}
+		}
+		if (UNLIKELY(sched_setaffinity(tid, sizeof(cpu_set), &cpu_set))) {
+			LOGW("sched_setaffinity failed:tid=%d,errno=%d", tid, errno);
+			ret = UVC_ERROR_ACCESS;
+		}
+	}
+	if (config->policy >= 0) {
+		struct sched_param param;
+		memset(&param, 0, sizeof(param));
+		if ((config->policy == SCHED_FIFO) || (config->policy == SCHED_RR)) {
+			param.sched_priority = config->priority;
+			if (UNLIKELY(sched_setscheduler(tid, config->policy, &param))) {
+				LOGW("sched_setscheduler failed:tid=%d,policy=%d,errno=%d", tid, config->policy, errno);
+				ret = UVC_ERROR_ACCESS;
+			}
+		} else {
+			if (UNLIKELY(sched_setscheduler(tid, config->policy, &param))) {
+				LOGW("sched_setscheduler failed:tid=%d,policy=%d,errno=%d", tid, config->policy, errno);
+				ret = UVC_ERROR_ACCESS;
+			} else if (UNLIKELY(setpriority(PRIO_PROCESS, tid, config->priority))) {
+				LOGW("setpriority failed:tid=%d,priority=%d,errno=%d", tid, config->priority, errno);
+				ret = UVC_ERROR_ACCESS;
+			}
+		}
+	}
+	return ret;
+}
+
 /** @brief Initializes the UVC context
  * @ingroup init
  *
@@ -121,7 +233,11 @@ void *_uvc_handle_events(void *arg) {
 uvc_error_t uvc_init2(uvc_context_t **pctx, struct libusb_context *usb_ctx, const char *usbfs) {
 	uvc_error_t ret = UVC_SUCCESS;
 	uvc_context_t *ctx = calloc(1, sizeof(*ctx));
+	int i;
 
+	for (i = 0; i < UVC_THREAD_TYPE_COUNT; i++) {
+		ctx->thread_config[i].policy = -1;	// keep default
+	}
 	if (usb_ctx == NULL) {
 		if (usbfs && strlen(usbfs) > 0) {
 			LOGD("call #libusb_init2");
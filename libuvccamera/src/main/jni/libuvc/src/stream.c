@@ -58,6 +58,7 @@
 #endif
 
 #include <assert.h>		// XXX add assert for debugging
+#include <errno.h>		// XXX ETIMEDOUT
 
 #include "libuvc/libuvc.h"
 #include "libuvc/libuvc_internal.h"
@@ -108,9 +109,14 @@ struct format_table_entry *_get_format_entry(enum uvc_frame_format format) {
     	{'B', 'Y', '8', ' ', 0x00, 0x00, 0x10, 0x00, 0x80, 0x00, 0x00, 0xaa, 0x00, 0x38, 0x9b, 0x71})
 
 	ABS_FMT(UVC_FRAME_FORMAT_COMPRESSED,
-		{UVC_FRAME_FORMAT_MJPEG})
+		{UVC_FRAME_FORMAT_MJPEG, UVC_FRAME_FORMAT_H264, UVC_FRAME_FORMAT_H265})
 	FMT(UVC_FRAME_FORMAT_MJPEG,
 		{'M', 'J', 'P', 'G'})
+	// frame based format(VS_FORMAT_FRAME_BASED), guidFormat comes from descriptor
+	FMT(UVC_FRAME_FORMAT_H264,
+		{'H', '2', '6', '4', 0x00, 0x00, 0x10, 0x00, 0x80, 0x00, 0x00, 0xaa, 0x00, 0x38, 0x9b, 0x71})
+	FMT(UVC_FRAME_FORMAT_H265,
+		{'H', '2', '6', '5', 0x00, 0x00, 0x10, 0x00, 0x80, 0x00, 0x00, 0xaa, 0x00, 0x38, 0x9b, 0x71})
 
 	default:
 		return NULL;
@@ -407,7 +413,7 @@ static uvc_error_t _prepare_stream_ctrl(uvc_device_handle_t *devh, uvc_stream_ct
 static uvc_error_t _uvc_get_stream_ctrl_format(uvc_device_handle_t *devh,
 	uvc_streaming_interface_t *stream_if, uvc_stream_ctrl_t *ctrl, uvc_format_desc_t *format,
 	const int width, const int height,
-	const int min_fps, const int max_fps) {
+	const int min_fps, const int max_fps, const uint32_t exact_interval) {	// XXX add exact_interval
 
 	ENTER();
 
@@ -462,7 +468,31 @@ static uvc_error_t _uvc_get_stream_ctrl_format(uvc_device_handle_t *devh,
 
 		uint32_t *interval;
 
-		if (frame->intervals) {
+		if (exact_interval) {	// XXX select the frame interval as it is instead of fps range
+			int supported = 0;
+			if (frame->intervals) {
+				for (interval = frame->intervals; *interval; ++interval) {
+					if (*interval == exact_interval) {
+						supported = 1;
+						break;
+					}
+				}
+			} else {
+				const uint32_t interval_offset = exact_interval - frame->dwMinFrameInterval;
+				supported = (exact_interval >= frame->dwMinFrameInterval)
+					&& (exact_interval <= frame->dwMaxFrameInterval)
+					&& !(interval_offset && frame->dwFrameIntervalStep
+						&& (interval_offset % frame->dwFrameIntervalStep));
+			}
+			if (supported) {
+				ctrl->bmHint = (1 << 0); /* don't negotiate interval */
+				ctrl->bFormatIndex = format->bFormatIndex;
+				ctrl->bFrameIndex = frame->bFrameIndex;
+				ctrl->dwFrameInterval = exact_interval;
+
+				goto found;
+			}
+		} else if (frame->intervals) {
 			for (interval = frame->intervals; *interval; ++interval) {
 				if (UNLIKELY(!(*interval))) continue;
 				uint32_t it = 10000000 / *interval;
@@ -552,7 +582,54 @@ uvc_error_t uvc_get_stream_ctrl_format_size_fps(uvc_device_handle_t *devh,
 			if (!_uvc_frame_format_matches_guid(cf, format->guidFormat))
 				continue;
 
-			result = _uvc_get_stream_ctrl_format(devh, stream_if, ctrl, format, width, height, min_fps, max_fps);
+			result = _uvc_get_stream_ctrl_format(devh, stream_if, ctrl, format, width, height, min_fps, max_fps, 0);
+			if (!result) {	// UVC_SUCCESS
+				goto found;
+			}
+		}
+	}
+
+	RETURN(UVC_ERROR_INVALID_MODE, uvc_error_t);
+
+found:
+	RETURN(uvc_probe_stream_ctrl(devh, ctrl), uvc_error_t);
+}
+
+/** XXX added
+ * Get a negotiated streaming control block with specific frame interval.
+ * Unlike uvc_get_stream_ctrl_format_size_fps, the interval is not rounded to integer fps
+ * and intervals like 333667(29.97fps) can be requested.
+ * @ingroup streaming
+ *
+ * @param[in] devh Device handle
+ * @param[in,out] ctrl Control block
+ * @param[in] cf Type of streaming format
+ * @param[in] width Desired frame width
+ * @param[in] height Desired frame height
+ * @param[in] interval Frame interval in 100ns units, this should be one of the intervals in the frame descriptor
+ */
+uvc_error_t uvc_get_stream_ctrl_format_size_interval(uvc_device_handle_t *devh,
+		uvc_stream_ctrl_t *ctrl, enum uvc_frame_format cf, int width,
+		int height, uint32_t interval) {
+
+	ENTER();
+
+	uvc_streaming_interface_t *stream_if;
+	uvc_error_t result;
+
+	if (UNLIKELY(!interval)) {
+		RETURN(UVC_ERROR_INVALID_PARAM, uvc_error_t);
+	}
+	memset(ctrl, 0, sizeof(*ctrl));
+	uvc_format_desc_t *format;
+	DL_FOREACH(devh->info->stream_ifs, stream_if)
+	{
+		DL_FOREACH(stream_if->format_descs, format)
+		{
+			if (!_uvc_frame_format_matches_guid(cf, format->guidFormat))
+				continue;
+
+			result = _uvc_get_stream_ctrl_format(devh, stream_if, ctrl, format, width, height, 0, 0, interval);
 			if (!result) {	// UVC_SUCCESS
 				goto found;
 			}
@@ -603,7 +680,18 @@ static void _uvc_swap_buffers(uvc_stream_handle_t *strmh) {
 	uint8_t *tmp_buf;
 
 	pthread_mutex_lock(&strmh->cb_mutex);
-	{
+	if (UNLIKELY(strmh->sti)) {
+		// XXX still image frame(method 2), this may have different size from video frame
+		// and should not be passed to video consumers.
+		if (strmh->still_buf && !strmh->still_bytes && !strmh->bfh_err
+			&& (strmh->got_bytes <= strmh->still_size_buf)) {
+
+			memcpy(strmh->still_buf, strmh->outbuf, strmh->got_bytes);
+			strmh->still_bytes = strmh->got_bytes;
+			strmh->still_seq++;
+			pthread_cond_broadcast(&strmh->cb_cond);
+		}
+	} else {
 		/* swap the buffers */
 		tmp_buf = strmh->holdbuf;
 		strmh->hold_bfh_err = strmh->bfh_err;	// XXX
@@ -613,16 +701,44 @@ static void _uvc_swap_buffers(uvc_stream_handle_t *strmh) {
 		strmh->hold_last_scr = strmh->last_scr;
 		strmh->hold_pts = strmh->pts;
 		strmh->hold_seq = strmh->seq;
+		{	// XXX set completion time of this frame, same time base as System#nanoTime on Java side
+			struct timespec ts;
+			clock_gettime(CLOCK_MONOTONIC, &ts);
+			strmh->hold_capture_time.tv_sec = ts.tv_sec;
+			strmh->hold_capture_time.tv_usec = ts.tv_nsec / 1000;
+		}
 
 		pthread_cond_broadcast(&strmh->cb_cond);
 	}
 	pthread_mutex_unlock(&strmh->cb_mutex);
 
-	strmh->seq++;
+	if (LIKELY(!strmh->sti))
+		strmh->seq++;
 	strmh->got_bytes = 0;
 	strmh->last_scr = 0;
 	strmh->pts = 0;
 	strmh->bfh_err = 0;	// XXX
+	strmh->sti = 0;	// XXX
+}
+
+/** @internal */
+static uint8_t *_uvc_alloc_xfer_buf(uvc_stream_handle_t *strmh, size_t bytes, size_t *allocated_bytes) {
+	if (strmh->buf_free_cb) {
+		return (uint8_t *)strmh->devh->buf_alloc_cb(bytes, allocated_bytes, strmh->buf_user_ptr);
+	}
+	*allocated_bytes = bytes;
+	return (uint8_t *)malloc(bytes);
+}
+
+/** @internal
+ * @param allocated_bytes size that _uvc_alloc_xfer_buf returned
+ */
+static void _uvc_free_xfer_buf(uvc_stream_handle_t *strmh, uint8_t *buf, size_t allocated_bytes) {
+	if (strmh->buf_free_cb) {
+		strmh->buf_free_cb(buf, allocated_bytes, strmh->buf_user_ptr);
+	} else {
+		free(buf);
+	}
 }
 
 static void _uvc_delete_transfer(struct libusb_transfer *transfer) {
@@ -640,7 +756,7 @@ static void _uvc_delete_transfer(struct libusb_transfer *transfer) {
 			if (strmh->transfers[i] == transfer) {
 				libusb_cancel_transfer(strmh->transfers[i]);	// XXX 20141112追加
 				UVC_DEBUG("Freeing transfer %d (%p)", i, transfer);
-				free(transfer->buffer);
+				_uvc_free_xfer_buf(strmh, transfer->buffer, strmh->transfer_buf_bytes[i]);	// XXX
 				libusb_free_transfer(transfer);
 				strmh->transfers[i] = NULL;
 				break;
@@ -740,6 +856,9 @@ static void _uvc_process_payload(uvc_stream_handle_t *strmh, const uint8_t *payl
 		}
 
 		strmh->fid = header_info & UVC_STREAM_FID;
+		if (UNLIKELY(header_info & UVC_STREAM_STI)) {
+			strmh->sti = 1;	// XXX this payload is a part of still image
+		}
 
 		if (header_info & UVC_STREAM_PTS) {
 			// XXX saki some camera may send broken packet or failed to receive all data
@@ -885,6 +1004,9 @@ static inline void _uvc_process_payload_iso(uvc_stream_handle_t *strmh, struct l
 					strmh->fid = header_info & UVC_STREAM_FID;
 				}
 #endif
+				if (UNLIKELY(header_info & UVC_STREAM_STI)) {
+					strmh->sti = 1;	// XXX this packet is a part of still image
+				}
 				if (header_info & UVC_STREAM_PTS) {
 					// XXX saki some camera may send broken packet or failed to receive all data
 					if (LIKELY(header_len >= 6)) {
@@ -929,11 +1051,15 @@ static inline void _uvc_process_payload_iso(uvc_stream_handle_t *strmh, struct l
 			// from "if (pkt->actual_length - header_len > 0)"
 			if (LIKELY(pkt->actual_length > header_len)) {
 				const size_t odd_bytes = pkt->actual_length - header_len;
-				assert(strmh->got_bytes + odd_bytes < strmh->size_buf);
 				assert(strmh->outbuf);
 				assert(pktbuf);
-				memcpy(strmh->outbuf + strmh->got_bytes, pktbuf + header_len, odd_bytes);
-				strmh->got_bytes += odd_bytes;
+				// XXX transfer buffers are sized from negotiated frame size, never overrun them
+				if (LIKELY(strmh->got_bytes + odd_bytes < strmh->size_buf)) {
+					memcpy(strmh->outbuf + strmh->got_bytes, pktbuf + header_len, odd_bytes);
+					strmh->got_bytes += odd_bytes;
+				} else {
+					strmh->bfh_err |= UVC_STREAM_ERR;
+				}
 			}
 #ifdef USE_EOF
 			if ((pktbuf[1] & UVC_STREAM_EOF) && strmh->got_bytes != 0) {
@@ -1151,11 +1277,15 @@ static void _uvc_iso_callback(struct libusb_transfer *transfer) {
 				// from "if (pkt->actual_length - header_len > 0)"
 				if (LIKELY(pkt->actual_length > header_len)) {
 					const size_t odd_bytes = pkt->actual_length - header_len;
-					assert(strmh->got_bytes + odd_bytes < strmh->size_buf);
 					assert(strmh->outbuf);
 					assert(pktbuf);
-					memcpy(strmh->outbuf + strmh->got_bytes, pktbuf + header_len, odd_bytes);
-					strmh->got_bytes += odd_bytes;
+					// XXX transfer buffers are sized from negotiated frame size, never overrun them
+					if (LIKELY(strmh->got_bytes + odd_bytes < strmh->size_buf)) {
+						memcpy(strmh->outbuf + strmh->got_bytes, pktbuf + header_len, odd_bytes);
+						strmh->got_bytes += odd_bytes;
+					} else {
+						strmh->bfh_err |= UVC_STREAM_ERR;
+					}
 				}
 #ifdef USE_EOF
 				if ((pktbuf[1] & STREAM_HEADER_BFH_EOF) && strmh->got_bytes != 0) {
@@ -1287,6 +1417,47 @@ static uvc_streaming_interface_t *_uvc_get_stream_if(uvc_device_handle_t *devh,
 	return NULL;
 }
 
+/** XXX Set allocator of transfer buffers(outbuf/holdbuf) for streams that will be opened
+ * @ingroup streaming
+ *
+ * @param devh UVC device
+ * @param alloc_cb NULL to use malloc/free
+ * @param free_cb
+ * @param user_ptr passed to alloc_cb/free_cb
+ */
+void uvc_set_buffer_allocator(uvc_device_handle_t *devh,
+		uvc_buffer_alloc_callback_t *alloc_cb, uvc_buffer_free_callback_t *free_cb, void *user_ptr) {
+
+	devh->buf_alloc_cb = alloc_cb && free_cb ? alloc_cb : NULL;
+	devh->buf_free_cb = alloc_cb && free_cb ? free_cb : NULL;
+	devh->buf_user_ptr = user_ptr;
+}
+
+/** @internal
+ * XXX size of transfer buffers for the negotiated stream control
+ * instead of fixed LIBUVC_XFER_BUF_SIZE(16MB) that is much larger than usual frames
+ */
+static size_t _uvc_xfer_buf_size(uvc_stream_handle_t *strmh, uvc_stream_ctrl_t *ctrl) {
+	size_t bytes = ctrl->dwMaxVideoFrameSize;
+	uvc_frame_desc_t *frame_desc = uvc_find_frame_desc_stream(strmh, ctrl->bFormatIndex, ctrl->bFrameIndex);
+	if (LIKELY(frame_desc)) {
+		if (frame_desc->dwMaxVideoFrameBufferSize > bytes) {
+			bytes = frame_desc->dwMaxVideoFrameBufferSize;
+		}
+		// some cameras report too small size for MJPEG, MJPEG frame should not be larger than YUYV frame
+		const size_t raw_bytes = frame_desc->wWidth * frame_desc->wHeight * 2;
+		if (frame_desc->parent && (frame_desc->parent->bDescriptorSubtype != UVC_VS_FORMAT_FRAME_BASED)
+			&& (raw_bytes > bytes)) {
+			bytes = raw_bytes;
+		}
+	}
+	if (UNLIKELY(!bytes)) {
+		return LIBUVC_XFER_BUF_SIZE;
+	}
+	// boundary check drops the frame when the last payload does not fit
+	return bytes + ctrl->dwMaxPayloadTransferSize;
+}
+
 /** Open a new video stream.
  * @ingroup streaming
  *
@@ -1333,10 +1504,24 @@ uvc_error_t uvc_stream_open_ctrl(uvc_device_handle_t *devh,
 
 	// Set up the streaming status and data space
 	strmh->running = 0;
-	/** @todo take only what we need */
-	strmh->outbuf = malloc(LIBUVC_XFER_BUF_SIZE);
-	strmh->holdbuf = malloc(LIBUVC_XFER_BUF_SIZE);
-	strmh->size_buf = LIBUVC_XFER_BUF_SIZE;	// xxx for boundary check
+	// XXX take only what we need, outbuf and holdbuf are swapped and should have same size
+	strmh->buf_free_cb = devh->buf_free_cb;
+	strmh->buf_user_ptr = devh->buf_user_ptr;
+	{
+		// outbuf and holdbuf are allocated as one block so that both have same size
+		size_t allocated_bytes = 0;
+		const size_t size_buf = _uvc_xfer_buf_size(strmh, ctrl);
+		strmh->xfer_buf = _uvc_alloc_xfer_buf(strmh, size_buf * 2, &allocated_bytes);
+		if (UNLIKELY(!strmh->xfer_buf)) {
+			uvc_release_if(strmh->devh, strmh->stream_if->bInterfaceNumber);
+			ret = UVC_ERROR_NO_MEM;
+			goto fail;
+		}
+		strmh->xfer_buf_bytes = allocated_bytes;
+		strmh->size_buf = allocated_bytes / 2;	// xxx for boundary check
+		strmh->outbuf = strmh->xfer_buf;
+		strmh->holdbuf = strmh->xfer_buf + strmh->size_buf;
+	}
 
 	pthread_mutex_init(&strmh->cb_mutex, NULL);
 	pthread_cond_init(&strmh->cb_cond, NULL);
@@ -1402,6 +1587,7 @@ uvc_error_t uvc_stream_start_bandwidth(uvc_stream_handle_t *strmh,
 	}
 
 	strmh->running = 1;
+	strmh->still_canceled = 0;
 	strmh->seq = 0;
 	strmh->fid = 0;
 	strmh->pts = 0;
@@ -1450,9 +1636,7 @@ uvc_error_t uvc_stream_start_bandwidth(uvc_stream_handle_t *strmh,
 		size_t endpoint_bytes_per_packet;
 		/* Index of the altsetting */
 		int alt_idx, ep_idx;
-
-		struct libusb_transfer *transfer;
-		int transfer_id;
+		// XXX transfer/transfer_id of outer scope are used for cleanup on fail_transfers
 		
 		if ((bandwidth_factor > 0) && (bandwidth_factor < 1.0f)) {
 			config_bytes_per_packet = (size_t)(strmh->cur_ctrl.dwMaxPayloadTransferSize * bandwidth_factor);
@@ -1550,7 +1734,12 @@ uvc_error_t uvc_stream_start_bandwidth(uvc_stream_handle_t *strmh,
 		for (transfer_id = 0; transfer_id < LIBUVC_NUM_TRANSFER_BUFS; ++transfer_id) {
 			transfer = libusb_alloc_transfer(packets_per_transfer);
 			strmh->transfers[transfer_id] = transfer;
-			strmh->transfer_bufs[transfer_id] = malloc(total_transfer_size);
+			strmh->transfer_bufs[transfer_id] = _uvc_alloc_xfer_buf(strmh,
+				total_transfer_size, &strmh->transfer_buf_bytes[transfer_id]);	// XXX
+			if (UNLIKELY(!transfer || !strmh->transfer_bufs[transfer_id])) {
+				ret = UVC_ERROR_NO_MEM;
+				goto fail_transfers;
+			}
 
 			libusb_fill_iso_transfer(transfer, strmh->devh->usb_devh,
 				format_desc->parent->bEndpointAddress,
@@ -1566,7 +1755,12 @@ uvc_error_t uvc_stream_start_bandwidth(uvc_stream_handle_t *strmh,
 		for (transfer_id = 0; transfer_id < LIBUVC_NUM_TRANSFER_BUFS; ++transfer_id) {
 			transfer = libusb_alloc_transfer(0);
 			strmh->transfers[transfer_id] = transfer;
-			strmh->transfer_bufs[transfer_id] = malloc(strmh->cur_ctrl.dwMaxPayloadTransferSize);
+			strmh->transfer_bufs[transfer_id] = _uvc_alloc_xfer_buf(strmh,
+				strmh->cur_ctrl.dwMaxPayloadTransferSize, &strmh->transfer_buf_bytes[transfer_id]);	// XXX
+			if (UNLIKELY(!transfer || !strmh->transfer_bufs[transfer_id])) {
+				ret = UVC_ERROR_NO_MEM;
+				goto fail_transfers;
+			}
 			libusb_fill_bulk_transfer(transfer, strmh->devh->usb_devh,
 				format_desc->parent->bEndpointAddress,
 				strmh->transfer_bufs[transfer_id],
@@ -1601,6 +1795,20 @@ uvc_error_t uvc_stream_start_bandwidth(uvc_stream_handle_t *strmh,
 
 	UVC_EXIT(ret);
 	return ret;
+fail_transfers:
+	// XXX transfer buffers may not be allocated within the quota of buffer allocator
+	LOGE("failed to allocate transfers");
+	for ( ; transfer_id >= 0; transfer_id--) {
+		// entries after transfer_id may have stale pointers of previous streaming
+		if (strmh->transfer_bufs[transfer_id]) {
+			_uvc_free_xfer_buf(strmh, strmh->transfer_bufs[transfer_id], strmh->transfer_buf_bytes[transfer_id]);
+			strmh->transfer_bufs[transfer_id] = NULL;
+		}
+		if (strmh->transfers[transfer_id]) {
+			libusb_free_transfer(strmh->transfers[transfer_id]);
+			strmh->transfers[transfer_id] = NULL;
+		}
+	}
 fail:
 	LOGE("fail");
 	strmh->running = 0;
@@ -1634,6 +1842,10 @@ static void *_uvc_user_caller(void *arg) {
 
 	uint32_t last_seq = 0;
 
+	// XXX apply scheduling parameters if they were set with uvc_set_thread_config
+	strmh->cb_tid = gettid();
+	uvc_apply_thread_config(strmh->cb_tid, &strmh->devh->dev->ctx->thread_config[UVC_THREAD_CALLBACK]);
+
 	for (; 1 ;) {
 		pthread_mutex_lock(&strmh->cb_mutex);
 		{
@@ -1655,6 +1867,7 @@ static void *_uvc_user_caller(void *arg) {
 		if (LIKELY(!strmh->hold_bfh_err))	// XXX
 			strmh->user_cb(&strmh->frame, strmh->user_ptr);	// call user callback function
 	}
+	strmh->cb_tid = 0;
 
 	return NULL; // return value ignored
 }
@@ -1688,6 +1901,8 @@ void _uvc_populate_frame(uvc_stream_handle_t *strmh) {
 		frame->step = frame->width * 2;
 		break;
 	case UVC_FRAME_FORMAT_MJPEG:
+	case UVC_FRAME_FORMAT_H264:
+	case UVC_FRAME_FORMAT_H265:
 		frame->step = 0;
 		break;
 	default:
@@ -1696,13 +1911,15 @@ void _uvc_populate_frame(uvc_stream_handle_t *strmh) {
 	}
 
 	/* copy the image data from the hold buffer to the frame (unnecessary extra buf?) */
-	if (UNLIKELY(frame->data_bytes < strmh->hold_bytes)) {
+	if (UNLIKELY(frame->alloc_bytes < strmh->hold_bytes)) {	// XXX keep capacity separately from data_bytes
 		frame->data = realloc(frame->data, strmh->hold_bytes);	// TODO add error handling when failed realloc
-		frame->data_bytes = strmh->hold_bytes;
+		frame->alloc_bytes = strmh->hold_bytes;
 	}
+	frame->data_bytes = strmh->hold_bytes;
 	memcpy(frame->data, strmh->holdbuf, strmh->hold_bytes/*frame->data_bytes*/);	// XXX
 
-	/** @todo set the frame time */
+	frame->sequence = strmh->hold_seq;
+	frame->capture_time = strmh->hold_capture_time;	// XXX
 }
 
 /** Poll for a frame
@@ -1750,6 +1967,11 @@ uvc_error_t uvc_stream_get_frame(uvc_stream_handle_t *strmh,
 
 				ts.tv_sec += add_secs;
 				ts.tv_nsec += add_nsecs;
+				// XXX tv_nsec must be less than 1 second otherwise pthread_cond_timedwait fails with EINVAL
+				if (ts.tv_nsec >= 1000000000) {
+					ts.tv_sec++;
+					ts.tv_nsec -= 1000000000;
+				}
 
 				pthread_cond_timedwait(&strmh->cb_cond, &strmh->cb_mutex, &ts);
 			}
@@ -1874,14 +2096,11 @@ void uvc_stream_close(uvc_stream_handle_t *strmh) {
 		strmh->frame.data = NULL;
 	}
 
-	if (strmh->outbuf) {
-		free(strmh->outbuf);
-		strmh->outbuf = NULL;
-	}
-	if (strmh->holdbuf) {
-		free(strmh->holdbuf);
-		strmh->holdbuf = NULL;
+	if (strmh->xfer_buf) {
+		_uvc_free_xfer_buf(strmh, strmh->xfer_buf, strmh->xfer_buf_bytes);	// XXX
+		strmh->xfer_buf = NULL;
 	}
+	strmh->outbuf = strmh->holdbuf = NULL;
 
 	pthread_cond_destroy(&strmh->cb_cond);
 	pthread_mutex_destroy(&strmh->cb_mutex);
@@ -1891,3 +2110,375 @@ void uvc_stream_close(uvc_stream_handle_t *strmh) {
 
 	UVC_EXIT_VOID();
 }
+
+//**********************************************************************
+// XXX still image capture(method 2/3)
+//**********************************************************************
+/** @internal
+ * Run a still image probe/commit control query
+ * @param[in] devh UVC device
+ * @param[in,out] still_ctrl Control block
+ * @param[in] probe Whether this is a probe query or a commit query
+ * @param[in] req Query type
+ */
+static uvc_error_t uvc_query_still_ctrl(uvc_device_handle_t *devh,
+		uvc_still_ctrl_t *still_ctrl, uint8_t probe, enum uvc_req_code req) {
+
+	uint8_t buf[11];
+	const size_t len = sizeof(buf);
+	uvc_error_t err;
+
+	memset(buf, 0, sizeof(buf));
+
+	if (req == UVC_SET_CUR) {
+		buf[0] = still_ctrl->bFormatIndex;
+		buf[1] = still_ctrl->bFrameIndex;
+		buf[2] = still_ctrl->bCompressionIndex;
+		INT_TO_DW(still_ctrl->dwMaxVideoFrameSize, buf + 3);
+		INT_TO_DW(still_ctrl->dwMaxPayloadTransferSize, buf + 7);
+	}
+
+	err = libusb_control_transfer(devh->usb_devh,
+		req == UVC_SET_CUR ? 0x21 : 0xA1, req,
+		probe ? (UVC_VS_STILL_PROBE_CONTROL << 8) : (UVC_VS_STILL_COMMIT_CONTROL << 8),
+		still_ctrl->bInterfaceNumber, buf, len, 0);
+
+	if (UNLIKELY(err <= 0)) {
+		if (!err) {
+			UVC_DEBUG("libusb_control_transfer transfered zero length data");
+			err = UVC_ERROR_OTHER;
+		}
+		return err;
+	}
+	if (UNLIKELY(err < len)) {
+		LOGE("transfered bytes is smaller than data bytes:%d expected %d", err, (int)len);
+		return UVC_ERROR_OTHER;
+	}
+
+	if (req != UVC_SET_CUR) {
+		still_ctrl->bFormatIndex = buf[0];
+		still_ctrl->bFrameIndex = buf[1];
+		still_ctrl->bCompressionIndex = buf[2];
+		still_ctrl->dwMaxVideoFrameSize = DW_TO_INT(buf + 3);
+		still_ctrl->dwMaxPayloadTransferSize = DW_TO_INT(buf + 7);
+	}
+
+	return UVC_SUCCESS;
+}
+
+/** @internal
+ * set VS_STILL_IMAGE_TRIGGER_CONTROL
+ * @param trigger 0: normal operation, 1: transmit still image, 2: transmit still image via bulk pipe, 3: abort
+ */
+static uvc_error_t uvc_trigger_still(uvc_device_handle_t *devh,
+		uvc_still_ctrl_t *still_ctrl, uint8_t trigger) {
+
+	int err = libusb_control_transfer(devh->usb_devh,
+		0x21, UVC_SET_CUR, UVC_VS_STILL_IMAGE_TRIGGER_CONTROL << 8,
+		still_ctrl->bInterfaceNumber, &trigger, 1, 0);
+
+	return err == 1 ? UVC_SUCCESS : (err < 0 ? err : UVC_ERROR_OTHER);
+}
+
+/** @brief Get still image capture method of the first streaming interface
+ * @ingroup streaming
+ * @return 0: not supported, 1: method 1(just take a video frame), 2: method 2, 3: method 3
+ */
+int uvc_get_still_capture_method(uvc_device_handle_t *devh) {
+	if (UNLIKELY(!devh || !devh->info->stream_ifs))
+		return 0;
+	return devh->info->stream_ifs->bStillCaptureMethod;
+}
+
+/** @brief Probe still image control
+ * @ingroup streaming
+ *
+ * @param[in] devh UVC device
+ * @param[in,out] still_ctrl Control block
+ */
+uvc_error_t uvc_probe_still_ctrl(uvc_device_handle_t *devh,
+		uvc_still_ctrl_t *still_ctrl) {
+	uvc_error_t err;
+
+	err = uvc_query_still_ctrl(devh, still_ctrl, 1, UVC_SET_CUR);	// probe query
+	if (UNLIKELY(err)) {
+		LOGE("uvc_query_still_ctrl(UVC_SET_CUR):err=%d", err);
+		return err;
+	}
+
+	err = uvc_query_still_ctrl(devh, still_ctrl, 1, UVC_GET_CUR);	// probe query
+	if (UNLIKELY(err)) {
+		LOGE("uvc_query_still_ctrl(UVC_GET_CUR):err=%d", err);
+		return err;
+	}
+
+	return UVC_SUCCESS;
+}
+
+/** @brief Get a negotiated still image control block for the format of specified stream control
+ * @ingroup streaming
+ *
+ * Still image capture method 2 and 3 require that the format has still image frame descriptor.
+ * @param[in] devh UVC device
+ * @param[in] stream_ctrl stream control block that is/will be used for video streaming
+ * @param[out] still_ctrl Control block
+ * @param[in] width still image width, if width or height is zero, the largest size is selected
+ * @param[in] height still image height
+ */
+uvc_error_t uvc_get_still_ctrl_format_size(uvc_device_handle_t *devh,
+		uvc_stream_ctrl_t *stream_ctrl, uvc_still_ctrl_t *still_ctrl,
+		int width, int height) {
+
+	uvc_streaming_interface_t *stream_if;
+	uvc_format_desc_t *format;
+	uvc_still_frame_desc_t *still;
+	int i, found = -1;
+
+	stream_if = _uvc_get_stream_if(devh, stream_ctrl->bInterfaceNumber);
+	if (UNLIKELY(!stream_if))
+		return UVC_ERROR_INVALID_PARAM;
+	if (UNLIKELY(stream_if->bStillCaptureMethod < 2))
+		return UVC_ERROR_NOT_SUPPORTED;
+
+	DL_FOREACH(stream_if->format_descs, format)
+	{
+		if (format->bFormatIndex == stream_ctrl->bFormatIndex)
+			break;
+	}
+	if (UNLIKELY(!format || !format->still_frame_desc
+		|| !format->still_frame_desc->bNumImageSizePatterns))
+		return UVC_ERROR_NOT_SUPPORTED;
+
+	still = format->still_frame_desc;
+	if ((width > 0) && (height > 0)) {
+		for (i = 0; i < still->bNumImageSizePatterns; i++) {
+			if ((still->sizes[i].wWidth == width) && (still->sizes[i].wHeight == height)) {
+				found = i;
+				break;
+			}
+		}
+		if (UNLIKELY(found < 0))
+			return UVC_ERROR_INVALID_MODE;
+	} else {
+		for (i = 0; i < still->bNumImageSizePatterns; i++) {
+			if ((found < 0) || (still->sizes[i].wWidth * still->sizes[i].wHeight
+				> still->sizes[found].wWidth * still->sizes[found].wHeight)) {
+				found = i;
+			}
+		}
+	}
+
+	memset(still_ctrl, 0, sizeof(*still_ctrl));
+	still_ctrl->bFormatIndex = format->bFormatIndex;
+	still_ctrl->bFrameIndex = found + 1;
+	still_ctrl->bCompressionIndex = still->bNumCompressionPattern ? 1 : 0;
+	still_ctrl->bInterfaceNumber = stream_if->bInterfaceNumber;
+	still_ctrl->bEndpointAddress = stream_if->bStillCaptureMethod == 3 ? still->bEndpointAddress : 0;
+	still_ctrl->wWidth = still->sizes[found].wWidth;
+	still_ctrl->wHeight = still->sizes[found].wHeight;
+
+	return uvc_probe_still_ctrl(devh, still_ctrl);
+}
+
+// timeout of each bulk transfer while waiting still image(method 3)
+#define STILL_POLL_TIMEOUT_MS 100
+
+/** @internal
+ * receive still image from dedicated bulk endpoint(method 3)
+ */
+static uvc_error_t _uvc_receive_still_bulk(uvc_stream_handle_t *strmh,
+		uvc_still_ctrl_t *still_ctrl, uint8_t *data, size_t size_buf, size_t *data_bytes,
+		int32_t timeout_us) {
+
+	const size_t payload_size = still_ctrl->dwMaxPayloadTransferSize > 512
+		? still_ctrl->dwMaxPayloadTransferSize : 512;
+	uint8_t *payload;
+	size_t got_bytes = 0, header_len, data_len;
+	int actual_length, r;
+	uvc_error_t ret = UVC_ERROR_OTHER;
+	struct timespec ts;
+	int64_t now_us, limit_us = 0;
+
+	payload = malloc(payload_size);
+	if (UNLIKELY(!payload))
+		return UVC_ERROR_NO_MEM;
+
+	if (timeout_us > 0) {
+		clock_gettime(CLOCK_MONOTONIC, &ts);
+		limit_us = ts.tv_sec * 1000000LL + ts.tv_nsec / 1000 + timeout_us;
+	}
+	for ( ; strmh->running ; ) {
+		if (UNLIKELY(strmh->still_canceled)) {
+			ret = UVC_ERROR_INTERRUPTED;
+			break;
+		}
+		actual_length = 0;
+		// wait in short slices so that uvc_stream_cancel_still is not blocked until timeout
+		r = libusb_bulk_transfer(strmh->devh->usb_devh, still_ctrl->bEndpointAddress,
+			payload, payload_size, &actual_length, STILL_POLL_TIMEOUT_MS);
+		if (UNLIKELY(r)) {
+			if ((r != LIBUSB_ERROR_TIMEOUT) || actual_length) {
+				ret = r == LIBUSB_ERROR_TIMEOUT ? UVC_ERROR_TIMEOUT : r;
+				break;
+			}
+			if (limit_us) {
+				clock_gettime(CLOCK_MONOTONIC, &ts);
+				now_us = ts.tv_sec * 1000000LL + ts.tv_nsec / 1000;
+				if (now_us >= limit_us) {
+					ret = UVC_ERROR_TIMEOUT;
+					break;
+				}
+			}
+			continue;
+		}
+		if (UNLIKELY(!actual_length))
+			continue;
+		header_len = payload[0];
+		if (UNLIKELY((header_len < 2) || (header_len > actual_length))) {
+			MARK("bogus still payload: actual_len=%d, header_len=%zd", actual_length, header_len);
+			break;
+		}
+		if (UNLIKELY(payload[1] & UVC_STREAM_ERR)) {
+			MARK("still payload has error bit");
+			break;
+		}
+		data_len = actual_length - header_len;
+		if (UNLIKELY(got_bytes + data_len > size_buf)) {
+			ret = UVC_ERROR_NO_MEM;
+			break;
+		}
+		memcpy(data + got_bytes, payload + header_len, data_len);
+		got_bytes += data_len;
+		if ((payload[1] & UVC_STREAM_EOF) || (actual_length < payload_size)) {
+			// end of still image
+			ret = got_bytes ? UVC_SUCCESS : UVC_ERROR_OTHER;
+			break;
+		}
+	}
+	free(payload);
+	*data_bytes = got_bytes;
+
+	return ret;
+}
+
+/** @brief Capture a still image while streaming(method 2/3)
+ * @ingroup streaming
+ *
+ * This commits still_ctrl, triggers still image capture and waits until the image is received.
+ * With method 2, the still image is received through the video endpoint and
+ * is not passed to frame callback/uvc_stream_get_frame. With method 3, the still image is
+ * read from dedicated bulk endpoint on the calling thread.
+ * Video streaming continues while capturing.
+ * @param strmh running stream handle
+ * @param still_ctrl Control block, processed using {uvc_get_still_ctrl_format_size}
+ * @param[out] data still image, caller should free this with free()
+ * @param[out] data_bytes size of still image in bytes
+ * @param timeout_us >0: Wait at most N microseconds; 0: Wait indefinitely
+ */
+uvc_error_t uvc_stream_capture_still(uvc_stream_handle_t *strmh,
+		uvc_still_ctrl_t *still_ctrl, uint8_t **data, size_t *data_bytes,
+		int32_t timeout_us) {
+
+	uvc_device_handle_t *devh;
+	uint8_t *buf;
+	size_t size_buf;
+	struct timespec ts;
+	uvc_error_t ret;
+
+	*data = NULL;
+	*data_bytes = 0;
+	if (UNLIKELY(!strmh || !strmh->running))
+		return UVC_ERROR_INVALID_PARAM;
+	if (UNLIKELY(strmh->stream_if->bInterfaceNumber != still_ctrl->bInterfaceNumber))
+		return UVC_ERROR_INVALID_PARAM;
+
+	devh = strmh->devh;
+	ret = uvc_query_still_ctrl(devh, still_ctrl, 0, UVC_SET_CUR);	// commit query
+	if (UNLIKELY(ret)) {
+		LOGE("failed to commit still control:err=%d", ret);
+		return ret;
+	}
+	size_buf = still_ctrl->dwMaxVideoFrameSize;
+	if (UNLIKELY(!size_buf)) {
+		// some camera return zero, assume compressed image is smaller than 2 bytes per pixel
+		size_buf = still_ctrl->wWidth * still_ctrl->wHeight * 2;
+	}
+	buf = malloc(size_buf);
+	if (UNLIKELY(!buf))
+		return UVC_ERROR_NO_MEM;
+
+	if (still_ctrl->bEndpointAddress) {
+		// method 3
+		ret = uvc_trigger_still(devh, still_ctrl, 2);
+		if (LIKELY(!ret)) {
+			ret = _uvc_receive_still_bulk(strmh, still_ctrl, buf, size_buf, data_bytes, timeout_us);
+			if (UNLIKELY(ret)) {
+				uvc_trigger_still(devh, still_ctrl, 3);	// abort
+			}
+		}
+	} else {
+		// method 2
+		pthread_mutex_lock(&strmh->cb_mutex);
+		{
+			strmh->still_buf = buf;
+			strmh->still_size_buf = size_buf;
+			strmh->still_bytes = 0;
+		}
+		pthread_mutex_unlock(&strmh->cb_mutex);
+		ret = uvc_trigger_still(devh, still_ctrl, 1);
+		pthread_mutex_lock(&strmh->cb_mutex);
+		{
+			if (LIKELY(!ret)) {
+				if (timeout_us > 0) {
+					clock_gettime(CLOCK_REALTIME, &ts);
+					ts.tv_sec += timeout_us / 1000000;
+					ts.tv_nsec += (timeout_us % 1000000) * 1000;
+					if (ts.tv_nsec >= 1000000000) {
+						ts.tv_sec++;
+						ts.tv_nsec -= 1000000000;
+					}
+				}
+				for ( ; strmh->running && !strmh->still_canceled && !strmh->still_bytes ; ) {
+					if (timeout_us > 0) {
+						if (pthread_cond_timedwait(&strmh->cb_cond, &strmh->cb_mutex, &ts) == ETIMEDOUT)
+							break;
+					} else {
+						pthread_cond_wait(&strmh->cb_cond, &strmh->cb_mutex);
+					}
+				}
+				*data_bytes = strmh->still_bytes;
+				ret = strmh->still_bytes ? UVC_SUCCESS
+					: ((strmh->running && !strmh->still_canceled) ? UVC_ERROR_TIMEOUT : UVC_ERROR_INTERRUPTED);
+			}
+			strmh->still_buf = NULL;
+			strmh->still_size_buf = strmh->still_bytes = 0;
+		}
+		pthread_mutex_unlock(&strmh->cb_mutex);
+	}
+
+	if (LIKELY(!ret)) {
+		*data = buf;
+	} else {
+		free(buf);
+		*data_bytes = 0;
+	}
+
+	return ret;
+}
+
+/** @brief Cancel still image capture in progress on other thread
+ * @ingroup streaming
+ *
+ * uvc_stream_capture_still returns UVC_ERROR_INTERRUPTED soon,
+ * this also fails following still image capture until the stream is started again.
+ * @param strmh stream handle
+ */
+void uvc_stream_cancel_still(uvc_stream_handle_t *strmh) {
+	if (UNLIKELY(!strmh)) return;
+	pthread_mutex_lock(&strmh->cb_mutex);
+	{
+		strmh->still_canceled = 1;
+		pthread_cond_broadcast(&strmh->cb_cond);
+	}
+	pthread_mutex_unlock(&strmh->cb_mutex);
+}
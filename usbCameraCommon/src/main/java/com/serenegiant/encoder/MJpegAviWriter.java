@@ -0,0 +1,468 @@
+/*
+ *  UVCCamera
+ *  library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * Copyright (c) 2014-2017 saki t_saki@serenegiant.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ *  All files in the folder are under this Apache License, Version 2.0.
+ *  Files in the libjpeg-turbo, libusb, libuvc, rapidjson folder
+ *  may have a different license, see the respective files.
+ */
+
+package com.serenegiant.encoder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Write MJPEG frames into AVI file(OpenDML AVI 2.0, fourcc 'MJPG') as they are without re-encoding.
+ * Each RIFF chunk is limited to about 1GB and following frames are written into 'AVIX' RIFF chunks,
+ * all frames are indexed with standard index('ix00') per RIFF chunk and super index('indx'),
+ * and legacy index('idx1') is also written for the first RIFF chunk.
+ * File is written through a write buffer of block size so that every write except the last one
+ * has the block size and an offset aligned to it.
+ * This class has no dependency on Android framework and you can run it on host JVM
+ * e.g. to write frames that are read from a payload trace file.
+ * This class is not thread safe, MJpegPassThroughRecorder calls this from its writer thread.
+ */
+public class MJpegAviWriter {
+
+	/** default size of write buffer */
+	public static final int DEFAULT_BLOCK_SIZE = 1024 * 1024;
+	/** maximum size of each RIFF chunk, 1GB as OpenDML recommends */
+	private static final long MAX_RIFF_SIZE = 1024L * 1024 * 1024;
+	/** maximum number of RIFF chunks that super index can hold */
+	private static final int MAX_SUPER_INDEX_ENTRIES = 256;
+	private static final int AVIF_HASINDEX = 0x00000010;
+	private static final int AVIF_ISINTERLEAVED = 0x00000100;
+	private static final int AVIIF_KEYFRAME = 0x00000010;
+	private static final int AVI_INDEX_OF_INDEXES = 0x00;
+	private static final int AVI_INDEX_OF_CHUNKS = 0x01;
+	private static final int FRAME_CHUNK_ID = fourcc("00dc");
+
+	private final RandomAccessFile mFile;
+	private final FileChannel mChannel;
+	private final ByteBuffer mBuffer;
+	private final ByteBuffer mWork = ByteBuffer.allocate(16).order(ByteOrder.LITTLE_ENDIAN);
+	private final int mWidth, mHeight;
+	private final int mDefaultFrameIntervalUs;
+	/** file offset of the head of mBuffer */
+	private long mBufferPos;
+	// positions of header fields that are updated on close
+	private long mAvihPos, mStrhPos, mSuperIndexPos, mDmlhPos;
+	/** position of current RIFF chunk and its 'movi' list */
+	private long mRiffPos, mMoviPos;
+	// index of frames in current RIFF chunk, offsets are relative to mMoviPos
+	private int[] mIndexOffsets = new int[1024];
+	private int[] mIndexSizes = new int[1024];
+	private int mIndexCount;
+	// super index entries
+	private final long[] mSuperIndexOffsets = new long[MAX_SUPER_INDEX_ENTRIES];
+	private final int[] mSuperIndexSizes = new int[MAX_SUPER_INDEX_ENTRIES];
+	private final int[] mSuperIndexDurations = new int[MAX_SUPER_INDEX_ENTRIES];
+	private int mRiffCount;
+	private int mFramesInFirstRiff;
+	private int mFrameCount;
+	private int mMaxFrameBytes;
+	private long mTotalFrameBytes;
+	private long mFirstPtsUs, mLastPtsUs;
+	private boolean mReleased;
+
+	/**
+	 * Constructor, this opens the file and writes header
+	 * @param file output file, overwritten if it already exists
+	 * @param width
+	 * @param height
+	 * @param fps frame rate that is used when it can not be calculated from presentation time of frames
+	 * @throws IOException
+	 */
+	public MJpegAviWriter(final File file, final int width, final int height, final int fps)
+		throws IOException {
+
+		this(file, width, height, fps, DEFAULT_BLOCK_SIZE);
+	}
+
+	/**
+	 * Constructor, this opens the file and writes header
+	 * @param file output file, overwritten if it already exists
+	 * @param width
+	 * @param height
+	 * @param fps frame rate that is used when it can not be calculated from presentation time of frames
+	 * @param blockSize size of write buffer, should be multiple of storage block size
+	 * @throws IOException
+	 */
+	public MJpegAviWriter(final File file, final int width, final int height, final int fps,
+		final int blockSize) throws IOException {
+
+		mWidth = width;
+		mHeight = height;
+		mDefaultFrameIntervalUs = 1000000 / (fps > 0 ? fps : 30);
+		mBuffer = ByteBuffer.allocateDirect(blockSize).order(ByteOrder.LITTLE_ENDIAN);
+		mFile = new RandomAccessFile(file, "rw");
+		mFile.setLength(0);
+		mChannel = mFile.getChannel();
+		try {
+			writeHeader();
+		} catch (final IOException e) {
+			mChannel.close();
+			mFile.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * write one MJPEG frame
+	 * @param frame JPEG image from position to limit, position of this buffer is changed
+	 * @param presentationTimeUs
+	 * @throws IOException
+	 */
+	public void writeFrame(final ByteBuffer frame, final long presentationTimeUs) throws IOException {
+		if (mReleased) throw new IllegalStateException("already closed");
+		final int bytes = frame.remaining();
+		final int chunkBytes = 8 + bytes + (bytes & 1);
+		// reserve space for standard index and legacy index of this frame
+		final long reserved = 8 + 24 + (mIndexCount + 1) * 8
+			+ (mRiffCount == 0 ? 8 + (mIndexCount + 1) * 16 : 0);
+		if ((mIndexCount > 0) && (position() - mRiffPos + chunkBytes + reserved > MAX_RIFF_SIZE)) {
+			finishRiff();
+			startRiff("AVIX");
+		}
+		final long pos = position();
+		putFourcc("00dc");
+		putInt(bytes);
+		write(frame);
+		if ((bytes & 1) != 0) {
+			putByte(0);	// chunks are aligned to WORD
+		}
+		addIndex((int)(pos + 8 - mMoviPos), bytes);
+		if (mFrameCount == 0) {
+			mFirstPtsUs = presentationTimeUs;
+		}
+		mLastPtsUs = presentationTimeUs;
+		mFrameCount++;
+		mTotalFrameBytes += bytes;
+		if (bytes > mMaxFrameBytes) {
+			mMaxFrameBytes = bytes;
+		}
+	}
+
+	/**
+	 * write indices, update header and close the file
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		if (mReleased) return;
+		mReleased = true;
+		try {
+			finishRiff();
+			updateHeader();
+			flush();
+			mChannel.force(false);
+		} finally {
+			mChannel.close();
+			mFile.close();
+		}
+	}
+
+	public int getFrameCount() {
+		return mFrameCount;
+	}
+
+	/**
+	 * @return current size of the file including data in write buffer
+	 */
+	public long getFileSize() {
+		return position();
+	}
+
+	//================================================================================
+	private void writeHeader() throws IOException {
+		startList("RIFF", "AVI ");
+		final long hdrlPos = startList("LIST", "hdrl");
+		// main AVI header
+		putFourcc("avih");
+		putInt(56);
+		mAvihPos = position();
+		putInt(mDefaultFrameIntervalUs);	// dwMicroSecPerFrame
+		putInt(0);							// dwMaxBytesPerSec
+		putInt(0);							// dwPaddingGranularity
+		putInt(AVIF_HASINDEX | AVIF_ISINTERLEAVED);	// dwFlags
+		putInt(0);							// dwTotalFrames(of first RIFF chunk)
+		putInt(0);							// dwInitialFrames
+		putInt(1);							// dwStreams
+		putInt(0);							// dwSuggestedBufferSize
+		putInt(mWidth);						// dwWidth
+		putInt(mHeight);					// dwHeight
+		putZeros(16);						// dwReserved[4]
+		// stream header list
+		final long strlPos = startList("LIST", "strl");
+		putFourcc("strh");
+		putInt(56);
+		mStrhPos = position();
+		putFourcc("vids");					// fccType
+		putFourcc("MJPG");					// fccHandler
+		putInt(0);							// dwFlags
+		putShort(0);						// wPriority
+		putShort(0);						// wLanguage
+		putInt(0);							// dwInitialFrames
+		putInt(mDefaultFrameIntervalUs);	// dwScale
+		putInt(1000000);					// dwRate
+		putInt(0);							// dwStart
+		putInt(0);							// dwLength
+		putInt(0);							// dwSuggestedBufferSize
+		putInt(-1);							// dwQuality
+		putInt(0);							// dwSampleSize
+		putShort(0);						// rcFrame
+		putShort(0);
+		putShort(mWidth);
+		putShort(mHeight);
+		// stream format(BITMAPINFOHEADER)
+		putFourcc("strf");
+		putInt(40);
+		putInt(40);							// biSize
+		putInt(mWidth);						// biWidth
+		putInt(mHeight);					// biHeight
+		putShort(1);						// biPlanes
+		putShort(24);						// biBitCount
+		putFourcc("MJPG");					// biCompression
+		putInt(mWidth * mHeight * 3);		// biSizeImage
+		putZeros(16);						// biXPelsPerMeter, biYPelsPerMeter, biClrUsed, biClrImportant
+		// super index, entries are filled on close
+		putFourcc("indx");
+		putInt(24 + MAX_SUPER_INDEX_ENTRIES * 16);
+		putShort(4);						// wLongsPerEntry
+		putByte(0);							// bIndexSubType
+		putByte(AVI_INDEX_OF_INDEXES);		// bIndexType
+		mSuperIndexPos = position();
+		putInt(0);							// nEntriesInUse
+		putInt(FRAME_CHUNK_ID);				// dwChunkId
+		putZeros(12);						// dwReserved[3]
+		putZeros(MAX_SUPER_INDEX_ENTRIES * 16);
+		endList(strlPos);
+		// extended AVI header
+		final long odmlPos = startList("LIST", "odml");
+		putFourcc("dmlh");
+		putInt(248);
+		mDmlhPos = position();
+		putInt(0);							// dwTotalFrames
+		putZeros(244);
+		endList(odmlPos);
+		endList(hdrlPos);
+		mRiffPos = 0;
+		mMoviPos = startList("LIST", "movi");
+	}
+
+	private void startRiff(final String type) throws IOException {
+		mRiffPos = startList("RIFF", type);
+		mMoviPos = startList("LIST", "movi");
+	}
+
+	/**
+	 * write standard index(and legacy index if this is the first RIFF chunk)
+	 * and close current RIFF chunk
+	 * @throws IOException
+	 */
+	private void finishRiff() throws IOException {
+		if (mRiffCount >= MAX_SUPER_INDEX_ENTRIES) {
+			throw new IOException("too large file, super index is full");
+		}
+		// standard index in 'movi' list
+		final long ixPos = position();
+		putFourcc("ix00");
+		putInt(24 + mIndexCount * 8);
+		putShort(2);						// wLongsPerEntry
+		putByte(0);							// bIndexSubType
+		putByte(AVI_INDEX_OF_CHUNKS);		// bIndexType
+		putInt(mIndexCount);				// nEntriesInUse
+		putInt(FRAME_CHUNK_ID);				// dwChunkId
+		putLong(mMoviPos);					// qwBaseOffset
+		putInt(0);							// dwReserved
+		for (int i = 0; i < mIndexCount; i++) {
+			putInt(mIndexOffsets[i]);		// dwOffset(to chunk data)
+			putInt(mIndexSizes[i]);			// dwSize, all MJPEG frames are key frame
+		}
+		mSuperIndexOffsets[mRiffCount] = ixPos;
+		mSuperIndexSizes[mRiffCount] = (int)(position() - ixPos);
+		mSuperIndexDurations[mRiffCount] = mIndexCount;
+		endList(mMoviPos);
+		if (mRiffCount == 0) {
+			// legacy index, offsets are relative to 'movi' fourcc
+			putFourcc("idx1");
+			putInt(mIndexCount * 16);
+			for (int i = 0; i < mIndexCount; i++) {
+				putInt(FRAME_CHUNK_ID);
+				putInt(AVIIF_KEYFRAME);
+				putInt(mIndexOffsets[i] - 16);
+				putInt(mIndexSizes[i]);
+			}
+			mFramesInFirstRiff = mIndexCount;
+		}
+		endList(mRiffPos);
+		mRiffCount++;
+		mIndexCount = 0;
+	}
+
+	private void updateHeader() throws IOException {
+		final int intervalUs = mFrameCount > 1
+			? (int)((mLastPtsUs - mFirstPtsUs + (mFrameCount - 1) / 2) / (mFrameCount - 1))
+			: mDefaultFrameIntervalUs;
+		final int frameIntervalUs = intervalUs > 0 ? intervalUs : mDefaultFrameIntervalUs;
+		final long durationUs = (long)frameIntervalUs * mFrameCount;
+		final int maxBytesPerSec = durationUs > 0
+			? (int)Math.min(Integer.MAX_VALUE, mTotalFrameBytes * 1000000L / durationUs) : 0;
+		final int suggestedBufferSize = mMaxFrameBytes + 8;
+		putIntAt(mAvihPos, frameIntervalUs);				// dwMicroSecPerFrame
+		putIntAt(mAvihPos + 4, maxBytesPerSec);				// dwMaxBytesPerSec
+		putIntAt(mAvihPos + 16, mFramesInFirstRiff);		// dwTotalFrames
+		putIntAt(mAvihPos + 28, suggestedBufferSize);		// dwSuggestedBufferSize
+		putIntAt(mStrhPos + 20, frameIntervalUs);			// dwScale
+		putIntAt(mStrhPos + 32, mFrameCount);				// dwLength
+		putIntAt(mStrhPos + 36, suggestedBufferSize);		// dwSuggestedBufferSize
+		putIntAt(mSuperIndexPos, mRiffCount);				// nEntriesInUse
+		for (int i = 0; i < mRiffCount; i++) {
+			final long pos = mSuperIndexPos + 20 + i * 16;
+			putIntAt(pos, (int)mSuperIndexOffsets[i]);		// qwOffset
+			putIntAt(pos + 4, (int)(mSuperIndexOffsets[i] >>> 32));
+			putIntAt(pos + 8, mSuperIndexSizes[i]);			// dwSize
+			putIntAt(pos + 12, mSuperIndexDurations[i]);	// dwDuration
+		}
+		putIntAt(mDmlhPos, mFrameCount);					// dwTotalFrames
+	}
+
+	private void addIndex(final int offset, final int size) {
+		if (mIndexCount >= mIndexOffsets.length) {
+			final int n = mIndexOffsets.length * 2;
+			final int[] offsets = new int[n];
+			final int[] sizes = new int[n];
+			System.arraycopy(mIndexOffsets, 0, offsets, 0, mIndexCount);
+			System.arraycopy(mIndexSizes, 0, sizes, 0, mIndexCount);
+			mIndexOffsets = offsets;
+			mIndexSizes = sizes;
+		}
+		mIndexOffsets[mIndexCount] = offset;
+		mIndexSizes[mIndexCount] = size;
+		mIndexCount++;
+	}
+
+	//================================================================================
+	/**
+	 * write list header, size is updated with #endList
+	 * @return position of the list
+	 */
+	private long startList(final String id, final String type) throws IOException {
+		final long pos = position();
+		putFourcc(id);
+		putInt(0);
+		putFourcc(type);
+		return pos;
+	}
+
+	private void endList(final long pos) throws IOException {
+		putIntAt(pos + 4, (int)(position() - pos - 8));
+	}
+
+	private long position() {
+		return mBufferPos + mBuffer.position();
+	}
+
+	private void putByte(final int value) throws IOException {
+		mWork.clear();
+		mWork.put((byte)value).flip();
+		write(mWork);
+	}
+
+	private void putShort(final int value) throws IOException {
+		mWork.clear();
+		mWork.putShort((short)value).flip();
+		write(mWork);
+	}
+
+	private void putInt(final int value) throws IOException {
+		mWork.clear();
+		mWork.putInt(value).flip();
+		write(mWork);
+	}
+
+	private void putLong(final long value) throws IOException {
+		mWork.clear();
+		mWork.putLong(value).flip();
+		write(mWork);
+	}
+
+	private void putFourcc(final String fourcc) throws IOException {
+		putInt(fourcc(fourcc));
+	}
+
+	private void putZeros(final int bytes) throws IOException {
+		for (int i = 0; i < bytes; i += 4) {
+			putInt(0);
+		}
+	}
+
+	/**
+	 * copy data into write buffer and write it into the file when the buffer becomes full
+	 */
+	private void write(final ByteBuffer src) throws IOException {
+		final int limit = src.limit();
+		while (src.hasRemaining()) {
+			final int n = Math.min(src.remaining(), mBuffer.remaining());
+			src.limit(src.position() + n);
+			mBuffer.put(src);
+			src.limit(limit);
+			if (!mBuffer.hasRemaining()) {
+				flush();
+			}
+		}
+	}
+
+	private void flush() throws IOException {
+		mBuffer.flip();
+		while (mBuffer.hasRemaining()) {
+			mBufferPos += mChannel.write(mBuffer, mBufferPos);
+		}
+		mBuffer.clear();
+	}
+
+	/**
+	 * update 4 bytes value that was already written, in write buffer or in the file
+	 */
+	private void putIntAt(final long pos, final int value) throws IOException {
+		mWork.clear();
+		mWork.putInt(value).flip();
+		if (pos < mBufferPos) {
+			// some or all bytes were already written into the file
+			final int n = (int)Math.min(4, mBufferPos - pos);
+			mWork.limit(n);
+			while (mWork.hasRemaining()) {
+				mChannel.write(mWork, pos + mWork.position());
+			}
+			mWork.limit(4);
+		}
+		while (mWork.hasRemaining()) {
+			mBuffer.put((int)(pos + mWork.position() - mBufferPos), mWork.get());
+		}
+	}
+
+	private static int fourcc(final String fourcc) {
+		return (fourcc.charAt(0) & 0xff)
+			| ((fourcc.charAt(1) & 0xff) << 8)
+			| ((fourcc.charAt(2) & 0xff) << 16)
+			| ((fourcc.charAt(3) & 0xff) << 24);
+	}
+}
@@ -0,0 +1,243 @@
+/*
+ *  UVCCamera
+ *  library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * Copyright (c) 2014-2017 saki t_saki@serenegiant.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ *  All files in the folder are under this Apache License, Version 2.0.
+ *  Files in the libjpeg-turbo, libusb, libuvc, rapidjson folder
+ *  may have a different license, see the respective files.
+ */
+
+package com.serenegiant.encoder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.LinkedList;
+
+/**
+ * Record original MJPEG frames from UVC camera into AVI file without decoding/re-encoding.
+ * Frames passed to #encode are copied into pooled buffers and written by dedicated writer thread
+ * with MJpegAviWriter, so the caller(preview thread) is not blocked by storage I/O.
+ * Like MJpegAviWriter, this class has no dependency on Android framework.
+ */
+public class MJpegPassThroughRecorder {
+
+	/** maximum number of frames waiting for writing, frames are dropped when exceeded */
+	private static final int MAX_QUEUE_SIZE = 30;
+	private static final int MAX_POOL_SIZE = 8;
+	/** pooled buffers are allocated with multiple of this size to reduce re-allocation */
+	private static final int BUFFER_GRANULARITY = 64 * 1024;
+
+	private static final class Frame {
+		private ByteBuffer buffer;
+		private long presentationTimeUs;
+	}
+
+	private final Object mSync = new Object();
+	private final String mOutputPath;
+	private final int mWidth, mHeight, mFps;
+	private final LinkedList<Frame> mFrameQueue = new LinkedList<Frame>();
+	private final LinkedList<Frame> mFramePool = new LinkedList<Frame>();
+	private Thread mWriterThread;
+	private volatile boolean mRequestStop;
+	private volatile IOException mError;
+	private volatile int mFrameCount;
+	private volatile int mDroppedFrames;
+	private volatile long mFileSize;
+
+	/**
+	 * Constructor
+	 * @param outputPath path of AVI file
+	 * @param width
+	 * @param height
+	 * @param fps frame rate that is used when it can not be calculated from presentation time of frames
+	 */
+	public MJpegPassThroughRecorder(final String outputPath,
+		final int width, final int height, final int fps) {
+
+		mOutputPath = outputPath;
+		mWidth = width;
+		mHeight = height;
+		mFps = fps;
+	}
+
+	public String getOutputPath() {
+		return mOutputPath;
+	}
+
+	/**
+	 * create output file and start writer thread
+	 * @throws IOException
+	 */
+	public void start() throws IOException {
+		synchronized (mSync) {
+			if (mWriterThread != null) return;
+			final MJpegAviWriter writer = new MJpegAviWriter(new File(mOutputPath), mWidth, mHeight, mFps);
+			mRequestStop = false;
+			mError = null;
+			mWriterThread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					writerLoop(writer);
+				}
+			}, "MJpegWriter");
+			mWriterThread.start();
+		}
+	}
+
+	/**
+	 * stop recording, this waits until all queued frames are written and the file is closed
+	 * @return IOException that occurred while writing, null if no error
+	 */
+	public IOException stop() {
+		final Thread thread;
+		synchronized (mSync) {
+			thread = mWriterThread;
+			mWriterThread = null;
+			mRequestStop = true;
+			mSync.notifyAll();
+		}
+		if (thread != null) {
+			try {
+				thread.join();
+			} catch (final InterruptedException e) {
+				// ignore
+			}
+		}
+		return mError;
+	}
+
+	public boolean isRecording() {
+		synchronized (mSync) {
+			return (mWriterThread != null) && (mError == null);
+		}
+	}
+
+	/**
+	 * queue one MJPEG frame for writing, this method copies the frame and returns immediately
+	 * @param frame JPEG image from position to limit, position of this buffer is not changed
+	 * @param presentationTimeUs
+	 * @return false if the frame was dropped
+	 */
+	public boolean encode(final ByteBuffer frame, final long presentationTimeUs) {
+		synchronized (mSync) {
+			if ((mWriterThread == null) || mRequestStop || (mError != null)) return false;
+			if (mFrameQueue.size() >= MAX_QUEUE_SIZE) {
+				// writer can not keep up with camera
+				mDroppedFrames++;
+				return false;
+			}
+			final int bytes = frame.remaining();
+			Frame f = mFramePool.isEmpty() ? new Frame() : mFramePool.removeFirst();
+			if ((f.buffer == null) || (f.buffer.capacity() < bytes)) {
+				f.buffer = ByteBuffer.allocateDirect(
+					(bytes + BUFFER_GRANULARITY - 1) / BUFFER_GRANULARITY * BUFFER_GRANULARITY);
+			}
+			f.buffer.clear();
+			f.buffer.put(frame.duplicate());
+			f.buffer.flip();
+			f.presentationTimeUs = presentationTimeUs;
+			mFrameQueue.addLast(f);
+			mSync.notifyAll();
+		}
+		return true;
+	}
+
+	/**
+	 * queue one MJPEG frame for writing without dropping, this is for frames from PreEventRingBuffer
+	 * that keeps frames while this recorder is busy
+	 * @param frame JPEG image from position to limit, position of this buffer is not changed
+	 * @param presentationTimeUs
+	 * @return false if the queue is full or this recorder is not recording, caller should retry later
+	 */
+	public boolean offer(final ByteBuffer frame, final long presentationTimeUs) {
+		synchronized (mSync) {
+			if ((mWriterThread == null) || mRequestStop || (mError != null)) return false;
+			if (mFrameQueue.size() >= MAX_QUEUE_SIZE) return false;
+			return encode(frame, presentationTimeUs);
+		}
+	}
+
+	/**
+	 * @return number of frames that were written
+	 */
+	public int getFrameCount() {
+		return mFrameCount;
+	}
+
+	/**
+	 * @return number of frames that were dropped because writer could not keep up with camera
+	 */
+	public int getDroppedFrames() {
+		return mDroppedFrames;
+	}
+
+	/**
+	 * @return current size of output file
+	 */
+	public long getFileSize() {
+		return mFileSize;
+	}
+
+	/**
+	 * writer thread loop, frames are written until stop requested and queue becomes empty
+	 */
+	private void writerLoop(final MJpegAviWriter writer) {
+		try {
+			for ( ; ; ) {
+				final Frame frame;
+				synchronized (mSync) {
+					while (!mRequestStop && mFrameQueue.isEmpty()) {
+						try {
+							mSync.wait();
+						} catch (final InterruptedException e) {
+							break;
+						}
+					}
+					if (mFrameQueue.isEmpty()) break;
+					frame = mFrameQueue.removeFirst();
+				}
+				try {
+					writer.writeFrame(frame.buffer, frame.presentationTimeUs);
+					mFrameCount = writer.getFrameCount();
+					mFileSize = writer.getFileSize();
+				} finally {
+					synchronized (mSync) {
+						if (mFramePool.size() < MAX_POOL_SIZE) {
+							mFramePool.addLast(frame);
+						}
+					}
+				}
+			}
+		} catch (final IOException e) {
+			mError = e;
+		} finally {
+			try {
+				writer.close();
+				mFileSize = new File(mOutputPath).length();
+			} catch (final IOException e) {
+				if (mError == null) {
+					mError = e;
+				}
+			}
+			synchronized (mSync) {
+				mFrameQueue.clear();
+				mFramePool.clear();
+			}
+		}
+	}
+}
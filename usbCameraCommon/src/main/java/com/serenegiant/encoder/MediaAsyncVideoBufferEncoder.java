@@ -0,0 +1,421 @@
+/*
+ *  UVCCamera
+ *  library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * Copyright (c) 2014-2017 saki t_saki@serenegiant.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ *  All files in the folder are under this Apache License, Version 2.0.
+ *  Files in the libjpeg-turbo, libusb, libuvc, rapidjson folder
+ *  may have a different license, see the respective files.
+ */
+
+package com.serenegiant.encoder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.LinkedList;
+
+import android.annotation.TargetApi;
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+/**
+ * MediaVideoBufferEncoder that uses MediaCodec in asynchronous mode(MediaCodec#setCallback, API >= 21).
+ * Indices of free input buffers are kept when MediaCodec returns them, so #encode copies the frame
+ * and queues it immediately without waiting on MediaCodec#dequeueInputBuffer,
+ * and encoded data are written to the muxer as soon as MediaCodec calls back
+ * instead of polling MediaCodec#dequeueOutputBuffer.
+ * Frames are dropped(see #getDroppedFrames) while there is no free input buffer.
+ * MediaCodec callbacks are called on the encoder thread, it does not poll and just waits on it's Looper.
+ */
+@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+public class MediaAsyncVideoBufferEncoder extends MediaVideoBufferEncoder {
+	private static final boolean DEBUG = true;	// TODO set false on release
+	private static final String TAG = "MediaAsyncVideoBufferEncoder";
+	/**
+	 * max time to wait in #release for the input buffer that #obtainInputBuffer returned [milliseconds]
+	 */
+	private static final long OBTAINED_BUFFER_TIMEOUT_MS = 1000;
+
+	/**
+	 * indices of input buffers that MediaCodec returned and are not filled yet,
+	 * should be accessed while holding mSync
+	 */
+	private final LinkedList<Integer> mInputBufferIndices = new LinkedList<Integer>();
+	/**
+	 * Handler of encoder thread, MediaCodec callbacks are also called on this thread.
+	 * This is set on encoder thread that starts in super class constructor,
+	 * so do not initialize this field here.
+	 */
+	private Handler mHandler;
+	private boolean mPrepared;
+	private IOException mPrepareError;
+	/** only accessed on encoder thread */
+	private boolean mReleased;
+	private volatile int mDroppedFrames;
+	/**
+	 * index of input buffer that #obtainInputBuffer returned, should be accessed while holding mSync
+	 */
+	private int mObtainedIndex = -1;
+
+	public MediaAsyncVideoBufferEncoder(final MediaMuxerWrapper muxer, final int width, final int height, final MediaEncoderListener listener) {
+		super(muxer, width, height, listener);
+		if (DEBUG) Log.i(TAG, "MediaAsyncVideoBufferEncoder: ");
+	}
+
+	/**
+	 * @return number of frames that were dropped because MediaCodec had no free input buffer
+	 */
+	public int getDroppedFrames() {
+		return mDroppedFrames;
+	}
+
+	/**
+	 * nothing to drain in asynchronous mode, just returns whether this encoder accepts frames
+	 */
+	@Override
+	public boolean frameAvailableSoon() {
+		synchronized (mSync) {
+			return mIsCapturing && !mRequestStop;
+		}
+	}
+
+	/**
+	 * copy the frame into free input buffer and queue it,
+	 * the frame is dropped if there is no free input buffer
+	 * @param buffer
+	 * @param presentationTimeUs capture time of the frame, same time base as System#nanoTime / 1000
+	 */
+	@Override
+	public void encode(final ByteBuffer buffer, final long presentationTimeUs) {
+		// queue the frame while holding mSync so that it never comes after EOS
+		synchronized (mSync) {
+			if (!mIsCapturing || mRequestStop || mIsEOS || (mMediaCodec == null)) return;
+			if (mInputBufferIndices.isEmpty()) {
+				mDroppedFrames++;
+				return;
+			}
+			final int index = mInputBufferIndices.removeFirst();
+			try {
+				final ByteBuffer inputBuffer = mMediaCodec.getInputBuffer(index);
+				inputBuffer.clear();
+				buffer.clear();
+				if (buffer.remaining() > inputBuffer.remaining()) {
+					buffer.limit(inputBuffer.remaining());
+				}
+				inputBuffer.put(buffer);
+				mMediaCodec.queueInputBuffer(index, 0, inputBuffer.position(), presentationTimeUs, 0);
+			} catch (final IllegalStateException e) {
+				// MediaCodec was stopped
+				Log.w(TAG, "encode:", e);
+			}
+		}
+	}
+
+	/**
+	 * get free input buffer of MediaCodec to write the frame into directly,
+	 * this is for IFrameBufferCallback#onObtainBuffer, call #queueInputBuffer after writing.
+	 * @param bytes size of the frame
+	 * @return null if there is no free input buffer, the frame should be dropped
+	 */
+	public ByteBuffer obtainInputBuffer(final int bytes) {
+		synchronized (mSync) {
+			if (!mIsCapturing || mRequestStop || mIsEOS || (mMediaCodec == null)) return null;
+			if (mInputBufferIndices.isEmpty()) {
+				mDroppedFrames++;
+				return null;
+			}
+			final int index = mInputBufferIndices.removeFirst();
+			try {
+				final ByteBuffer inputBuffer = mMediaCodec.getInputBuffer(index);
+				if ((inputBuffer == null) || (inputBuffer.capacity() < bytes)) {
+					Log.w(TAG, "obtainInputBuffer:input buffer is too small for " + bytes);
+					mInputBufferIndices.addFirst(index);
+					return null;
+				}
+				inputBuffer.clear();
+				mObtainedIndex = index;
+				return inputBuffer;
+			} catch (final IllegalStateException e) {
+				// MediaCodec was stopped
+				Log.w(TAG, "obtainInputBuffer:", e);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * queue the input buffer that #obtainInputBuffer returned,
+	 * this is for IFrameBufferCallback#onFrameWritten
+	 * @param buffer
+	 * @param bytes size of the frame, negative value means failed to write and the buffer is just returned
+	 * @param presentationTimeUs capture time of the frame, same time base as System#nanoTime / 1000
+	 */
+	public void queueInputBuffer(final ByteBuffer buffer, final int bytes, final long presentationTimeUs) {
+		synchronized (mSync) {
+			final int index = mObtainedIndex;
+			mObtainedIndex = -1;
+			mSync.notifyAll();
+			if ((index < 0) || (mMediaCodec == null) || mIsEOS) return;
+			try {
+				if (mRequestStop) {
+					// stop was requested while writing the frame, use this buffer for EOS
+					queueEndOfStream(index);
+				} else if (bytes > 0) {
+					mMediaCodec.queueInputBuffer(index, 0, bytes, presentationTimeUs, 0);
+				} else {
+					mInputBufferIndices.addFirst(index);
+				}
+			} catch (final IllegalStateException e) {
+				// MediaCodec was stopped
+				Log.w(TAG, "queueInputBuffer:", e);
+			}
+		}
+	}
+
+	/**
+	 * encoder thread, this just runs Looper for MediaCodec callbacks
+	 */
+	@Override
+	public void run() {
+		Looper.prepare();
+		synchronized (mSync) {
+			mHandler = new Handler();
+			mRequestStop = false;
+			mSync.notify();
+		}
+		Looper.loop();
+		if (DEBUG) Log.d(TAG, "Encoder thread exiting");
+		synchronized (mSync) {
+			mRequestStop = true;
+			mIsCapturing = false;
+		}
+	}
+
+	@Override
+	protected void prepare() throws IOException {
+		if (DEBUG) Log.i(TAG, "prepare: ");
+		mTrackIndex = -1;
+		mMuxerStarted = mIsEOS = false;
+
+		final MediaFormat format = createFormat();
+		if (format == null) return;
+
+		// MediaCodec calls back on Looper of the thread that created it on API < 23,
+		// so create it on encoder thread
+		synchronized (mSync) {
+			mPrepared = false;
+			mPrepareError = null;
+			mHandler.post(new Runnable() {
+				@Override
+				public void run() {
+					IOException error = null;
+					try {
+						mMediaCodec = MediaCodec.createEncoderByType(MIME_TYPE);
+						mMediaCodec.setCallback(mCodecCallback);
+						mMediaCodec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+						mMediaCodec.start();
+					} catch (final IOException e) {
+						error = e;
+					} catch (final RuntimeException e) {
+						error = new IOException(e);
+					}
+					synchronized (mSync) {
+						mPrepareError = error;
+						mPrepared = true;
+						mSync.notifyAll();
+					}
+				}
+			});
+			while (!mPrepared) {
+				try {
+					mSync.wait();
+				} catch (final InterruptedException e) {
+					throw new IOException("interrupted while preparing");
+				}
+			}
+			if (mPrepareError != null) {
+				throw mPrepareError;
+			}
+		}
+		if (DEBUG) Log.i(TAG, "prepare finishing");
+		if (mListener != null) {
+			try {
+				mListener.onPrepared(this);
+			} catch (final Exception e) {
+				Log.e(TAG, "prepare:", e);
+			}
+		}
+	}
+
+	@Override
+	/*package*/ void stopRecording() {
+		if (DEBUG) Log.v(TAG, "stopRecording");
+		synchronized (mSync) {
+			if (!mIsCapturing || mRequestStop) {
+				return;
+			}
+			mRequestStop = true;	// for rejecting newer frame
+			mSync.notifyAll();
+		}
+		mHandler.post(new Runnable() {
+			@Override
+			public void run() {
+				signalEndOfInputStream();
+			}
+		});
+	}
+
+	/**
+	 * queue EOS with free input buffer, if there is no free input buffer
+	 * EOS is queued when next input buffer becomes available.
+	 * This should be called on encoder thread.
+	 */
+	@Override
+	protected void signalEndOfInputStream() {
+		if (DEBUG) Log.d(TAG, "sending EOS to encoder");
+		if (mMediaCodec == null) {
+			// prepare failed, nothing to wait
+			release();
+			return;
+		}
+		synchronized (mSync) {
+			if (!mIsEOS && !mInputBufferIndices.isEmpty()) {
+				queueEndOfStream(mInputBufferIndices.removeFirst());
+			}
+		}
+	}
+
+	/**
+	 * should be called while holding mSync
+	 * @param index
+	 */
+	private void queueEndOfStream(final int index) {
+		mIsEOS = true;
+		if (DEBUG) Log.i(TAG, "send BUFFER_FLAG_END_OF_STREAM");
+		mMediaCodec.queueInputBuffer(index, 0, 0, getPTSUs(), MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+	}
+
+	/**
+	 * MediaCodec should not be stopped inside it's callback, so release after returning from it
+	 */
+	private final Runnable mReleaseTask = new Runnable() {
+		@Override
+		public void run() {
+			release();
+		}
+	};
+
+	/**
+	 * this is called on encoder thread, encoder thread finishes after this
+	 */
+	@Override
+	protected void release() {
+		if (mReleased) return;
+		mReleased = true;
+		synchronized (mSync) {
+			// preview thread may still be writing into the obtained input buffer,
+			// wait until it is returned with #queueInputBuffer before releasing MediaCodec
+			final long limit = System.currentTimeMillis() + OBTAINED_BUFFER_TIMEOUT_MS;
+			long remain = OBTAINED_BUFFER_TIMEOUT_MS;
+			while ((mObtainedIndex >= 0) && (remain > 0)) {
+				try {
+					mSync.wait(remain);
+				} catch (final InterruptedException e) {
+					break;
+				}
+				remain = limit - System.currentTimeMillis();
+			}
+			if (mObtainedIndex >= 0) {
+				Log.w(TAG, "release:obtained input buffer was not returned");
+			}
+			mInputBufferIndices.clear();
+			mObtainedIndex = -1;
+		}
+		super.release();
+		mHandler.getLooper().quit();
+	}
+
+	private final MediaCodec.Callback mCodecCallback = new MediaCodec.Callback() {
+		@Override
+		public void onInputBufferAvailable(final MediaCodec codec, final int index) {
+			synchronized (mSync) {
+				if (mRequestStop && !mIsEOS) {
+					queueEndOfStream(index);
+				} else {
+					mInputBufferIndices.addLast(index);
+				}
+			}
+		}
+
+		@Override
+		public void onOutputBufferAvailable(final MediaCodec codec, final int index, final MediaCodec.BufferInfo info) {
+			if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+				// codec specific data were already passed to the muxer with output format
+				if (DEBUG) Log.d(TAG, "onOutputBufferAvailable:BUFFER_FLAG_CODEC_CONFIG");
+				info.size = 0;
+			}
+			if (info.size != 0) {
+				final MediaMuxerWrapper muxer = mWeakMuxer.get();
+				if (mMuxerStarted && (muxer != null)) {
+					info.presentationTimeUs = correctPTSUs(info.presentationTimeUs);
+					muxer.writeSampleData(mTrackIndex, codec.getOutputBuffer(index), info);
+				} else {
+					Log.w(TAG, "onOutputBufferAvailable:muxer is not ready, drop encoded data");
+				}
+			}
+			codec.releaseOutputBuffer(index, false);
+			if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+				// when EOS come.
+				mIsCapturing = false;
+				mHandler.post(mReleaseTask);
+			}
+		}
+
+		@Override
+		public void onOutputFormatChanged(final MediaCodec codec, final MediaFormat format) {
+			if (DEBUG) Log.v(TAG, "onOutputFormatChanged:" + format);
+			final MediaMuxerWrapper muxer = mWeakMuxer.get();
+			if (mMuxerStarted || (muxer == null)) {
+				Log.w(TAG, "onOutputFormatChanged:unexpected format change");
+				return;
+			}
+			mTrackIndex = muxer.addTrack(format);
+			mMuxerStarted = true;
+			if (!muxer.start()) {
+				// we should wait until muxer is ready
+				synchronized (muxer) {
+					while (!muxer.isStarted())
+					try {
+						muxer.wait(100);
+					} catch (final InterruptedException e) {
+						break;
+					}
+				}
+			}
+		}
+
+		@Override
+		public void onError(final MediaCodec codec, final MediaCodec.CodecException e) {
+			Log.e(TAG, "onError:", e);
+			mIsCapturing = false;
+			mHandler.post(mReleaseTask);
+		}
+	};
+}
@@ -27,8 +27,11 @@ import java.io.IOException;
 import java.lang.ref.WeakReference;
 import java.nio.ByteBuffer;
 
+import android.annotation.TargetApi;
 import android.media.MediaCodec;
 import android.media.MediaFormat;
+import android.os.Build;
+import android.os.Bundle;
 import android.util.Log;
 
 public abstract class MediaEncoder implements Runnable {
@@ -123,6 +126,24 @@ public abstract class MediaEncoder implements Runnable {
         return true;
     }
 
+    /**
+     * request key frame to the encoder, this is used to roll over segment on key frame.
+     * this does nothing if this encoder has no MediaCodec or running on API < 19
+     */
+	@TargetApi(Build.VERSION_CODES.KITKAT)
+	/*package*/ void requestSyncFrame() {
+		final MediaCodec codec = mMediaCodec;
+		if ((codec != null) && (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT)) {
+			final Bundle params = new Bundle();
+			params.putInt(MediaCodec.PARAMETER_KEY_REQUEST_SYNC_FRAME, 0);
+			try {
+				codec.setParameters(params);
+			} catch (final IllegalStateException e) {
+				Log.w(TAG, "requestSyncFrame:", e);
+			}
+		}
+	}
+
     /**
      * encoding loop on private thread
      */
@@ -412,16 +433,16 @@ LOOP:	while (mIsCapturing) {
                     	// muxer is not ready...this will prrograming failure.
                         throw new RuntimeException("drain:muxer hasn't started");
                     }
-                    // write encoded data to muxer(need to adjust presentationTimeUs.
-                   	mBufferInfo.presentationTimeUs = getPTSUs();
+                    // write encoded data to muxer, presentationTimeUs is the value
+                    // that was passed with input(capture time of the frame)
+                   	mBufferInfo.presentationTimeUs = correctPTSUs(mBufferInfo.presentationTimeUs);
                    	muxer.writeSampleData(mTrackIndex, encodedData, mBufferInfo);
-					prevOutputPTSUs = mBufferInfo.presentationTimeUs;
                 }
                 // return buffer to encoder
                 mMediaCodec.releaseOutputBuffer(encoderStatus, false);
                 if ((mBufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
-                	// when EOS come.
-               		mMuxerStarted = mIsCapturing = false;
+                	// when EOS come, muxer is stopped in #release
+               		mIsCapturing = false;
                     break;      // out of while
                 }
             }
@@ -431,18 +452,45 @@ LOOP:	while (mIsCapturing) {
     /**
      * previous presentationTimeUs for writing
      */
-	private long prevOutputPTSUs = 0;
+	private long prevOutputPTSUs = -1;
 	/**
-	 * get next encoding presentationTimeUs
+	 * number of output buffers whose presentationTimeUs was corrected
+	 */
+	private volatile int mCorrectedPTSCount;
+
+	/**
+	 * get current time as presentationTimeUs,
+	 * this is only for input that does not have it's own capture time(e.g. audio, EOS).
+	 * same time base as capture time of UVCCamera frames(System#nanoTime / 1000)
 	 * @return
 	 */
     protected long getPTSUs() {
-		long result = System.nanoTime() / 1000L;
-		// presentationTimeUs should be monotonic
-		// otherwise muxer fail to write
-		if (result < prevOutputPTSUs)
-			result = (prevOutputPTSUs - result) + result;
-		return result;
+		return System.nanoTime() / 1000L;
     }
 
+	/**
+	 * presentationTimeUs should be monotonic otherwise muxer fail to write.
+	 * If encoded data comes with presentationTimeUs that is equal to or older than previous one
+	 * (e.g. frames that have same capture time or clock jump on input side),
+	 * this shifts it to just after previous one instead of replacing all timestamps with drain time.
+	 * @param presentationTimeUs presentationTimeUs of encoded data
+	 * @return presentationTimeUs to write, this is kept as previous one
+	 */
+	protected long correctPTSUs(final long presentationTimeUs) {
+		long result = presentationTimeUs;
+		if ((prevOutputPTSUs >= 0) && (result <= prevOutputPTSUs)) {
+			mCorrectedPTSCount++;
+			result = prevOutputPTSUs + 1;
+		}
+		prevOutputPTSUs = result;
+		return result;
+	}
+
+	/**
+	 * @return number of encoded data whose presentationTimeUs was corrected to keep monotonic
+	 */
+	public int getCorrectedPTSCount() {
+		return mCorrectedPTSCount;
+	}
+
 }
@@ -28,6 +28,7 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.text.SimpleDateFormat;
 import java.util.GregorianCalendar;
+import java.util.LinkedList;
 import java.util.Locale;
 
 import android.media.MediaCodec;
@@ -44,11 +45,70 @@ public class MediaMuxerWrapper {
 	private static final String DIR_NAME = "USBCameraTest";
     private static final SimpleDateFormat mDateTimeFormat = new SimpleDateFormat("yyyy-MM-dd-HH-mm-ss", Locale.US);
 
-	private String mOutputPath;
-	private final MediaMuxer mMediaMuxer;	// API >= 18
+	/** maximum number of samples waiting for writing, encoder waits when exceeded(back-pressure) */
+	private static final int MAX_QUEUE_SIZE = 60;
+	private static final int MAX_POOL_SIZE = 16;
+	/** pooled buffers are allocated with multiple of this size to reduce re-allocation */
+	private static final int BUFFER_GRANULARITY = 16 * 1024;
+	/**
+	 * samples are written in order of presentationTimeUs across tracks,
+	 * but a sample is not held longer than this while other track has no sample
+	 */
+	private static final long INTERLEAVE_WAIT_MS = 100;
+	private static final long TIMEOUT_MS = 10;
+
+	private static final class Sample {
+		private int trackIndex;
+		private ByteBuffer buffer;
+		private final MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+		/** System#currentTimeMillis when this sample was queued */
+		private long queuedTimeMs;
+	}
+
+	/**
+	 * callback interface for segmented recording
+	 */
+	public interface SegmentListener {
+		/**
+		 * called on writer thread when a segment file was closed and next segment started
+		 * @param path path of closed segment file
+		 */
+		public void onSegmentClosed(String path);
+	}
+
+	private final String mBasePath;
+	private volatile String mOutputPath;
+	/** current MediaMuxer, this is replaced on writer thread when segment rolls over */
+	private MediaMuxer mMediaMuxer;	// API >= 18
 	private int mEncoderCount, mStatredCount;
 	private boolean mIsStarted;
-	private MediaEncoder mVideoEncoder, mAudioEncoder;
+	private volatile MediaEncoder mVideoEncoder, mAudioEncoder;
+	/** formats of tracks to add them to next segment, index is track index */
+	private final LinkedList<MediaFormat> mTrackFormats = new LinkedList<MediaFormat>();
+	private int mVideoTrackIndex = -1;
+	// for segmented recording, these are accessed on writer thread after muxer started
+	private long mSegmentDurationUs;
+	private int mMaxSegments;
+	private long mMaxSegmentBytes;
+	private SegmentListener mSegmentListener;
+	private int mSegmentIndex;
+	private long mSegmentStartPTSUs = -1;
+	private boolean mSyncFrameRequested;
+	/** pre-opened MediaMuxer of next segment, tracks are already added but not started yet */
+	private MediaMuxer mNextMuxer;
+	private String mNextPath;
+	/** closed segment files, oldest first */
+	private final LinkedList<File> mSegmentFiles = new LinkedList<File>();
+	/** queued samples of each track, index is track index */
+	private final LinkedList<LinkedList<Sample>> mSampleQueues = new LinkedList<LinkedList<Sample>>();
+	private final LinkedList<Sample> mSamplePool = new LinkedList<Sample>();
+	private int mQueuedCount;
+	private Thread mWriterThread;
+	private boolean mRequestStopWriter;
+	private volatile long mWrittenSamples;
+	private volatile int mMaxQueuedCount;
+	private volatile int mBackPressureCount;
+	private volatile long mBackPressureTimeMs;
 
 	/**
 	 * Constructor
@@ -62,15 +122,42 @@ public class MediaMuxerWrapper {
 		} catch (final NullPointerException e) {
 			throw new RuntimeException("This app has no permission of writing external storage");
 		}
+		mBasePath = mOutputPath;
 		mMediaMuxer = new MediaMuxer(mOutputPath, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
 		mEncoderCount = mStatredCount = 0;
 		mIsStarted = false;
 	}
 
+	/**
+	 * @return path of output file, path of current segment file on segmented recording
+	 */
 	public String getOutputPath() {
 		return mOutputPath;
 	}
 
+	/**
+	 * enable segmented(rolling file) recording, this should be called before #prepare.
+	 * Recording is split into files of segmentDurationMs, the first file is #getOutputPath
+	 * and following files have suffix of their segment number(e.g. xxx_001.mp4).
+	 * Segment rolls over on key frame of video track by switching to pre-opened next file
+	 * on writer thread, so no sample is dropped at the boundary.
+	 * Oldest segment files are deleted when exceeding maxSegments or maxBytes.
+	 * @param segmentDurationMs duration of each segment, zero or negative value disables segmentation
+	 * @param maxSegments maximum number of segment files to keep including current one, zero or negative means no limit
+	 * @param maxBytes maximum total bytes of closed segment files to keep, zero or negative means no limit
+	 * @param listener called when each segment was closed, null if not necessary
+	 */
+	public synchronized void setSegmentation(final long segmentDurationMs,
+		final int maxSegments, final long maxBytes, final SegmentListener listener) {
+
+		if (mIsStarted)
+			throw new IllegalStateException("muxer already started");
+		mSegmentDurationUs = segmentDurationMs > 0 ? segmentDurationMs * 1000L : 0;
+		mMaxSegments = maxSegments;
+		mMaxSegmentBytes = maxBytes;
+		mSegmentListener = listener;
+	}
+
 	public void prepare() throws IOException {
 		if (mVideoEncoder != null)
 			mVideoEncoder.prepare();
@@ -98,6 +185,34 @@ public class MediaMuxerWrapper {
 		return mIsStarted;
 	}
 
+	/**
+	 * @return number of samples that writer thread wrote into MediaMuxer
+	 */
+	public long getWrittenSamples() {
+		return mWrittenSamples;
+	}
+
+	/**
+	 * @return maximum number of samples that were waiting for writing at the same time
+	 */
+	public int getMaxQueuedSamples() {
+		return mMaxQueuedCount;
+	}
+
+	/**
+	 * @return number of times that encoder waited because the queue was full(storage is too slow)
+	 */
+	public int getBackPressureCount() {
+		return mBackPressureCount;
+	}
+
+	/**
+	 * @return total time in milliseconds that encoders waited because the queue was full
+	 */
+	public long getBackPressureTimeMs() {
+		return mBackPressureTimeMs;
+	}
+
 //**********************************************************************
 //**********************************************************************
 	/**
@@ -117,6 +232,10 @@ public class MediaMuxerWrapper {
 			if (mVideoEncoder != null)
 				throw new IllegalArgumentException("Video encoder already added.");
 			mVideoEncoder = encoder;
+		} else if (encoder instanceof MediaPassThroughEncoder) {
+			if (mVideoEncoder != null)
+				throw new IllegalArgumentException("Video encoder already added.");
+			mVideoEncoder = encoder;
 		} else if (encoder instanceof MediaAudioEncoder) {
 			if (mAudioEncoder != null)
 				throw new IllegalArgumentException("Video encoder already added.");
@@ -136,6 +255,7 @@ public class MediaMuxerWrapper {
 		if ((mEncoderCount > 0) && (mStatredCount == mEncoderCount)) {
 			mMediaMuxer.start();
 			mIsStarted = true;
+			startWriter();
 			notifyAll();
 			if (DEBUG) Log.v(TAG,  "MediaMuxer started:");
 		}
@@ -143,19 +263,32 @@ public class MediaMuxerWrapper {
 	}
 
 	/**
-	 * request stop recording from encoder when encoder received EOS
+	 * request stop recording from encoder when encoder received EOS,
+	 * when the last encoder calls this, this waits until all queued samples are written
+	 * and MediaMuxer is stopped on writer thread.
 	*/
-	/*package*/ synchronized void stop() {
-		if (DEBUG) Log.v(TAG,  "stop:mStatredCount=" + mStatredCount);
-		mStatredCount--;
-		if ((mEncoderCount > 0) && (mStatredCount <= 0)) {
+	/*package*/ void stop() {
+		final Thread writer;
+		synchronized (this) {
+			if (DEBUG) Log.v(TAG,  "stop:mStatredCount=" + mStatredCount);
+			mStatredCount--;
+			if ((mEncoderCount <= 0) || (mStatredCount > 0)) {
+				return;
+			}
+			writer = mWriterThread;
+			mWriterThread = null;
+			mRequestStopWriter = true;
+			notifyAll();
+		}
+		if (writer != null) {
 			try {
-				mMediaMuxer.stop();
-			} catch (final Exception e) {
-				Log.w(TAG, e);
+				writer.join();
+			} catch (final InterruptedException e) {
+				// ignore
 			}
-			mIsStarted = false;
-			if (DEBUG) Log.v(TAG,  "MediaMuxer stopped:");
+		} else {
+			// muxer did not start or already stopped
+			stopMuxer();
 		}
 	}
 
@@ -169,18 +302,345 @@ public class MediaMuxerWrapper {
 			throw new IllegalStateException("muxer already started");
 		final int trackIx = mMediaMuxer.addTrack(format);
 		if (DEBUG) Log.i(TAG, "addTrack:trackNum=" + mEncoderCount + ",trackIx=" + trackIx + ",format=" + format);
+		while (mSampleQueues.size() <= trackIx) {
+			mSampleQueues.add(new LinkedList<Sample>());
+			mTrackFormats.add(null);
+		}
+		mTrackFormats.set(trackIx, format);
+		final String mime = format.getString(MediaFormat.KEY_MIME);
+		if ((mime != null) && mime.startsWith("video/")) {
+			mVideoTrackIndex = trackIx;
+		}
 		return trackIx;
 	}
 
 	/**
-	 * write encoded data to muxer
+	 * queue encoded data for writing, data is copied so caller can release the buffer
+	 * (e.g. MediaCodec output buffer) after returning from this method.
+	 * This waits while the queue is full so that encoders slow down instead of dropping samples.
 	 * @param trackIndex
 	 * @param byteBuf
 	 * @param bufferInfo
 	 */
-	/*package*/ synchronized void writeSampleData(final int trackIndex, final ByteBuffer byteBuf, final MediaCodec.BufferInfo bufferInfo) {
-		if (mStatredCount > 0)
-			mMediaMuxer.writeSampleData(trackIndex, byteBuf, bufferInfo);
+	/*package*/ void writeSampleData(final int trackIndex, final ByteBuffer byteBuf, final MediaCodec.BufferInfo bufferInfo) {
+		Sample sample;
+		synchronized (this) {
+			if ((mStatredCount <= 0) || (mWriterThread == null)) return;
+			if (mQueuedCount >= MAX_QUEUE_SIZE) {
+				// writer can not keep up with encoders
+				mBackPressureCount++;
+				final long start = System.currentTimeMillis();
+				while ((mQueuedCount >= MAX_QUEUE_SIZE) && (mWriterThread != null)) {
+					try {
+						wait(TIMEOUT_MS);
+					} catch (final InterruptedException e) {
+						break;
+					}
+				}
+				mBackPressureTimeMs += System.currentTimeMillis() - start;
+				if (mWriterThread == null) return;
+			}
+			sample = mSamplePool.isEmpty() ? new Sample() : mSamplePool.removeFirst();
+		}
+		// copy without holding the lock
+		final int bytes = bufferInfo.size;
+		if ((sample.buffer == null) || (sample.buffer.capacity() < bytes)) {
+			sample.buffer = ByteBuffer.allocateDirect(
+				(bytes + BUFFER_GRANULARITY - 1) / BUFFER_GRANULARITY * BUFFER_GRANULARITY);
+		}
+		final ByteBuffer src = byteBuf.duplicate();
+		src.limit(bufferInfo.offset + bytes);
+		src.position(bufferInfo.offset);
+		sample.buffer.clear();
+		sample.buffer.put(src);
+		sample.buffer.flip();
+		sample.trackIndex = trackIndex;
+		sample.info.set(0, bytes, bufferInfo.presentationTimeUs, bufferInfo.flags);
+		synchronized (this) {
+			if ((mWriterThread == null) || (trackIndex < 0) || (trackIndex >= mSampleQueues.size())) {
+				recycleSample(sample);
+				return;
+			}
+			sample.queuedTimeMs = System.currentTimeMillis();
+			mSampleQueues.get(trackIndex).addLast(sample);
+			mQueuedCount++;
+			if (mQueuedCount > mMaxQueuedCount) {
+				mMaxQueuedCount = mQueuedCount;
+			}
+			notifyAll();
+		}
+	}
+
+	/**
+	 * start writer thread, should be called while holding lock of this instance
+	 */
+	private void startWriter() {
+		mRequestStopWriter = false;
+		mQueuedCount = 0;
+		mSegmentIndex = 0;
+		mSegmentStartPTSUs = -1;
+		mSyncFrameRequested = false;
+		mWriterThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				writerLoop();
+			}
+		}, "MuxerWriter");
+		mWriterThread.start();
+	}
+
+	/**
+	 * writer thread loop, samples are written until stop requested and all queues become empty,
+	 * then MediaMuxer is stopped
+	 */
+	private void writerLoop() {
+		if (DEBUG) Log.v(TAG, "writerLoop:start");
+		if (mSegmentDurationUs > 0) {
+			prepareNextSegment();
+		}
+		for ( ; ; ) {
+			final Sample sample;
+			synchronized (this) {
+				Sample next;
+				for ( ; ; ) {
+					next = nextSample();
+					if ((next != null) || (mRequestStopWriter && (mQueuedCount == 0))) break;
+					try {
+						wait(mQueuedCount > 0 ? TIMEOUT_MS : 0);
+					} catch (final InterruptedException e) {
+						break;
+					}
+				}
+				if (next == null) break;
+				mSampleQueues.get(next.trackIndex).removeFirst();
+				mQueuedCount--;
+				sample = next;
+				// wake up encoders that are waiting for free space
+				notifyAll();
+			}
+			try {
+				if (mSegmentDurationUs > 0) {
+					checkSegment(sample);
+				}
+				mMediaMuxer.writeSampleData(sample.trackIndex, sample.buffer, sample.info);
+				mWrittenSamples++;
+			} catch (final Exception e) {
+				Log.w(TAG, "writerLoop:", e);
+			} finally {
+				synchronized (this) {
+					recycleSample(sample);
+				}
+			}
+		}
+		stopMuxer();
+		synchronized (this) {
+			for (final LinkedList<Sample> queue: mSampleQueues) {
+				queue.clear();
+			}
+			mSamplePool.clear();
+			mQueuedCount = 0;
+			notifyAll();
+		}
+		if (DEBUG) Log.v(TAG, "writerLoop:finished,samples=" + mWrittenSamples
+			+ ",maxQueued=" + mMaxQueuedCount + ",backPressure=" + mBackPressureCount);
+	}
+
+	/**
+	 * select sample to write next, the sample with the smallest presentationTimeUs
+	 * when every track has queued sample. If some track has no sample, the oldest sample
+	 * is written only after INTERLEAVE_WAIT_MS or when stopping / the queue is almost full.
+	 * should be called while holding lock of this instance
+	 * @return null if there is no sample to write now
+	 */
+	private Sample nextSample() {
+		if (mQueuedCount == 0) return null;
+		Sample result = null;
+		boolean hasEmpty = false;
+		for (final LinkedList<Sample> queue: mSampleQueues) {
+			if (queue.isEmpty()) {
+				hasEmpty = true;
+			} else {
+				final Sample head = queue.getFirst();
+				if ((result == null) || (head.info.presentationTimeUs < result.info.presentationTimeUs)) {
+					result = head;
+				}
+			}
+		}
+		if (hasEmpty && (result != null) && !mRequestStopWriter
+			&& (mQueuedCount < MAX_QUEUE_SIZE / 2)
+			&& (System.currentTimeMillis() - result.queuedTimeMs < INTERLEAVE_WAIT_MS)) {
+			// wait a little for sample of other track
+			return null;
+		}
+		return result;
+	}
+
+	/**
+	 * should be called while holding lock of this instance
+	 * @param sample
+	 */
+	private void recycleSample(final Sample sample) {
+		if (mSamplePool.size() < MAX_POOL_SIZE) {
+			mSamplePool.addLast(sample);
+		}
+	}
+
+	private void stopMuxer() {
+		synchronized (this) {
+			if (!mIsStarted) return;
+			mIsStarted = false;
+		}
+		try {
+			mMediaMuxer.stop();
+			mMediaMuxer.release();
+		} catch (final Exception e) {
+			Log.w(TAG, e);
+		}
+		if (mNextMuxer != null) {
+			// pre-opened segment was not used
+			mNextMuxer.release();
+			mNextMuxer = null;
+			new File(mNextPath).delete();
+		}
+		if (mSegmentDurationUs > 0) {
+			// last segment is notified as output file of encoders
+			addSegmentFile(mOutputPath);
+		}
+		if (DEBUG) Log.v(TAG,  "MediaMuxer stopped:");
+	}
+
+	/**
+	 * roll over to next segment when current segment reached to segment duration
+	 * and the sample is key frame of video track(or any sample when there is no video track).
+	 * If the sample is not key frame, request key frame to video encoder.
+	 * this is called on writer thread before writing the sample
+	 * @param sample
+	 */
+	private void checkSegment(final Sample sample) {
+		final boolean isVideo = sample.trackIndex == mVideoTrackIndex;
+		if (!isVideo && (mVideoTrackIndex >= 0)) return;
+		final long pts = sample.info.presentationTimeUs;
+		if (mSegmentStartPTSUs < 0) {
+			mSegmentStartPTSUs = pts;
+			return;
+		}
+		if (pts - mSegmentStartPTSUs < mSegmentDurationUs) return;
+		if (!isVideo || ((sample.info.flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0)) {
+			rollover(pts);
+		} else if (!mSyncFrameRequested) {
+			mSyncFrameRequested = true;
+			final MediaEncoder encoder = mVideoEncoder;
+			if (encoder != null) {
+				encoder.requestSyncFrame();
+			}
+		}
+	}
+
+	/**
+	 * switch to pre-opened next segment and close current one, this is called on writer thread
+	 * @param pts presentationTimeUs of the first sample of next segment
+	 */
+	private void rollover(final long pts) {
+		if (mNextMuxer == null) {
+			prepareNextSegment();
+			if (mNextMuxer == null) {
+				// failed to open next segment, continue writing current segment
+				mSegmentStartPTSUs = pts;
+				return;
+			}
+		}
+		final MediaMuxer prev = mMediaMuxer;
+		final String prevPath = mOutputPath;
+		try {
+			mNextMuxer.start();
+		} catch (final Exception e) {
+			Log.w(TAG, "rollover:failed to start next segment", e);
+			mNextMuxer.release();
+			mNextMuxer = null;
+			new File(mNextPath).delete();
+			mSegmentStartPTSUs = pts;
+			return;
+		}
+		synchronized (this) {
+			mMediaMuxer = mNextMuxer;
+			mOutputPath = mNextPath;
+		}
+		mNextMuxer = null;
+		mSegmentStartPTSUs = pts;
+		mSyncFrameRequested = false;
+		if (DEBUG) Log.v(TAG, "rollover:" + mOutputPath);
+		try {
+			prev.stop();
+			prev.release();
+		} catch (final Exception e) {
+			Log.w(TAG, "rollover:failed to close segment", e);
+		}
+		addSegmentFile(prevPath);
+		final SegmentListener listener = mSegmentListener;
+		if (listener != null) {
+			try {
+				listener.onSegmentClosed(prevPath);
+			} catch (final Exception e) {
+				Log.w(TAG, e);
+			}
+		}
+		prepareNextSegment();
+	}
+
+	/**
+	 * create MediaMuxer of next segment and add tracks to it in advance
+	 * so that rolling over only needs MediaMuxer#start. this is called on writer thread
+	 */
+	private void prepareNextSegment() {
+		mSegmentIndex++;
+		final int dot = mBasePath.lastIndexOf('.');
+		final String path = dot > 0
+			? String.format(Locale.US, "%s_%03d%s", mBasePath.substring(0, dot), mSegmentIndex, mBasePath.substring(dot))
+			: String.format(Locale.US, "%s_%03d", mBasePath, mSegmentIndex);
+		MediaMuxer muxer = null;
+		try {
+			muxer = new MediaMuxer(path, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+			final int n = mTrackFormats.size();
+			for (int i = 0; i < n; i++) {
+				if (muxer.addTrack(mTrackFormats.get(i)) != i) {
+					throw new IllegalStateException("unexpected track index");
+				}
+			}
+			mNextMuxer = muxer;
+			mNextPath = path;
+		} catch (final Exception e) {
+			Log.w(TAG, "prepareNextSegment:", e);
+			if (muxer != null) {
+				muxer.release();
+				new File(path).delete();
+			}
+		}
+	}
+
+	/**
+	 * add closed segment file and delete oldest ones exceeding maxSegments / maxBytes,
+	 * this is called on writer thread
+	 * @param path
+	 */
+	private void addSegmentFile(final String path) {
+		mSegmentFiles.addLast(new File(path));
+		long total = 0;
+		for (final File file: mSegmentFiles) {
+			total += file.length();
+		}
+		// current segment is also counted as it will be kept
+		// last segment file is kept when recording was stopped
+		while ((mSegmentFiles.size() > (mIsStarted ? 0 : 1))
+			&& (((mMaxSegments > 0) && (mSegmentFiles.size() + (mIsStarted ? 1 : 0) > mMaxSegments))
+				|| ((mMaxSegmentBytes > 0) && (total > mMaxSegmentBytes)))) {
+
+			final File oldest = mSegmentFiles.removeFirst();
+			total -= oldest.length();
+			if (DEBUG) Log.v(TAG, "addSegmentFile:delete " + oldest);
+			if (!oldest.delete()) {
+				Log.w(TAG, "failed to delete segment file " + oldest);
+			}
+		}
 	}
 
 //**********************************************************************
@@ -0,0 +1,376 @@
+/*
+ *  UVCCamera
+ *  library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * Copyright (c) 2014-2017 saki t_saki@serenegiant.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ *  All files in the folder are under this Apache License, Version 2.0.
+ *  Files in the libjpeg-turbo, libusb, libuvc, rapidjson folder
+ *  may have a different license, see the respective files.
+ */
+
+
+package com.serenegiant.encoder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.LinkedList;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.util.Log;
+
+/**
+ * This class receives H.264/H.265 frames that UVC camera already encoded(frame based format)
+ * via IEncodedFrameCallback and write them to MediaMuxer as they are without MediaCodec.
+ * Codec specific data(csd-0/csd-1) are extracted from SPS/PPS(/VPS) NAL units in the byte stream
+ * and muxer starts when first key frame comes.
+ */
+public class MediaPassThroughEncoder extends MediaEncoder implements IVideoEncoder {
+	private static final boolean DEBUG = true;	// TODO set false on release
+	private static final String TAG = "MediaPassThroughEncoder";
+
+	public static final String MIME_AVC = "video/avc";
+	public static final String MIME_HEVC = "video/hevc";
+
+	/** IEncodedFrameCallback#FLAG_KEY_FRAME */
+	private static final int FLAG_KEY_FRAME = 0x01;
+	/** maximum number of frames waiting for writing, frames are dropped when exceeded */
+	private static final int MAX_QUEUE_SIZE = 30;
+	private static final int MAX_POOL_SIZE = 8;
+	private static final byte[] START_CODE = { 0, 0, 0, 1 };
+
+	private static final class Frame {
+		private ByteBuffer buffer;
+		private int flags;
+		private long presentationTimeUs;
+	}
+
+	private final String mMimeType;
+	private final boolean mIsHEVC;
+	private final int mWidth, mHeight;
+	private final LinkedList<Frame> mFrameQueue = new LinkedList<Frame>();
+	private final LinkedList<Frame> mFramePool = new LinkedList<Frame>();
+	private final MediaCodec.BufferInfo mFrameInfo = new MediaCodec.BufferInfo();
+	private byte[] mVPS, mSPS, mPPS;
+	private boolean mWaitKeyFrame;
+	private long mPrevPTSUs;
+
+	/**
+	 * Constructor
+	 * @param muxer
+	 * @param mimeType MIME_AVC or MIME_HEVC
+	 * @param width
+	 * @param height
+	 * @param listener
+	 */
+	public MediaPassThroughEncoder(final MediaMuxerWrapper muxer, final String mimeType,
+		final int width, final int height, final MediaEncoderListener listener) {
+
+		super(muxer, listener);
+		if (DEBUG) Log.i(TAG, "MediaPassThroughEncoder: " + mimeType);
+		mMimeType = mimeType;
+		mIsHEVC = MIME_HEVC.equals(mimeType);
+		mWidth = width;
+		mHeight = height;
+	}
+
+	/**
+	 * queue one frame for writing, this should be called from IEncodedFrameCallback#onEncodedFrame
+	 * @param frame Annex-B byte stream of one frame, data is copied in this method
+	 * @param flags flags from IEncodedFrameCallback
+	 * @param presentationTimeUs
+	 */
+	public void encode(final ByteBuffer frame, final int flags, final long presentationTimeUs) {
+		synchronized (mSync) {
+			if (!mIsCapturing || mRequestStop) return;
+			if (mWaitKeyFrame && ((flags & FLAG_KEY_FRAME) == 0)) {
+				// frame(s) were dropped, following frames can not decode until next key frame
+				if (!mMuxerStarted) {
+					// keep parameter sets that may come separately before key frame
+					parseNalUnits(frame);
+				}
+				return;
+			}
+			if (mFrameQueue.size() >= MAX_QUEUE_SIZE) {
+				Log.w(TAG, "encode:writing is too slow, drop frames until next key frame");
+				mWaitKeyFrame = true;
+				return;
+			}
+			mWaitKeyFrame = false;
+			final Frame f = obtainFrame(frame.remaining());
+			f.buffer.put(frame);
+			f.buffer.flip();
+			f.flags = flags;
+			f.presentationTimeUs = presentationTimeUs;
+			mFrameQueue.addLast(f);
+		}
+		frameAvailableSoon();
+	}
+
+	/**
+	 * queue one frame for writing without dropping, this is for frames from PreEventRingBuffer
+	 * that keeps frames while this encoder is busy
+	 * @param frame Annex-B byte stream of one frame, data is copied in this method
+	 * @param flags flags from IEncodedFrameCallback
+	 * @param presentationTimeUs
+	 * @return false if the queue is full or this encoder is not capturing, caller should retry later
+	 */
+	public boolean offer(final ByteBuffer frame, final int flags, final long presentationTimeUs) {
+		synchronized (mSync) {
+			if (!mIsCapturing || mRequestStop) return false;
+			if (mWaitKeyFrame && ((flags & FLAG_KEY_FRAME) == 0)) {
+				if (!mMuxerStarted) {
+					parseNalUnits(frame.duplicate());
+				}
+				return true;
+			}
+			if (mFrameQueue.size() >= MAX_QUEUE_SIZE) {
+				return false;
+			}
+			mWaitKeyFrame = false;
+			final Frame f = obtainFrame(frame.remaining());
+			f.buffer.put(frame.duplicate());
+			f.buffer.flip();
+			f.flags = flags;
+			f.presentationTimeUs = presentationTimeUs;
+			mFrameQueue.addLast(f);
+		}
+		frameAvailableSoon();
+		return true;
+	}
+
+	@Override
+	protected void prepare() throws IOException {
+		if (DEBUG) Log.i(TAG, "prepare: ");
+		mTrackIndex = -1;
+		mMuxerStarted = mIsEOS = false;
+		mWaitKeyFrame = true;
+		mVPS = mSPS = mPPS = null;
+		mPrevPTSUs = 0;
+		if (mListener != null) {
+			try {
+				mListener.onPrepared(this);
+			} catch (final Exception e) {
+				Log.e(TAG, "prepare:", e);
+			}
+		}
+	}
+
+	@Override
+	protected void signalEndOfInputStream() {
+		if (DEBUG) Log.d(TAG, "signalEndOfInputStream:");
+		// there is no MediaCodec, just mark as EOS and remaining frames are written on next #drain
+		mIsEOS = true;
+	}
+
+	/**
+	 * write queued frames to muxer
+	 */
+	@SuppressWarnings("deprecation")
+	@Override
+	protected void drain() {
+		final MediaMuxerWrapper muxer = mWeakMuxer.get();
+		if (muxer == null) {
+			Log.w(TAG, "muxer is unexpectedly null");
+			return;
+		}
+		for ( ; mIsCapturing ; ) {
+			final Frame frame;
+			synchronized (mSync) {
+				frame = mFrameQueue.isEmpty() ? null : mFrameQueue.removeFirst();
+			}
+			if (frame == null) break;
+			try {
+				final boolean hasSlice;
+				synchronized (mSync) {
+					hasSlice = parseNalUnits(frame.buffer);
+				}
+				if (!mMuxerStarted && !startMuxer(muxer, frame)) {
+					continue;
+				}
+				if (hasSlice) {
+					// presentationTimeUs should be monotonic otherwise muxer fail to write
+					long pts = frame.presentationTimeUs;
+					if (pts <= mPrevPTSUs) {
+						pts = mPrevPTSUs + 1;
+					}
+					mFrameInfo.set(frame.buffer.position(), frame.buffer.remaining(), pts,
+						(frame.flags & FLAG_KEY_FRAME) != 0 ? MediaCodec.BUFFER_FLAG_SYNC_FRAME : 0);
+					muxer.writeSampleData(mTrackIndex, frame.buffer, mFrameInfo);
+					mPrevPTSUs = pts;
+				}
+			} finally {
+				recycleFrame(frame);
+			}
+		}
+	}
+
+	@Override
+	protected void release() {
+		super.release();
+		synchronized (mSync) {
+			mFrameQueue.clear();
+			mFramePool.clear();
+		}
+	}
+
+	/**
+	 * add track and start muxer when codec specific data is ready and key frame comes
+	 * @param muxer
+	 * @param frame
+	 * @return true if muxer started
+	 */
+	private boolean startMuxer(final MediaMuxerWrapper muxer, final Frame frame) {
+		if (((frame.flags & FLAG_KEY_FRAME) == 0)
+			|| (mSPS == null) || (mPPS == null) || (mIsHEVC && (mVPS == null))) {
+
+			if (DEBUG) Log.v(TAG, "startMuxer:waiting for codec config/key frame");
+			return false;
+		}
+		final MediaFormat format = MediaFormat.createVideoFormat(mMimeType, mWidth, mHeight);
+		if (mIsHEVC) {
+			format.setByteBuffer("csd-0", concat(mVPS, mSPS, mPPS));
+		} else {
+			format.setByteBuffer("csd-0", concat(mSPS));
+			format.setByteBuffer("csd-1", concat(mPPS));
+		}
+		if (DEBUG) Log.i(TAG, "format: " + format);
+		mTrackIndex = muxer.addTrack(format);
+		mMuxerStarted = true;
+		if (!muxer.start()) {
+			// we should wait until muxer is ready
+			synchronized (muxer) {
+				while (!muxer.isStarted())
+				try {
+					muxer.wait(100);
+				} catch (final InterruptedException e) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * scan NAL units in Annex-B byte stream and keep parameter sets while muxer is not started
+	 * this method does not change position/limit of the buffer, should be called while holding mSync
+	 * @param buffer
+	 * @return true if the buffer contains VCL NAL unit(slice)
+	 */
+	private boolean parseNalUnits(final ByteBuffer buffer) {
+		final int limit = buffer.limit();
+		boolean hasSlice = false;
+		int start = findStartCode(buffer, buffer.position(), limit);
+		while (start >= 0) {
+			final int payload = start + 3;
+			final int next = findStartCode(buffer, payload, limit);
+			int end = next >= 0 ? next : limit;
+			// remove leading zero of next 4 bytes start code
+			for ( ; (end > payload) && (buffer.get(end - 1) == 0); end--) {}
+			if (payload < end) {
+				final int header = buffer.get(payload) & 0xff;
+				if (mIsHEVC) {
+					final int type = (header >> 1) & 0x3f;
+					if (type < 32) {
+						hasSlice = true;
+					} else if (!mMuxerStarted) {
+						if (type == 32) {
+							mVPS = copyOf(buffer, payload, end);
+						} else if (type == 33) {
+							mSPS = copyOf(buffer, payload, end);
+						} else if (type == 34) {
+							mPPS = copyOf(buffer, payload, end);
+						}
+					}
+				} else {
+					final int type = header & 0x1f;
+					if ((type >= 1) && (type <= 5)) {
+						hasSlice = true;
+					} else if (!mMuxerStarted) {
+						if (type == 7) {
+							mSPS = copyOf(buffer, payload, end);
+						} else if (type == 8) {
+							mPPS = copyOf(buffer, payload, end);
+						}
+					}
+				}
+			}
+			start = next;
+		}
+		return hasSlice;
+	}
+
+	/**
+	 * find 3 bytes start code(00 00 01)
+	 * @return position of start code, -1 if not found
+	 */
+	private static int findStartCode(final ByteBuffer buffer, final int offset, final int limit) {
+		for (int i = offset; i + 2 < limit; i++) {
+			if ((buffer.get(i) == 0) && (buffer.get(i + 1) == 0) && (buffer.get(i + 2) == 1)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private static byte[] copyOf(final ByteBuffer buffer, final int start, final int end) {
+		final byte[] result = new byte[end - start];
+		for (int i = start; i < end; i++) {
+			result[i - start] = buffer.get(i);
+		}
+		return result;
+	}
+
+	/**
+	 * concat NAL units with start code for codec specific data
+	 */
+	private static ByteBuffer concat(final byte[]... nals) {
+		int size = 0;
+		for (final byte[] nal: nals) {
+			size += START_CODE.length + nal.length;
+		}
+		final ByteBuffer result = ByteBuffer.allocate(size);
+		for (final byte[] nal: nals) {
+			result.put(START_CODE);
+			result.put(nal);
+		}
+		result.flip();
+		return result;
+	}
+
+	/**
+	 * get Frame from pool, this should be called while holding mSync
+	 */
+	private Frame obtainFrame(final int size) {
+		Frame result = mFramePool.isEmpty() ? null : mFramePool.removeFirst();
+		if (result == null) {
+			result = new Frame();
+		}
+		if ((result.buffer == null) || (result.buffer.capacity() < size)) {
+			result.buffer = ByteBuffer.allocateDirect(size);
+		}
+		result.buffer.clear();
+		return result;
+	}
+
+	private void recycleFrame(final Frame frame) {
+		synchronized (mSync) {
+			if (mFramePool.size() < MAX_POOL_SIZE) {
+				mFramePool.addLast(frame);
+			}
+		}
+	}
+}
@@ -32,6 +32,11 @@ import android.media.MediaFormat;
 import android.util.Log;
 import android.view.Surface;
 
+/**
+ * Encode frames that UVCCamera writes into input Surface of MediaCodec(UVCCamera#startCapture) as H.264.
+ * presentationTimeUs of each frame is the time when native side posted it to the Surface
+ * just after capturing, same time base as System#nanoTime / 1000.
+ */
 public class MediaSurfaceEncoder extends MediaEncoder implements IVideoEncoder {
 	private static final boolean DEBUG = true;	// TODO set false on release
 	private static final String TAG = "MediaSurfaceEncoder";
@@ -44,7 +44,7 @@ public class MediaVideoBufferEncoder extends MediaEncoder implements IVideoEncod
 	private static final boolean DEBUG = true;	// TODO set false on release
 	private static final String TAG = "MediaVideoBufferEncoder";
 
-	private static final String MIME_TYPE = "video/avc";
+	protected static final String MIME_TYPE = "video/avc";
 	// parameters for recording
     private static final int FRAME_RATE = 15;
     private static final float BPP = 0.50f;
@@ -59,12 +59,26 @@ public class MediaVideoBufferEncoder extends MediaEncoder implements IVideoEncod
 		mHeight = height;
 	}
 
+	/**
+	 * encode frame with current time as presentationTimeUs,
+	 * use #encode(ByteBuffer, long) if capture time of the frame is available
+	 * @param buffer
+	 */
 	public void encode(final ByteBuffer buffer) {
+		encode(buffer, getPTSUs());
+	}
+
+	/**
+	 * encode frame
+	 * @param buffer
+	 * @param presentationTimeUs capture time of the frame, same time base as System#nanoTime / 1000
+	 */
+	public void encode(final ByteBuffer buffer, final long presentationTimeUs) {
 //    	if (DEBUG) Log.v(TAG, "encode:buffer=" + buffer);
 		synchronized (mSync) {
 			if (!mIsCapturing || mRequestStop) return;
 		}
-		encode(buffer, buffer.capacity(), getPTSUs());
+		encode(buffer, buffer.capacity(), presentationTimeUs);
     }
 
 	@Override
@@ -73,19 +87,8 @@ public class MediaVideoBufferEncoder extends MediaEncoder implements IVideoEncod
         mTrackIndex = -1;
         mMuxerStarted = mIsEOS = false;
 
-        final MediaCodecInfo videoCodecInfo = selectVideoCodec(MIME_TYPE);
-        if (videoCodecInfo == null) {
-            Log.e(TAG, "Unable to find an appropriate codec for " + MIME_TYPE);
-            return;
-        }
-		if (DEBUG) Log.i(TAG, "selected codec: " + videoCodecInfo.getName());
-
-        final MediaFormat format = MediaFormat.createVideoFormat(MIME_TYPE, mWidth, mHeight);
-        format.setInteger(MediaFormat.KEY_COLOR_FORMAT, mColorFormat);
-        format.setInteger(MediaFormat.KEY_BIT_RATE, calcBitRate());
-        format.setInteger(MediaFormat.KEY_FRAME_RATE, FRAME_RATE);
-        format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, 10);
-		if (DEBUG) Log.i(TAG, "format: " + format);
+        final MediaFormat format = createFormat();
+        if (format == null) return;
 
         mMediaCodec = MediaCodec.createEncoderByType(MIME_TYPE);
         mMediaCodec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
@@ -100,6 +103,27 @@ public class MediaVideoBufferEncoder extends MediaEncoder implements IVideoEncod
         }
 	}
 
+	/**
+	 * select codec and create format for it
+	 * @return null if no codec matched
+	 */
+	protected MediaFormat createFormat() {
+        final MediaCodecInfo videoCodecInfo = selectVideoCodec(MIME_TYPE);
+        if (videoCodecInfo == null) {
+            Log.e(TAG, "Unable to find an appropriate codec for " + MIME_TYPE);
+            return null;
+        }
+		if (DEBUG) Log.i(TAG, "selected codec: " + videoCodecInfo.getName());
+
+        final MediaFormat format = MediaFormat.createVideoFormat(MIME_TYPE, mWidth, mHeight);
+        format.setInteger(MediaFormat.KEY_COLOR_FORMAT, mColorFormat);
+        format.setInteger(MediaFormat.KEY_BIT_RATE, calcBitRate());
+        format.setInteger(MediaFormat.KEY_FRAME_RATE, FRAME_RATE);
+        format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, 10);
+		if (DEBUG) Log.i(TAG, "format: " + format);
+		return format;
+	}
+
 	private int calcBitRate() {
 		final int bitrate = (int)(BPP * FRAME_RATE * mWidth * mHeight);
 		Log.i(TAG, String.format("bitrate=%5.2f[Mbps]", bitrate / 1024f / 1024f));
@@ -0,0 +1,479 @@
+/*
+ *  UVCCamera
+ *  library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * Copyright (c) 2014-2017 saki t_saki@serenegiant.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ *  All files in the folder are under this Apache License, Version 2.0.
+ *  Files in the libjpeg-turbo, libusb, libuvc, rapidjson folder
+ *  may have a different license, see the respective files.
+ */
+
+package com.serenegiant.encoder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Pre-event(pre-roll) buffer that keeps the latest encoded frames(H.264/H.265/MJPEG from
+ * IEncodedFrameCallback) in a preallocated memory mapped file used as a circular buffer.
+ * When an event fires, #attach passes the frames from the key frame that is preEventUs
+ * before the latest frame to the Sink, and then keeps passing live frames in order,
+ * so recording contains the frames before the event without re-encoding.
+ * Each record in the file has a small header(magic, size, flags, presentationTimeUs).
+ * The oldest records are overwritten when the file is full.
+ * Like MJpegAviWriter, this class has no dependency on Android framework.
+ */
+public class PreEventRingBuffer {
+
+	/** same value as IEncodedFrameCallback#FLAG_KEY_FRAME */
+	public static final int FLAG_KEY_FRAME = 0x01;
+	/** same value as IEncodedFrameCallback#FLAG_CODEC_CONFIG */
+	public static final int FLAG_CODEC_CONFIG = 0x02;
+
+	private static final int RECORD_MAGIC = 0x31455250;	// "PRE1"
+	private static final int WRAP_MAGIC = 0x50415257;	// "WRAP"
+	/** magic(4) + size(4) + flags(4) + reserved(4) + presentationTimeUs(8) */
+	private static final int HEADER_SIZE = 24;
+	private static final int ALIGNMENT = 8;
+	private static final int INITIAL_ENTRIES = 256;
+	/** interval to retry when Sink can not accept the frame */
+	private static final long RETRY_INTERVAL_MS = 5;
+
+	/**
+	 * receiver of frames, this is called on the reader thread of PreEventRingBuffer
+	 */
+	public interface Sink {
+		/**
+		 * @param data frame data from position to limit, this is only valid while this method is executing
+		 * @param flags combination of FLAG_KEY_FRAME and FLAG_CODEC_CONFIG
+		 * @param presentationTimeUs
+		 * @return false if the sink can not accept the frame now, same frame is passed again later
+		 */
+		public boolean writeSample(ByteBuffer data, int flags, long presentationTimeUs);
+	}
+
+	/** index of a record in the file */
+	private static final class Entry {
+		private int offset;
+		private int size;
+		private int flags;
+		private long presentationTimeUs;
+	}
+
+	private final Object mSync = new Object();
+	private final File mFile;
+	private final RandomAccessFile mRandomAccessFile;
+	private final FileChannel mChannel;
+	private final MappedByteBuffer mBuffer;
+	private final int mCapacity;
+	private final long mPreEventUs;
+	/** ring of record index, entry of sequence number seq is mEntries[seq % mEntries.length] */
+	private Entry[] mEntries;
+	/** sequence number of the oldest record that is kept */
+	private long mFirstSeq;
+	/** sequence number of next record */
+	private long mNextSeq;
+	private int mWritePos;
+	/** latest codec config(SPS/PPS...) that came separately, passed first on #attach */
+	private byte[] mCodecConfig;
+	private long mCodecConfigPTSUs;
+	private boolean mReleased;
+	private Thread mReaderThread;
+	private volatile boolean mRequestStopReader;
+	private long mReadSeq;
+	private volatile long mIngestedFrames;
+	private volatile long mIngestedBytes;
+	private volatile long mOverwrittenFrames;
+	private volatile long mRejectedFrames;
+	private volatile long mReaderOverruns;
+
+	/**
+	 * Constructor, this creates(or truncates) the file and maps it into memory
+	 * @param file file for circular buffer, this should be on internal storage
+	 * @param capacity size of the file in bytes
+	 * @param preEventUs duration of frames that are passed to Sink before the latest frame on #attach
+	 * @throws IOException
+	 */
+	public PreEventRingBuffer(final File file, final int capacity, final long preEventUs) throws IOException {
+		if (capacity < HEADER_SIZE * 16) {
+			throw new IllegalArgumentException("capacity is too small");
+		}
+		mFile = file;
+		mCapacity = capacity & ~(ALIGNMENT - 1);
+		mPreEventUs = preEventUs;
+		mRandomAccessFile = new RandomAccessFile(file, "rw");
+		try {
+			mRandomAccessFile.setLength(mCapacity);
+			mChannel = mRandomAccessFile.getChannel();
+			mBuffer = mChannel.map(FileChannel.MapMode.READ_WRITE, 0, mCapacity);
+		} catch (final IOException e) {
+			mRandomAccessFile.close();
+			throw e;
+		}
+		// touch every page now so that page faults do not occur while ingesting
+		for (int i = 0; i < mCapacity; i += 4096) {
+			mBuffer.put(i, (byte)0);
+		}
+		mEntries = new Entry[INITIAL_ENTRIES];
+		for (int i = 0; i < mEntries.length; i++) {
+			mEntries[i] = new Entry();
+		}
+	}
+
+	public File getFile() {
+		return mFile;
+	}
+
+	/**
+	 * add a frame, this copies the frame into the file and returns immediately.
+	 * If the reader thread is attached, the frame is also passed to the Sink later.
+	 * @param data frame from position to limit, position of this buffer is not changed
+	 * @param flags combination of FLAG_KEY_FRAME and FLAG_CODEC_CONFIG
+	 * @param presentationTimeUs
+	 * @return false if the frame was rejected(released or larger than half of capacity)
+	 */
+	public boolean write(final ByteBuffer data, final int flags, final long presentationTimeUs) {
+		final int bytes = data.remaining();
+		final int recordSize = (HEADER_SIZE + bytes + ALIGNMENT - 1) & ~(ALIGNMENT - 1);
+		synchronized (mSync) {
+			if (mReleased || (recordSize > mCapacity / 2)) {
+				mRejectedFrames++;
+				return false;
+			}
+			if (((flags & FLAG_CODEC_CONFIG) != 0) && ((flags & FLAG_KEY_FRAME) == 0)) {
+				// keep parameter sets that come separately from key frame
+				if ((mCodecConfig == null) || (mCodecConfig.length != bytes)) {
+					mCodecConfig = new byte[bytes];
+				}
+				data.duplicate().get(mCodecConfig);
+				mCodecConfigPTSUs = presentationTimeUs;
+			}
+			int pos = mWritePos;
+			if (pos + recordSize > mCapacity) {
+				// not enough space at the end of file, wrap around
+				evict(pos, mCapacity - pos);
+				if (mCapacity - pos >= 4) {
+					mBuffer.putInt(pos, WRAP_MAGIC);
+				}
+				pos = 0;
+			}
+			evict(pos, recordSize);
+			mBuffer.putInt(pos, RECORD_MAGIC);
+			mBuffer.putInt(pos + 4, bytes);
+			mBuffer.putInt(pos + 8, flags);
+			mBuffer.putInt(pos + 12, 0);
+			mBuffer.putLong(pos + 16, presentationTimeUs);
+			final ByteBuffer dst = mBuffer.duplicate();
+			dst.position(pos + HEADER_SIZE);
+			dst.put(data.duplicate());
+			if (mNextSeq - mFirstSeq >= mEntries.length) {
+				growEntries();
+			}
+			final Entry entry = mEntries[(int)(mNextSeq % mEntries.length)];
+			entry.offset = pos;
+			entry.size = bytes;
+			entry.flags = flags;
+			entry.presentationTimeUs = presentationTimeUs;
+			mNextSeq++;
+			mWritePos = pos + recordSize;
+			mIngestedFrames++;
+			mIngestedBytes += bytes;
+			if (mReaderThread != null) {
+				mSync.notifyAll();
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * start passing frames to the sink on the reader thread,
+	 * frames start from the key frame at or before preEventUs earlier than the latest frame
+	 * and live frames follow them. Frames are kept in this buffer while the reader thread
+	 * passes them, so the sink can be slower than camera for a while.
+	 * @param sink
+	 * @return false if already attached or released
+	 */
+	public boolean attach(final Sink sink) {
+		synchronized (mSync) {
+			if (mReleased || (mReaderThread != null)) return false;
+			mReadSeq = findStartSeq();
+			mRequestStopReader = false;
+			final byte[] config = ((mReadSeq < mNextSeq)
+				&& ((mEntries[(int)(mReadSeq % mEntries.length)].flags & FLAG_CODEC_CONFIG) == 0))
+					? mCodecConfig : null;
+			final long configPTSUs = mCodecConfigPTSUs;
+			mReaderThread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					readerLoop(sink, config, configPTSUs);
+				}
+			}, "PreEventReader");
+			mReaderThread.start();
+		}
+		return true;
+	}
+
+	/**
+	 * stop the reader thread, frames are kept buffering
+	 */
+	public void detach() {
+		final Thread thread;
+		synchronized (mSync) {
+			thread = mReaderThread;
+			mReaderThread = null;
+			mRequestStopReader = true;
+			mSync.notifyAll();
+		}
+		if ((thread != null) && (thread != Thread.currentThread())) {
+			try {
+				thread.join();
+			} catch (final InterruptedException e) {
+				// ignore
+			}
+		}
+	}
+
+	/**
+	 * discard all buffered frames
+	 */
+	public void clear() {
+		synchronized (mSync) {
+			mFirstSeq = mNextSeq;
+			mReadSeq = mNextSeq;
+			mWritePos = 0;
+		}
+	}
+
+	/**
+	 * stop the reader thread, unmap and delete the file
+	 */
+	public void release() {
+		detach();
+		synchronized (mSync) {
+			if (mReleased) return;
+			mReleased = true;
+			mFirstSeq = mNextSeq;
+		}
+		try {
+			mChannel.close();
+			mRandomAccessFile.close();
+		} catch (final IOException e) {
+			// ignore
+		}
+		mFile.delete();
+	}
+
+	/**
+	 * @return duration of buffered frames in microseconds
+	 */
+	public long getBufferedDurationUs() {
+		synchronized (mSync) {
+			if (mNextSeq - mFirstSeq < 2) return 0;
+			return mEntries[(int)((mNextSeq - 1) % mEntries.length)].presentationTimeUs
+				- mEntries[(int)(mFirstSeq % mEntries.length)].presentationTimeUs;
+		}
+	}
+
+	/**
+	 * @return number of buffered frames
+	 */
+	public int getBufferedFrames() {
+		synchronized (mSync) {
+			return (int)(mNextSeq - mFirstSeq);
+		}
+	}
+
+	/**
+	 * @return number of frames passed to #write
+	 */
+	public long getIngestedFrames() {
+		return mIngestedFrames;
+	}
+
+	/**
+	 * @return total bytes of frames passed to #write
+	 */
+	public long getIngestedBytes() {
+		return mIngestedBytes;
+	}
+
+	/**
+	 * @return number of frames that were overwritten by newer frames
+	 */
+	public long getOverwrittenFrames() {
+		return mOverwrittenFrames;
+	}
+
+	/**
+	 * @return number of frames that #write rejected
+	 */
+	public long getRejectedFrames() {
+		return mRejectedFrames;
+	}
+
+	/**
+	 * @return number of times that the reader thread could not keep up and skipped to next key frame
+	 */
+	public long getReaderOverruns() {
+		return mReaderOverruns;
+	}
+
+	/**
+	 * remove the oldest records that overlap the range, should be called while holding mSync.
+	 * records are written sequentially, so the oldest record is always just after the write position.
+	 * @param pos
+	 * @param len
+	 */
+	private void evict(final int pos, final int len) {
+		final int end = pos + len;
+		while (mFirstSeq < mNextSeq) {
+			final Entry oldest = mEntries[(int)(mFirstSeq % mEntries.length)];
+			final int oldestEnd = oldest.offset + HEADER_SIZE + oldest.size;
+			if ((oldest.offset >= end) || (oldestEnd <= pos)) break;
+			mFirstSeq++;
+			mOverwrittenFrames++;
+		}
+	}
+
+	/**
+	 * double the ring of record index, should be called while holding mSync
+	 */
+	private void growEntries() {
+		final int n = mEntries.length;
+		final Entry[] entries = new Entry[n * 2];
+		for (long seq = mFirstSeq; seq < mNextSeq; seq++) {
+			entries[(int)(seq % entries.length)] = mEntries[(int)(seq % n)];
+		}
+		for (int i = 0; i < entries.length; i++) {
+			if (entries[i] == null) {
+				entries[i] = new Entry();
+			}
+		}
+		mEntries = entries;
+	}
+
+	/**
+	 * find the key frame at or before preEventUs earlier than the latest frame,
+	 * the oldest key frame if there is no such frame. should be called while holding mSync
+	 * @return sequence number to start reading, mNextSeq if there is no key frame
+	 */
+	private long findStartSeq() {
+		if (mFirstSeq >= mNextSeq) return mNextSeq;
+		final long limit = mEntries[(int)((mNextSeq - 1) % mEntries.length)].presentationTimeUs - mPreEventUs;
+		long oldestKey = -1;
+		for (long seq = mNextSeq - 1; seq >= mFirstSeq; seq--) {
+			final Entry entry = mEntries[(int)(seq % mEntries.length)];
+			if ((entry.flags & FLAG_KEY_FRAME) != 0) {
+				oldestKey = seq;
+				if (entry.presentationTimeUs <= limit) break;
+			}
+		}
+		return oldestKey >= 0 ? oldestKey : mNextSeq;
+	}
+
+	/**
+	 * find next key frame at or after the sequence number, should be called while holding mSync
+	 * @param from
+	 * @return mNextSeq if there is no key frame yet
+	 */
+	private long findKeyFrame(final long from) {
+		for (long seq = Math.max(from, mFirstSeq); seq < mNextSeq; seq++) {
+			if ((mEntries[(int)(seq % mEntries.length)].flags & FLAG_KEY_FRAME) != 0) {
+				return seq;
+			}
+		}
+		return mNextSeq;
+	}
+
+	private void readerLoop(final Sink sink, final byte[] codecConfig, final long codecConfigPTSUs) {
+		ByteBuffer work = null;
+		if (codecConfig != null) {
+			work = ByteBuffer.allocateDirect(codecConfig.length);
+			work.put(codecConfig);
+			work.flip();
+			passToSink(sink, work, FLAG_CODEC_CONFIG, codecConfigPTSUs);
+		}
+		boolean waitKeyFrame = false;
+		for ( ; !mRequestStopReader ; ) {
+			final int flags;
+			final long pts;
+			synchronized (mSync) {
+				if (waitKeyFrame) {
+					mReadSeq = findKeyFrame(mReadSeq);
+				}
+				while (!mRequestStopReader && (mReadSeq >= mNextSeq)) {
+					try {
+						mSync.wait();
+					} catch (final InterruptedException e) {
+						break;
+					}
+					if (waitKeyFrame) {
+						mReadSeq = findKeyFrame(mReadSeq);
+					}
+				}
+				if (mRequestStopReader || (mReadSeq >= mNextSeq)) break;
+				if (mReadSeq < mFirstSeq) {
+					// frames were overwritten before passing them, following frames can not decode until next key frame
+					mReaderOverruns++;
+					mReadSeq = mFirstSeq;
+					waitKeyFrame = true;
+					continue;
+				}
+				waitKeyFrame = false;
+				final Entry entry = mEntries[(int)(mReadSeq % mEntries.length)];
+				// copy while holding mSync so that the record is not overwritten while reading
+				if ((work == null) || (work.capacity() < entry.size)) {
+					work = ByteBuffer.allocateDirect(entry.size + 64 * 1024);
+				}
+				final ByteBuffer src = mBuffer.duplicate();
+				src.position(entry.offset + HEADER_SIZE);
+				src.limit(entry.offset + HEADER_SIZE + entry.size);
+				work.clear();
+				work.put(src);
+				work.flip();
+				flags = entry.flags;
+				pts = entry.presentationTimeUs;
+			}
+			passToSink(sink, work, flags, pts);
+			synchronized (mSync) {
+				mReadSeq++;
+			}
+		}
+	}
+
+	/**
+	 * pass the frame to the sink, retry while the sink is busy
+	 */
+	private void passToSink(final Sink sink, final ByteBuffer data, final int flags, final long pts) {
+		for ( ; !mRequestStopReader ; ) {
+			try {
+				if (sink.writeSample(data.duplicate(), flags, pts)) break;
+			} catch (final Exception e) {
+				// ignore and skip this frame
+				break;
+			}
+			try {
+				Thread.sleep(RETRY_INTERVAL_MS);
+			} catch (final InterruptedException e) {
+				break;
+			}
+		}
+	}
+}
@@ -31,6 +31,7 @@ import android.hardware.usb.UsbDevice;
 import android.media.AudioManager;
 import android.media.MediaScannerConnection;
 import android.media.SoundPool;
+import android.os.Build;
 import android.os.Environment;
 import android.os.Handler;
 import android.os.Looper;
@@ -40,13 +41,20 @@ import android.util.Log;
 import android.view.Surface;
 import android.view.SurfaceHolder;
 
+import com.serenegiant.encoder.MJpegPassThroughRecorder;
+import com.serenegiant.encoder.MediaAsyncVideoBufferEncoder;
 import com.serenegiant.encoder.MediaAudioEncoder;
 import com.serenegiant.encoder.MediaEncoder;
 import com.serenegiant.encoder.MediaMuxerWrapper;
+import com.serenegiant.encoder.MediaPassThroughEncoder;
 import com.serenegiant.encoder.MediaSurfaceEncoder;
 import com.serenegiant.encoder.MediaVideoBufferEncoder;
 import com.serenegiant.encoder.MediaVideoEncoder;
+import com.serenegiant.encoder.PreEventRingBuffer;
+import com.serenegiant.usb.IEncodedFrameCallback;
+import com.serenegiant.usb.IFrameBufferCallback;
 import com.serenegiant.usb.IFrameCallback;
+import com.serenegiant.usb.ITimestampedFrameCallback;
 import com.serenegiant.usb.USBMonitor;
 import com.serenegiant.usb.UVCCamera;
 import com.serenegiant.widget.CameraViewInterface;
@@ -67,6 +75,13 @@ import java.util.concurrent.CopyOnWriteArraySet;
 abstract class AbstractUVCCameraHandler extends Handler {
 	private static final boolean DEBUG = true;	// TODO set false on release
 	private static final String TAG = "AbsUVCCameraHandler";
+	/** timeout for still image capture method 2/3 */
+	private static final int STILL_CAPTURE_TIMEOUT_MS = 3000;
+	/**
+	 * JPEG quality of still image from the latest frame,
+	 * 0 to use original JPEG from the camera on MJPEG mode(default quality on YUYV mode)
+	 */
+	private static final int SNAPSHOT_QUALITY = 0;
 
 	public interface CameraCallback {
 		public void onOpen();
@@ -87,6 +102,8 @@ abstract class AbstractUVCCameraHandler extends Handler {
 	private static final int MSG_CAPTURE_STOP = 6;
 	private static final int MSG_MEDIA_UPDATE = 7;
 	private static final int MSG_RELEASE = 9;
+	private static final int MSG_PRE_EVENT_START = 10;
+	private static final int MSG_PRE_EVENT_STOP = 11;
 
 	private final WeakReference<AbstractUVCCameraHandler.CameraThread> mWeakThread;
 	private volatile boolean mReleased;
@@ -196,6 +213,13 @@ abstract class AbstractUVCCameraHandler extends Handler {
 		sendEmptyMessage(MSG_CAPTURE_STILL);
 	}
 
+	/**
+	 * capture still image into the file, default output without path is PNG.
+	 * if the path has JPEG extension(.jpg/.jpeg), full resolution still image
+	 * of the camera is written as is on MJPEG preview mode if available,
+	 * otherwise the latest frame is encoded into JPEG on background thread on YUYV/MJPEG preview mode.
+	 * @param path
+	 */
 	protected void captureStill(final String path) {
 		checkReleased();
 		sendMessage(obtainMessage(MSG_CAPTURE_STILL, path));
@@ -206,10 +230,40 @@ abstract class AbstractUVCCameraHandler extends Handler {
 		sendEmptyMessage(MSG_CAPTURE_START);
 	}
 
+	/**
+	 * start segmented(rolling file) recording, recording is split into files of segmentDurationMs
+	 * and segment rolls over on key frame without restarting encoders.
+	 * This is not applied to MJPEG recording into AVI file(encoderType 3).
+	 * @param segmentDurationMs duration of each segment file
+	 * @param maxSegments maximum number of segment files to keep, zero means no limit
+	 * @param maxBytes maximum total bytes of segment files to keep, zero means no limit
+	 */
+	public void startRecording(final long segmentDurationMs, final int maxSegments, final long maxBytes) {
+		checkReleased();
+		sendMessage(obtainMessage(MSG_CAPTURE_START, new long[] { segmentDurationMs, maxSegments, maxBytes }));
+	}
+
 	public void stopRecording() {
 		sendEmptyMessage(MSG_CAPTURE_STOP);
 	}
 
+	/**
+	 * start keeping the latest encoded frames in a circular file so that #startRecording
+	 * can record the frames before it was called(pre-event recording) without re-encoding.
+	 * This is only available while preview is running with FRAME_FORMAT_H264/H265,
+	 * or FRAME_FORMAT_MJPEG and encoderType 3.
+	 * @param capacityBytes size of the circular file, this should be enough for preEventMs
+	 * @param preEventMs duration of frames before #startRecording that are recorded
+	 */
+	public void startPreEventBuffer(final int capacityBytes, final int preEventMs) {
+		checkReleased();
+		sendMessage(obtainMessage(MSG_PRE_EVENT_START, capacityBytes, preEventMs));
+	}
+
+	public void stopPreEventBuffer() {
+		sendEmptyMessage(MSG_PRE_EVENT_STOP);
+	}
+
 	public void release() {
 		mReleased = true;
 		close();
@@ -312,7 +366,7 @@ abstract class AbstractUVCCameraHandler extends Handler {
 			thread.handleCaptureStill((String)msg.obj);
 			break;
 		case MSG_CAPTURE_START:
-			thread.handleStartRecording();
+			thread.handleStartRecording((long[])msg.obj);
 			break;
 		case MSG_CAPTURE_STOP:
 			thread.handleStopRecording();
@@ -323,6 +377,12 @@ abstract class AbstractUVCCameraHandler extends Handler {
 		case MSG_RELEASE:
 			thread.handleRelease();
 			break;
+		case MSG_PRE_EVENT_START:
+			thread.handleStartPreEventBuffer(msg.arg1, msg.arg2);
+			break;
+		case MSG_PRE_EVENT_STOP:
+			thread.handleStopPreEventBuffer();
+			break;
 		default:
 			throw new RuntimeException("unsupported message:what=" + msg.what);
 		}
@@ -337,6 +397,10 @@ abstract class AbstractUVCCameraHandler extends Handler {
 		private final int mEncoderType;
 		private final Set<CameraCallback> mCallbacks = new CopyOnWriteArraySet<CameraCallback>();
 		private int mWidth, mHeight, mPreviewMode;
+		/**
+		 * frame format that is actually used for current preview
+		 */
+		private int mCurrentPreviewMode;
 		private float mBandwidthFactor;
 		private boolean mIsPreviewing;
 		private boolean mIsRecording;
@@ -346,6 +410,10 @@ abstract class AbstractUVCCameraHandler extends Handler {
 		private SoundPool mSoundPool;
 		private int mSoundId;
 		private AbstractUVCCameraHandler mHandler;
+		/**
+		 * for saving still image of the latest frame on background threads
+		 */
+		private SnapshotWriter mSnapshotWriter;
 		/**
 		 * for accessing UVC camera
 		 */
@@ -355,16 +423,30 @@ abstract class AbstractUVCCameraHandler extends Handler {
 		 */
 		private MediaMuxerWrapper mMuxer;
 		private MediaVideoBufferEncoder mVideoEncoder;
+		/**
+		 * for recording H.264/H.265 stream from camera without re-encoding
+		 */
+		private MediaPassThroughEncoder mPassThroughEncoder;
+		/**
+		 * for recording MJPEG stream from camera into AVI file without re-encoding
+		 */
+		private MJpegPassThroughRecorder mMJpegRecorder;
+		/**
+		 * circular file that keeps the latest encoded frames for pre-event recording
+		 */
+		private PreEventRingBuffer mPreEventBuffer;
 
 		/**
 		 *
 		 * @param clazz Class extends AbstractUVCCameraHandler
 		 * @param parent parent Activity
 		 * @param cameraView for still capturing
-		 * @param encoderType 0: use MediaSurfaceEncoder, 1: use MediaVideoEncoder, 2: use MediaVideoBufferEncoder
+		 * @param encoderType 0: use MediaSurfaceEncoder, 1: use MediaVideoEncoder, 2: use MediaVideoBufferEncoder(MediaAsyncVideoBufferEncoder on API >= 21),
+		 * 				3: record original MJPEG frames into AVI file(only when FRAME_FORMAT_MJPEG, otherwise same as 0)
 		 * @param width
 		 * @param height
-		 * @param format either FRAME_FORMAT_YUYV(0) or FRAME_FORMAT_MJPEG(1)
+		 * @param format one of FRAME_FORMAT_YUYV(0), FRAME_FORMAT_MJPEG(1), FRAME_FORMAT_H264(2) or FRAME_FORMAT_H265(3),
+		 * 				encoderType is ignored and camera's bitstream is recorded as it is when FRAME_FORMAT_H264/H265
 		 * @param bandwidthFactor
 		 */
 		CameraThread(final Class<? extends AbstractUVCCameraHandler> clazz,
@@ -428,7 +510,7 @@ abstract class AbstractUVCCameraHandler extends Handler {
 
 		public boolean isRecording() {
 			synchronized (mSync) {
-				return (mUVCCamera != null) && (mMuxer != null);
+				return (mUVCCamera != null) && ((mMuxer != null) || (mMJpegRecorder != null));
 			}
 		}
 
@@ -455,6 +537,7 @@ abstract class AbstractUVCCameraHandler extends Handler {
 		public void handleClose() {
 			if (DEBUG) Log.v(TAG_THREAD, "handleClose:");
 			handleStopRecording();
+			handleStopPreEventBuffer();
 			final UVCCamera camera;
 			synchronized (mSync) {
 				camera = mUVCCamera;
@@ -462,6 +545,11 @@ abstract class AbstractUVCCameraHandler extends Handler {
 			}
 			if (camera != null) {
 				camera.stopPreview();
+				if (mSnapshotWriter != null) {
+					// wait for snapshot in progress before destroying camera
+					mSnapshotWriter.release();
+					mSnapshotWriter = null;
+				}
 				camera.destroy();
 				callOnClose();
 			}
@@ -472,10 +560,12 @@ abstract class AbstractUVCCameraHandler extends Handler {
 			if ((mUVCCamera == null) || mIsPreviewing) return;
 			try {
 				mUVCCamera.setPreviewSize(mWidth, mHeight, 1, 31, mPreviewMode, mBandwidthFactor);
+				mCurrentPreviewMode = mPreviewMode;
 			} catch (final IllegalArgumentException e) {
 				try {
 					// fallback to YUV mode
 					mUVCCamera.setPreviewSize(mWidth, mHeight, 1, 31, UVCCamera.DEFAULT_PREVIEW_MODE, mBandwidthFactor);
+					mCurrentPreviewMode = UVCCamera.DEFAULT_PREVIEW_MODE;
 				} catch (final IllegalArgumentException e1) {
 					callOnError(e1);
 					return;
@@ -516,6 +606,8 @@ abstract class AbstractUVCCameraHandler extends Handler {
 			final Activity parent = mWeakParent.get();
 			if (parent == null) return;
 			mSoundPool.play(mSoundId, 0.2f, 0.2f, 0, 0, 1.0f);	// play shutter sound
+			if (handleCaptureStillJpeg(path)) return;
+			if (handleCaptureSnapshot(path)) return;
 			try {
 				final Bitmap bitmap = mWeakCameraView.get().captureStillImage();
 				// get buffered output stream for saving a captured still image as a file on external storage.
@@ -540,23 +632,121 @@ abstract class AbstractUVCCameraHandler extends Handler {
 			}
 		}
 
-		public void handleStartRecording() {
+		/**
+		 * capture full resolution JPEG with still image capture method 2/3 of UVC camera
+		 * without interrupting preview, this is only available on MJPEG preview mode.
+		 * This is used only when caller requested JPEG file explicitly, default output is still PNG.
+		 * @param path output path, if this is empty or is not a JPEG file, this method does nothing
+		 * @return true if the camera sent still image(or failed to write it), false if caller should fall back to view capture
+		 */
+		private boolean handleCaptureStillJpeg(final String path) {
+			if ((mUVCCamera == null) || !mIsPreviewing
+				|| (mCurrentPreviewMode != UVCCamera.FRAME_FORMAT_MJPEG)) return false;
+			if (!isJpegPath(path)) return false;
+			final byte[] jpeg = mUVCCamera.captureStill(0, 0, STILL_CAPTURE_TIMEOUT_MS);
+			if (jpeg == null) return false;
+			try {
+				final File outputFile = new File(path);
+				final FileOutputStream os = new FileOutputStream(outputFile);
+				try {
+					os.write(jpeg);
+				} finally {
+					os.close();
+				}
+				mHandler.sendMessage(mHandler.obtainMessage(MSG_MEDIA_UPDATE, outputFile.getPath()));
+			} catch (final Exception e) {
+				callOnError(e);
+			}
+			return true;
+		}
+
+		/**
+		 * @return true if the path is not empty and has JPEG extension
+		 */
+		private boolean isJpegPath(final String path) {
+			if (TextUtils.isEmpty(path)) return false;
+			final String lower = path.toLowerCase();
+			return lower.endsWith(".jpg") || lower.endsWith(".jpeg");
+		}
+
+		/**
+		 * save the latest frame as JPEG on background threads without blocking camera thread,
+		 * this is only available on YUYV/MJPEG preview mode and only when caller requested JPEG file explicitly.
+		 * @param path output path, if this is empty or is not a JPEG file, this method does nothing
+		 * @return true if the request was accepted(or rejected because too many requests are waiting),
+		 * false if caller should fall back to view capture
+		 */
+		private boolean handleCaptureSnapshot(final String path) {
+			if ((mUVCCamera == null) || !mIsPreviewing
+				|| ((mCurrentPreviewMode != UVCCamera.FRAME_FORMAT_YUYV)
+					&& (mCurrentPreviewMode != UVCCamera.FRAME_FORMAT_MJPEG))) return false;
+			if (!isJpegPath(path)) return false;
+			if (mSnapshotWriter == null) {
+				mSnapshotWriter = new SnapshotWriter(mUVCCamera, mSnapshotListener);
+			}
+			if (!mSnapshotWriter.capture(path, SNAPSHOT_QUALITY)) {
+				Log.w(TAG, "handleCaptureSnapshot:too many requests, skipped");
+			}
+			return true;
+		}
+
+		private final SnapshotWriter.SnapshotListener mSnapshotListener = new SnapshotWriter.SnapshotListener() {
+			@Override
+			public void onSaved(final String path, final long presentationTimeUs) {
+				if (DEBUG) Log.v(TAG_THREAD, "onSaved:" + path);
+				if (mHandler != null) {
+					mHandler.sendMessage(mHandler.obtainMessage(MSG_MEDIA_UPDATE, path));
+				}
+			}
+
+			@Override
+			public void onError(final Exception e) {
+				callOnError(e);
+			}
+		};
+
+		/**
+		 * @param segmentation null or {segmentDurationMs, maxSegments, maxBytes} for segmented recording
+		 */
+		public void handleStartRecording(final long[] segmentation) {
 			if (DEBUG) Log.v(TAG_THREAD, "handleStartRecording:");
 			try {
-				if ((mUVCCamera == null) || (mMuxer != null)) return;
+				if ((mUVCCamera == null) || (mMuxer != null) || (mMJpegRecorder != null)) return;
+				if ((mEncoderType == 3) && (mCurrentPreviewMode == UVCCamera.FRAME_FORMAT_MJPEG)) {
+					handleStartMJpegRecording();
+					return;
+				}
 				final MediaMuxerWrapper muxer = new MediaMuxerWrapper(".mp4");	// if you record audio only, ".m4a" is also OK.
+				if ((segmentation != null) && (segmentation.length >= 3)) {
+					muxer.setSegmentation(segmentation[0], (int)segmentation[1], segmentation[2], mSegmentListener);
+				}
 				MediaVideoBufferEncoder videoEncoder = null;
-				switch (mEncoderType) {
-				case 1:	// for video capturing using MediaVideoEncoder
-					new MediaVideoEncoder(muxer, getWidth(), getHeight(), mMediaEncoderListener);
-					break;
-				case 2:	// for video capturing using MediaVideoBufferEncoder
-					videoEncoder = new MediaVideoBufferEncoder(muxer, getWidth(), getHeight(), mMediaEncoderListener);
-					break;
-				// case 0:	// for video capturing using MediaSurfaceEncoder
-				default:
-					new MediaSurfaceEncoder(muxer, getWidth(), getHeight(), mMediaEncoderListener);
-					break;
+				MediaPassThroughEncoder passThroughEncoder = null;
+				if ((mCurrentPreviewMode == UVCCamera.FRAME_FORMAT_H264)
+					|| (mCurrentPreviewMode == UVCCamera.FRAME_FORMAT_H265)) {
+					// camera already encoded frames, just mux them without re-encoding
+					passThroughEncoder = new MediaPassThroughEncoder(muxer,
+						mCurrentPreviewMode == UVCCamera.FRAME_FORMAT_H265
+							? MediaPassThroughEncoder.MIME_HEVC : MediaPassThroughEncoder.MIME_AVC,
+						getWidth(), getHeight(), mMediaEncoderListener);
+				} else {
+					switch (mEncoderType) {
+					case 1:	// for video capturing using MediaVideoEncoder
+						new MediaVideoEncoder(muxer, getWidth(), getHeight(), mMediaEncoderListener);
+						break;
+					case 2:	// for video capturing using MediaVideoBufferEncoder
+						if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+							// MediaCodec in asynchronous mode, frames are queued without waiting input buffer
+							videoEncoder = new MediaAsyncVideoBufferEncoder(muxer, getWidth(), getHeight(), mMediaEncoderListener);
+						} else {
+							videoEncoder = new MediaVideoBufferEncoder(muxer, getWidth(), getHeight(), mMediaEncoderListener);
+						}
+						break;
+					// case 0:	// for video capturing using MediaSurfaceEncoder
+					default:
+						new MediaSurfaceEncoder(muxer, getWidth(), getHeight(), mMediaEncoderListener);
+						break;
+					}
 				}
 				if (true) {
 					// for audio capturing
@@ -565,11 +755,17 @@ abstract class AbstractUVCCameraHandler extends Handler {
 				muxer.prepare();
 				muxer.startRecording();
 				if (videoEncoder != null) {
-					mUVCCamera.setFrameCallback(mIFrameCallback, UVCCamera.PIXEL_FORMAT_NV21);
+					mUVCCamera.setFrameCallback(videoEncoder instanceof MediaAsyncVideoBufferEncoder
+						? mFrameBufferCallback : mIFrameCallback, UVCCamera.PIXEL_FORMAT_NV21);
 				}
 				synchronized (mSync) {
 					mMuxer = muxer;
 					mVideoEncoder = videoEncoder;
+					mPassThroughEncoder = passThroughEncoder;
+				}
+				if (passThroughEncoder != null) {
+					mUVCCamera.setEncodedFrameCallback(mEncodedFrameCallback);
+					attachPreEventBuffer(passThroughEncoder, null);
 				}
 				callOnStartRecording();
 			} catch (final IOException e) {
@@ -578,17 +774,42 @@ abstract class AbstractUVCCameraHandler extends Handler {
 			}
 		}
 
+		/**
+		 * start recording original MJPEG frames into AVI file, audio is not recorded
+		 */
+		private void handleStartMJpegRecording() throws IOException {
+			final MJpegPassThroughRecorder recorder = new MJpegPassThroughRecorder(
+				MediaMuxerWrapper.getCaptureFile(Environment.DIRECTORY_MOVIES, ".avi").toString(),
+				getWidth(), getHeight(), UVCCamera.DEFAULT_PREVIEW_MAX_FPS);
+			recorder.start();
+			synchronized (mSync) {
+				mMJpegRecorder = recorder;
+			}
+			mIsRecording = true;
+			mUVCCamera.setEncodedFrameCallback(mEncodedFrameCallback);
+			attachPreEventBuffer(null, recorder);
+			callOnStartRecording();
+		}
+
 		public void handleStopRecording() {
 			if (DEBUG) Log.v(TAG_THREAD, "handleStopRecording:mMuxer=" + mMuxer);
 			final MediaMuxerWrapper muxer;
+			final MJpegPassThroughRecorder recorder;
 			synchronized (mSync) {
 				muxer = mMuxer;
 				mMuxer = null;
+				recorder = mMJpegRecorder;
+				mMJpegRecorder = null;
 				mVideoEncoder = null;
+				mPassThroughEncoder = null;
 				if (mUVCCamera != null) {
 					mUVCCamera.stopCapture();
 				}
 			}
+			if (mPreEventBuffer != null) {
+				// frames keep buffering for next recording
+				mPreEventBuffer.detach();
+			}
 			try {
 				mWeakCameraView.get().setVideoEncoder(null);
 			} catch (final Exception e) {
@@ -597,21 +818,186 @@ abstract class AbstractUVCCameraHandler extends Handler {
 			if (muxer != null) {
 				muxer.stopRecording();
 				mUVCCamera.setFrameCallback(null, 0);
+				if (mPreEventBuffer == null) {
+					mUVCCamera.setEncodedFrameCallback(null);
+				}
 				// you should not wait here
 				callOnStopRecording();
 			}
+			if (recorder != null) {
+				if (mPreEventBuffer == null) {
+					mUVCCamera.setEncodedFrameCallback(null);
+				}
+				// this waits until queued frames are written but the queue is bounded
+				final IOException e = recorder.stop();
+				if (DEBUG) Log.v(TAG_THREAD, "handleStopRecording:frames=" + recorder.getFrameCount()
+					+ ",dropped=" + recorder.getDroppedFrames() + ",bytes=" + recorder.getFileSize());
+				mIsRecording = false;
+				if (e != null) {
+					callOnError(e);
+				}
+				callOnStopRecording();
+				mHandler.sendMessageDelayed(mHandler.obtainMessage(MSG_MEDIA_UPDATE, recorder.getOutputPath()), 1000);
+			}
+		}
+
+		/**
+		 * @param capacityBytes
+		 * @param preEventMs
+		 */
+		public void handleStartPreEventBuffer(final int capacityBytes, final int preEventMs) {
+			if (DEBUG) Log.v(TAG_THREAD, "handleStartPreEventBuffer:");
+			final Activity parent = mWeakParent.get();
+			if ((parent == null) || (mUVCCamera == null) || !mIsPreviewing || (mPreEventBuffer != null)) return;
+			if ((mCurrentPreviewMode != UVCCamera.FRAME_FORMAT_H264)
+				&& (mCurrentPreviewMode != UVCCamera.FRAME_FORMAT_H265)
+				&& ((mCurrentPreviewMode != UVCCamera.FRAME_FORMAT_MJPEG) || (mEncoderType != 3))) {
+				// frames are re-encoded while recording, there are no encoded frames to buffer
+				Log.w(TAG, "handleStartPreEventBuffer:unsupported preview mode/encoder type");
+				return;
+			}
+			File file = null;
+			PreEventRingBuffer buffer = null;
+			try {
+				// use unique file for each buffer, other camera/handler may map its own ring file at the same time
+				file = File.createTempFile("preevent", ".ring", parent.getCacheDir());
+				buffer = new PreEventRingBuffer(file, capacityBytes, preEventMs * 1000L);
+				synchronized (mSync) {
+					mPreEventBuffer = buffer;
+				}
+				mUVCCamera.setEncodedFrameCallback(mEncodedFrameCallback);
+			} catch (final IOException e) {
+				callOnError(e);
+				Log.e(TAG, "handleStartPreEventBuffer:", e);
+			} finally {
+				if ((buffer == null) && (file != null)) {
+					// delete only the file that this call created
+					file.delete();
+				}
+			}
 		}
 
-		private final IFrameCallback mIFrameCallback = new IFrameCallback() {
+		public void handleStopPreEventBuffer() {
+			if (DEBUG) Log.v(TAG_THREAD, "handleStopPreEventBuffer:");
+			final PreEventRingBuffer buffer;
+			synchronized (mSync) {
+				buffer = mPreEventBuffer;
+				mPreEventBuffer = null;
+			}
+			if (buffer != null) {
+				if (DEBUG) Log.v(TAG_THREAD, "handleStopPreEventBuffer:frames=" + buffer.getIngestedFrames()
+					+ ",overwritten=" + buffer.getOverwrittenFrames() + ",overruns=" + buffer.getReaderOverruns());
+				// if recording, frames that the recording had not received yet are lost
+				// and live frames are passed to the recording directly from now on
+				buffer.release();
+				if ((mUVCCamera != null) && (mPassThroughEncoder == null) && (mMJpegRecorder == null)) {
+					mUVCCamera.setEncodedFrameCallback(null);
+				}
+			}
+		}
+
+		/**
+		 * pass buffered frames and following live frames to the recording
+		 * through the reader thread of PreEventRingBuffer
+		 */
+		private void attachPreEventBuffer(final MediaPassThroughEncoder encoder, final MJpegPassThroughRecorder recorder) {
+			if (mPreEventBuffer == null) return;
+			mPreEventBuffer.attach(new PreEventRingBuffer.Sink() {
+				@Override
+				public boolean writeSample(final ByteBuffer data, final int flags, final long presentationTimeUs) {
+					if (encoder != null) {
+						return encoder.offer(data, flags, presentationTimeUs);
+					} else {
+						return recorder.offer(data, presentationTimeUs);
+					}
+				}
+			});
+		}
+
+		private final IFrameCallback mIFrameCallback = new ITimestampedFrameCallback() {
 			@Override
 			public void onFrame(final ByteBuffer frame) {
+				// never called because onFrame(ByteBuffer, long) is implemented
+				onFrame(frame, System.nanoTime() / 1000L);
+			}
+
+			@Override
+			public void onFrame(final ByteBuffer frame, final long presentationTimeUs) {
 				final MediaVideoBufferEncoder videoEncoder;
 				synchronized (mSync) {
 					videoEncoder = mVideoEncoder;
 				}
 				if (videoEncoder != null) {
 					videoEncoder.frameAvailableSoon();
-					videoEncoder.encode(frame);
+					videoEncoder.encode(frame, presentationTimeUs);
+				}
+			}
+		};
+
+		/**
+		 * frames are converted directly into input buffer of MediaAsyncVideoBufferEncoder
+		 */
+		private final IFrameCallback mFrameBufferCallback = new IFrameBufferCallback() {
+			@Override
+			public void onFrame(final ByteBuffer frame) {
+				// never called because onObtainBuffer/onFrameWritten are implemented
+			}
+
+			@Override
+			public ByteBuffer onObtainBuffer(final int bytes) {
+				final MediaVideoBufferEncoder videoEncoder;
+				synchronized (mSync) {
+					videoEncoder = mVideoEncoder;
+				}
+				if (videoEncoder instanceof MediaAsyncVideoBufferEncoder) {
+					return ((MediaAsyncVideoBufferEncoder)videoEncoder).obtainInputBuffer(bytes);
+				}
+				return null;
+			}
+
+			@Override
+			public void onFrameWritten(final ByteBuffer buffer, final int bytes, final long presentationTimeUs) {
+				final MediaVideoBufferEncoder videoEncoder;
+				synchronized (mSync) {
+					videoEncoder = mVideoEncoder;
+				}
+				if (videoEncoder instanceof MediaAsyncVideoBufferEncoder) {
+					((MediaAsyncVideoBufferEncoder)videoEncoder).queueInputBuffer(buffer, bytes, presentationTimeUs);
+				}
+			}
+		};
+
+		/**
+		 * register closed segment files to MediaStore, last one is registered when recording stopped
+		 */
+		private final MediaMuxerWrapper.SegmentListener mSegmentListener = new MediaMuxerWrapper.SegmentListener() {
+			@Override
+			public void onSegmentClosed(final String path) {
+				if (DEBUG) Log.v(TAG_THREAD, "onSegmentClosed:" + path);
+				if (mHandler != null) {
+					mHandler.sendMessage(mHandler.obtainMessage(MSG_MEDIA_UPDATE, path));
+				}
+			}
+		};
+
+		private final IEncodedFrameCallback mEncodedFrameCallback = new IEncodedFrameCallback() {
+			@Override
+			public void onEncodedFrame(final ByteBuffer frame, final int flags, final long presentationTimeUs) {
+				final MediaPassThroughEncoder encoder;
+				final MJpegPassThroughRecorder recorder;
+				final PreEventRingBuffer buffer;
+				synchronized (mSync) {
+					encoder = mPassThroughEncoder;
+					recorder = mMJpegRecorder;
+					buffer = mPreEventBuffer;
+				}
+				if (buffer != null) {
+					// recording receives frames through the reader thread of PreEventRingBuffer
+					buffer.write(frame, flags, presentationTimeUs);
+				} else if (encoder != null) {
+					encoder.encode(frame, flags, presentationTimeUs);
+				} else if (recorder != null) {
+					recorder.encode(frame, presentationTimeUs);
 				}
 			}
 		};
@@ -672,7 +1058,8 @@ abstract class AbstractUVCCameraHandler extends Handler {
 			public void onStopped(final MediaEncoder encoder) {
 				if (DEBUG) Log.v(TAG_THREAD, "onStopped:encoder=" + encoder);
 				if ((encoder instanceof MediaVideoEncoder)
-					|| (encoder instanceof MediaSurfaceEncoder))
+					|| (encoder instanceof MediaSurfaceEncoder)
+					|| (encoder instanceof MediaPassThroughEncoder))
 				try {
 					mIsRecording = false;
 					final Activity parent = mWeakParent.get();
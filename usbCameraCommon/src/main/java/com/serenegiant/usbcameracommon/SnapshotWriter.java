@@ -0,0 +1,288 @@
+/*
+ *  UVCCamera
+ *  library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * Copyright (c) 2014-2017 saki t_saki@serenegiant.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ *  All files in the folder are under this Apache License, Version 2.0.
+ *  Files in the libjpeg-turbo, libusb, libuvc, rapidjson folder
+ *  may have a different license, see the respective files.
+ */
+
+package com.serenegiant.usbcameracommon;
+
+import android.util.Log;
+
+import com.serenegiant.usb.UVCCamera;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.LinkedList;
+
+/**
+ * Save JPEG still image of the latest frame without blocking camera thread.
+ * The capture thread requests the latest frame from UVCCamera#captureSnapshot,
+ * that copies next frame on the preview thread and encodes it with libjpeg-turbo on the capture thread
+ * (original MJPEG frame is used as it is when quality is zero), and the writer thread writes it into the file.
+ * Output buffers are pooled direct ByteBuffers, so preview and recording are not interrupted.
+ */
+final class SnapshotWriter {
+	private static final boolean DEBUG = true;	// TODO set false on release
+	private static final String TAG = "SnapshotWriter";
+
+	/** maximum number of requests waiting for capture, requests are rejected when exceeded */
+	private static final int MAX_REQUEST_SIZE = 4;
+	/** maximum number of output buffers, capture waits writing when all buffers are in use */
+	private static final int MAX_POOL_SIZE = 3;
+	private static final int TIMEOUT_MS = 1000;
+
+	public interface SnapshotListener {
+		/**
+		 * called on the writer thread
+		 * @param path
+		 * @param presentationTimeUs capture time of the frame
+		 */
+		public void onSaved(String path, long presentationTimeUs);
+		/**
+		 * called on the capture thread or the writer thread
+		 * @param e
+		 */
+		public void onError(Exception e);
+	}
+
+	private static final class Request {
+		private String path;
+		private int quality;
+		private ByteBuffer buffer;
+		private long presentationTimeUs;
+	}
+
+	private final Object mSync = new Object();
+	private final UVCCamera mCamera;
+	private final SnapshotListener mListener;
+	private final LinkedList<Request> mCaptureQueue = new LinkedList<Request>();
+	private final LinkedList<Request> mWriteQueue = new LinkedList<Request>();
+	private final LinkedList<ByteBuffer> mBufferPool = new LinkedList<ByteBuffer>();
+	private final long[] mPresentationTimeUs = new long[1];
+	private int mNumBuffers;
+	private Thread mCaptureThread;
+	private Thread mWriterThread;
+	private volatile boolean mRequestStop;
+	private volatile int mSavedCount;
+	private volatile long mEncodeTimeMs;
+
+	/**
+	 * @param camera camera should not be destroyed until #release returns
+	 * @param listener
+	 */
+	public SnapshotWriter(final UVCCamera camera, final SnapshotListener listener) {
+		mCamera = camera;
+		mListener = listener;
+		mCaptureThread = new Thread(mCaptureTask, TAG + "-capture");
+		mWriterThread = new Thread(mWriterTask, TAG + "-writer");
+		mCaptureThread.start();
+		mWriterThread.start();
+	}
+
+	/**
+	 * request saving the latest frame as JPEG, this returns immediately
+	 * @param path output file path
+	 * @param quality JPEG quality(1-100), 0 to use original JPEG from the camera on MJPEG mode
+	 * @return false if too many requests are waiting or already released
+	 */
+	public boolean capture(final String path, final int quality) {
+		synchronized (mSync) {
+			if (mRequestStop || (mCaptureQueue.size() >= MAX_REQUEST_SIZE)) return false;
+			final Request request = new Request();
+			request.path = path;
+			request.quality = quality;
+			mCaptureQueue.addLast(request);
+			mSync.notifyAll();
+		}
+		return true;
+	}
+
+	/**
+	 * discard requests that are not captured yet and stop threads,
+	 * images that were already captured are written before returning
+	 */
+	public void release() {
+		final Thread captureThread, writerThread;
+		synchronized (mSync) {
+			mRequestStop = true;
+			mCaptureQueue.clear();
+			captureThread = mCaptureThread;
+			writerThread = mWriterThread;
+			mCaptureThread = mWriterThread = null;
+			mSync.notifyAll();
+		}
+		try {
+			if (captureThread != null) {
+				captureThread.join();
+			}
+			if (writerThread != null) {
+				writerThread.join();
+			}
+		} catch (final InterruptedException e) {
+			// ignore
+		}
+		synchronized (mSync) {
+			mBufferPool.clear();
+		}
+	}
+
+	/**
+	 * @return number of images that were saved
+	 */
+	public int getSavedCount() {
+		return mSavedCount;
+	}
+
+	/**
+	 * @return time of latest capture and encoding in milliseconds
+	 */
+	public long getEncodeTimeMs() {
+		return mEncodeTimeMs;
+	}
+
+	/**
+	 * get output buffer from the pool, wait while all buffers are being written
+	 * @param bytes
+	 * @return null if stopped
+	 */
+	private ByteBuffer obtainBuffer(final int bytes) {
+		synchronized (mSync) {
+			for ( ; !mRequestStop ; ) {
+				if (!mBufferPool.isEmpty()) {
+					final ByteBuffer buffer = mBufferPool.removeFirst();
+					if (buffer.capacity() >= bytes) {
+						return buffer;
+					}
+					// preview size was changed
+					mNumBuffers--;
+				}
+				if (mNumBuffers < MAX_POOL_SIZE) {
+					mNumBuffers++;
+					return ByteBuffer.allocateDirect(bytes);
+				}
+				try {
+					mSync.wait();
+				} catch (final InterruptedException e) {
+					break;
+				}
+			}
+		}
+		return null;
+	}
+
+	private void recycleBuffer(final ByteBuffer buffer) {
+		synchronized (mSync) {
+			mBufferPool.addLast(buffer);
+			mSync.notifyAll();
+		}
+	}
+
+	private final Runnable mCaptureTask = new Runnable() {
+		@Override
+		public void run() {
+			if (DEBUG) Log.v(TAG, "capture task started");
+			for ( ; ; ) {
+				final Request request;
+				synchronized (mSync) {
+					while (!mRequestStop && mCaptureQueue.isEmpty()) {
+						try {
+							mSync.wait();
+						} catch (final InterruptedException e) {
+							break;
+						}
+					}
+					if (mRequestStop || mCaptureQueue.isEmpty()) break;
+					request = mCaptureQueue.removeFirst();
+				}
+				final int bytes = mCamera.getSnapshotBufferSize();
+				final ByteBuffer buffer = bytes > 0 ? obtainBuffer(bytes) : null;
+				if (buffer == null) {
+					if (bytes <= 0) {
+						mListener.onError(new IOException("not previewing"));
+					}
+					continue;
+				}
+				final long start = System.currentTimeMillis();
+				final int result = mCamera.captureSnapshot(buffer, request.quality, TIMEOUT_MS, mPresentationTimeUs);
+				mEncodeTimeMs = System.currentTimeMillis() - start;
+				if (result > 0) {
+					if (DEBUG) Log.v(TAG, "captured:bytes=" + result + ",time=" + mEncodeTimeMs + "ms");
+					request.buffer = buffer;
+					request.presentationTimeUs = mPresentationTimeUs[0];
+					synchronized (mSync) {
+						mWriteQueue.addLast(request);
+						mSync.notifyAll();
+					}
+				} else {
+					recycleBuffer(buffer);
+					mListener.onError(new IOException("failed to capture snapshot:err=" + result));
+				}
+			}
+			synchronized (mSync) {
+				// let the writer thread finish after writing captured images
+				mWriteQueue.addLast(new Request());
+				mSync.notifyAll();
+			}
+			if (DEBUG) Log.v(TAG, "capture task finished");
+		}
+	};
+
+	private final Runnable mWriterTask = new Runnable() {
+		@Override
+		public void run() {
+			if (DEBUG) Log.v(TAG, "writer task started");
+			for ( ; ; ) {
+				final Request request;
+				synchronized (mSync) {
+					while (mWriteQueue.isEmpty()) {
+						try {
+							mSync.wait();
+						} catch (final InterruptedException e) {
+							// ignore
+						}
+					}
+					request = mWriteQueue.removeFirst();
+				}
+				if (request.buffer == null) break;	// end of requests
+				try {
+					final FileOutputStream os = new FileOutputStream(request.path);
+					try {
+						final FileChannel channel = os.getChannel();
+						while (request.buffer.hasRemaining()) {
+							channel.write(request.buffer);
+						}
+					} finally {
+						os.close();
+					}
+					mSavedCount++;
+					mListener.onSaved(request.path, request.presentationTimeUs);
+				} catch (final IOException e) {
+					Log.w(TAG, "failed to write snapshot:", e);
+					mListener.onError(e);
+				} finally {
+					recycleBuffer(request.buffer);
+				}
+			}
+			if (DEBUG) Log.v(TAG, "writer task finished");
+		}
+	};
+}
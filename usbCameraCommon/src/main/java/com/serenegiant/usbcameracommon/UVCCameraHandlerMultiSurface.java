@@ -99,7 +99,8 @@ public class UVCCameraHandlerMultiSurface extends AbstractUVCCameraHandler {
 	 * create UVCCameraHandlerMultiSurface
 	 * @param parent
 	 * @param cameraView
-	 * @param encoderType 0: use MediaSurfaceEncoder, 1: use MediaVideoEncoder, 2: use MediaVideoBufferEncoder
+	 * @param encoderType 0: use MediaSurfaceEncoder, 1: use MediaVideoEncoder, 2: use MediaVideoBufferEncoder,
+	 * 				3: record original MJPEG frames into AVI file(only when FRAME_FORMAT_MJPEG)
 	 * @param width
 	 * @param height
 	 * @param format either UVCCamera.FRAME_FORMAT_YUYV(0) or UVCCamera.FRAME_FORMAT_MJPEG(1)
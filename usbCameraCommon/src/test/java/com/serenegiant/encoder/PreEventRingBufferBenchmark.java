@@ -0,0 +1,106 @@
+/*
+ *  UVCCamera
+ *  library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * Copyright (c) 2014-2017 saki t_saki@serenegiant.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ *  All files in the folder are under this Apache License, Version 2.0.
+ *  Files in the libjpeg-turbo, libusb, libuvc, rapidjson folder
+ *  may have a different license, see the respective files.
+ */
+
+package com.serenegiant.encoder;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * Benchmark of sustained ingest throughput of PreEventRingBuffer.
+ * This has no dependency on Android framework and can run on desktop JVM(or with app_process on device)
+ * usage: PreEventRingBufferBenchmark [capacityMB] [frameBytes] [keyFrameInterval] [seconds] [file]
+ */
+public class PreEventRingBufferBenchmark {
+
+	public static void main(final String[] args) throws Exception {
+		final int capacityMB = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+		final int frameBytes = args.length > 1 ? Integer.parseInt(args[1]) : 100 * 1024;
+		final int keyFrameInterval = args.length > 2 ? Integer.parseInt(args[2]) : 30;
+		final int seconds = args.length > 3 ? Integer.parseInt(args[3]) : 5;
+		final File file = args.length > 4 ? new File(args[4]) : File.createTempFile("preevent", ".ring");
+
+		System.out.println(String.format("capacity=%dMB,frame=%dbytes,keyFrameInterval=%d,duration=%ds,file=%s",
+			capacityMB, frameBytes, keyFrameInterval, seconds, file));
+		// key frame is larger than other frames like actual H.264 stream
+		final ByteBuffer keyFrame = ByteBuffer.allocateDirect(frameBytes * 4);
+		final ByteBuffer frame = ByteBuffer.allocateDirect(frameBytes);
+		final Random random = new Random(0);
+		final byte[] noise = new byte[keyFrame.capacity()];
+		random.nextBytes(noise);
+		keyFrame.put(noise).flip();
+		frame.put(noise, 0, frame.capacity()).flip();
+
+		final PreEventRingBuffer buffer = new PreEventRingBuffer(file, capacityMB * 1024 * 1024, 3000000L);
+		try {
+			// ingest only
+			run(buffer, keyFrame, frame, keyFrameInterval, seconds * 1000L, "ingest");
+			// ingest while the reader thread passes frames to the sink
+			final long[] drained = new long[2];
+			buffer.attach(new PreEventRingBuffer.Sink() {
+				@Override
+				public boolean writeSample(final ByteBuffer data, final int flags, final long presentationTimeUs) {
+					drained[0]++;
+					drained[1] += data.remaining();
+					return true;
+				}
+			});
+			final long start = System.nanoTime();
+			run(buffer, keyFrame, frame, keyFrameInterval, seconds * 1000L, "ingest+drain");
+			buffer.detach();
+			final double sec = (System.nanoTime() - start) / 1e9;
+			System.out.println(String.format("drain:%d frames,%.1f frames/s,%.1f MB/s,overruns=%d",
+				drained[0], drained[0] / sec, drained[1] / sec / (1024 * 1024), buffer.getReaderOverruns()));
+		} finally {
+			buffer.release();
+		}
+	}
+
+	private static void run(final PreEventRingBuffer buffer,
+		final ByteBuffer keyFrame, final ByteBuffer frame, final int keyFrameInterval,
+		final long durationMs, final String label) {
+
+		final long ingestedFrames = buffer.getIngestedFrames();
+		final long ingestedBytes = buffer.getIngestedBytes();
+		final long start = System.nanoTime();
+		final long end = start + durationMs * 1000000L;
+		long n = 0;
+		long worstNs = 0;
+		for ( ; ; n++) {
+			final boolean isKeyFrame = (n % keyFrameInterval) == 0;
+			final long t = System.nanoTime();
+			if (t >= end) break;
+			buffer.write(isKeyFrame ? keyFrame : frame,
+				isKeyFrame ? PreEventRingBuffer.FLAG_KEY_FRAME : 0, t / 1000L);
+			final long ns = System.nanoTime() - t;
+			if (ns > worstNs) worstNs = ns;
+		}
+		final double sec = (System.nanoTime() - start) / 1e9;
+		final long frames = buffer.getIngestedFrames() - ingestedFrames;
+		final long bytes = buffer.getIngestedBytes() - ingestedBytes;
+		System.out.println(String.format("%s:%d frames,%.1f frames/s,%.1f MB/s,worst write=%.3fms,buffered=%d frames(%.2fs),overwritten=%d",
+			label, frames, frames / sec, bytes / sec / (1024 * 1024), worstNs / 1e6,
+			buffer.getBufferedFrames(), buffer.getBufferedDurationUs() / 1e6, buffer.getOverwrittenFrames()));
+	}
+}